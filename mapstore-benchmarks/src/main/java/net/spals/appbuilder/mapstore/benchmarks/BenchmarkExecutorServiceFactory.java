@@ -0,0 +1,53 @@
+package net.spals.appbuilder.mapstore.benchmarks;
+
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An {@link ExecutorServiceFactory} for benchmarks,
+ * which run outside of an application's lifecycle.
+ *
+ * All executors created by the factory are shut
+ * down when it is closed.
+ *
+ * @author tkral
+ */
+public class BenchmarkExecutorServiceFactory implements ExecutorServiceFactory, Closeable {
+
+    private final List<ExecutorService> executorServices = new CopyOnWriteArrayList<>();
+
+    @Override
+    public ExecutorService createFixedThreadPool(final int nThreads,
+                                                 final Class<?> parentClass,
+                                                 final String... nameSuffixes) {
+        return track(Executors.newFixedThreadPool(nThreads));
+    }
+
+    @Override
+    public ExecutorService createCachedThreadPool(final Class<?> parentClass,
+                                                  final String... nameSuffixes) {
+        return track(Executors.newCachedThreadPool());
+    }
+
+    @Override
+    public ExecutorService createSingleThreadExecutor(final Class<?> parentClass,
+                                                      final String... nameSuffixes) {
+        return track(Executors.newSingleThreadExecutor());
+    }
+
+    @Override
+    public void close() {
+        executorServices.forEach(ExecutorService::shutdownNow);
+        executorServices.clear();
+    }
+
+    private ExecutorService track(final ExecutorService executorService) {
+        executorServices.add(executorService);
+        return executorService;
+    }
+}
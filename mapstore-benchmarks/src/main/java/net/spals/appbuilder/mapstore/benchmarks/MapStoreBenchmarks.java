@@ -0,0 +1,62 @@
+package net.spals.appbuilder.mapstore.benchmarks;
+
+import net.spals.appbuilder.mapstore.cassandra.CassandraMapStorePluginBenchmark;
+import net.spals.appbuilder.mapstore.core.inmemory.InMemoryMapStorePluginBenchmark;
+import net.spals.appbuilder.mapstore.core.mapdb.MapDBMapStorePluginBenchmark;
+import net.spals.appbuilder.mapstore.dynamodb.DynamoDBMapStorePluginBenchmark;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.Optional;
+
+/**
+ * Runs the {@link MapStorePluginBenchmark}s at each
+ * of {@link #THREAD_COUNTS} with the GC profiler, which
+ * reports the allocation rate of every operation.
+ *
+ * Any standard JMH arguments are passed through. When
+ * no benchmarks are selected, the in-memory and MapDB
+ * benchmarks are run along with those of every remote
+ * store whose environment variables are set. Results
+ * are written as JSON under target/jmh.
+ *
+ * @author tkral
+ */
+public class MapStoreBenchmarks {
+
+    static final int[] THREAD_COUNTS = {1, 4, 16};
+    static final String RESULTS_DIR = "target/jmh";
+
+    public static void main(final String[] args) throws Exception {
+        final CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        new File(RESULTS_DIR).mkdirs();
+
+        // A thread count given on the command line replaces the sweep
+        final int[] threadCounts = commandLineOptions.getThreads().hasValue()
+                ? new int[] {commandLineOptions.getThreads().get()} : THREAD_COUNTS;
+        for (final int threads : threadCounts) {
+            final ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(RESULTS_DIR + "/mapstore-threads" + threads + ".json");
+
+            if (commandLineOptions.getIncludes().isEmpty()) {
+                options.include(InMemoryMapStorePluginBenchmark.class.getSimpleName());
+                options.include(MapDBMapStorePluginBenchmark.class.getSimpleName());
+                Optional.ofNullable(System.getenv(CassandraMapStorePluginBenchmark.CASSANDRA_IP_ENV))
+                        .ifPresent(ip -> options.include(CassandraMapStorePluginBenchmark.class.getSimpleName()));
+                Optional.ofNullable(System.getenv(DynamoDBMapStorePluginBenchmark.DYNAMODB_IP_ENV))
+                        .ifPresent(ip -> options.include(DynamoDBMapStorePluginBenchmark.class.getSimpleName()));
+            }
+
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package net.spals.appbuilder.mapstore.benchmarks;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.between;
+
+/**
+ * Benchmarks of the single and multi item operations
+ * of a {@link MapStorePlugin}.
+ *
+ * A table of {@link #HASH_COUNT} hash values, each with
+ * {@link #RANGE_COUNT} range values, is loaded before the
+ * benchmarks run. Every operation picks its key at random
+ * so that concurrent threads do not contend on one item.
+ *
+ * @author tkral
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public abstract class MapStorePluginBenchmark {
+
+    static final int HASH_COUNT = 10;
+    static final int RANGE_COUNT = 100;
+    // The number of items read by each range query
+    static final int RANGE_QUERY_SIZE = 10;
+
+    static final String TABLE_NAME = "benchmarkTable";
+    static final String HASH_FIELD = "myHashField";
+    static final String RANGE_FIELD = "myRangeField";
+    static final String PAYLOAD_FIELD = "myPayloadField";
+
+    private static final MapStoreTableKey TABLE_KEY = new MapStoreTableKey.Builder()
+            .setHash(HASH_FIELD, String.class)
+            .setRange(RANGE_FIELD, String.class)
+            .build();
+
+    // The size, in characters, of each item's payload
+    @Param({"100", "1000", "10000"})
+    public int payloadSize;
+
+    private MapStorePlugin storePlugin;
+    private Map<String, Object> payload;
+
+    /**
+     * Creates the plugin under benchmark.
+     */
+    protected abstract MapStorePlugin createStorePlugin() throws Exception;
+
+    /**
+     * Releases any resources held by the plugin
+     * under benchmark.
+     */
+    protected void closeStorePlugin(final MapStorePlugin storePlugin) throws Exception {  }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storePlugin = createStorePlugin();
+        payload = ImmutableMap.of(PAYLOAD_FIELD, Strings.repeat("x", payloadSize));
+
+        storePlugin.createTable(TABLE_NAME, TABLE_KEY);
+        IntStream.range(0, HASH_COUNT).forEach(hash -> {
+            final Map<MapStoreKey, Map<String, Object>> items = new LinkedHashMap<>();
+            IntStream.range(0, RANGE_COUNT).forEach(range -> items.put(itemKey(hash, range), newPayload()));
+            storePlugin.batchPutItems(TABLE_NAME, items);
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        try {
+            storePlugin.dropTable(TABLE_NAME);
+        } finally {
+            closeStorePlugin(storePlugin);
+        }
+    }
+
+    @Benchmark
+    public Optional<Map<String, Object>> getItem() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        return storePlugin.getItem(TABLE_NAME, itemKey(random.nextInt(HASH_COUNT), random.nextInt(RANGE_COUNT)));
+    }
+
+    @Benchmark
+    public Map<String, Object> putItem() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        return storePlugin.putItem(TABLE_NAME, itemKey(random.nextInt(HASH_COUNT), random.nextInt(RANGE_COUNT)),
+                newPayload());
+    }
+
+    @Benchmark
+    public Map<String, Object> updateItem() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        return storePlugin.updateItem(TABLE_NAME, itemKey(random.nextInt(HASH_COUNT), random.nextInt(RANGE_COUNT)),
+                newPayload());
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> getItems() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int startRange = random.nextInt(RANGE_COUNT - RANGE_QUERY_SIZE + 1);
+        final MapStoreKey rangeKey = new MapStoreKey.Builder()
+                .setHash(HASH_FIELD, hashValue(random.nextInt(HASH_COUNT)))
+                .setRange(RANGE_FIELD, between(rangeValue(startRange), rangeValue(startRange + RANGE_QUERY_SIZE - 1)))
+                .build();
+        return storePlugin.getItems(TABLE_NAME, rangeKey, MapQueryOptions.defaultOptions());
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> getAllItems() {
+        return storePlugin.getAllItems(TABLE_NAME);
+    }
+
+    // Plugins may strip key fields from the payloads they are given, so each write gets its own copy
+    private Map<String, Object> newPayload() {
+        return new HashMap<>(payload);
+    }
+
+    static MapStoreKey itemKey(final int hash, final int range) {
+        return new MapStoreKey.Builder()
+                .setHash(HASH_FIELD, hashValue(hash))
+                .setRange(RANGE_FIELD, equalTo(rangeValue(range)))
+                .build();
+    }
+
+    static String hashValue(final int hash) {
+        return "hash" + hash;
+    }
+
+    // Range values are padded so that their string order matches their numeric order
+    static String rangeValue(final int range) {
+        return String.format("range%04d", range);
+    }
+}
@@ -0,0 +1,47 @@
+package net.spals.appbuilder.mapstore.cassandra;
+
+import com.datastax.driver.core.Cluster;
+import net.spals.appbuilder.mapstore.benchmarks.BenchmarkExecutorServiceFactory;
+import net.spals.appbuilder.mapstore.benchmarks.MapStorePluginBenchmark;
+import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks of {@link CassandraMapStorePlugin}
+ * against the Cassandra instance found at the
+ * CASSANDRA_IP and CASSANDRA_PORT environment
+ * variables.
+ *
+ * @author tkral
+ */
+@State(Scope.Benchmark)
+public class CassandraMapStorePluginBenchmark extends MapStorePluginBenchmark {
+
+    public static final String CASSANDRA_IP_ENV = "CASSANDRA_IP";
+    public static final String CASSANDRA_PORT_ENV = "CASSANDRA_PORT";
+
+    private Cluster cluster;
+    private BenchmarkExecutorServiceFactory executorServiceFactory;
+
+    @Override
+    protected MapStorePlugin createStorePlugin() {
+        cluster = Cluster.builder()
+                .withClusterName("CassandraMapStorePluginBenchmark")
+                .addContactPoint(System.getenv(CASSANDRA_IP_ENV))
+                .withPort(Integer.parseInt(System.getenv(CASSANDRA_PORT_ENV)))
+                .build();
+        executorServiceFactory = new BenchmarkExecutorServiceFactory();
+        return new CassandraMapStorePlugin("CassandraMapStorePluginBenchmark", cluster, executorServiceFactory);
+    }
+
+    @Override
+    protected void closeStorePlugin(final MapStorePlugin storePlugin) {
+        try {
+            ((CassandraMapStorePlugin) storePlugin).close();
+        } finally {
+            executorServiceFactory.close();
+            cluster.close();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package net.spals.appbuilder.mapstore.core.inmemory;
+
+import net.spals.appbuilder.mapstore.benchmarks.MapStorePluginBenchmark;
+import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks of {@link InMemoryMapStorePlugin}.
+ *
+ * @author tkral
+ */
+@State(Scope.Benchmark)
+public class InMemoryMapStorePluginBenchmark extends MapStorePluginBenchmark {
+
+    @Override
+    protected MapStorePlugin createStorePlugin() {
+        return new InMemoryMapStorePlugin();
+    }
+}
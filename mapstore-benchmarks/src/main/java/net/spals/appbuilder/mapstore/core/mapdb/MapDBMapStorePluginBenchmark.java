@@ -0,0 +1,59 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import net.spals.appbuilder.mapstore.benchmarks.BenchmarkExecutorServiceFactory;
+import net.spals.appbuilder.mapstore.benchmarks.MapStorePluginBenchmark;
+import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import org.mapdb.DB;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * Benchmarks of {@link MapDBMapStorePlugin}, kept
+ * either in memory or in a memory-mapped file.
+ *
+ * @author tkral
+ */
+@State(Scope.Benchmark)
+public class MapDBMapStorePluginBenchmark extends MapStorePluginBenchmark {
+
+    @Param({"memory", "file"})
+    public String storage;
+
+    private DB mapDB;
+    private File storeDir;
+    private BenchmarkExecutorServiceFactory executorServiceFactory;
+
+    @Override
+    protected MapStorePlugin createStorePlugin() throws Exception {
+        final MapDBProvider mapDBProvider = new MapDBProvider();
+        if ("file".equals(storage)) {
+            storeDir = Files.createTempDirectory("mapDBBenchmark").toFile();
+            mapDBProvider.storeFilePath = new File(storeDir, "benchmark.db").getAbsolutePath();
+            mapDBProvider.fileMmapEnable = true;
+        }
+
+        mapDB = mapDBProvider.get();
+        executorServiceFactory = new BenchmarkExecutorServiceFactory();
+        return new MapDBMapStorePlugin(mapDB, new BinaryMapDBValueCodec(mapDB), executorServiceFactory);
+    }
+
+    @Override
+    protected void closeStorePlugin(final MapStorePlugin storePlugin) throws Exception {
+        ((MapDBMapStorePlugin) storePlugin).close();
+        executorServiceFactory.close();
+        mapDB.close();
+        if (storeDir != null) {
+            final File[] storeFiles = storeDir.listFiles();
+            if (storeFiles != null) {
+                for (final File storeFile : storeFiles) {
+                    Files.deleteIfExists(storeFile.toPath());
+                }
+            }
+            Files.deleteIfExists(storeDir.toPath());
+        }
+    }
+}
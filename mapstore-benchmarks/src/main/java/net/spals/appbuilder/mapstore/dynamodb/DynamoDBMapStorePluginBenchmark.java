@@ -0,0 +1,85 @@
+package net.spals.appbuilder.mapstore.dynamodb;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClientBuilder;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import net.spals.appbuilder.mapstore.benchmarks.BenchmarkExecutorServiceFactory;
+import net.spals.appbuilder.mapstore.benchmarks.MapStorePluginBenchmark;
+import net.spals.appbuilder.mapstore.core.MapStoreMetrics;
+import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Benchmarks of {@link DynamoDBMapStorePlugin}
+ * against the DynamoDB Local instance found at the
+ * DYNAMODB_IP and DYNAMODB_PORT environment variables.
+ *
+ * @author tkral
+ */
+@State(Scope.Benchmark)
+public class DynamoDBMapStorePluginBenchmark extends MapStorePluginBenchmark {
+
+    public static final String DYNAMODB_IP_ENV = "DYNAMODB_IP";
+    public static final String DYNAMODB_PORT_ENV = "DYNAMODB_PORT";
+
+    private BenchmarkExecutorServiceFactory executorServiceFactory;
+
+    @Override
+    protected MapStorePlugin createStorePlugin() {
+        final EndpointConfiguration endpointConfig = new EndpointConfiguration(
+                "http://" + System.getenv(DYNAMODB_IP_ENV) + ":" + System.getenv(DYNAMODB_PORT_ENV), null);
+        // DynamoDB Local accepts any credentials
+        final AWSStaticCredentialsProvider credentialsProvider =
+                new AWSStaticCredentialsProvider(new BasicAWSCredentials("DUMMY", "DUMMY"));
+
+        executorServiceFactory = new BenchmarkExecutorServiceFactory();
+        return new DynamoDBMapStorePlugin(
+                AmazonDynamoDBClientBuilder.standard()
+                        .withCredentials(credentialsProvider).withEndpointConfiguration(endpointConfig).build(),
+                AmazonDynamoDBAsyncClientBuilder.standard()
+                        .withCredentials(credentialsProvider).withEndpointConfiguration(endpointConfig).build(),
+                executorServiceFactory,
+                new NoOpMapStoreMetrics());
+    }
+
+    @Override
+    protected void closeStorePlugin(final MapStorePlugin storePlugin) {
+        try {
+            ((DynamoDBMapStorePlugin) storePlugin).close();
+        } finally {
+            executorServiceFactory.close();
+        }
+    }
+
+    // Only the plugin itself is benchmarked, so its backend metrics are dropped
+    private static class NoOpMapStoreMetrics implements MapStoreMetrics {
+
+        @Override
+        public <T> T time(final String storeSystem,
+                          final String tableName,
+                          final String operation,
+                          final Supplier<T> call) {
+            return call.get();
+        }
+
+        @Override
+        public void recordItems(final String storeSystem,
+                                final String tableName,
+                                final String operation,
+                                final Collection<Map<String, Object>> items) {  }
+
+        @Override
+        public void mark(final String storeSystem,
+                         final String tableName,
+                         final String operation,
+                         final String metricName,
+                         final long count) {  }
+    }
+}
@@ -0,0 +1,67 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import com.datastax.driver.core.policies.{ConstantSpeculativeExecutionPolicy, DCAwareRoundRobinPolicy, NoSpeculativeExecutionPolicy, TokenAwarePolicy}
+import com.datastax.driver.core.{ConsistencyLevel, HostDistance}
+import com.typesafe.config.ConfigException
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.{instanceOf, is}
+import org.testng.annotations.Test
+
+/**
+  * Unit tests for [[CassandraClusterInitializerProvider]].
+  *
+  * @author tkral
+  */
+class CassandraClusterInitializerProviderTest {
+
+  private def createProvider(): CassandraClusterInitializerProvider = {
+    val initializerProvider = new CassandraClusterInitializerProvider
+    initializerProvider.clusterName = "myCluster"
+    initializerProvider.hosts = "127.0.0.1"
+    initializerProvider
+  }
+
+  @Test def testDefaultConfiguration() {
+    val configuration = createProvider().get().getConfiguration
+
+    assertThat(configuration.getPolicies.getLoadBalancingPolicy, instanceOf[AnyRef](classOf[TokenAwarePolicy]))
+    assertThat(configuration.getPolicies.getSpeculativeExecutionPolicy,
+      is[AnyRef](NoSpeculativeExecutionPolicy.INSTANCE))
+    assertThat(configuration.getQueryOptions.getConsistencyLevel, is(ConsistencyLevel.LOCAL_ONE))
+    assertThat(configuration.getSocketOptions.getTcpNoDelay, is(java.lang.Boolean.TRUE))
+  }
+
+  @Test def testTunedConfiguration() {
+    val initializerProvider = createProvider()
+    initializerProvider.localDataCenter = "myDataCenter"
+    initializerProvider.tokenAware = false
+    initializerProvider.coreConnectionsPerHost = 2
+    initializerProvider.maxConnectionsPerHost = 4
+    initializerProvider.speculativeExecutionDelayMillis = 50L
+    initializerProvider.fetchSize = 100
+    initializerProvider.consistency = "LOCAL_QUORUM"
+    val configuration = initializerProvider.get().getConfiguration
+
+    assertThat(configuration.getPolicies.getLoadBalancingPolicy, instanceOf[AnyRef](classOf[DCAwareRoundRobinPolicy]))
+    assertThat(configuration.getPolicies.getSpeculativeExecutionPolicy,
+      instanceOf[AnyRef](classOf[ConstantSpeculativeExecutionPolicy]))
+    assertThat(configuration.getPoolingOptions.getCoreConnectionsPerHost(HostDistance.LOCAL), is(2))
+    assertThat(configuration.getPoolingOptions.getMaxConnectionsPerHost(HostDistance.LOCAL), is(4))
+    assertThat(configuration.getQueryOptions.getConsistencyLevel, is(ConsistencyLevel.LOCAL_QUORUM))
+    assertThat(configuration.getQueryOptions.getFetchSize, is(100))
+  }
+
+  @Test(expectedExceptions = Array(classOf[ConfigException.BadValue]))
+  def testInvalidConsistency() {
+    val initializerProvider = createProvider()
+    initializerProvider.consistency = "SOME"
+    initializerProvider.get()
+  }
+
+  @Test(expectedExceptions = Array(classOf[ConfigException.BadValue]))
+  def testInvalidConnectionsPerHost() {
+    val initializerProvider = createProvider()
+    initializerProvider.coreConnectionsPerHost = 2
+    initializerProvider.get()
+  }
+}
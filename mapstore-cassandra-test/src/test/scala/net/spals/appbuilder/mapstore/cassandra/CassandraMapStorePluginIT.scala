@@ -1,17 +1,23 @@
 package net.spals.appbuilder.mapstore.cassandra
 
 import java.util.Optional
+import java.util.concurrent.{ExecutorService, Executors}
+import java.util.stream.Collectors
 
 import com.datastax.driver.core.Cluster
 import com.datastax.driver.core.Cluster.Initializer
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions
 import net.spals.appbuilder.mapstore.core.model.MultiValueMapRangeKey.in
 import net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey._
 import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.between
 import net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all
-import net.spals.appbuilder.mapstore.core.model.{MapStoreKey, MapStoreTableKey}
+import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey, MapStoreTableKey, MapStoreWriteCondition}
 import org.hamcrest.MatcherAssert.assertThat
-import org.hamcrest.Matchers.{contains, empty, is}
+import org.hamcrest.Matchers.{contains, containsInAnyOrder, empty, is}
+import org.mockito.Mockito.mock
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
 import org.testng.annotations.{AfterClass, BeforeClass, DataProvider, Test}
 
 import scala.collection.JavaConverters._
@@ -36,7 +42,13 @@ class CassandraMapStorePluginIT {
     clusterProvider.get()
   }
 
-  private lazy val mapStorePlugin = new CassandraMapStorePlugin(applicationName = "CassandraMapStorePluginIT", cluster)
+  private lazy val executorServiceFactory = mock(classOf[ExecutorServiceFactory],
+    new Answer[ExecutorService] {
+      override def answer(invocation: InvocationOnMock): ExecutorService = Executors.newCachedThreadPool()
+    })
+
+  private lazy val mapStorePlugin = new CassandraMapStorePlugin(applicationName = "CassandraMapStorePluginIT", cluster,
+    executorServiceFactory)
 
   private val hashTableName = "hashTable"
   private val hashTableKey = new MapStoreTableKey.Builder()
@@ -49,14 +61,23 @@ class CassandraMapStorePluginIT {
     .setRange("myRangeField", classOf[String])
     .build()
 
+  private val typedTableName = "typedTable"
+  private val typedTableKey = new MapStoreTableKey.Builder()
+    .setHash("myHashField", classOf[String])
+    .addColumn("myLongField", classOf[java.lang.Long])
+    .addColumn("myStringField", classOf[String])
+    .build()
+
   @BeforeClass def createTables() {
     mapStorePlugin.createTable(hashTableName, hashTableKey)
     mapStorePlugin.createTable(rangeTableName, rangeTableKey)
+    mapStorePlugin.createTable(typedTableName, typedTableKey)
   }
 
   @AfterClass(alwaysRun = true) def dropTables() {
     mapStorePlugin.dropTable(hashTableName)
     mapStorePlugin.dropTable(rangeTableName)
+    mapStorePlugin.dropTable(typedTableName)
     mapStorePlugin.close()
   }
 
@@ -189,4 +210,258 @@ class CassandraMapStorePluginIT {
     assertThat(mapStorePlugin.getItems(rangeTableName, storeKey, defaultOptions()),
       contains[java.util.Map[String, AnyRef]](expectedResults.map(_.asJava): _*))
   }
+
+  @Test(dependsOnMethods = Array("testPutItem", "testUpdateItem"))
+  def testStreamItems() {
+    val result: Int => java.util.Map[String, AnyRef] = i => Map[String, AnyRef]("myhashfield" -> "myHashValue",
+      "myrangefield" -> s"myRangeValue$i", "key" -> "value").asJava
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", all()).build
+    val options = new MapQueryOptions.Builder().setPageSize(1).setOrder(MapQueryOptions.Order.DESC).build
+
+    assertThat(mapStorePlugin.streamItems(rangeTableName, storeKey, options).collect(Collectors.toList()),
+      contains[java.util.Map[String, AnyRef]](result(4), result(3), result(2), result(1)))
+  }
+
+  @Test(dependsOnMethods = Array("testPutItem", "testUpdateItem"))
+  def testGetFirstItem() {
+    val result: Int => java.util.Map[String, AnyRef] = i => Map[String, AnyRef]("myhashfield" -> "myHashValue",
+      "myrangefield" -> s"myRangeValue$i", "key" -> "value").asJava
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", all()).build
+
+    assertThat(mapStorePlugin.getFirstItem(rangeTableName, storeKey, MapQueryOptions.Order.ASC),
+      is(Optional.of(result(1))))
+    assertThat(mapStorePlugin.getFirstItem(rangeTableName, storeKey, MapQueryOptions.Order.DESC),
+      is(Optional.of(result(4))))
+  }
+
+  @Test def testAsyncItems() {
+    val asyncStore = mapStorePlugin.asyncPlugin().get()
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "asyncHashValue")
+      .setRange("myRangeField", equalTo[String]("asyncRangeValue")).build
+    val expectedResult = Map[String, AnyRef]("myhashfield" -> "asyncHashValue",
+      "myrangefield" -> "asyncRangeValue", "key" -> "value").asJava
+
+    assertThat(asyncStore.putItem(rangeTableName, storeKey, Map[String, AnyRef]("key" -> "value").asJava).join(),
+      is(expectedResult))
+    assertThat(asyncStore.getItem(rangeTableName, storeKey).join(), is(Optional.of(expectedResult)))
+    assertThat(asyncStore.getItems(rangeTableName, storeKey, defaultOptions()).join(),
+      contains[java.util.Map[String, AnyRef]](expectedResult))
+
+    asyncStore.deleteItem(rangeTableName, storeKey).join()
+    assertThat(asyncStore.getItem(rangeTableName, storeKey).join(), is(Optional.empty[java.util.Map[String, AnyRef]]))
+  }
+
+  @Test def testBatchItems() {
+    val keys = List("batchHashValue1", "batchHashValue2")
+      .map(hashValue => new MapStoreKey.Builder().setHash("myHashField", hashValue).build)
+    val items = keys.map(key => (key, Map[String, AnyRef]("key" -> "value").asJava)).toMap
+    // NOTE: Cassandra keys are case insensitive
+    val expectedResults = keys.map(key => Map("myhashfield" -> key.getHashValue, "key" -> "value").asJava)
+
+    assertThat(mapStorePlugin.batchPutItems(hashTableName, items.asJava),
+      containsInAnyOrder[java.util.Map[String, AnyRef]](expectedResults: _*))
+    assertThat(mapStorePlugin.batchGetItems(hashTableName, keys.asJava),
+      containsInAnyOrder[java.util.Map[String, AnyRef]](expectedResults: _*))
+
+    mapStorePlugin.batchDeleteItems(hashTableName, keys.asJava)
+    assertThat(mapStorePlugin.batchGetItems(hashTableName, keys.asJava), empty[java.util.Map[String, AnyRef]])
+  }
+
+  @Test def testSplitPartitionBatches() {
+    val rangeValues = List("splitRangeValue1", "splitRangeValue2", "splitRangeValue3")
+    val keys = rangeValues.map(rangeValue => new MapStoreKey.Builder().setHash("myHashField", "splitHashValue")
+      .setRange("myRangeField", equalTo[String](rangeValue)).build)
+    val items = keys.map(key => (key, Map[String, AnyRef]("key" -> "value").asJava)).toMap
+    val expectedResults = rangeValues.map(rangeValue => Map[String, AnyRef]("myhashfield" -> "splitHashValue",
+      "myrangefield" -> rangeValue, "key" -> "value").asJava)
+
+    // A single partition's writes are sent as several batches
+    mapStorePlugin.maxBatchSize = 2
+    try {
+      assertThat(mapStorePlugin.batchPutItems(rangeTableName, items.asJava),
+        containsInAnyOrder[java.util.Map[String, AnyRef]](expectedResults: _*))
+    } finally {
+      mapStorePlugin.maxBatchSize = 50
+    }
+    assertThat(mapStorePlugin.batchGetItems(rangeTableName, keys.asJava),
+      containsInAnyOrder[java.util.Map[String, AnyRef]](expectedResults: _*))
+
+    mapStorePlugin.batchDeleteItems(rangeTableName, keys.asJava)
+  }
+
+  @Test def testIndexItems() {
+    val indexKey = new MapStoreTableKey.Builder().setHash("email", classOf[String]).build
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "indexHashValue").build
+    val expectedResult = Map[String, AnyRef]("myhashfield" -> "indexHashValue", "email" -> "me@spals.net").asJava
+
+    mapStorePlugin.createIndex(hashTableName, "emailIndex", indexKey)
+    mapStorePlugin.putItem(hashTableName, storeKey, Map[String, AnyRef]("email" -> "me@spals.net").asJava)
+
+    val emailKey = new MapStoreKey.Builder().setHash("email", "me@spals.net").build
+    assertThat(mapStorePlugin.getIndexItems(hashTableName, "emailIndex", emailKey, defaultOptions()),
+      contains[java.util.Map[String, AnyRef]](expectedResult))
+
+    mapStorePlugin.deleteItem(hashTableName, storeKey)
+    mapStorePlugin.dropIndex(hashTableName, "emailIndex")
+  }
+
+  @Test def testIndexItemsSharedPayloadIndex() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "sharedIndexHashValue").build
+    mapStorePlugin.createIndex(hashTableName, "emailIndex",
+      new MapStoreTableKey.Builder().setHash("email", classOf[String]).build)
+    mapStorePlugin.createIndex(hashTableName, "statusIndex",
+      new MapStoreTableKey.Builder().setHash("status", classOf[String]).build)
+    mapStorePlugin.putItem(hashTableName, storeKey,
+      Map[String, AnyRef]("email" -> "shared@spals.net", "status" -> "shared").asJava)
+
+    try {
+      // Dropping one index keeps the payload index which the other shares
+      mapStorePlugin.dropIndex(hashTableName, "emailIndex")
+      val statusKey = new MapStoreKey.Builder().setHash("status", "shared").build
+      assertThat(mapStorePlugin.getIndexItems(hashTableName, "statusIndex", statusKey, defaultOptions()).size(),
+        is(1))
+    } finally {
+      mapStorePlugin.deleteItem(hashTableName, storeKey)
+      mapStorePlugin.dropIndex(hashTableName, "statusIndex")
+    }
+  }
+
+  @Test def testTypedIndexItemsRange() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "typedIndexHashValue").build
+    mapStorePlugin.createIndex(typedTableName, "stringIndex",
+      new MapStoreTableKey.Builder().setHash("myStringField", classOf[String]).build)
+    mapStorePlugin.putItem(typedTableName, storeKey,
+      Map[String, AnyRef]("myStringField" -> "indexed", "myLongField" -> Long.box(5L)).asJava)
+
+    try {
+      val matchingKey = new MapStoreKey.Builder().setHash("myStringField", "indexed")
+        .setRange("myLongField", greaterThan[java.lang.Long](Long.box(4L))).build
+      val otherKey = new MapStoreKey.Builder().setHash("myStringField", "indexed")
+        .setRange("myLongField", between[java.lang.Long](Long.box(6L), Long.box(8L))).build
+      assertThat(mapStorePlugin.getIndexItems(typedTableName, "stringIndex", matchingKey, defaultOptions()).size(),
+        is(1))
+      assertThat(mapStorePlugin.getIndexItems(typedTableName, "stringIndex", otherKey, defaultOptions()),
+        empty[java.util.Map[String, AnyRef]])
+    } finally {
+      mapStorePlugin.deleteItem(typedTableName, storeKey)
+      mapStorePlugin.dropIndex(typedTableName, "stringIndex")
+    }
+  }
+
+  @Test(expectedExceptions = Array(classOf[IllegalArgumentException]))
+  def testIndexItemsPayloadRange() {
+    val indexKey = new MapStoreKey.Builder().setHash("email", "me@spals.net")
+      .setRange("status", greaterThan[String]("active")).build
+    mapStorePlugin.getIndexItems(hashTableName, "emailIndex", indexKey, defaultOptions())
+  }
+
+  @Test def testProjection() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "projectionHashValue").build
+    mapStorePlugin.putItem(hashTableName, storeKey,
+      Map[String, AnyRef]("email" -> "me@spals.net", "status" -> "active").asJava)
+
+    assertThat(mapStorePlugin.getItem(hashTableName, storeKey, Set("myHashField", "email").asJava),
+      is(Optional.of(Map[String, AnyRef]("myhashfield" -> "projectionHashValue", "email" -> "me@spals.net").asJava)))
+    assertThat(mapStorePlugin.getItem(hashTableName, storeKey, Set("status").asJava),
+      is(Optional.of(Map[String, AnyRef]("status" -> "active").asJava)))
+
+    mapStorePlugin.deleteItem(hashTableName, storeKey)
+  }
+
+  @Test def testConditionalWrites() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "conditionalHashValue").build
+    val expectedResult: String => java.util.Map[String, AnyRef] = version =>
+      Map[String, AnyRef]("myHashField" -> "conditionalHashValue", "version" -> version).asJava
+
+    assertThat(mapStorePlugin.putItem(hashTableName, storeKey, Map[String, AnyRef]("version" -> "1").asJava,
+      MapStoreWriteCondition.itemAbsent(storeKey)), is(Optional.of(expectedResult("1"))))
+    assertThat(mapStorePlugin.putItem(hashTableName, storeKey, Map[String, AnyRef]("version" -> "1").asJava,
+      MapStoreWriteCondition.itemAbsent(storeKey)), is(Optional.empty[java.util.Map[String, AnyRef]]))
+
+    assertThat(mapStorePlugin.updateItem(hashTableName, storeKey, Map[String, AnyRef]("version" -> "2").asJava,
+      MapStoreWriteCondition.expectedVersion("version", "1")), is(Optional.of(expectedResult("2"))))
+    assertThat(mapStorePlugin.updateItem(hashTableName, storeKey, Map[String, AnyRef]("version" -> "3").asJava,
+      MapStoreWriteCondition.expectedVersion("version", "1")), is(Optional.empty[java.util.Map[String, AnyRef]]))
+    assertThat(mapStorePlugin.getItem(hashTableName, storeKey), is(Optional.of(expectedResult("2"))))
+
+    mapStorePlugin.deleteItem(hashTableName, storeKey)
+  }
+
+  @Test def testStreamAllItems() {
+    val keys = (1 to 20).map(i => new MapStoreKey.Builder().setHash("myHashField", s"scanHashValue$i").build).toList
+    val items = keys.map(key => (key, Map[String, AnyRef]("key" -> "value").asJava)).toMap
+    mapStorePlugin.batchPutItems(hashTableName, items.asJava)
+
+    // Token ranges are read in parallel, so items come back in no particular order
+    val expectedResults = keys.map(key => Map[String, AnyRef]("myhashfield" -> key.getHashValue, "key" -> "value").asJava)
+    val options = new MapQueryOptions.Builder().setPageSize(5).build
+    val scannedItems = mapStorePlugin.streamAllItems(hashTableName, options)
+      .filter(item => String.valueOf(item.get("myhashfield")).startsWith("scanHashValue"))
+    assertThat(scannedItems.collect(Collectors.toList()),
+      containsInAnyOrder[java.util.Map[String, AnyRef]](expectedResults: _*))
+
+    mapStorePlugin.batchDeleteItems(hashTableName, keys.asJava)
+  }
+
+  @Test def testTypedItems() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build
+    mapStorePlugin.putItem(typedTableName, storeKey,
+      Map[String, AnyRef]("myLongField" -> Long.box(1L), "myStringField" -> "value").asJava)
+    assertThat(mapStorePlugin.getItem(typedTableName, storeKey),
+      is(Optional.of(Map[String, AnyRef]("myhashfield" -> "myHashValue", "mylongfield" -> Long.box(1L),
+        "mystringfield" -> "value").asJava)))
+
+    // Only the updated column is written, and an empty value clears its column
+    assertThat(mapStorePlugin.updateItem(typedTableName, storeKey,
+      Map[String, AnyRef]("myLongField" -> Int.box(2), "myStringField" -> "").asJava),
+      is(Map[String, AnyRef]("myhashfield" -> "myHashValue", "mylongfield" -> Long.box(2L)).asJava))
+
+    assertThat(mapStorePlugin.updateItem(typedTableName, storeKey,
+      Map[String, AnyRef]("myStringField" -> "value2").asJava,
+      MapStoreWriteCondition.expectedVersion("myLongField", Long.box(2L))),
+      is(Optional.of(Map[String, AnyRef]("myhashfield" -> "myHashValue", "mylongfield" -> Long.box(2L),
+        "mystringfield" -> "value2").asJava)))
+
+    val projection = new java.util.HashSet[String](List("myLongField").asJava)
+    assertThat(mapStorePlugin.getItem(typedTableName, storeKey, projection),
+      is(Optional.of(Map[String, AnyRef]("mylongfield" -> Long.box(2L)).asJava)))
+
+    mapStorePlugin.deleteItem(typedTableName, storeKey)
+  }
+
+  @Test(expectedExceptions = Array(classOf[IllegalArgumentException]))
+  def testTypedItemUndeclaredField() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build
+    mapStorePlugin.putItem(typedTableName, storeKey, Map[String, AnyRef]("myOtherField" -> "value").asJava)
+  }
+
+  @Test def testTimeToLive() {
+    val expiringTableName = "expiringTable"
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build
+    // An existing table is altered to the new time to live
+    mapStorePlugin.createTable(expiringTableName, hashTableKey)
+    mapStorePlugin.createTable(expiringTableName, new MapStoreTableKey.Builder()
+      .setHash("myHashField", classOf[String])
+      .setTimeToLive(java.time.Duration.ofMillis(1500L))
+      .build)
+
+    try {
+      assertThat[Integer](mapStorePlugin.loadTableMetadata(expiringTableName).get.getOptions.getDefaultTimeToLive,
+        is[Integer](Int.box(2)))
+
+      mapStorePlugin.putItem(expiringTableName, storeKey, Map[String, AnyRef]("key" -> "value").asJava)
+      assertThat(mapStorePlugin.getItem(expiringTableName, storeKey).isPresent, is(true))
+      Thread.sleep(2500L)
+      assertThat(mapStorePlugin.getItem(expiringTableName, storeKey), is(Optional.empty[java.util.Map[String, AnyRef]]()))
+
+      // Dropping the time to live from the table key resets the table to never expire items
+      mapStorePlugin.createTable(expiringTableName, hashTableKey)
+      assertThat[Integer](mapStorePlugin.loadTableMetadata(expiringTableName).get.getOptions.getDefaultTimeToLive,
+        is[Integer](Int.box(0)))
+    } finally {
+      mapStorePlugin.dropTable(expiringTableName)
+    }
+  }
 }
@@ -0,0 +1,59 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{Executor, Executors, LinkedBlockingQueue, TimeUnit}
+
+import com.datastax.driver.core._
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.{is, lessThanOrEqualTo}
+import org.mockito.ArgumentMatchers.any
+import org.mockito.Mockito.{mock, times, verify, when}
+import org.testng.annotations.Test
+
+/**
+  * Unit tests for [[CassandraMapStorePlugin]].
+  *
+  * @author tkral
+  */
+class CassandraMapStorePluginTest {
+
+  @Test def testExecuteConcurrentlyLimitsInFlight() {
+    val session = mock(classOf[Session])
+    val cluster = mock(classOf[Cluster])
+    when(cluster.connect()).thenReturn(session)
+
+    // Requests complete on another thread, one at a time, in the order they were sent
+    val inFlight = new AtomicInteger()
+    val maxInFlight = new AtomicInteger()
+    val completions = new LinkedBlockingQueue[Runnable]()
+    when(session.executeAsync(any(classOf[Statement]))).thenAnswer(_ => {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math.max(_, _))
+      val resultFuture = mock(classOf[ResultSetFuture])
+      when(resultFuture.addListener(any(classOf[Runnable]), any(classOf[Executor]))).thenAnswer(invocation => {
+        completions.put(invocation.getArgument[Runnable](0))
+        null
+      })
+      when(resultFuture.getUninterruptibly).thenReturn(mock(classOf[ResultSet]))
+      resultFuture
+    })
+    val completer = Executors.newSingleThreadExecutor()
+    completer.submit(new Runnable {
+      override def run(): Unit = (1 to 10).foreach(_ => {
+        val completion = completions.take()
+        inFlight.decrementAndGet()
+        completion.run()
+      })
+    })
+
+    val storePlugin = new CassandraMapStorePlugin("myApp", cluster, mock(classOf[ExecutorServiceFactory]))
+    storePlugin.maxConcurrentRequests = 2
+    val resultSets = storePlugin.executeConcurrently((1 to 10).map(i => new SimpleStatement(s"statement$i")))
+
+    completer.shutdown()
+    completer.awaitTermination(1L, TimeUnit.SECONDS)
+    assertThat(resultSets.size, is(10))
+    assertThat(Int.box(maxInFlight.get), lessThanOrEqualTo(Int.box(2)))
+    verify(session, times(10)).executeAsync(any(classOf[Statement]))
+  }
+}
@@ -0,0 +1,72 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import com.datastax.driver.core.ColumnDefinitions.Definition
+import com.datastax.driver.core._
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.{hasEntry, is}
+import org.mockito.ArgumentMatchers.{any, eq => eqTo}
+import org.mockito.Mockito.{mock, times, verify, when}
+import org.testng.annotations.Test
+
+import scala.collection.JavaConverters._
+
+/**
+  * Unit tests for [[CassandraRowMapper]].
+  *
+  * @author tkral
+  */
+class CassandraRowMapperTest {
+
+  private def columnDefinitions(columns: (String, DataType)*): ColumnDefinitions = {
+    val definitions = mock(classOf[ColumnDefinitions])
+    val columnDefinitionList = columns.map(column => {
+      val definition = mock(classOf[Definition])
+      when(definition.getName).thenReturn(column._1)
+      when(definition.getType).thenReturn(column._2)
+      definition
+    })
+    when(definitions.asList()).thenReturn(columnDefinitionList.asJava)
+    columns.zipWithIndex.foreach(column => when(definitions.getName(column._2)).thenReturn(column._1._1))
+    definitions
+  }
+
+  private def row(definitions: ColumnDefinitions, values: AnyRef*): Row = {
+    val row = mock(classOf[Row])
+    when(row.getColumnDefinitions).thenReturn(definitions)
+    values.zipWithIndex.foreach(value => {
+      val index: Int = eqTo[Int](value._2)
+      val codec: TypeCodec[AnyRef] = any[TypeCodec[AnyRef]]()
+      when(row.get(index, codec)).thenReturn(value._1, Nil: _*)
+    })
+    row
+  }
+
+  @Test def testMapPayloadRow() {
+    val definitions = columnDefinitions("myhashfield" -> DataType.varchar(),
+      "payload" -> DataType.map(DataType.varchar(), DataType.varchar()))
+    val rowMapper = new CassandraRowMapper(new CodecRegistry())
+
+    val item = rowMapper(row(definitions, "myHashValue", Map("key" -> "value").asJava))
+    assertThat(item, is(Map[String, AnyRef]("myhashfield" -> "myHashValue", "key" -> "value").asJava))
+  }
+
+  @Test def testMapTypedRow() {
+    val definitions = columnDefinitions("myhashfield" -> DataType.varchar(),
+      "mylongfield" -> DataType.bigint(), "mystringfield" -> DataType.varchar())
+    val rowMapper = new CassandraRowMapper(new CodecRegistry())
+
+    val item = rowMapper(row(definitions, "myHashValue", Long.box(1L), null))
+    assertThat(item, hasEntry[String, AnyRef]("mylongfield", Long.box(1L)))
+    // A missing typed column is not a field of the item
+    assertThat(item.containsKey("mystringfield"), is(false))
+  }
+
+  @Test def testResolveCodecsOnce() {
+    val definitions = columnDefinitions("myhashfield" -> DataType.varchar(), "mylongfield" -> DataType.bigint())
+    val rowMapper = new CassandraRowMapper(new CodecRegistry())
+
+    // Rows which share column definitions reuse their codecs
+    (1 to 3).foreach(i => rowMapper(row(definitions, s"myHashValue$i", Long.box(i.toLong))))
+    verify(definitions, times(1)).asList()
+  }
+}
@@ -0,0 +1,67 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import com.datastax.driver.core._
+import com.datastax.driver.core.querybuilder.QueryBuilder
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey
+import net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.{instanceOf, is}
+import org.mockito.ArgumentMatchers.any
+import org.mockito.Mockito.{mock, times, verify, when}
+import org.testng.annotations.{DataProvider, Test}
+
+import scala.collection.JavaConverters._
+
+/**
+  * Unit tests for [[CassandraStatementCache]].
+  *
+  * @author tkral
+  */
+class CassandraStatementCacheTest {
+
+  @Test def testPrepareOncePerShape() {
+    val session = mock(classOf[Session])
+    val preparedStatement = mock(classOf[PreparedStatement])
+    when(session.prepare(any(classOf[RegularStatement]))).thenReturn(preparedStatement)
+    val statementCache = new CassandraStatementCache(session)
+
+    val keyStatement: String => RegularStatement = rangeValue => {
+      val key = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+        .setRange("myRangeField", equalTo[String](rangeValue)).build
+      val keyClause = CassandraKeyClause(key)
+      val queryBuilder = QueryBuilder.select().all().from("myTable").where(keyClause.hashClause)
+      keyClause.rangeClauses.foreach(queryBuilder.and(_))
+      queryBuilder
+    }
+
+    assertThat(statementCache.prepare(keyStatement("myRangeValue1")), is(preparedStatement))
+    assertThat(statementCache.prepare(keyStatement("myRangeValue2")), is(preparedStatement))
+    verify(session, times(1)).prepare(any(classOf[RegularStatement]))
+  }
+
+  @DataProvider def coerceValueProvider(): Array[Array[AnyRef]] = {
+    Array(
+      Array(DataType.bigint(), Int.box(1), classOf[java.lang.Long]),
+      Array(DataType.cdouble(), Int.box(1), classOf[java.lang.Double]),
+      Array(DataType.cfloat(), Int.box(1), classOf[java.lang.Float]),
+      Array(DataType.cint(), Long.box(1L), classOf[java.lang.Integer]),
+      Array(DataType.smallint(), Int.box(1), classOf[java.lang.Short]),
+      Array(DataType.tinyint(), Int.box(1), classOf[java.lang.Byte]),
+      Array(DataType.date(), new java.util.Date(0L), classOf[LocalDate]),
+      Array(DataType.varchar(), "myValue", classOf[String])
+    )
+  }
+
+  @Test(dataProvider = "coerceValueProvider")
+  def testCoerceValue(dataType: DataType, value: AnyRef, expectedType: Class[_]) {
+    val statementCache = new CassandraStatementCache(mock(classOf[Session]))
+    assertThat(statementCache.coerceValue(dataType, value), instanceOf[AnyRef](expectedType))
+  }
+
+  @Test def testCoerceListValue() {
+    val statementCache = new CassandraStatementCache(mock(classOf[Session]))
+    val listValue = List[AnyRef](Int.box(1), Int.box(2)).asJava
+    assertThat(statementCache.coerceValue(DataType.list(DataType.bigint()), listValue),
+      is[AnyRef](List[AnyRef](Long.box(1L), Long.box(2L)).asJava))
+  }
+}
@@ -0,0 +1,55 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import com.datastax.driver.core.{ColumnMetadata, TableMetadata}
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.is
+import org.mockito.Mockito.{mock, when}
+import org.testng.annotations.Test
+
+import scala.collection.JavaConverters._
+
+/**
+  * Unit tests for [[CassandraTableSchema]].
+  *
+  * @author tkral
+  */
+class CassandraTableSchemaTest {
+
+  private def tableMetadata(keyColumns: List[String], otherColumns: List[String]): TableMetadata = {
+    val columnMetadata = (keyColumns ++ otherColumns).map(column => {
+      val metadata = mock(classOf[ColumnMetadata])
+      when(metadata.getName).thenReturn(column)
+      (column, metadata)
+    }).toMap
+
+    val tableMetadata = mock(classOf[TableMetadata])
+    when(tableMetadata.getColumns).thenReturn((keyColumns ++ otherColumns).map(columnMetadata).asJava)
+    when(tableMetadata.getPrimaryKey).thenReturn(keyColumns.map(columnMetadata).asJava)
+    columnMetadata.foreach(column => when(tableMetadata.getColumn(column._1)).thenReturn(column._2))
+    tableMetadata
+  }
+
+  @Test def testPayloadSchema() {
+    val schema = CassandraTableSchema(tableMetadata(List("myhashfield", "myrangefield"), List("payload")))
+    assertThat(schema.isTyped, is(false))
+  }
+
+  @Test def testTypedSchema() {
+    val schema = CassandraTableSchema(tableMetadata(List("myhashfield"), List("mylongfield", "mystringfield")))
+    assertThat(schema.isTyped, is(true))
+    assertThat(schema.typedColumns, is(Set("mylongfield", "mystringfield")))
+  }
+
+  @Test def testColumn() {
+    val schema = CassandraTableSchema(Set("mylongfield"))
+    assertThat(schema.column("myLongField"), is("mylongfield"))
+    assertThat(schema.hasColumn("myLongField"), is(true))
+    assertThat(schema.hasColumn("myOtherField"), is(false))
+  }
+
+  @Test(expectedExceptions = Array(classOf[IllegalArgumentException]),
+    expectedExceptionsMessageRegExp = ".*myOtherField")
+  def testUndeclaredColumn() {
+    CassandraTableSchema(Set("mylongfield")).column("myOtherField")
+  }
+}
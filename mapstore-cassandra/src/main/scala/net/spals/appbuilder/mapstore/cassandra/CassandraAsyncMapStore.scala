@@ -0,0 +1,86 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import java.util.Optional
+import java.util.concurrent.CompletableFuture
+
+import com.datastax.driver.core.{ResultSet, Row}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture, MoreExecutors}
+import net.spals.appbuilder.mapstore.core.AsyncMapStore
+import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey}
+
+import scala.collection.JavaConverters._
+import scala.compat.java8.OptionConverters._
+
+/**
+  * Implementation of [[AsyncMapStore]] which uses
+  * the non-blocking Apache Cassandra driver API.
+  *
+  * This shares its session and statement building
+  * with the given [[CassandraMapStorePlugin]].
+  *
+  * @author tkral
+  */
+private[cassandra] class CassandraAsyncMapStore(storePlugin: CassandraMapStorePlugin) extends AsyncMapStore {
+
+  override def deleteItem(tableName: String,
+                          key: MapStoreKey): CompletableFuture[Void] = {
+    executeAsync(storePlugin.deleteStatement(tableName, key)).thenApply[Void](_ => null)
+  }
+
+  override def getItem(tableName: String,
+                       key: MapStoreKey): CompletableFuture[Optional[java.util.Map[String, AnyRef]]] = {
+    executeAsync(storePlugin.selectStatement(tableName, key))
+      .thenApply[Optional[java.util.Map[String, AnyRef]]](resultSet => Option(resultSet.one()).map(storePlugin.rowMapper()).asJava)
+  }
+
+  override def getItems(tableName: String,
+                        key: MapStoreKey,
+                        options: MapQueryOptions): CompletableFuture[java.util.List[java.util.Map[String, AnyRef]]] = {
+    executeAsync(storePlugin.queryStatement(tableName, key, options, limited = true)).thenCompose[List[Row]](resultSet => fetchAllRows(resultSet, Vector.empty))
+      .thenApply[java.util.List[java.util.Map[String, AnyRef]]](rows =>
+        rows.map(storePlugin.projectedRowMapper(options.getProjection)).asJava)
+  }
+
+  override def putItem(tableName: String,
+                       key: MapStoreKey,
+                       payload: java.util.Map[String, AnyRef]): CompletableFuture[java.util.Map[String, AnyRef]] = {
+    storePlugin.stripKey(key, payload)
+
+    executeAsync(storePlugin.insertStatement(tableName, key, payload))
+      .thenCompose[Optional[java.util.Map[String, AnyRef]]](_ => getItem(tableName, key))
+      .thenApply[java.util.Map[String, AnyRef]](_.get())
+  }
+
+  override def updateItem(tableName: String,
+                          key: MapStoreKey,
+                          payload: java.util.Map[String, AnyRef]): CompletableFuture[java.util.Map[String, AnyRef]] = {
+    storePlugin.stripKey(key, payload)
+
+    executeAsync(storePlugin.updateStatement(tableName, key, payload))
+      .thenCompose[Optional[java.util.Map[String, AnyRef]]](_ => getItem(tableName, key))
+      .thenApply[java.util.Map[String, AnyRef]](_.get())
+  }
+
+  private def executeAsync(statement: CassandraStatement): CompletableFuture[ResultSet] =
+    toCompletableFuture(storePlugin.session.executeAsync(storePlugin.statementCache.bind(statement)))
+
+  // Collect rows one page at a time without ever blocking on a page fetch
+  private def fetchAllRows(resultSet: ResultSet, rows: Vector[Row]): CompletableFuture[List[Row]] = {
+    val fetchedRows = rows ++ (1 to resultSet.getAvailableWithoutFetching).map(_ => resultSet.one())
+    if (resultSet.isFullyFetched) {
+      CompletableFuture.completedFuture(fetchedRows.toList)
+    } else {
+      toCompletableFuture(resultSet.fetchMoreResults())
+        .thenCompose[List[Row]](nextResultSet => fetchAllRows(nextResultSet, fetchedRows))
+    }
+  }
+
+  private def toCompletableFuture[T](listenableFuture: ListenableFuture[T]): CompletableFuture[T] = {
+    val completableFuture = new CompletableFuture[T]()
+    Futures.addCallback(listenableFuture, new FutureCallback[T] {
+      override def onSuccess(result: T): Unit = completableFuture.complete(result)
+      override def onFailure(t: Throwable): Unit = completableFuture.completeExceptionally(t)
+    }, MoreExecutors.directExecutor())
+    completableFuture
+  }
+}
@@ -4,9 +4,11 @@ import javax.validation.constraints.{Max, Min, NotNull}
 
 import com.datastax.driver.core.Cluster.Initializer
 import com.datastax.driver.core.Host.StateListener
-import com.datastax.driver.core.{Cluster, Host, ProtocolOptions}
+import com.datastax.driver.core._
+import com.datastax.driver.core.policies._
 import com.google.inject.Provider
 import com.netflix.governator.annotations
+import com.typesafe.config.ConfigException
 import net.spals.appbuilder.annotations.service.{AutoBindProvider, AutoBindSingleton}
 import org.slf4j.LoggerFactory
 
@@ -16,6 +18,11 @@ import scala.collection.JavaConverters._
   * Cassandra cluster initializer which reads
   * from the appbuilder service configuration.
   *
+  * Requests are routed to a replica of their partition
+  * (token-aware) within the local datacenter (DC-aware).
+  * Speculative executions are disabled by default. When
+  * enabled, they apply only to idempotent statements.
+  *
   * @author tkral
   */
 @AutoBindProvider
@@ -40,11 +47,129 @@ private[cassandra] class CassandraClusterInitializerProvider
   @volatile
   private[cassandra] var port: Int = ProtocolOptions.DEFAULT_PORT
 
+  // The datacenter of the first contact point is used if none is configured
+  @annotations.Configuration("mapStore.cassandra.localDataCenter")
+  @volatile
+  private[cassandra] var localDataCenter: String = null
+
+  @annotations.Configuration("mapStore.cassandra.tokenAware")
+  @volatile
+  private[cassandra] var tokenAware: Boolean = true
+
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.coreConnectionsPerHost")
+  @volatile
+  private[cassandra] var coreConnectionsPerHost: Int = 1
+
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.maxConnectionsPerHost")
+  @volatile
+  private[cassandra] var maxConnectionsPerHost: Int = 1
+
+  @Min(1L)
+  @Max(32768L)
+  @annotations.Configuration("mapStore.cassandra.maxRequestsPerConnection")
+  @volatile
+  private[cassandra] var maxRequestsPerConnection: Int = 1024
+
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.connectTimeoutMillis")
+  @volatile
+  private[cassandra] var connectTimeoutMillis: Int = SocketOptions.DEFAULT_CONNECT_TIMEOUT_MILLIS
+
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.readTimeoutMillis")
+  @volatile
+  private[cassandra] var readTimeoutMillis: Int = SocketOptions.DEFAULT_READ_TIMEOUT_MILLIS
+
+  @annotations.Configuration("mapStore.cassandra.tcpNoDelay")
+  @volatile
+  private[cassandra] var tcpNoDelay: Boolean = true
+
+  @annotations.Configuration("mapStore.cassandra.keepAlive")
+  @volatile
+  private[cassandra] var keepAlive: Boolean = true
+
+  // Speculative executions are disabled with a zero delay
+  @Min(0L)
+  @annotations.Configuration("mapStore.cassandra.speculativeExecutionDelayMillis")
+  @volatile
+  private[cassandra] var speculativeExecutionDelayMillis: Long = 0L
+
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.maxSpeculativeExecutions")
+  @volatile
+  private[cassandra] var maxSpeculativeExecutions: Int = 2
+
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.fetchSize")
+  @volatile
+  private[cassandra] var fetchSize: Int = QueryOptions.DEFAULT_FETCH_SIZE
+
+  @NotNull
+  @annotations.Configuration("mapStore.cassandra.consistency")
+  @volatile
+  private[cassandra] var consistency: String = QueryOptions.DEFAULT_CONSISTENCY_LEVEL.name()
+
   override def get(): Initializer = {
     Cluster.builder()
       .withClusterName(clusterName)
       .addContactPoints(hosts.split(","): _*).withPort(port)
       .withInitialListeners(List(this.asInstanceOf[StateListener]).asJavaCollection)
+      .withLoadBalancingPolicy(loadBalancingPolicy)
+      .withPoolingOptions(poolingOptions)
+      .withSocketOptions(socketOptions)
+      .withSpeculativeExecutionPolicy(speculativeExecutionPolicy)
+      .withQueryOptions(queryOptions)
+  }
+
+  private[cassandra] def loadBalancingPolicy: LoadBalancingPolicy = {
+    val dcAwarePolicyBuilder = DCAwareRoundRobinPolicy.builder()
+    Option(localDataCenter).foreach(dcAwarePolicyBuilder.withLocalDc)
+    val dcAwarePolicy = dcAwarePolicyBuilder.build()
+
+    if (tokenAware) new TokenAwarePolicy(dcAwarePolicy) else dcAwarePolicy
+  }
+
+  private[cassandra] def poolingOptions: PoolingOptions = {
+    if (coreConnectionsPerHost > maxConnectionsPerHost) {
+      throw new ConfigException.BadValue("mapStore.cassandra.coreConnectionsPerHost",
+        s"Core connections per host ($coreConnectionsPerHost) cannot exceed " +
+          s"max connections per host ($maxConnectionsPerHost)")
+    }
+
+    // Only hosts in the local datacenter are used for requests
+    new PoolingOptions()
+      .setConnectionsPerHost(HostDistance.LOCAL, coreConnectionsPerHost, maxConnectionsPerHost)
+      .setMaxRequestsPerConnection(HostDistance.LOCAL, maxRequestsPerConnection)
+  }
+
+  private[cassandra] def queryOptions: QueryOptions = {
+    val consistencyLevel = try {
+      ConsistencyLevel.valueOf(consistency)
+    } catch {
+      case _: IllegalArgumentException => throw new ConfigException.BadValue("mapStore.cassandra.consistency",
+        s"No Cassandra consistency level found for $consistency. " +
+          s"Available levels are: [${ConsistencyLevel.values().mkString(", ")}]")
+    }
+
+    new QueryOptions().setConsistencyLevel(consistencyLevel).setFetchSize(fetchSize)
+  }
+
+  private[cassandra] def socketOptions: SocketOptions = {
+    new SocketOptions()
+      .setConnectTimeoutMillis(connectTimeoutMillis)
+      .setReadTimeoutMillis(readTimeoutMillis)
+      .setTcpNoDelay(tcpNoDelay)
+      .setKeepAlive(keepAlive)
+  }
+
+  private[cassandra] def speculativeExecutionPolicy: SpeculativeExecutionPolicy = {
+    if (speculativeExecutionDelayMillis > 0L) {
+      new ConstantSpeculativeExecutionPolicy(speculativeExecutionDelayMillis, maxSpeculativeExecutions)
+    } else {
+      NoSpeculativeExecutionPolicy.INSTANCE
+    }
   }
 
   override def onAdd(host: Host): Unit =
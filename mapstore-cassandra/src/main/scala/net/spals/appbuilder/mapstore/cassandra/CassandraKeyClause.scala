@@ -12,29 +12,47 @@ import scala.compat.java8.OptionConverters._
   * Translation object between [[MapStoreKey]]s and
   * Cassandra query [[Clause]]s
   *
+  * Clauses hold bind markers rather than key values, so
+  * that the query text depends only on the key's fields and
+  * range operator. The key values are bound separately in
+  * clause order.
+  *
   * @author tkral
   */
 private[cassandra] case class CassandraKeyClause(key: MapStoreKey) {
 
-  def hashClause: Clause = QueryBuilder.eq(key.getHashField, key.getHashValue)
+  def hashClause: Clause = QueryBuilder.eq(key.getHashField, QueryBuilder.bindMarker())
+
+  def rangeClauses: List[Clause] = rangeClausesAndValues.map(_._1)
+
+  /**
+    * The values to bind to the hash clause
+    * followed by the range clauses.
+    */
+  def values: List[AnyRef] = key.getHashValue :: rangeClausesAndValues.map(_._2)
 
-  def rangeClauses: List[Clause] = {
-    (key.getRangeField.asScala, key.getRangeKey.getOperator, key.getRangeKey.getValue) match {
-      case (None, _, _) => List.empty[Clause]
-      case (_, Standard.ALL, _) => List.empty[Clause]
-      case (_, Standard.NONE, _) => List.empty[Clause]
+  private def rangeClausesAndValues: List[(Clause, AnyRef)] = {
+    (key.getRangeField.asScala, key.getRangeKey.getOperator, key.getRangeKey.getValue.asInstanceOf[AnyRef]) match {
+      case (None, _, _) => List.empty
+      case (_, Standard.ALL, _) => List.empty
+      case (_, Standard.NONE, _) => List.empty
       case (Some(rField), Standard.BETWEEN, rValue) =>
-        List(QueryBuilder.gte(rField, rValue.asInstanceOf[TwoValueHolder[_]].getValue1),
-          QueryBuilder.lte(rField, rValue.asInstanceOf[TwoValueHolder[_]].getValue2))
-      case (Some(rField), Standard.EQUAL_TO, rValue) => List(QueryBuilder.eq(rField, rValue))
-      case (Some(rField), Standard.GREATER_THAN, rValue) => List(QueryBuilder.gt(rField, rValue))
-      case (Some(rField), Standard.GREATER_THAN_OR_EQUAL_TO, rValue) => List(QueryBuilder.gte(rField, rValue))
-      case (Some(rField), Standard.LESS_THAN, rValue) => List(QueryBuilder.lt(rField, rValue))
-      case (Some(rField), Standard.LESS_THAN_OR_EQUAL_TO, rValue) => List(QueryBuilder.lte(rField, rValue))
+        val betweenValues = rValue.asInstanceOf[TwoValueHolder[_ <: AnyRef]]
+        List((QueryBuilder.gte(rField, QueryBuilder.bindMarker()), betweenValues.getValue1),
+          (QueryBuilder.lte(rField, QueryBuilder.bindMarker()), betweenValues.getValue2))
+      case (Some(rField), Standard.EQUAL_TO, rValue) => List((QueryBuilder.eq(rField, QueryBuilder.bindMarker()), rValue))
+      case (Some(rField), Standard.GREATER_THAN, rValue) => List((QueryBuilder.gt(rField, QueryBuilder.bindMarker()), rValue))
+      case (Some(rField), Standard.GREATER_THAN_OR_EQUAL_TO, rValue) =>
+        List((QueryBuilder.gte(rField, QueryBuilder.bindMarker()), rValue))
+      case (Some(rField), Standard.LESS_THAN, rValue) => List((QueryBuilder.lt(rField, QueryBuilder.bindMarker()), rValue))
+      case (Some(rField), Standard.LESS_THAN_OR_EQUAL_TO, rValue) =>
+        List((QueryBuilder.lte(rField, QueryBuilder.bindMarker()), rValue))
+      // A single marker is bound to the whole list, so that the query text does not vary with its size
       case (Some(rField), Extended.IN, rValue) =>
-        List(QueryBuilder.in(rField, rValue.asInstanceOf[ListValueHolder[_]].getValues))
-      case (Some(rField), Extended.LIKE, rValue) => List(QueryBuilder.like(rField, s"%$rValue%"))
-      case (Some(rField), Extended.STARTS_WITH, rValue) => List(QueryBuilder.like(rField, s"$rValue%"))
+        List((QueryBuilder.in(rField, QueryBuilder.bindMarker()), rValue.asInstanceOf[ListValueHolder[_]].getValues))
+      case (Some(rField), Extended.LIKE, rValue) => List((QueryBuilder.like(rField, QueryBuilder.bindMarker()), s"%$rValue%"))
+      case (Some(rField), Extended.STARTS_WITH, rValue) =>
+        List((QueryBuilder.like(rField, QueryBuilder.bindMarker()), s"$rValue%"))
       case (_, operator, _) =>
         throw new IllegalArgumentException(s"Cassandra cannot support the operator $operator")
     }
@@ -1,19 +1,26 @@
 package net.spals.appbuilder.mapstore.cassandra
 
 import java.io.Closeable
+import java.util.concurrent.{ConcurrentHashMap, Semaphore}
+import java.util.function.Supplier
+import java.util.stream.Collectors
 import java.util.{Date, Optional, UUID}
 import javax.annotation.PreDestroy
 import javax.validation.constraints.{Min, NotNull}
 
 import com.datastax.driver.core._
-import com.datastax.driver.core.querybuilder.QueryBuilder
+import com.datastax.driver.core.exceptions.PagingStateException
+import com.datastax.driver.core.querybuilder.{Clause, Insert, QueryBuilder, Select, Update}
 import com.datastax.driver.core.schemabuilder.SchemaBuilder
+import com.google.common.util.concurrent.MoreExecutors
 import com.google.inject.Inject
 import com.netflix.governator.annotations
 import net.spals.appbuilder.annotations.config.ApplicationName
 import net.spals.appbuilder.annotations.service.AutoBindInMap
-import net.spals.appbuilder.mapstore.core.MapStorePlugin
-import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey, MapStoreTableKey}
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory
+import net.spals.appbuilder.mapstore.core.{AsyncMapStore, MapStoreParallelScan, MapStorePlugin}
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.Standard
+import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapQueryPage, MapStoreKey, MapStoreTableKey, MapStoreWriteCondition}
 
 import scala.collection.JavaConverters._
 import scala.compat.java8.OptionConverters._
@@ -21,18 +28,22 @@ import scala.compat.java8.OptionConverters._
 /**
   * Implementation of [[MapStorePlugin]] which uses Apache Cassandra.
   *
-  * NOTE: This uses a schema-less map to hold all row state such
-  * that Cassandra is used as a true key-value store. Some consider
-  * this an anti-pattern of Cassandra and CQL.
+  * NOTE: By default, this uses a schema-less map to hold all row
+  * state such that Cassandra is used as a true key-value store. Some
+  * consider this an anti-pattern of Cassandra and CQL.
   *
-  * TODO: Strongly-typed CassandraStore.
+  * Tables whose [[MapStoreTableKey]] declares column types instead
+  * hold each field in its own typed column. Updates to these tables
+  * write only the updated cells and their rows are decoded without
+  * any map codec.
   *
   * @author tkral
   */
 @AutoBindInMap(baseClass = classOf[MapStorePlugin], key = "cassandra")
 private[cassandra] class CassandraMapStorePlugin @Inject() (
   @ApplicationName applicationName: String,
-  cluster: Cluster
+  cluster: Cluster,
+  executorServiceFactory: ExecutorServiceFactory
 ) extends MapStorePlugin with Closeable {
 
   @annotations.Configuration("mapStore.cassandra.keyspace")
@@ -46,9 +57,34 @@ private[cassandra] class CassandraMapStorePlugin @Inject() (
 
   private[cassandra] val replicationStrategy: String = "SimpleStrategy"
 
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.scanThreads")
+  @volatile
+  private[cassandra] var scanThreads: Int = 8
+
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.scanBufferSize")
+  @volatile
+  private[cassandra] var scanBufferSize: Int = 1000
+
+  // The most statements sent in a single batch, which keeps batches under Cassandra's batch size thresholds
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.maxBatchSize")
+  @volatile
+  private[cassandra] var maxBatchSize: Int = 50
+
+  // The most requests a batch operation keeps in flight at once. Requests beyond
+  // what the connection pool can hold (see mapStore.cassandra.maxRequestsPerConnection)
+  // are queued by the driver and fail with a BusyPoolException once its queue fills up.
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.maxConcurrentRequests")
+  @volatile
+  private[cassandra] var maxConcurrentRequests: Int = 1024
+
   private lazy val codecRegistry = new CodecRegistry()
+  private val tableSchemas = new ConcurrentHashMap[String, CassandraTableSchema]()
   private val keyspace = Option(configuredKeyspace).getOrElse(applicationName)
-  private lazy val session = {
+  private[cassandra] lazy val session = {
     val replicationOptions = Map[String, AnyRef]("replication_factor" -> Int.box(replicationFactor),
       "class" -> replicationStrategy)
     val createKeyspace = SchemaBuilder.createKeyspace(keyspace).ifNotExists().`with`().durableWrites(true)
@@ -60,68 +96,248 @@ private[cassandra] class CassandraMapStorePlugin @Inject() (
     connectedSession
   }
 
+  private[cassandra] lazy val statementCache = new CassandraStatementCache(session)
+  // Records which indexes share each schema-less table's payload index
+  private[cassandra] lazy val payloadIndexesTable = {
+    val createTable = SchemaBuilder.createTable("mapstore_payload_indexes").ifNotExists()
+      .addPartitionKey("table_name", DataType.varchar())
+      .addClusteringColumn("index_name", DataType.varchar())
+    session.execute(createTable.toString)
+    "mapstore_payload_indexes"
+  }
+  private lazy val asyncStore = new CassandraAsyncMapStore(this)
+  private lazy val parallelScan = new MapStoreParallelScan(
+    executorServiceFactory.createFixedThreadPool(scanThreads, getClass, "scan"), scanBufferSize)
+
   @PreDestroy
   override def close() = {
     // NOTE: Closes *all* sessions created with the cluster
     cluster.close()
   }
 
+  override def asyncPlugin(): Optional[AsyncMapStore] = Optional.of(asyncStore)
+
+  /**
+    * Creates a secondary index named after the given index.
+    * A typed table is indexed on the column of the index's
+    * hash field.
+    *
+    * Payload fields are schema-less, so they cannot be part of
+    * a materialized view's primary key, and Cassandra allows only
+    * one index on ENTRIES(payload). Instead, all of a table's
+    * indexes share that single index, which serves equality lookups
+    * on any payload field. The names of the indexes which share
+    * it are recorded, so that it is only dropped with the last one.
+    */
+  override def createIndex(tableName: String,
+                           indexName: String,
+                           indexKey: MapStoreTableKey): Boolean = {
+    val schema = tableSchema(tableName)
+    val createIndex = if (schema.isTyped) {
+      s"CREATE INDEX IF NOT EXISTS ${columnIndexName(tableName, indexName)} ON $tableName " +
+        s"(${schema.column(indexKey.getHashField)})"
+    } else {
+      execute(CassandraStatement(QueryBuilder.insertInto(payloadIndexesTable)
+        .value("table_name", QueryBuilder.bindMarker()).value("index_name", QueryBuilder.bindMarker()),
+        List(tableName, indexName)))
+      s"CREATE INDEX IF NOT EXISTS ${payloadIndexName(tableName)} ON $tableName (ENTRIES(payload))"
+    }
+    session.execute(createIndex).wasApplied()
+  }
+
+  /**
+    * Creates the table, with any time to live as the table's
+    * default_time_to_live. An existing table is altered whenever
+    * its time to live differs, and is reset to never expire
+    * items when the time to live is dropped from the table key.
+    * Cassandra expires each written cell on its own, so the
+    * fields of a partially updated item expire at different times.
+    */
   override def createTable(tableName: String, tableKey: MapStoreTableKey): Boolean = {
     val schemaBuilder = SchemaBuilder.createTable(tableName).ifNotExists()
       .addPartitionKey(tableKey.getHashField, loadDataType(tableKey.getHashFieldType))
     tableKey.getRangeField.asScala
       .foreach(schemaBuilder.addClusteringColumn(_, loadDataType(tableKey.getRangeFieldType.get())))
-    schemaBuilder.addColumn("payload", DataType.map(DataType.varchar(), DataType.varchar()))
+    if (tableKey.getColumnTypes.isEmpty) {
+      schemaBuilder.addColumn(CassandraTableSchema.payloadColumn, DataType.map(DataType.varchar(), DataType.varchar()))
+    } else {
+      tableKey.getColumnTypes.asScala.toList.sortBy(_._1)
+        .foreach(column => schemaBuilder.addColumn(column._1, loadDataType(column._2)))
+    }
 
-    session.execute(schemaBuilder.toString).wasApplied()
+    tableSchemas.remove(tableName)
+    val created = session.execute(schemaBuilder.toString).wasApplied()
+    // Altered separately so that a time to live also applies to a table which already exists
+    val defaultTimeToLive = tableKey.getTimeToLive.asScala.map(timeToLiveSeconds).getOrElse(0)
+    if (!loadTableMetadata(tableName).exists(_.getOptions.getDefaultTimeToLive == defaultTimeToLive)) {
+      val alterTable = SchemaBuilder.alterTable(tableName).withOptions().defaultTimeToLive(Int.box(defaultTimeToLive))
+      session.execute(alterTable.toString)
+    }
+    created
+  }
+
+  /**
+    * Drops the given index. The shared payload index of a
+    * schema-less table is kept until its last index is dropped.
+    */
+  override def dropIndex(tableName: String,
+                         indexName: String): Boolean = {
+    if (tableSchema(tableName).isTyped) {
+      return session.execute(s"DROP INDEX IF EXISTS ${columnIndexName(tableName, indexName)}").wasApplied()
+    }
+
+    execute(CassandraStatement(QueryBuilder.delete().from(payloadIndexesTable)
+      .where(QueryBuilder.eq("table_name", QueryBuilder.bindMarker()))
+      .and(QueryBuilder.eq("index_name", QueryBuilder.bindMarker())), List(tableName, indexName)))
+    val remainingIndexes = execute(CassandraStatement(QueryBuilder.select("index_name").from(payloadIndexesTable)
+      .where(QueryBuilder.eq("table_name", QueryBuilder.bindMarker())), List(tableName)))
+    if (remainingIndexes.one() == null) {
+      session.execute(s"DROP INDEX IF EXISTS ${payloadIndexName(tableName)}").wasApplied()
+    } else {
+      true
+    }
   }
 
   override def dropTable(tableName: String): Boolean = {
     val schemaBuilder = SchemaBuilder.dropTable(tableName).ifExists()
 
+    tableSchemas.remove(tableName)
+    execute(CassandraStatement(QueryBuilder.delete().from(payloadIndexesTable)
+      .where(QueryBuilder.eq("table_name", QueryBuilder.bindMarker())), List(tableName)))
     session.execute(schemaBuilder.toString).wasApplied()
   }
 
+  override def batchDeleteItems(tableName: String,
+                                keys: java.util.List[MapStoreKey]): Unit = {
+    val deleteStatements = keys.asScala.map(key => (key, deleteStatement(tableName, key)))
+    executePartitionBatches(deleteStatements)
+  }
+
+  override def batchGetItems(tableName: String,
+                             keys: java.util.List[MapStoreKey]): java.util.List[java.util.Map[String, AnyRef]] = {
+    // Issue reads concurrently and then collect them in key order
+    val resultSets = executeConcurrently(keys.asScala.map(key => statementCache.bind(selectStatement(tableName, key))))
+    resultSets.flatMap(resultSet => Option(resultSet.one())).map(rowMapper()).asJava
+  }
+
+  override def batchPutItems(tableName: String,
+                             items: java.util.Map[MapStoreKey, java.util.Map[String, AnyRef]]): java.util.List[java.util.Map[String, AnyRef]] = {
+    val insertStatements = items.asScala.toList.map(keyAndPayload => {
+      val (key, payload) = keyAndPayload
+      stripKey(key, payload)
+      (key, insertStatement(tableName, key, payload))
+    })
+    executePartitionBatches(insertStatements)
+
+    // An insert replaces the whole item, so the written items are known without reading them back
+    val schema = tableSchema(tableName)
+    val columnTypes = loadTableMetadata(tableName).toList.flatMap(_.getColumns.asScala)
+      .map(column => (column.getName, column.getType)).toMap
+    items.asScala.toList.map(keyAndPayload => writtenItem(schema, columnTypes, keyAndPayload._1, keyAndPayload._2)).asJava
+  }
+
   override def deleteItem(tableName: String,
                           key: MapStoreKey): Unit = {
-    val keyClause = CassandraKeyClause(key)
-    val queryBuilder = QueryBuilder.delete().from(tableName).where(keyClause.hashClause)
-    keyClause.rangeClauses.foreach(queryBuilder.and(_))
-
-    session.execute(queryBuilder.toString)
+    execute(deleteStatement(tableName, key))
   }
 
   override def getAllItems(tableName: String): java.util.List[java.util.Map[String, AnyRef]] = {
-    val queryBuilder = QueryBuilder.select().all().from(tableName)
-    val results = session.execute(queryBuilder.toString).all().asScala
-    results.map(rowMapper()).toList.asJava
+    streamAllItems(tableName, MapQueryOptions.defaultOptions()).collect(Collectors.toList())
+  }
+
+  override def getAllItemsPage(tableName: String,
+                               options: MapQueryOptions): MapQueryPage = {
+    executePage(CassandraStatement(QueryBuilder.select().all().from(tableName),
+      consistency = consistencyLevel(options)), options)
+  }
+
+  /**
+    * Streams all items of the given table by reading
+    * its token ranges in parallel. Items are streamed in
+    * no particular order.
+    *
+    * A stream which resumes from a continuation token is
+    * read one page at a time instead.
+    */
+  override def streamAllItems(tableName: String,
+                              options: MapQueryOptions): java.util.stream.Stream[java.util.Map[String, AnyRef]] = {
+    if (options.getContinuationToken.isPresent) {
+      return streamPages(options, pageOptions => getAllItemsPage(tableName, pageOptions))
+    }
+
+    val pageSize = options.getPageSize.orElse(MapQueryOptions.DEFAULT_PAGE_SIZE)
+    val rangeScans = tokenRangeStatements(tableName, options).map(statement =>
+      new Supplier[java.util.Iterator[java.util.Map[String, AnyRef]]] {
+        override def get(): java.util.Iterator[java.util.Map[String, AnyRef]] = {
+          val rangeStatement = statementCache.bind(statement)
+          rangeStatement.setFetchSize(pageSize)
+          session.execute(rangeStatement).iterator().asScala.map(projectedRowMapper(options.getProjection)).asJava
+        }
+      })
+
+    // The scan applies the limit itself so that its segment reads stop once the limit is reached
+    parallelScan.stream(rangeScans.asJava, options.getLimit.asScala.map(limit => Long.box(limit.longValue())).asJava)
+  }
+
+  override def getIndexItems(tableName: String,
+                             indexName: String,
+                             indexKey: MapStoreKey,
+                             options: MapQueryOptions): java.util.List[java.util.Map[String, AnyRef]] = {
+    val schema = tableSchema(tableName)
+    val selectBuilder = QueryBuilder.select().all().from(tableName)
+    val queryBuilder = selectBuilder.where(fieldClause(schema, indexKey.getHashField))
+    val rangeValues = indexKey.getRangeField.asScala.toList.flatMap(rangeField => indexKey.getRangeKey.getOperator match {
+      case Standard.ALL | Standard.NONE => List.empty
+      case Standard.EQUAL_TO =>
+        // Only one field can be served by the index, so the other must be filtered
+        queryBuilder.and(fieldClause(schema, rangeField))
+        selectBuilder.allowFiltering()
+        List(fieldValue(schema, indexKey.getRangeKey.getValue))
+      // Typed columns can also be filtered by range, but payload entries only by equality
+      case Standard.BETWEEN | Standard.GREATER_THAN | Standard.GREATER_THAN_OR_EQUAL_TO |
+           Standard.LESS_THAN | Standard.LESS_THAN_OR_EQUAL_TO if schema.isTyped =>
+        val rangeClause = CassandraKeyClause(new MapStoreKey.Builder().setHash(indexKey.getHashField, indexKey.getHashValue)
+          .setRange(schema.column(rangeField), indexKey.getRangeKey).build)
+        rangeClause.rangeClauses.foreach(queryBuilder.and(_))
+        selectBuilder.allowFiltering()
+        rangeClause.values.tail
+      case operator =>
+        throw new IllegalArgumentException(s"Cassandra index queries of table $tableName cannot support the operator " +
+          s"$operator${if (schema.isTyped) "" else ", as its payload entries can only be matched by equality"}")
+    })
+    // Index queries span partitions, so results are in token order rather than the requested order
+    val limitValue = limitValues(queryBuilder, options)
+
+    val statement = CassandraStatement(queryBuilder, fieldValue(schema, indexKey.getHashValue) :: rangeValues ++ limitValue,
+      consistency = consistencyLevel(options))
+    val results = execute(statement).all().asScala
+    results.map(projectedRowMapper(options.getProjection)).toList.asJava
   }
 
   override def getItem(tableName: String,
                        key: MapStoreKey): Optional[java.util.Map[String, AnyRef]] = {
-    val keyClause = CassandraKeyClause(key)
-    val queryBuilder = QueryBuilder.select().all().from(tableName).where(keyClause.hashClause)
-    keyClause.rangeClauses.foreach(queryBuilder.and(_))
-
-    val result = session.execute(queryBuilder.toString).one()
+    val result = execute(selectStatement(tableName, key)).one()
     Option(result).map(rowMapper()).asJava
   }
 
+  override def getItem(tableName: String,
+                       key: MapStoreKey,
+                       projection: java.util.Set[String]): Optional[java.util.Map[String, AnyRef]] = {
+    val result = execute(selectStatement(tableName, key, projection)).one()
+    Option(result).map(projectedRowMapper(projection)).asJava
+  }
+
   override def getItems(tableName: String,
                         key: MapStoreKey,
                         options: MapQueryOptions): java.util.List[java.util.Map[String, AnyRef]] = {
-    val keyClause = CassandraKeyClause(key)
-    val queryBuilder = QueryBuilder.select().all().from(tableName).where(keyClause.hashClause)
-    keyClause.rangeClauses.foreach(queryBuilder.and(_))
-
-    key.getRangeField.asScala.map(rangeField => options.getOrder match {
-      case MapQueryOptions.Order.ASC => QueryBuilder.asc(rangeField)
-      case MapQueryOptions.Order.DESC => QueryBuilder.desc(rangeField)
-    }).foreach(queryBuilder.orderBy(_))
-    options.getLimit.asScala.foreach(queryBuilder.limit(_))
+    val results = execute(queryStatement(tableName, key, options, limited = true)).all().asScala
+    results.map(projectedRowMapper(options.getProjection)).toList.asJava
+  }
 
-    val results = session.execute(queryBuilder.toString).all().asScala
-    results.map(rowMapper()).toList.asJava
+  override def getItemsPage(tableName: String,
+                            key: MapStoreKey,
+                            options: MapQueryOptions): MapQueryPage = {
+    executePage(queryStatement(tableName, key, options), options)
   }
 
   override def putItem(tableName: String,
@@ -129,32 +345,216 @@ private[cassandra] class CassandraMapStorePlugin @Inject() (
                        payload: java.util.Map[String, AnyRef]): java.util.Map[String, AnyRef] = {
     stripKey(key, payload)
 
-    val keyFields = key.getRangeField.asScala.map(rangeField => List(key.getHashField, rangeField))
-      .getOrElse(List(key.getHashField))
-    val keyValues: List[AnyRef] = key.getRangeField.asScala
-      .map(rangeField => List(key.getHashValue, key.getRangeKey.getValue.asInstanceOf[AnyRef]))
-      .getOrElse(List[AnyRef](key.getHashValue))
-
-    val queryBuilder = QueryBuilder.insertInto(tableName).values(keyFields.asJava, keyValues.asJava)
-      .value("payload", payload)
-    session.execute(queryBuilder.toString)
+    execute(insertStatement(tableName, key, payload))
     getItem(tableName, key).get()
   }
 
+  override def putItem(tableName: String,
+                       key: MapStoreKey,
+                       payload: java.util.Map[String, AnyRef],
+                       condition: MapStoreWriteCondition): Optional[java.util.Map[String, AnyRef]] = {
+    stripKey(key, payload)
+    executeConditionally(tableName, key, condition,
+      () => insertStatement(tableName, key, payload),
+      update => replacementAssignments(tableSchema(tableName), update, payload))
+  }
+
   override def updateItem(tableName: String,
                           key: MapStoreKey,
                           payload: java.util.Map[String, AnyRef]): java.util.Map[String, AnyRef] = {
+    stripKey(key, payload)
+
+    // Cassandra writes are upserts, but cannot return the written row
+    execute(updateStatement(tableName, key, payload))
+    getItem(tableName, key).get()
+  }
+
+  override def updateItem(tableName: String,
+                          key: MapStoreKey,
+                          payload: java.util.Map[String, AnyRef],
+                          condition: MapStoreWriteCondition): Optional[java.util.Map[String, AnyRef]] = {
+    stripKey(key, payload)
+    executeConditionally(tableName, key, condition,
+      () => throw new IllegalArgumentException(
+        s"Cassandra cannot update an item on the condition that it is absent: $key"),
+      update => assignments(tableSchema(tableName), update, payload))
+  }
+
+  // Run a write as a lightweight transaction. An item absent condition is applied
+  // as an INSERT ... IF NOT EXISTS, while all other conditions are applied to the
+  // payload's entries (or typed columns) as an UPDATE ... IF.
+  private def executeConditionally(tableName: String,
+                                   key: MapStoreKey,
+                                   condition: MapStoreWriteCondition,
+                                   insertStatement: () => CassandraStatement,
+                                   updateAssignments: Update => List[AnyRef]): Optional[java.util.Map[String, AnyRef]] = {
+    val keyFieldSet = keyFields(key).toSet
+    val (keyAbsentFields, payloadAbsentFields) = condition.getAbsentFields.asScala.partition(keyFieldSet.contains)
+    val (keyExpectedValues, payloadExpectedValues) = condition.getExpectedValues.asScala
+      .partition(entry => keyFieldSet.contains(entry._1))
+
+    // Key fields cannot be conditioned in Cassandra, but their values are known up front
+    if (!keyExpectedValues.forall(entry => MapStoreWriteCondition.valueEquals(entry._2,
+        keyFields(key).zip(keyValues(key)).toMap.apply(entry._1)))) {
+      return Optional.empty()
+    }
+
+    // Lightweight transactions are not idempotent, so they must never be retried
+    val statement = if (keyAbsentFields.nonEmpty) {
+      require(payloadAbsentFields.isEmpty && condition.getExpectedValues.isEmpty,
+        s"Cassandra cannot combine an item absent condition with other conditions: $condition")
+      val insert = insertStatement()
+      insert.statement.asInstanceOf[Insert].ifNotExists()
+      insert.copy(idempotent = false)
+    } else {
+      val schema = tableSchema(tableName)
+      val keyClause = CassandraKeyClause(key)
+      val update = QueryBuilder.update(tableName)
+      val assignmentValues = updateAssignments(update)
+      update.where(keyClause.hashClause)
+      keyClause.rangeClauses.foreach(update.where().and(_))
+
+      // An absent field is matched by a null payload entry (or column)
+      val conditions = payloadAbsentFields.toList.map(field => (field, null)) ++ payloadExpectedValues.toList
+      conditions.foreach(entry => update.onlyIf(fieldClause(schema, entry._1)))
+      if (conditions.isEmpty && keyExpectedValues.nonEmpty) {
+        update.where().ifExists()
+      }
+      CassandraStatement(update, assignmentValues ++ keyClause.values ++ conditions.map(entry => fieldValue(schema, entry._2)),
+        idempotent = false)
+    }
+
+    if (execute(statement).wasApplied()) getItem(tableName, key) else Optional.empty()
+  }
+
+  // Consistency levels in the query options are named after their Cassandra equivalents
+  private[cassandra] def consistencyLevel(options: MapQueryOptions): Option[ConsistencyLevel] =
+    options.getConsistency.asScala.map(consistency => ConsistencyLevel.valueOf(consistency.name()))
+
+  // Full writes to a typed table bind every column, so that fields which are
+  // missing from the payload are cleared and each table has one insert shape
+  private[cassandra] def columnValues(schema: CassandraTableSchema,
+                                      payload: java.util.Map[String, AnyRef]): List[(String, AnyRef)] = {
+    val payloadColumnValues = payloadValues(schema, payload)
+    schema.typedColumns.toList.sorted.map(column => (column, payloadColumnValues.getOrElse(column, null)))
+  }
+
+  private[cassandra] def columnIndexName(tableName: String, indexName: String): String = s"${tableName}_${indexName}_idx"
+
+  private[cassandra] def deleteStatement(tableName: String,
+                                         key: MapStoreKey): CassandraStatement = {
     val keyClause = CassandraKeyClause(key)
-    val queryBuilder = QueryBuilder.update(tableName).where(keyClause.hashClause)
+    val queryBuilder = QueryBuilder.delete().from(tableName).where(keyClause.hashClause)
     keyClause.rangeClauses.foreach(queryBuilder.and(_))
+    CassandraStatement(queryBuilder, keyClause.values)
+  }
 
-    stripKey(key, payload)
-    val assignments = payload.asScala.map(entry => QueryBuilder.set(entry._1, entry._2))
-    assignments.foreach(queryBuilder.`with`(_))
+  private[cassandra] def execute(statement: CassandraStatement): ResultSet =
+    session.execute(statementCache.bind(statement))
+
+  // Execute the given statements asynchronously, keeping at most
+  // mapStore.cassandra.maxConcurrentRequests of them in flight, and
+  // return their results in statement order.
+  private[cassandra] def executeConcurrently(statements: Iterable[Statement]): List[ResultSet] = {
+    val inFlight = new Semaphore(maxConcurrentRequests)
+    val resultFutures = statements.toList.map(statement => {
+      inFlight.acquireUninterruptibly()
+      val resultFuture = session.executeAsync(statement)
+      resultFuture.addListener(() => inFlight.release(), MoreExecutors.directExecutor())
+      resultFuture
+    })
+
+    resultFutures.map(_.getUninterruptibly)
+  }
+
+  // Group statements into unlogged batches by partition (hash value) and
+  // execute the batches concurrently. Single partition batches are applied
+  // by a single replica set without extra coordinator work. Partitions with
+  // more than mapStore.cassandra.maxBatchSize statements are split into
+  // several batches, each of which is applied atomically on its own.
+  private[cassandra] def executePartitionBatches(statements: Iterable[(MapStoreKey, CassandraStatement)]): Unit = {
+    val partitionBatches = statements.groupBy(_._1.getHashValue).values.flatMap(_.grouped(maxBatchSize))
+    val batchStatements = partitionBatches.map(partitionStatements => {
+      val batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED)
+      partitionStatements.foreach(keyAndStatement => batchStatement.add(statementCache.bind(keyAndStatement._2)))
+      batchStatement.setIdempotent(partitionStatements.forall(_._2.idempotent))
+      batchStatement
+    })
+
+    executeConcurrently(batchStatements)
+  }
+
+  // Execute a single page of the given query. The driver's paging state is
+  // handed back as the continuation token so that the next page resumes
+  // exactly where this one left off.
+  private[cassandra] def executePage(statement: CassandraStatement,
+                                     options: MapQueryOptions): MapQueryPage = {
+    val pageStatement = statementCache.bind(statement)
+    pageStatement.setFetchSize(options.getPageSize.orElse(MapQueryOptions.DEFAULT_PAGE_SIZE))
+    options.getContinuationToken.asScala.foreach(token => pageStatement.setPagingState(decodePagingState(token)))
+
+    val resultSet = session.execute(pageStatement)
+    val pageRows = (1 to resultSet.getAvailableWithoutFetching).map(_ => resultSet.one())
+
+    val pageBuilder = new MapQueryPage.Builder().addAllItems(pageRows.map(projectedRowMapper(options.getProjection)).asJava)
+    Option(resultSet.getExecutionInfo.getPagingState)
+      .foreach(pagingState => pageBuilder.setContinuationToken(pagingState.toString))
+    pageBuilder.build()
+  }
+
+  private[cassandra] def decodePagingState(continuationToken: String): PagingState = {
+    try {
+      PagingState.fromString(continuationToken)
+    } catch {
+      case e: PagingStateException =>
+        throw new IllegalArgumentException(s"Invalid Cassandra continuation token: $continuationToken", e)
+    }
+  }
 
-    rowMapper().apply(session.execute(queryBuilder.toString).one())
+  private[cassandra] def insertStatement(tableName: String,
+                                         key: MapStoreKey,
+                                         payload: java.util.Map[String, AnyRef]): CassandraStatement = {
+    val schema = tableSchema(tableName)
+    val keyBindMarkers: List[AnyRef] = keyFields(key).map(_ => QueryBuilder.bindMarker())
+    val queryBuilder = QueryBuilder.insertInto(tableName).values(keyFields(key).asJava, keyBindMarkers.asJava)
+    if (schema.isTyped) {
+      val columns = columnValues(schema, payload)
+      columns.foreach(column => queryBuilder.value(column._1, QueryBuilder.bindMarker()))
+      CassandraStatement(queryBuilder, keyValues(key) ++ columns.map(_._2))
+    } else {
+      queryBuilder.value(CassandraTableSchema.payloadColumn, QueryBuilder.bindMarker())
+      CassandraStatement(queryBuilder, keyValues(key) :+ payloadValues(payload))
+    }
   }
 
+  // The item which an insert of the given payload leaves behind, as it would be read. Column
+  // values are converted to their column types, just as they are when they are bound.
+  private[cassandra] def writtenItem(schema: CassandraTableSchema,
+                                     columnTypes: Map[String, DataType],
+                                     key: MapStoreKey,
+                                     payload: java.util.Map[String, AnyRef]): java.util.Map[String, AnyRef] = {
+    val item = new java.util.LinkedHashMap[String, AnyRef]()
+    // Key columns are named in lower case by Cassandra
+    val columnValues = keyFields(key).map(_.toLowerCase).zip(keyValues(key)) ++
+      (if (schema.isTyped) payloadValues(schema, payload).toList else List.empty)
+    columnValues.foreach { case (column, value) =>
+      item.put(column, columnTypes.get(column).map(statementCache.coerceValue(_, value)).getOrElse(value))
+    }
+    if (!schema.isTyped) {
+      item.putAll(payloadValues(payload))
+    }
+    item
+  }
+
+  private[cassandra] def keyFields(key: MapStoreKey): List[String] =
+    key.getRangeField.asScala.map(rangeField => List(key.getHashField, rangeField))
+      .getOrElse(List(key.getHashField))
+
+  private[cassandra] def keyValues(key: MapStoreKey): List[AnyRef] =
+    key.getRangeField.asScala
+      .map(rangeField => List(key.getHashValue, key.getRangeKey.getValue.asInstanceOf[AnyRef]))
+      .getOrElse(List[AnyRef](key.getHashValue))
+
   private[cassandra] def loadDataType(fieldType: Class[_]): DataType = {
     fieldType match {
       case fType if fType.equals(classOf[Boolean]) || fType.equals(classOf[java.lang.Boolean]) => DataType.cboolean()
@@ -171,18 +571,206 @@ private[cassandra] class CassandraMapStorePlugin @Inject() (
     }
   }
 
-  private[cassandra] def rowMapper(): Row => java.util.Map[String, AnyRef] = {
-    row => {
-      val cols = row.getColumnDefinitions.asList().asScala
-      val rowMap = cols
-        .map(col => (col.getName, row.get(col.getName, codecRegistry.codecFor(col.getType))))
-        .toMap[String, AnyRef]
-      val rowMMap = collection.mutable.Map(rowMap.toSeq: _*)
+  private[cassandra] def limitValues(queryBuilder: Select.Where,
+                                     options: MapQueryOptions): List[AnyRef] = {
+    options.getLimit.asScala.map(limit => {
+      queryBuilder.limit(QueryBuilder.bindMarker())
+      limit
+    }).toList
+  }
+
+  // Update the payload by merging in its non-empty entries and removing its empty
+  // ones, so that fields which are not in the payload are kept. The update has the
+  // same shape for any payload which has (or hasn't) empty entries.
+  //
+  // A typed table instead sets only the columns of the payload's fields, so that
+  // untouched cells are never rewritten. Empty entries clear their columns.
+  private[cassandra] def assignments(schema: CassandraTableSchema,
+                                     update: Update,
+                                     payload: java.util.Map[String, AnyRef]): List[AnyRef] = {
+    val removedFields = payload.entrySet().asScala.filter(isNullOrEmptyEntry().test(_)).map(_.getKey)
+    if (schema.isTyped) {
+      val updatedColumns = payloadValues(schema, payload) ++ removedFields.map(field => (schema.column(field), null))
+      updatedColumns.toList.sortBy(_._1).map(column => {
+        update.`with`(QueryBuilder.set(column._1, QueryBuilder.bindMarker()))
+        column._2
+      })
+    } else {
+      update.`with`(QueryBuilder.putAll(CassandraTableSchema.payloadColumn, QueryBuilder.bindMarker()))
+      if (removedFields.nonEmpty) {
+        update.`with`(QueryBuilder.removeAll(CassandraTableSchema.payloadColumn, QueryBuilder.bindMarker()))
+      }
+      payloadValues(payload) :: Some(removedFields.toSet.asJava).filter(_ => removedFields.nonEmpty).toList
+    }
+  }
+
+  // A clause which matches a non-key field's payload entry (or typed column)
+  private[cassandra] def fieldClause(schema: CassandraTableSchema, field: String): Clause = {
+    if (schema.isTyped) QueryBuilder.eq(schema.column(field), QueryBuilder.bindMarker()) else payloadEntryClause(field)
+  }
 
-      val payloadMap = rowMMap.remove("payload").map(_.asInstanceOf[java.util.Map[String, AnyRef]].asScala)
-      val keyMap = rowMMap.toMap[String, AnyRef]
+  // Typed columns bind their values as is, while payload entries are strings
+  private[cassandra] def fieldValue(schema: CassandraTableSchema, value: Any): AnyRef = {
+    if (schema.isTyped) value.asInstanceOf[AnyRef] else payloadValue(value)
+  }
 
-      payloadMap.map(_ ++ keyMap).getOrElse(keyMap).asJava
+  private[cassandra] def payloadEntryClause(field: String): Clause = {
+    val escapedField = field.replace("'", "''")
+    QueryBuilder.eq(s"payload['$escapedField']", QueryBuilder.bindMarker())
+  }
+
+  // A null value matches a missing payload entry
+  private[cassandra] def payloadValue(value: Any): String = Option(value).map(String.valueOf).orNull
+
+  // The payload is a map of strings, so its values are bound as strings
+  private[cassandra] def payloadValues(payload: java.util.Map[String, AnyRef]): java.util.Map[String, String] = {
+    payload.entrySet().asScala.filterNot(isNullOrEmptyEntry().test(_))
+      .map(entry => (entry.getKey, payloadValue(entry.getValue))).toMap.asJava
+  }
+
+  // The non-empty values of the payload, keyed by their typed columns
+  private[cassandra] def payloadValues(schema: CassandraTableSchema,
+                                       payload: java.util.Map[String, AnyRef]): Map[String, AnyRef] = {
+    payload.entrySet().asScala.filterNot(isNullOrEmptyEntry().test(_))
+      .map(entry => (schema.column(entry.getKey), entry.getValue)).toMap
+  }
+
+  private[cassandra] def payloadIndexName(tableName: String): String = s"${tableName}_payload_idx"
+
+  private[cassandra] def queryStatement(tableName: String,
+                                        key: MapStoreKey,
+                                        options: MapQueryOptions,
+                                        limited: Boolean = false): CassandraStatement = {
+    val keyClause = CassandraKeyClause(key)
+    val queryBuilder = selectColumns(tableSchema(tableName), key, options.getProjection).from(tableName)
+      .where(keyClause.hashClause)
+    keyClause.rangeClauses.foreach(queryBuilder.and(_))
+
+    key.getRangeField.asScala.map(rangeField => options.getOrder match {
+      case MapQueryOptions.Order.ASC => QueryBuilder.asc(rangeField)
+      case MapQueryOptions.Order.DESC => QueryBuilder.desc(rangeField)
+    }).foreach(queryBuilder.orderBy(_))
+    val limitValue = if (limited) limitValues(queryBuilder, options) else List.empty
+    CassandraStatement(queryBuilder, keyClause.values ++ limitValue, consistency = consistencyLevel(options))
+  }
+
+  // Replace all of an item's non-key fields with those of the payload
+  private[cassandra] def replacementAssignments(schema: CassandraTableSchema,
+                                                update: Update,
+                                                payload: java.util.Map[String, AnyRef]): List[AnyRef] = {
+    if (schema.isTyped) {
+      columnValues(schema, payload).map(column => {
+        update.`with`(QueryBuilder.set(column._1, QueryBuilder.bindMarker()))
+        column._2
+      })
+    } else {
+      update.`with`(QueryBuilder.set(CassandraTableSchema.payloadColumn, QueryBuilder.bindMarker()))
+      List(payloadValues(payload))
+    }
+  }
+
+  private[cassandra] def rowMapper(): Row => java.util.Map[String, AnyRef] = new CassandraRowMapper(codecRegistry)
+
+  // Reduce mapped rows to the projected fields. Key columns are named in
+  // lower case by Cassandra, so these are matched case insensitively.
+  private[cassandra] def projectedRowMapper(projection: java.util.Set[String]): Row => java.util.Map[String, AnyRef] = {
+    if (projection.isEmpty) {
+      rowMapper()
+    } else {
+      val lowerCaseProjection = projection.asScala.map(_.toLowerCase)
+      rowMapper().andThen(item => item.asScala
+        .filterKeys(field => projection.contains(field) || lowerCaseProjection.contains(field))
+        .toMap[String, AnyRef].asJava)
     }
   }
+
+  // Select only the columns which hold projected fields. Payload entries cannot
+  // be selected individually before Cassandra 4.0, so the payload map is read
+  // whole whenever any non-key field is projected.
+  private[cassandra] def selectColumns(schema: CassandraTableSchema,
+                                       key: MapStoreKey,
+                                       projection: java.util.Set[String]): Select.Builder = {
+    if (projection.isEmpty) {
+      QueryBuilder.select().all()
+    } else {
+      val keyColumns = List(key.getHashField) ++ key.getRangeField.asScala
+      val projectedKeyColumns = keyColumns.filter(keyColumn => projection.asScala.exists(_.equalsIgnoreCase(keyColumn)))
+      val projectedColumns = if (schema.isTyped) {
+        projection.asScala.toList.filter(schema.hasColumn).map(schema.column).sorted
+      } else {
+        List(CassandraTableSchema.payloadColumn).filter(_ => projection.size > projectedKeyColumns.size)
+      }
+      // A projection of unknown fields still reads the key, so that missing items can be told apart
+      QueryBuilder.select(Some(projectedKeyColumns ++ projectedColumns).filter(_.nonEmpty)
+        .getOrElse(keyColumns.take(1)): _*)
+    }
+  }
+
+  private[cassandra] def selectStatement(tableName: String,
+                                         key: MapStoreKey): CassandraStatement = {
+    selectStatement(tableName, key, java.util.Collections.emptySet[String]())
+  }
+
+  private[cassandra] def selectStatement(tableName: String,
+                                         key: MapStoreKey,
+                                         projection: java.util.Set[String]): CassandraStatement = {
+    val keyClause = CassandraKeyClause(key)
+    val queryBuilder = selectColumns(tableSchema(tableName), key, projection).from(tableName)
+      .where(keyClause.hashClause)
+    keyClause.rangeClauses.foreach(queryBuilder.and(_))
+    CassandraStatement(queryBuilder, keyClause.values)
+  }
+
+  private[cassandra] def loadTableMetadata(tableName: String): Option[TableMetadata] =
+    Option(cluster.getMetadata.getKeyspace(keyspace)).flatMap(keyspaceMetadata => Option(keyspaceMetadata.getTable(tableName)))
+
+  // The layout of a table is read from the cluster's schema metadata once. A
+  // missing table is never cached, so that its layout is read once it exists.
+  private[cassandra] def tableSchema(tableName: String): CassandraTableSchema = {
+    Option(tableSchemas.get(tableName)).getOrElse(loadTableMetadata(tableName).map(tableMetadata => {
+      val schema = CassandraTableSchema(tableMetadata)
+      tableSchemas.put(tableName, schema)
+      schema
+    }).getOrElse(CassandraTableSchema()))
+  }
+
+  // Cassandra times to live are in whole seconds, so partial seconds are rounded up
+  private[cassandra] def timeToLiveSeconds(timeToLive: java.time.Duration): Int =
+    Math.toIntExact((timeToLive.toMillis + 999L) / 1000L)
+
+  // Split a full table scan into one query per token range of the ring
+  private[cassandra] def tokenRangeStatements(tableName: String,
+                                              options: MapQueryOptions): List[CassandraStatement] = {
+    val partitionKey = loadTableMetadata(tableName)
+      .getOrElse(throw new IllegalArgumentException(s"No Cassandra table found: $tableName")).getPartitionKey
+    val tokenColumn = QueryBuilder.token(partitionKey.asScala.map(_.getName): _*)
+
+    cluster.getMetadata.getTokenRanges.asScala.toList.flatMap(_.unwrap().asScala).map(tokenRange => {
+      val queryBuilder = QueryBuilder.select().all().from(tableName)
+      val tokenValues: List[AnyRef] = (tokenRange.getStart, tokenRange.getEnd) match {
+        // A single range covers the whole ring
+        case (start, end) if start == end => List.empty
+        // An unwrapped range which ends at the minimum token runs to the end of the ring
+        case (start, end) if end.compareTo(start) < 0 =>
+          queryBuilder.where(QueryBuilder.gt(tokenColumn, QueryBuilder.bindMarker()))
+          List(start.getValue)
+        case (start, end) =>
+          queryBuilder.where(QueryBuilder.gt(tokenColumn, QueryBuilder.bindMarker()))
+            .and(QueryBuilder.lte(tokenColumn, QueryBuilder.bindMarker()))
+          List(start.getValue, end.getValue)
+      }
+      CassandraStatement(queryBuilder, tokenValues, consistency = consistencyLevel(options))
+    })
+  }
+
+  private[cassandra] def updateStatement(tableName: String,
+                                         key: MapStoreKey,
+                                         payload: java.util.Map[String, AnyRef]): CassandraStatement = {
+    val keyClause = CassandraKeyClause(key)
+    val update = QueryBuilder.update(tableName)
+    val assignmentValues = assignments(tableSchema(tableName), update, payload)
+    val queryBuilder = update.where(keyClause.hashClause)
+    keyClause.rangeClauses.foreach(queryBuilder.and(_))
+    CassandraStatement(queryBuilder, assignmentValues ++ keyClause.values)
+  }
 }
@@ -0,0 +1,51 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import com.datastax.driver.core.{CodecRegistry, ColumnDefinitions, Row, TypeCodec}
+
+import scala.collection.JavaConverters._
+
+/**
+  * Maps Cassandra rows to map store items.
+  *
+  * The codec of each column is resolved once for a
+  * query's column definitions and reused for all of its
+  * rows. Entries of a payload map are flattened into the
+  * item, while missing (null) typed columns are left out.
+  *
+  * @author tkral
+  */
+private[cassandra] class CassandraRowMapper(codecRegistry: CodecRegistry)
+  extends (Row => java.util.Map[String, AnyRef]) {
+
+  // Rows of a single result share their column definitions
+  @volatile private var resolvedCodecs: (ColumnDefinitions, Array[TypeCodec[AnyRef]]) = (null, Array.empty)
+
+  override def apply(row: Row): java.util.Map[String, AnyRef] = {
+    val columnDefinitions = row.getColumnDefinitions
+    val codecs = codecsFor(columnDefinitions)
+
+    val item = new java.util.LinkedHashMap[String, AnyRef]()
+    codecs.indices.foreach(i => {
+      val columnName = columnDefinitions.getName(i)
+      val columnValue = row.get(i, codecs(i))
+      if (columnName == CassandraTableSchema.payloadColumn) {
+        Option(columnValue).foreach(payload => item.putAll(payload.asInstanceOf[java.util.Map[String, AnyRef]]))
+      } else if (columnValue != null) {
+        item.put(columnName, columnValue)
+      }
+    })
+    item
+  }
+
+  private def codecsFor(columnDefinitions: ColumnDefinitions): Array[TypeCodec[AnyRef]] = {
+    val (definitions, codecs) = resolvedCodecs
+    if (definitions eq columnDefinitions) {
+      codecs
+    } else {
+      val newCodecs = columnDefinitions.asList().asScala
+        .map(definition => codecRegistry.codecFor[AnyRef](definition.getType)).toArray
+      resolvedCodecs = (columnDefinitions, newCodecs)
+      newCodecs
+    }
+  }
+}
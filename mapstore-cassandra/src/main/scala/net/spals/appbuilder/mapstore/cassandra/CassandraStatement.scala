@@ -0,0 +1,23 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import com.datastax.driver.core.{ConsistencyLevel, RegularStatement}
+
+/**
+  * A statement built with bind markers in place of
+  * all of its values, along with the values to bind.
+  *
+  * Statements which would not have the same effect if
+  * they were retried (e.g. lightweight transactions)
+  * must not be marked as idempotent.
+  *
+  * Statements without a consistency level use the
+  * cluster's configured default.
+  *
+  * @author tkral
+  */
+private[cassandra] case class CassandraStatement(
+  statement: RegularStatement,
+  values: List[AnyRef] = List.empty,
+  idempotent: Boolean = true,
+  consistency: Option[ConsistencyLevel] = None
+)
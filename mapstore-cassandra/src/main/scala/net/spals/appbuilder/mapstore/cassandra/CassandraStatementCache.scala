@@ -0,0 +1,58 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import java.util.concurrent.ConcurrentHashMap
+
+import com.datastax.driver.core._
+
+import scala.collection.JavaConverters._
+
+/**
+  * A cache of Cassandra prepared statements.
+  *
+  * Statements are keyed by their query text. As all
+  * values are bound, this text varies only with the table,
+  * the operation and the shape of its key, so each shape
+  * is parsed by Cassandra just once.
+  *
+  * @author tkral
+  */
+private[cassandra] class CassandraStatementCache(session: => Session) {
+
+  private val preparedStatements = new ConcurrentHashMap[String, PreparedStatement]()
+
+  def bind(statement: CassandraStatement): BoundStatement = {
+    val preparedStatement = prepare(statement.statement)
+    val variables = preparedStatement.getVariables
+    val boundValues = statement.values.zipWithIndex
+      .map { case (value, i) => coerceValue(variables.getType(i), value) }
+
+    val boundStatement = preparedStatement.bind(boundValues: _*)
+    boundStatement.setIdempotent(statement.idempotent)
+    statement.consistency.foreach(boundStatement.setConsistencyLevel(_))
+    boundStatement
+  }
+
+  def prepare(statement: RegularStatement): PreparedStatement =
+    preparedStatements.computeIfAbsent(statement.getQueryString,
+      new java.util.function.Function[String, PreparedStatement] {
+        override def apply(queryString: String): PreparedStatement = session.prepare(statement)
+      })
+
+  // Values are bound with their exact column types, rather than being
+  // coerced by Cassandra as literals are, so numbers are converted here
+  private[cassandra] def coerceValue(dataType: DataType, value: AnyRef): AnyRef = {
+    (dataType.getName, value) match {
+      case (_, null) => null
+      case (DataType.Name.BIGINT, n: Number) => Long.box(n.longValue)
+      case (DataType.Name.DATE, d: java.util.Date) => LocalDate.fromMillisSinceEpoch(d.getTime)
+      case (DataType.Name.DOUBLE, n: Number) => Double.box(n.doubleValue)
+      case (DataType.Name.FLOAT, n: Number) => Float.box(n.floatValue)
+      case (DataType.Name.INT, n: Number) => Int.box(n.intValue)
+      case (DataType.Name.SMALLINT, n: Number) => Short.box(n.shortValue)
+      case (DataType.Name.TINYINT, n: Number) => Byte.box(n.byteValue)
+      case (DataType.Name.LIST, values: java.util.List[_]) =>
+        values.asScala.map(v => coerceValue(dataType.getTypeArguments.get(0), v.asInstanceOf[AnyRef])).asJava
+      case _ => value
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import com.datastax.driver.core.TableMetadata
+
+import scala.collection.JavaConverters._
+
+/**
+  * The storage layout of a Cassandra map store table.
+  *
+  * A table either holds all non-key fields as entries of
+  * a single schema-less payload map, or holds each of its
+  * declared fields in its own typed column. Column names
+  * are unquoted, so, like key columns, they are matched
+  * in lower case.
+  *
+  * @author tkral
+  */
+private[cassandra] case class CassandraTableSchema(typedColumns: Set[String] = Set.empty) {
+
+  def isTyped: Boolean = typedColumns.nonEmpty
+
+  def column(field: String): String = {
+    val columnName = field.toLowerCase
+    require(typedColumns.contains(columnName), s"No Cassandra column declared for field: $field")
+    columnName
+  }
+
+  def hasColumn(field: String): Boolean = typedColumns.contains(field.toLowerCase)
+}
+
+private[cassandra] object CassandraTableSchema {
+
+  val payloadColumn: String = "payload"
+
+  def apply(tableMetadata: TableMetadata): CassandraTableSchema = {
+    if (tableMetadata.getColumn(payloadColumn) != null) {
+      CassandraTableSchema()
+    } else {
+      val keyColumns = tableMetadata.getPrimaryKey.asScala.map(_.getName).toSet
+      CassandraTableSchema(tableMetadata.getColumns.asScala.map(_.getName).filterNot(keyColumns.contains).toSet)
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import net.spals.appbuilder.mapstore.core.AsyncMapStoreProvider.DelegatingAsyncMapStore;
+import net.spals.appbuilder.mapstore.core.AsyncMapStoreProvider.ExecutorAsyncMapStore;
+import net.spals.appbuilder.mapstore.core.MapStoreProvider.DelegatingMapStore;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.max;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link AsyncMapStoreProvider}
+ *
+ * @author tkral
+ */
+public class AsyncMapStoreProviderTest {
+
+    private final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo("myRangeValue")).build();
+
+    @Test
+    public void testExecutorGetItem() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> item = ImmutableMap.of("key", "value");
+        when(storePlugin.getItem("myTable", storeKey)).thenReturn(Optional.of(item));
+
+        final AsyncMapStore asyncStore = new ExecutorAsyncMapStore(storePlugin,
+                MoreExecutors.newDirectExecutorService());
+        assertThat(asyncStore.getItem("myTable", storeKey).join(), is(Optional.of(item)));
+    }
+
+    @Test
+    public void testGetMaxItem() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final AsyncMapStore asyncPlugin = mock(AsyncMapStore.class);
+        final Map<String, Object> item = ImmutableMap.of("key", "value");
+        when(asyncPlugin.getItems(eq("myTable"), any(MapStoreKey.class), any(MapQueryOptions.class)))
+                .thenReturn(CompletableFuture.completedFuture(ImmutableList.of(item)));
+
+        final AsyncMapStore asyncStore = new DelegatingAsyncMapStore(new DelegatingMapStore(storePlugin), asyncPlugin);
+        final MapStoreKey maxKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", max()).build();
+        assertThat(asyncStore.getItem("myTable", maxKey).join(), is(Optional.of(item)));
+
+        final MapStoreKey allKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        verify(asyncPlugin).getItems("myTable", allKey,
+                new MapQueryOptions.Builder().setOrder(Order.DESC).setLimit(1).build());
+    }
+
+    @Test
+    public void testUpdateItemUpserts() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        when(storePlugin.isNullOrEmptyEntry()).thenCallRealMethod();
+        final AsyncMapStore asyncPlugin = mock(AsyncMapStore.class);
+        final Map<String, Object> payload = ImmutableMap.of("key", "value");
+        when(asyncPlugin.updateItem("myTable", storeKey, payload)).thenReturn(CompletableFuture.completedFuture(payload));
+
+        final AsyncMapStore asyncStore = new DelegatingAsyncMapStore(new DelegatingMapStore(storePlugin), asyncPlugin);
+        assertThat(asyncStore.updateItem("myTable", storeKey, payload).join(), is(payload));
+        verify(asyncPlugin, never()).getItem(any(), any());
+        verify(asyncPlugin, never()).putItem(any(), any(), any());
+    }
+
+    @Test
+    public void testWritesInvalidateCache() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        when(storePlugin.isNullOrEmptyEntry()).thenCallRealMethod();
+        final Map<String, Object> item = ImmutableMap.of("key", "value");
+        when(storePlugin.getItem("myTable", storeKey)).thenReturn(Optional.of(item));
+        final AsyncMapStore asyncPlugin = mock(AsyncMapStore.class);
+        when(asyncPlugin.updateItem("myTable", storeKey, item)).thenReturn(CompletableFuture.completedFuture(item));
+        when(asyncPlugin.deleteItem("myTable", storeKey)).thenReturn(CompletableFuture.completedFuture(null));
+        final CompletableFuture<Map<String, Object>> failedPut = new CompletableFuture<>();
+        failedPut.completeExceptionally(new IllegalStateException());
+        when(asyncPlugin.putItem("myTable", storeKey, item)).thenReturn(failedPut);
+
+        // The synchronous store shares its cache with the asynchronous one
+        final DelegatingMapStore mapStore = new DelegatingMapStore(storePlugin,
+                ImmutableMap.of("myTable", new MapStoreTableCache(10L, Optional.empty(), false)));
+        final AsyncMapStore asyncStore = new DelegatingAsyncMapStore(mapStore, asyncPlugin);
+
+        mapStore.getItem("myTable", storeKey);
+        asyncStore.updateItem("myTable", storeKey, item).join();
+        mapStore.getItem("myTable", storeKey);
+        asyncStore.deleteItem("myTable", storeKey).join();
+        mapStore.getItem("myTable", storeKey);
+        // A failed write is invalidated as well
+        asyncStore.putItem("myTable", storeKey, item).exceptionally(error -> null).join();
+        mapStore.getItem("myTable", storeKey);
+        verify(storePlugin, times(4)).getItem("myTable", storeKey);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidDeleteItem() {
+        final AsyncMapStore asyncPlugin = mock(AsyncMapStore.class);
+        final AsyncMapStore asyncStore = new DelegatingAsyncMapStore(
+                new DelegatingMapStore(mock(MapStorePlugin.class)), asyncPlugin);
+
+        final MapStoreKey allKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        asyncStore.deleteItem("myTable", allKey);
+    }
+}
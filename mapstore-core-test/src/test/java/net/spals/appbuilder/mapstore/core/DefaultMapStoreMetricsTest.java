@@ -0,0 +1,102 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Unit tests for {@link DefaultMapStoreMetrics}
+ *
+ * @author tkral
+ */
+public class DefaultMapStoreMetricsTest {
+
+    @Test
+    public void testTime() {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final DefaultMapStoreMetrics storeMetrics = new DefaultMapStoreMetrics(metricRegistry);
+
+        assertThat(storeMetrics.time("mySystem", "myTable", "getItem", () -> "myResult"), is("myResult"));
+        assertThat(metricRegistry.timer("mapStore.mySystem.myTable.getItem.latency").getCount(), is(1L));
+        assertThat(metricRegistry.counter("mapStore.mySystem.myTable.getItem.errors").getCount(), is(0L));
+    }
+
+    @Test
+    public void testTimeError() {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final DefaultMapStoreMetrics storeMetrics = new DefaultMapStoreMetrics(metricRegistry);
+
+        try {
+            storeMetrics.time("mySystem", "myTable", "getItem", () -> {
+                throw new IllegalStateException();
+            });
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertThat(metricRegistry.timer("mapStore.mySystem.myTable.getItem.latency").getCount(), is(1L));
+        assertThat(metricRegistry.counter("mapStore.mySystem.myTable.getItem.errors").getCount(), is(1L));
+    }
+
+    @Test
+    public void testRecordItems() {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final DefaultMapStoreMetrics storeMetrics = new DefaultMapStoreMetrics(metricRegistry);
+
+        storeMetrics.recordItems("mySystem", "myTable", "getItems",
+                ImmutableList.of(ImmutableMap.of("key", "value"), ImmutableMap.of("key", 1L)));
+        assertThat(metricRegistry.histogram("mapStore.mySystem.myTable.getItems.items").getSnapshot().getMax(), is(2L));
+        assertThat(metricRegistry.histogram("mapStore.mySystem.myTable.getItems.bytes").getSnapshot().getMax(), is(19L));
+    }
+
+    @Test
+    public void testMark() {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final DefaultMapStoreMetrics storeMetrics = new DefaultMapStoreMetrics(metricRegistry);
+
+        storeMetrics.mark("mySystem", "myTable", "putItem", "myMetric", 2L);
+        storeMetrics.mark("mySystem", "myTable", "putItem", "myMetric", 3L);
+        assertThat(metricRegistry.meter("mapStore.mySystem.myTable.putItem.myMetric").getCount(), is(5L));
+    }
+
+    @Test
+    public void testSetMetricRegistry() {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final DefaultMapStoreMetrics storeMetrics = new DefaultMapStoreMetrics();
+        storeMetrics.setMetricRegistry(metricRegistry);
+
+        storeMetrics.time("mySystem", "myTable", "getItem", () -> "myResult");
+        assertThat(storeMetrics.getMetricRegistry(), is(metricRegistry));
+        assertThat(metricRegistry.timer("mapStore.mySystem.myTable.getItem.latency").getCount(), is(1L));
+    }
+
+    @DataProvider
+    Object[][] estimateSizeProvider() {
+        return new Object[][] {
+                {null, 0L},
+                {"", 0L},
+                {"value", 5L},
+                {"é", 2L},
+                {"\ud800", 1L},
+                {true, 1L},
+                {1, 8L},
+                {1.5D, 8L},
+                {new byte[] {1, 2, 3}, 3L},
+                {ByteBuffer.wrap(new byte[] {1, 2}), 2L},
+                {ImmutableList.of("a", "bc"), 3L},
+                {ImmutableMap.of("key", "value", "number", 1L), 22L},
+                {new StringBuilder("value"), 5L},
+        };
+    }
+
+    @Test(dataProvider = "estimateSizeProvider")
+    public void testEstimateSize(final Object value, final long expectedSize) {
+        assertThat(DefaultMapStoreMetrics.estimateSize(value), is(expectedSize));
+    }
+}
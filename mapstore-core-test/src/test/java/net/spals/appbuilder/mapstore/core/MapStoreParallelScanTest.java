@@ -0,0 +1,190 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Unit tests for {@link MapStoreParallelScan}
+ *
+ * @author tkral
+ */
+public class MapStoreParallelScanTest {
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    @AfterClass(alwaysRun = true)
+    public void tearDownClass() {
+        executorService.shutdownNow();
+    }
+
+    private static Supplier<Iterator<String>> segmentScan(final int segment, final int segmentSize) {
+        return () -> IntStream.range(0, segmentSize).mapToObj(i -> "segment" + segment + "-item" + i).iterator();
+    }
+
+    private static Supplier<Iterator<String>> countingSegmentScan(final AtomicInteger readCount) {
+        return () -> new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return readCount.get() < 1000;
+            }
+
+            @Override
+            public String next() {
+                return "item" + readCount.incrementAndGet();
+            }
+        };
+    }
+
+    @DataProvider
+    Object[][] bufferSizeProvider() {
+        return new Object[][] {
+                {1},
+                {4},
+                {1000},
+        };
+    }
+
+    @Test(dataProvider = "bufferSizeProvider")
+    public void testStream(final int bufferSize) {
+        final MapStoreParallelScan parallelScan = new MapStoreParallelScan(executorService, bufferSize);
+        final List<Supplier<Iterator<String>>> segmentScans = IntStream.range(0, 4)
+                .mapToObj(segment -> segmentScan(segment, 25)).collect(Collectors.toList());
+
+        final String[] expectedResults = IntStream.range(0, 4)
+                .mapToObj(segment -> IntStream.range(0, 25).mapToObj(i -> "segment" + segment + "-item" + i))
+                .flatMap(segmentItems -> segmentItems).toArray(String[]::new);
+        assertThat(parallelScan.stream(segmentScans).collect(Collectors.toList()), containsInAnyOrder(expectedResults));
+    }
+
+    @Test
+    public void testStreamNoSegments() {
+        final MapStoreParallelScan parallelScan = new MapStoreParallelScan(executorService, 1);
+        assertThat(parallelScan.<String>stream(Collections.emptyList()).collect(Collectors.toList()), empty());
+    }
+
+    @Test
+    public void testStreamEmptySegments() {
+        final MapStoreParallelScan parallelScan = new MapStoreParallelScan(executorService, 1);
+        final List<Supplier<Iterator<String>>> segmentScans = ImmutableList.of(segmentScan(0, 0), segmentScan(1, 0));
+        assertThat(parallelScan.stream(segmentScans).collect(Collectors.toList()), empty());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = "mySegmentFailure")
+    public void testStreamSegmentFailure() {
+        final MapStoreParallelScan parallelScan = new MapStoreParallelScan(executorService, 1);
+        final List<Supplier<Iterator<String>>> segmentScans = ImmutableList.of(segmentScan(0, 2),
+                () -> Iterators.concat(Iterators.singletonIterator("item"), new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        throw new IllegalStateException("mySegmentFailure");
+                    }
+
+                    @Override
+                    public String next() {
+                        throw new IllegalStateException("mySegmentFailure");
+                    }
+                }));
+
+        parallelScan.stream(segmentScans).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testStreamClose() throws InterruptedException {
+        final MapStoreParallelScan parallelScan = new MapStoreParallelScan(executorService, 1);
+        final AtomicInteger readCount = new AtomicInteger(0);
+        final List<Supplier<Iterator<String>>> segmentScans = ImmutableList.of(() -> new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return readCount.get() < 1000;
+            }
+
+            @Override
+            public String next() {
+                return "item" + readCount.incrementAndGet();
+            }
+        });
+
+        final Stream<String> stream = parallelScan.stream(segmentScans);
+        assertThat(stream.limit(2L).count(), is(2L));
+        stream.close();
+
+        // The segment read must stop well short of its end once the stream is closed
+        TimeUnit.MILLISECONDS.sleep(500L);
+        assertThat(readCount.get(), lessThan(1000));
+    }
+
+    @Test
+    public void testStreamLimit() throws Exception {
+        final ExecutorService scanExecutorService = Executors.newSingleThreadExecutor();
+        try {
+            final MapStoreParallelScan parallelScan = new MapStoreParallelScan(scanExecutorService, 1);
+            final List<Supplier<Iterator<String>>> segmentScans =
+                    ImmutableList.of(countingSegmentScan(new AtomicInteger(0)));
+
+            // The stream is deliberately left unclosed
+            assertThat(parallelScan.stream(segmentScans, Optional.of(2L)).collect(Collectors.toList()),
+                    contains("item1", "item2"));
+
+            // The segment read must give up the only scan thread once the limit is reached
+            assertThat(scanExecutorService.submit(() -> "done").get(5L, TimeUnit.SECONDS), is("done"));
+        } finally {
+            scanExecutorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStreamAbandoned() throws Exception {
+        final ExecutorService scanExecutorService = Executors.newSingleThreadExecutor();
+        try {
+            final MapStoreParallelScan parallelScan = new MapStoreParallelScan(scanExecutorService, 1);
+            final List<Supplier<Iterator<String>>> segmentScans =
+                    ImmutableList.of(countingSegmentScan(new AtomicInteger(0)));
+
+            assertThat(parallelScan.stream(segmentScans).findFirst(), is(Optional.of("item1")));
+
+            // The segment read must give up the only scan thread once the unclosed stream is unreachable
+            final Future<String> nextScan = scanExecutorService.submit(() -> "done");
+            for (int i = 0; i < 50 && !nextScan.isDone(); i++) {
+                System.gc();
+                TimeUnit.MILLISECONDS.sleep(100L);
+            }
+            assertThat(nextScan.get(5L, TimeUnit.SECONDS), is("done"));
+        } finally {
+            scanExecutorService.shutdownNow();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidLimit() {
+        new MapStoreParallelScan(executorService, 1).stream(Collections.emptyList(), Optional.of(-1L));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidBufferSize() {
+        new MapStoreParallelScan(executorService, 0);
+    }
+}
@@ -0,0 +1,138 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import net.spals.appbuilder.mapstore.core.MapStoreProvider.DelegatingMapStore;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapRangeKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.max;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.min;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MapStoreProvider}
+ *
+ * @author tkral
+ */
+public class MapStoreProviderTest {
+
+    @DataProvider
+    Object[][] firstItemProvider() {
+        return new Object[][] {
+                {max(), Order.DESC},
+                {min(), Order.ASC},
+        };
+    }
+
+    @Test(dataProvider = "firstItemProvider")
+    public void testGetFirstItem(final MapRangeKey rangeKey, final Order expectedOrder) {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> item = ImmutableMap.of("key", "value");
+        final MapStoreKey allKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        when(storePlugin.getFirstItem("myTable", allKey, expectedOrder)).thenReturn(Optional.of(item));
+
+        final MapStore mapStore = new DelegatingMapStore(storePlugin);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", rangeKey).build();
+        assertThat(mapStore.getItem("myTable", storeKey), is(Optional.of(item)));
+        // The plugin reads the single item rather than querying the whole range
+        verify(storePlugin, never()).getItems(any(), any(), any(MapQueryOptions.class));
+    }
+
+    @Test
+    public void testUpdateItemWithoutRead() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final Map<String, Object> payload = ImmutableMap.of("key", "value");
+        final Map<String, Object> item = ImmutableMap.of("myHashField", "myHashValue", "key", "value");
+        when(storePlugin.updateItem("myTable", storeKey, payload)).thenReturn(item);
+
+        final MapStore mapStore = new DelegatingMapStore(storePlugin);
+        assertThat(mapStore.updateItem("myTable", storeKey, payload), is(item));
+        // The plugin upserts natively, so the item is never read first
+        verify(storePlugin, never()).getItem(any(), any(MapStoreKey.class));
+        verify(storePlugin, never()).putItem(any(), any(), any());
+    }
+
+    @Test
+    public void testIncrementItemInvalidatesCache() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final Map<String, Object> item = ImmutableMap.of("myHashField", "myHashValue", "count", 1L);
+        final Map<String, Object> incrementedItem = ImmutableMap.of("myHashField", "myHashValue", "count", 2L);
+        when(storePlugin.getItem("myTable", storeKey)).thenReturn(Optional.of(item), Optional.of(incrementedItem));
+        when(storePlugin.incrementItem("myTable", storeKey, ImmutableMap.of("count", 1L))).thenReturn(incrementedItem);
+
+        final MapStoreTableCache tableCache = new MapStoreTableCache(100L, Optional.empty(), false);
+        final MapStore mapStore = new DelegatingMapStore(storePlugin, ImmutableMap.of("myTable", tableCache));
+        assertThat(mapStore.getItem("myTable", storeKey), is(Optional.of(item)));
+        assertThat(mapStore.incrementItem("myTable", storeKey, ImmutableMap.of("count", 1L)), is(incrementedItem));
+        assertThat(mapStore.getItem("myTable", storeKey), is(Optional.of(incrementedItem)));
+    }
+
+    @DataProvider
+    Object[][] invalidIncrementItemProvider() {
+        return new Object[][] {
+                {Collections.emptyMap()},
+                {ImmutableMap.of("myHashField", 1L)},
+                {ImmutableMap.of("myRangeField", 1L)},
+        };
+    }
+
+    @Test(dataProvider = "invalidIncrementItemProvider", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidIncrementItem(final Map<String, Long> increments) {
+        final MapStore mapStore = new DelegatingMapStore(mock(MapStorePlugin.class));
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", equalTo(1)).build();
+        mapStore.incrementItem("myTable", storeKey, increments);
+    }
+
+    @Test
+    public void testMetrics() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final Map<String, Object> item = ImmutableMap.of("myHashField", "myHashValue", "key", "value");
+        when(storePlugin.getItem("myTable", storeKey)).thenReturn(Optional.of(item));
+        when(storePlugin.getItems("myTable", storeKey, MapQueryOptions.defaultOptions()))
+                .thenThrow(new IllegalStateException());
+
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final MapStore mapStore = new DelegatingMapStore(storePlugin, Collections.emptyMap(), "mySystem",
+                new DefaultMapStoreMetrics(metricRegistry));
+        mapStore.getItem("myTable", storeKey);
+        try {
+            mapStore.getItems("myTable", storeKey, MapQueryOptions.defaultOptions());
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        assertThat(metricRegistry.timer("mapStore.mySystem.myTable.getItem.latency").getCount(), is(1L));
+        assertThat(metricRegistry.histogram("mapStore.mySystem.myTable.getItem.items").getSnapshot().getMax(), is(1L));
+        assertThat(metricRegistry.counter("mapStore.mySystem.myTable.getItem.errors").getCount(), is(0L));
+        assertThat(metricRegistry.timer("mapStore.mySystem.myTable.getItems.latency").getCount(), is(1L));
+        assertThat(metricRegistry.counter("mapStore.mySystem.myTable.getItems.errors").getCount(), is(1L));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidGetIndexItems() {
+        final MapStore mapStore = new DelegatingMapStore(mock(MapStorePlugin.class));
+        final MapStoreKey indexKey = new MapStoreKey.Builder().setHash("status", "active")
+                .setRange("score", max()).build();
+        mapStore.getIndexItems("myTable", "myIndex", indexKey, MapQueryOptions.defaultOptions());
+    }
+}
@@ -0,0 +1,217 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+import net.spals.appbuilder.mapstore.core.MapStoreProvider.DelegatingMapStore;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapStoreCacheStats;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MapStoreTableCache}
+ *
+ * @author tkral
+ */
+public class MapStoreTableCacheTest {
+
+    private final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo("myRangeValue")).build();
+
+    private MapStore cachedStore(final MapStorePlugin storePlugin, final boolean cacheQueries) {
+        when(storePlugin.isNullOrEmptyEntry()).thenCallRealMethod();
+        return new DelegatingMapStore(storePlugin,
+                ImmutableMap.of("myTable", new MapStoreTableCache(10L, Optional.empty(), cacheQueries)));
+    }
+
+    @Test
+    public void testGetItemHit() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> item = ImmutableMap.of("key", "value");
+        when(storePlugin.getItem("myTable", storeKey)).thenReturn(Optional.of(item));
+
+        final MapStore mapStore = cachedStore(storePlugin, false);
+        assertThat(mapStore.getItem("myTable", storeKey), is(Optional.of(item)));
+        assertThat(mapStore.getItem("myTable", storeKey), is(Optional.of(item)));
+        verify(storePlugin, times(1)).getItem("myTable", storeKey);
+
+        final MapStoreCacheStats cacheStats = mapStore.getCacheStats("myTable").get();
+        assertThat(cacheStats.getHitCount(), is(1L));
+        assertThat(cacheStats.getMissCount(), is(1L));
+        assertThat(cacheStats.getHitRate(), is(0.5));
+    }
+
+    @Test
+    public void testGetItemMissNotCached() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        when(storePlugin.getItem("myTable", storeKey)).thenReturn(Optional.empty());
+
+        final MapStore mapStore = cachedStore(storePlugin, false);
+        assertThat(mapStore.getItem("myTable", storeKey), is(Optional.empty()));
+        assertThat(mapStore.getItem("myTable", storeKey), is(Optional.empty()));
+        verify(storePlugin, times(2)).getItem("myTable", storeKey);
+    }
+
+    @Test
+    public void testGetItemMissCachedBriefly() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> item = ImmutableMap.of("key", "value");
+        final MapStoreKey otherStoreKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", equalTo("otherRangeValue")).build();
+        when(storePlugin.getItem("myTable", storeKey)).thenReturn(Optional.empty());
+        when(storePlugin.getItem("myTable", otherStoreKey)).thenReturn(Optional.of(item));
+
+        final MapStore mapStore = new DelegatingMapStore(storePlugin, ImmutableMap.of("myTable",
+                new MapStoreTableCache(10L, Optional.empty(), Optional.of(Duration.ofNanos(1L)), false)));
+        mapStore.getItem("myTable", storeKey);
+        mapStore.getItem("myTable", otherStoreKey);
+        mapStore.getItem("myTable", storeKey);
+        mapStore.getItem("myTable", otherStoreKey);
+        // The miss has expired by its next read, while the item never expires
+        verify(storePlugin, times(2)).getItem("myTable", storeKey);
+        verify(storePlugin, times(1)).getItem("myTable", otherStoreKey);
+    }
+
+    @Test
+    public void testGetItemMissCached() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        when(storePlugin.getItem("myTable", storeKey)).thenReturn(Optional.empty());
+
+        final MapStore mapStore = new DelegatingMapStore(storePlugin, ImmutableMap.of("myTable",
+                new MapStoreTableCache(10L, Optional.empty(), Optional.of(Duration.ofMinutes(1L)), false)));
+        assertThat(mapStore.getItem("myTable", storeKey), is(Optional.empty()));
+        assertThat(mapStore.getItem("myTable", storeKey), is(Optional.empty()));
+        verify(storePlugin, times(1)).getItem("myTable", storeKey);
+    }
+
+    @Test
+    public void testPutItemInvalidates() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> payload = ImmutableMap.of("key", "value");
+        when(storePlugin.getItem("myTable", storeKey)).thenReturn(Optional.empty(), Optional.of(payload));
+
+        final MapStore mapStore = cachedStore(storePlugin, false);
+        assertThat(mapStore.getItem("myTable", storeKey), is(Optional.empty()));
+        mapStore.putItem("myTable", storeKey, payload);
+        assertThat(mapStore.getItem("myTable", storeKey), is(Optional.of(payload)));
+        verify(storePlugin, times(2)).getItem("myTable", storeKey);
+    }
+
+    @Test
+    public void testGetItemsCached() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapStoreKey allKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        final MapQueryOptions options = new MapQueryOptions.Builder().build();
+        when(storePlugin.getItems("myTable", allKey, options))
+                .thenReturn(ImmutableList.of(ImmutableMap.of("key", "value")));
+
+        final MapStore mapStore = cachedStore(storePlugin, true);
+        mapStore.getItems("myTable", allKey, options);
+        mapStore.getItems("myTable", allKey, options);
+        verify(storePlugin, times(1)).getItems("myTable", allKey, options);
+
+        // A write to any key under the same hash value invalidates the query
+        mapStore.deleteItem("myTable", storeKey);
+        mapStore.getItems("myTable", allKey, options);
+        verify(storePlugin, times(2)).getItems("myTable", allKey, options);
+    }
+
+    @Test
+    public void testGetItemsLoadedBeforeWriteNotCached() {
+        final MapStoreTableCache tableCache = new MapStoreTableCache(10L, Optional.empty(), true);
+        final MapStoreKey allKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        final MapQueryOptions options = new MapQueryOptions.Builder().build();
+        final List<Map<String, Object>> staleItems = ImmutableList.of(ImmutableMap.of("key", "value1"));
+        final List<Map<String, Object>> items = ImmutableList.of(ImmutableMap.of("key", "value2"));
+
+        // A write lands while the query is still loading, so its stale result is never read again
+        assertThat(tableCache.getItems(allKey, options, () -> {
+            tableCache.invalidate(storeKey);
+            return staleItems;
+        }), is(staleItems));
+        assertThat(tableCache.getItems(allKey, options, () -> items), is(items));
+        assertThat(tableCache.getItems(allKey, options, () -> staleItems), is(items));
+    }
+
+    @Test
+    public void testPutCachedItem() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> item = ImmutableMap.of("myHashField", "myHashValue",
+                "myRangeField", "myRangeValue", "key", "value");
+        when(storePlugin.getItem("myTable", storeKey)).thenReturn(Optional.of(item));
+        doCallRealMethod().when(storePlugin).stripKey(any(), any());
+        when(storePlugin.putItem(eq("myTable"), eq(storeKey), anyMap())).thenAnswer(invocation -> {
+            storePlugin.stripKey(storeKey, invocation.getArgument(2));
+            return item;
+        });
+
+        // Cached items are immutable, so the plugin strips the key fields of a copy
+        final MapStore mapStore = cachedStore(storePlugin, false);
+        assertThat(mapStore.putItem("myTable", storeKey, mapStore.getItem("myTable", storeKey).get()), is(item));
+        verify(storePlugin).putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+    }
+
+    @Test
+    public void testGetItemsEmptyNotCached() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapStoreKey allKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        final MapQueryOptions options = new MapQueryOptions.Builder().build();
+        when(storePlugin.getItems("myTable", allKey, options)).thenReturn(ImmutableList.of());
+
+        final MapStore mapStore = cachedStore(storePlugin, true);
+        assertThat(mapStore.getItems("myTable", allKey, options), is(ImmutableList.of()));
+        mapStore.getItems("myTable", allKey, options);
+        verify(storePlugin, times(2)).getItems("myTable", allKey, options);
+    }
+
+    @Test
+    public void testGetItemsUncached() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapStoreKey allKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        final MapQueryOptions options = new MapQueryOptions.Builder().build();
+        when(storePlugin.getItems("myTable", allKey, options)).thenReturn(ImmutableList.of());
+
+        final MapStore mapStore = cachedStore(storePlugin, false);
+        mapStore.getItems("myTable", allKey, options);
+        mapStore.getItems("myTable", allKey, options);
+        verify(storePlugin, times(2)).getItems("myTable", allKey, options);
+    }
+
+    @Test
+    public void testUncachedTable() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapStore mapStore = cachedStore(storePlugin, false);
+
+        assertThat(mapStore.getCacheStats("otherTable"), is(Optional.empty()));
+        mapStore.getItem("otherTable", storeKey);
+        mapStore.getItem("otherTable", storeKey);
+        verify(storePlugin, times(2)).getItem("otherTable", storeKey);
+    }
+
+    @Test
+    public void testFromConfig() {
+        final MapStoreTableCache tableCache = MapStoreTableCache.fromConfig(ConfigFactory.parseMap(
+                ImmutableMap.of("maxSize", 1L, "expireAfterWrite", "5m", "expireMissesAfter", "1s",
+                        "cacheQueries", true)));
+        assertThat(tableCache.getStats().getHitRate(), is(1.0));
+    }
+}
@@ -0,0 +1,94 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Unit tests for {@link MapStoreWriteSharding}
+ *
+ * @author tkral
+ */
+public class MapStoreWriteShardingTest {
+
+    private final MapStoreWriteSharding writeSharding = new MapStoreWriteSharding("myHashField", 4);
+
+    @Test
+    public void testFromConfig() {
+        final MapStoreWriteSharding configSharding = MapStoreWriteSharding.fromConfig(
+                ConfigFactory.parseMap(ImmutableMap.of("hashField", "myHashField", "shards", 8)));
+
+        assertThat(configSharding.getHashField(), is("myHashField"));
+        assertThat(configSharding.getShards(), is(8));
+    }
+
+    @Test(expectedExceptions = ConfigException.BadValue.class)
+    public void testFromConfigInvalidShards() {
+        MapStoreWriteSharding.fromConfig(ConfigFactory.parseMap(ImmutableMap.of("hashField", "myHashField", "shards", 0)));
+    }
+
+    @Test
+    public void testItemKey() {
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", equalTo("myRangeValue")).build();
+        final MapStoreKey itemKey = writeSharding.itemKey(storeKey);
+
+        assertThat(itemKey.getHashValue(), is("myHashValue#" + writeSharding.shardOf("myRangeValue")));
+        assertThat(itemKey.getRangeKey(), is(storeKey.getRangeKey()));
+        // An item always lands in the same shard
+        assertThat(writeSharding.itemKey(storeKey), is(itemKey));
+    }
+
+    @Test
+    public void testShardOfNumbers() {
+        assertThat(writeSharding.shardOf(1), is(writeSharding.shardOf(1L)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testItemKeyNoRange() {
+        writeSharding.itemKey(new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testItemKeyOtherField() {
+        writeSharding.itemKey(new MapStoreKey.Builder().setHash("myOtherField", "myHashValue")
+                .setRange("myRangeField", equalTo("myRangeValue")).build());
+    }
+
+    @Test
+    public void testShardKeys() {
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        final List<Object> shardHashValues = writeSharding.shardKeys(storeKey).stream()
+                .map(MapStoreKey::getHashValue).collect(Collectors.toList());
+
+        assertThat(shardHashValues, contains("myHashValue#0", "myHashValue#1", "myHashValue#2", "myHashValue#3"));
+    }
+
+    @Test
+    public void testLogicalItem() {
+        final Map<String, Object> item = ImmutableMap.of("myHashField", "my#HashValue#3", "key", "value");
+        assertThat(writeSharding.logicalItem(item), is(ImmutableMap.of("myHashField", "my#HashValue", "key", "value")));
+        // Items which were never sharded are left as is
+        assertThat(writeSharding.logicalItem(ImmutableMap.of("myHashField", "myHashValue")),
+                is(ImmutableMap.of("myHashField", "myHashValue")));
+    }
+
+    @Test
+    public void testShardPayload() {
+        final Map<String, Object> payload = ImmutableMap.of("myHashField", "myHashValue", "key", "value");
+        assertThat(writeSharding.shardPayload(payload), is(ImmutableMap.of("key", "value")));
+    }
+}
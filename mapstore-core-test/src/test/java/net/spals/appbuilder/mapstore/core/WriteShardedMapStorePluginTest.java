@@ -0,0 +1,275 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.spals.appbuilder.mapstore.core.WriteShardedMapStorePlugin.ShardPosition;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapQueryPage;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link WriteShardedMapStorePlugin}
+ *
+ * @author tkral
+ */
+public class WriteShardedMapStorePluginTest {
+
+    private final MapStoreWriteSharding writeSharding = new MapStoreWriteSharding("myHashField", 2);
+    private final MapStoreKey queryKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", all()).build();
+
+    private MapStoreKey shardKey(final int shard) {
+        return new MapStoreKey.Builder().setHash("myHashField", "myHashValue#" + shard)
+                .setRange("myRangeField", all()).build();
+    }
+
+    private Map<String, Object> shardItem(final int shard, final int rangeValue) {
+        return ImmutableMap.of("myHashField", "myHashValue#" + shard, "myRangeField", rangeValue);
+    }
+
+    private WriteShardedMapStorePlugin shardedPlugin(final MapStorePlugin storePlugin) {
+        return new WriteShardedMapStorePlugin(storePlugin, ImmutableMap.of("myTable", writeSharding));
+    }
+
+    private List<Object> rangeValues(final List<Map<String, Object>> items) {
+        return items.stream().map(item -> item.get("myRangeField")).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testWrap() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        assertThat(WriteShardedMapStorePlugin.wrap(storePlugin, ImmutableMap.of()), is(storePlugin));
+    }
+
+    @Test
+    public void testPutItem() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", equalTo("myRangeValue")).build();
+        final MapStoreKey itemKey = writeSharding.itemKey(storeKey);
+        when(storePlugin.putItem("myTable", itemKey, ImmutableMap.of("key", "value")))
+                .thenReturn(ImmutableMap.of("myHashField", itemKey.getHashValue(), "key", "value"));
+
+        final Map<String, Object> payload = ImmutableMap.of("myHashField", "myHashValue", "key", "value");
+        assertThat(shardedPlugin(storePlugin).putItem("myTable", storeKey, payload),
+                is(ImmutableMap.of("myHashField", "myHashValue", "key", "value")));
+    }
+
+    @Test
+    public void testUnshardedTable() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        when(storePlugin.getItem("myOtherTable", storeKey)).thenReturn(Optional.of(ImmutableMap.of("key", "value")));
+
+        assertThat(shardedPlugin(storePlugin).getItem("myOtherTable", storeKey),
+                is(Optional.of(ImmutableMap.of("key", "value"))));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testCreateTableNoRange() {
+        shardedPlugin(mock(MapStorePlugin.class)).createTable("myTable",
+                new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+    }
+
+    @Test
+    public void testGetItemsMerged() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        when(storePlugin.getItems("myTable", shardKey(0), defaultOptions()))
+                .thenReturn(ImmutableList.of(shardItem(0, 1), shardItem(0, 4)));
+        when(storePlugin.getItems("myTable", shardKey(1), defaultOptions()))
+                .thenReturn(ImmutableList.of(shardItem(1, 2), shardItem(1, 3)));
+
+        final List<Map<String, Object>> items = shardedPlugin(storePlugin).getItems("myTable", queryKey, defaultOptions());
+        assertThat(rangeValues(items), contains(1, 2, 3, 4));
+        assertThat(items.get(0).get("myHashField"), is("myHashValue"));
+    }
+
+    @Test
+    public void testGetItemsConcurrently() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final AsyncMapStore asyncStore = mock(AsyncMapStore.class);
+        when(storePlugin.asyncPlugin()).thenReturn(Optional.of(asyncStore));
+        when(asyncStore.getItems("myTable", shardKey(0), defaultOptions()))
+                .thenReturn(CompletableFuture.completedFuture(ImmutableList.of(shardItem(0, 1), shardItem(0, 4))));
+        when(asyncStore.getItems("myTable", shardKey(1), defaultOptions()))
+                .thenReturn(CompletableFuture.completedFuture(ImmutableList.of(shardItem(1, 2), shardItem(1, 3))));
+
+        assertThat(rangeValues(shardedPlugin(storePlugin).getItems("myTable", queryKey, defaultOptions())),
+                contains(1, 2, 3, 4));
+        verify(storePlugin, never()).getItems(any(), any(), any());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = "myShardFailure")
+    public void testGetItemsConcurrentlyFailure() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final AsyncMapStore asyncStore = mock(AsyncMapStore.class);
+        final CompletableFuture<List<Map<String, Object>>> shardFailure = new CompletableFuture<>();
+        shardFailure.completeExceptionally(new IllegalStateException("myShardFailure"));
+        when(storePlugin.asyncPlugin()).thenReturn(Optional.of(asyncStore));
+        when(asyncStore.getItems("myTable", shardKey(0), defaultOptions()))
+                .thenReturn(CompletableFuture.completedFuture(ImmutableList.of(shardItem(0, 1))));
+        when(asyncStore.getItems("myTable", shardKey(1), defaultOptions())).thenReturn(shardFailure);
+
+        shardedPlugin(storePlugin).getItems("myTable", queryKey, defaultOptions());
+    }
+
+    @Test
+    public void testGetItemsMergedDescendingWithLimit() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapQueryOptions options = new MapQueryOptions.Builder().setOrder(Order.DESC).setLimit(3).build();
+        when(storePlugin.getItems("myTable", shardKey(0), options))
+                .thenReturn(ImmutableList.of(shardItem(0, 4), shardItem(0, 1)));
+        when(storePlugin.getItems("myTable", shardKey(1), options))
+                .thenReturn(ImmutableList.of(shardItem(1, 3), shardItem(1, 2)));
+
+        assertThat(rangeValues(shardedPlugin(storePlugin).getItems("myTable", queryKey, options)), contains(4, 3, 2));
+    }
+
+    @Test
+    public void testGetItemsProjection() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapQueryOptions options = new MapQueryOptions.Builder().addProjection("key").build();
+        final MapQueryOptions shardOptions = new MapQueryOptions.Builder().addProjection("key", "myRangeField").build();
+        when(storePlugin.projectItem(any(), any())).thenCallRealMethod();
+        when(storePlugin.getItems("myTable", shardKey(0), shardOptions))
+                .thenReturn(ImmutableList.of(ImmutableMap.of("myRangeField", 2, "key", "value2")));
+        when(storePlugin.getItems("myTable", shardKey(1), shardOptions))
+                .thenReturn(ImmutableList.of(ImmutableMap.of("myRangeField", 1, "key", "value1")));
+
+        // The range field is read for the merge only
+        assertThat(shardedPlugin(storePlugin).getItems("myTable", queryKey, options),
+                contains(ImmutableMap.of("key", "value1"), ImmutableMap.of("key", "value2")));
+    }
+
+    @Test
+    public void testGetFirstItem() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        when(storePlugin.getFirstItem("myTable", shardKey(0), Order.DESC)).thenReturn(Optional.of(shardItem(0, 3)));
+        when(storePlugin.getFirstItem("myTable", shardKey(1), Order.DESC)).thenReturn(Optional.of(shardItem(1, 5)));
+
+        assertThat(shardedPlugin(storePlugin).getFirstItem("myTable", queryKey, Order.DESC),
+                is(Optional.of(ImmutableMap.of("myHashField", "myHashValue", "myRangeField", 5))));
+    }
+
+    @Test
+    public void testStreamItemsMerged() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final AtomicInteger closeCount = new AtomicInteger(0);
+        when(storePlugin.streamItems("myTable", shardKey(0), defaultOptions()))
+                .thenReturn(Stream.of(shardItem(0, 2), shardItem(0, 3)).onClose(closeCount::incrementAndGet));
+        when(storePlugin.streamItems("myTable", shardKey(1), defaultOptions()))
+                .thenReturn(Stream.of(shardItem(1, 1)).onClose(closeCount::incrementAndGet));
+
+        try (final Stream<Map<String, Object>> itemStream =
+                     shardedPlugin(storePlugin).streamItems("myTable", queryKey, defaultOptions())) {
+            assertThat(rangeValues(itemStream.collect(Collectors.toList())), contains(1, 2, 3));
+        }
+        assertThat(closeCount.get(), is(2));
+    }
+
+    // Pages a shard's items two at a time, with the index of the next page's first item as its token
+    private void mockShardPages(final MapStorePlugin storePlugin, final int shard, final Integer... rangeValues) {
+        when(storePlugin.getItemsPage(eq("myTable"), eq(shardKey(shard)), any())).thenAnswer(invocation -> {
+            final MapQueryOptions options = invocation.getArgument(2);
+            final int start = options.getContinuationToken().map(Integer::parseInt).orElse(0);
+            final int end = Math.min(start + 2, rangeValues.length);
+            final MapQueryPage.Builder pageBuilder = new MapQueryPage.Builder();
+            IntStream.range(start, end).forEach(i -> pageBuilder.addItems(shardItem(shard, rangeValues[i])));
+            if (end < rangeValues.length) {
+                pageBuilder.setContinuationToken(String.valueOf(end));
+            }
+            return pageBuilder.build();
+        });
+    }
+
+    @Test
+    public void testGetItemsPage() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        mockShardPages(storePlugin, 0, 1, 4, 5);
+        mockShardPages(storePlugin, 1, 2, 3);
+        final WriteShardedMapStorePlugin shardedPlugin = shardedPlugin(storePlugin);
+
+        final List<Object> rangeValues = new ArrayList<>();
+        Optional<String> continuationToken = Optional.empty();
+        int pageCount = 0;
+        do {
+            final MapQueryOptions.Builder options = new MapQueryOptions.Builder().setPageSize(2);
+            continuationToken.ifPresent(options::setContinuationToken);
+            final MapQueryPage page = shardedPlugin.getItemsPage("myTable", queryKey, options.build());
+            assertThat(page.getItems().stream().allMatch(item -> "myHashValue".equals(item.get("myHashField"))), is(true));
+            rangeValues.addAll(rangeValues(page.getItems()));
+            continuationToken = page.getContinuationToken();
+            pageCount++;
+        } while (continuationToken.isPresent());
+
+        assertThat(rangeValues, contains(1, 2, 3, 4, 5));
+        assertThat(pageCount, is(3));
+    }
+
+    @Test
+    public void testContinuationTokenRoundTrip() {
+        final List<ShardPosition> shardPositions = ImmutableList.of(ShardPosition.START,
+                new ShardPosition(Optional.of("myShard,Token:"), 3), ShardPosition.EXHAUSTED);
+        final List<ShardPosition> decodedPositions = WriteShardedMapStorePlugin.decodeContinuationToken("myTable",
+                WriteShardedMapStorePlugin.encodeContinuationToken(shardPositions), 3);
+
+        assertThat(WriteShardedMapStorePlugin.encodeContinuationToken(decodedPositions),
+                is(WriteShardedMapStorePlugin.encodeContinuationToken(shardPositions)));
+        assertThat(decodedPositions.get(2).isExhausted(), is(true));
+    }
+
+    @DataProvider
+    Object[][] invalidContinuationTokenProvider() {
+        return new Object[][] {
+                {"not base64!"},
+                // A token of the wrong number of shards
+                {WriteShardedMapStorePlugin.encodeContinuationToken(ImmutableList.of(ShardPosition.START))},
+                {Base64.getUrlEncoder().encodeToString("x:,-".getBytes(StandardCharsets.UTF_8))},
+        };
+    }
+
+    @Test(dataProvider = "invalidContinuationTokenProvider", expectedExceptions = IllegalArgumentException.class)
+    public void testGetItemsPageInvalidToken(final String continuationToken) {
+        shardedPlugin(mock(MapStorePlugin.class)).getItemsPage("myTable", queryKey,
+                new MapQueryOptions.Builder().setContinuationToken(continuationToken).build());
+    }
+
+    @Test
+    public void testBatchDeleteItems() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", equalTo("myRangeValue")).build();
+
+        shardedPlugin(storePlugin).batchDeleteItems("myTable", ImmutableList.of(storeKey));
+        verify(storePlugin).batchDeleteItems(eq("myTable"), eq(ImmutableList.of(writeSharding.itemKey(storeKey))));
+    }
+}
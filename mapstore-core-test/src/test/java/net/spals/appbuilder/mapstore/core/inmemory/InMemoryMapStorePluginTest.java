@@ -0,0 +1,608 @@
+package net.spals.appbuilder.mapstore.core.inmemory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapQueryPage;
+import net.spals.appbuilder.mapstore.core.model.MapRangeKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreWriteCondition;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions;
+import static net.spals.appbuilder.mapstore.core.model.MultiValueMapRangeKey.in;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.greaterThan;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.greaterThanOrEqualTo;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.lessThan;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.lessThanOrEqualTo;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.like;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.startsWith;
+import static net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.between;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Unit tests for {@link InMemoryMapStorePlugin}
+ *
+ * @author tkral
+ */
+public class InMemoryMapStorePluginTest {
+
+    private static final MapStoreTableKey HASH_TABLE_KEY = new MapStoreTableKey.Builder()
+            .setHash("myHashField", String.class).build();
+    private static final MapStoreTableKey RANGE_TABLE_KEY = new MapStoreTableKey.Builder()
+            .setHash("myHashField", String.class).setRange("myRangeField", Integer.class).build();
+
+    private final Function<Object, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo((Comparable) i)).build();
+    private final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
+            "myRangeField", i, "key", "value");
+
+    private InMemoryMapStorePlugin createRangeStorePlugin(final int itemCount) {
+        final InMemoryMapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", RANGE_TABLE_KEY);
+        IntStream.rangeClosed(1, itemCount).forEach(i -> storePlugin.putItem("myTable", keyFunction.apply(i),
+                ImmutableMap.of("key", "value")));
+        // Items under other hash values are never read
+        storePlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", "otherHashValue")
+                .setRange("myRangeField", equalTo(0)).build(), ImmutableMap.of("key", "value"));
+        return storePlugin;
+    }
+
+    @Test
+    public void testEmptyGetItem() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", RANGE_TABLE_KEY);
+
+        assertThat(storePlugin.getItem("myTable", keyFunction.apply(1)), is(Optional.empty()));
+        assertThat(storePlugin.getItems("myTable", keyFunction.apply(1), defaultOptions()), empty());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownTable() {
+        new InMemoryMapStorePlugin().getItem("myTable", keyFunction.apply(1));
+    }
+
+    @Test
+    public void testPutItem() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        final Map<String, Object> expectedResult = ImmutableMap.of("myHashField", "myHashValue", "key", "value");
+        assertThat(storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value")), is(expectedResult));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(expectedResult)));
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testImmutableItem() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+
+        storePlugin.getItem("myTable", storeKey).get().put("key", "otherValue");
+    }
+
+    @DataProvider
+    Object[][] updateItemProvider() {
+        return new Object[][] {
+                {ImmutableMap.of("key1", 1),
+                    ImmutableMap.of("myHashField", "myHashValue", "key", "value", "key1", 1)},
+                {ImmutableMap.of("key", ""),
+                    ImmutableMap.of("myHashField", "myHashValue")},
+        };
+    }
+
+    @Test(dataProvider = "updateItemProvider")
+    public void testUpdateItem(final Map<String, Object> payload,
+                               final Map<String, Object> expectedResult) {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+
+        assertThat(storePlugin.updateItem("myTable", storeKey, payload), is(expectedResult));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(expectedResult)));
+    }
+
+    @Test
+    public void testUpsertItem() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        final Map<String, Object> expectedResult = ImmutableMap.of("myHashField", "myHashValue", "key", "value");
+        assertThat(storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("key", "value", "key1", "")),
+                is(expectedResult));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(expectedResult)));
+    }
+
+    @DataProvider
+    Object[][] conditionalWriteProvider() {
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        return new Object[][] {
+                {MapStoreWriteCondition.itemAbsent(storeKey), false},
+                {MapStoreWriteCondition.expectedVersion("version", 1L), true},
+                {MapStoreWriteCondition.expectedVersion("version", 2L), false},
+        };
+    }
+
+    @Test(dataProvider = "conditionalWriteProvider")
+    public void testConditionalPutItem(final MapStoreWriteCondition condition, final boolean expectedApplied) {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final Map<String, Object> item = storePlugin.putItem("myTable", storeKey,
+                ImmutableMap.of("key", "value", "version", 1));
+
+        final Map<String, Object> expectedResult = ImmutableMap.of("myHashField", "myHashValue", "version", 2);
+        final Optional<Map<String, Object>> result = storePlugin.putItem("myTable", storeKey,
+                ImmutableMap.of("version", 2), condition);
+        assertThat(result, is(expectedApplied ? Optional.of(expectedResult) : Optional.empty()));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(expectedApplied ? expectedResult : item)));
+    }
+
+    @Test(dataProvider = "conditionalWriteProvider")
+    public void testConditionalUpdateItem(final MapStoreWriteCondition condition, final boolean expectedApplied) {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final Map<String, Object> item = storePlugin.putItem("myTable", storeKey,
+                ImmutableMap.of("key", "value", "version", 1));
+
+        final Map<String, Object> expectedResult = ImmutableMap.of("myHashField", "myHashValue",
+                "key", "value", "version", 2);
+        final Optional<Map<String, Object>> result = storePlugin.updateItem("myTable", storeKey,
+                ImmutableMap.of("version", 2), condition);
+        assertThat(result, is(expectedApplied ? Optional.of(expectedResult) : Optional.empty()));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(expectedApplied ? expectedResult : item)));
+    }
+
+    @Test
+    public void testConcurrentUpdate() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        // Concurrent updates of different fields are all merged into the item
+        IntStream.range(0, 100).parallel().forEach(i ->
+                storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("key" + i, i)));
+        assertThat(storePlugin.getItem("myTable", storeKey).get().size(), is(101));
+    }
+
+    @Test
+    public void testConcurrentConditionalUpdate() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("version", 0L));
+
+        // Every increment retries on a stale version, so none of them are lost
+        IntStream.range(0, 100).parallel().forEach(i -> {
+            Optional<Map<String, Object>> updatedItem = Optional.empty();
+            while (!updatedItem.isPresent()) {
+                final long version = (Long) storePlugin.getItem("myTable", storeKey).get().get("version");
+                updatedItem = storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("version", version + 1L),
+                        MapStoreWriteCondition.expectedVersion("version", version));
+            }
+        });
+        assertThat(storePlugin.getItem("myTable", storeKey).get().get("version"), is(100L));
+    }
+
+    @Test
+    public void testIncrementItem() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        // A missing item counts up from zero
+        assertThat(storePlugin.incrementItem("myTable", storeKey, ImmutableMap.of("count", 2L)),
+                is(ImmutableMap.of("myHashField", "myHashValue", "count", 2L)));
+        storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+
+        assertThat(storePlugin.incrementItem("myTable", storeKey, ImmutableMap.of("count", -1L, "visits", 1L)),
+                is(ImmutableMap.of("myHashField", "myHashValue", "count", 1L, "key", "value", "visits", 1L)));
+    }
+
+    @Test
+    public void testConcurrentIncrementItem() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        IntStream.range(0, 100).parallel().forEach(i ->
+                storePlugin.incrementItem("myTable", storeKey, ImmutableMap.of("count", 1L)));
+        assertThat(storePlugin.getItem("myTable", storeKey).get().get("count"), is(100L));
+    }
+
+    @DataProvider
+    Object[][] getItemsProvider() {
+        return new Object[][] {
+                {all(), ImmutableList.of(1, 2, 3, 4)},
+                {between(2, 4), ImmutableList.of(2, 3, 4)},
+                {between(2, 2), ImmutableList.of(2)},
+                {equalTo(1), ImmutableList.of(1)},
+                {greaterThan(2), ImmutableList.of(3, 4)},
+                {greaterThanOrEqualTo(2), ImmutableList.of(2, 3, 4)},
+                {lessThan(3), ImmutableList.of(1, 2)},
+                {lessThanOrEqualTo(3), ImmutableList.of(1, 2, 3)},
+                {in(4, 2, 9), ImmutableList.of(2, 4)},
+                // Case: Range values are coerced to the table's key type
+                {greaterThan(3L), ImmutableList.of(4)},
+        };
+    }
+
+    @Test(dataProvider = "getItemsProvider")
+    public void testGetItems(final MapRangeKey rangeKey, final List<Integer> expectedRangeValues) {
+        final MapStorePlugin storePlugin = createRangeStorePlugin(4);
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", rangeKey).build();
+        assertThat(storePlugin.getItems("myTable", storeKey, defaultOptions()),
+                contains(expectedRangeValues.stream().map(result).toArray()));
+    }
+
+    @DataProvider
+    Object[][] extendedGetItemsProvider() {
+        return new Object[][] {
+                {in("b", "d", "z"), Order.ASC, ImmutableList.of("b", "d")},
+                {in("d", "b", "b"), Order.DESC, ImmutableList.of("d", "b")},
+                {like("b"), Order.ASC, ImmutableList.of("ab", "abc", "abd", "b")},
+                {like("bc"), Order.DESC, ImmutableList.of("abc")},
+                {startsWith("ab"), Order.ASC, ImmutableList.of("ab", "abc", "abd")},
+                {startsWith("ab"), Order.DESC, ImmutableList.of("abd", "abc", "ab")},
+                {startsWith("e"), Order.ASC, ImmutableList.of()},
+                {startsWith(""), Order.ASC, ImmutableList.of("a", "ab", "abc", "abd", "b", "d")},
+        };
+    }
+
+    @Test(dataProvider = "extendedGetItemsProvider")
+    public void testExtendedGetItems(final MapRangeKey rangeKey,
+                                     final Order order,
+                                     final List<String> expectedRangeValues) {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", String.class).build());
+        ImmutableList.of("a", "ab", "abc", "abd", "b", "d").forEach(s -> storePlugin.putItem("myTable",
+                keyFunction.apply(s), ImmutableMap.of("key", "value")));
+        // Items under other hash values are never read
+        storePlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", "otherHashValue")
+                .setRange("myRangeField", equalTo("abe")).build(), ImmutableMap.of("key", "value"));
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", rangeKey).build();
+        assertThat(storePlugin.getItems("myTable", storeKey, new MapQueryOptions.Builder().setOrder(order).build())
+                .stream().map(item -> item.get("myRangeField")).collect(Collectors.toList()),
+                is(expectedRangeValues));
+    }
+
+    @Test
+    public void testGetItemsDescendingLimit() {
+        final MapStorePlugin storePlugin = createRangeStorePlugin(5);
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", lessThan(5)).build();
+        assertThat(storePlugin.getItems("myTable", storeKey,
+                new MapQueryOptions.Builder().setOrder(Order.DESC).setLimit(2).build()),
+                contains(result.apply(4), result.apply(3)));
+    }
+
+    @DataProvider
+    Object[][] getFirstItemProvider() {
+        return new Object[][] {
+                {all(), Order.ASC, Optional.of(1)},
+                {all(), Order.DESC, Optional.of(5)},
+                {between(2, 4), Order.DESC, Optional.of(4)},
+                {greaterThan(5), Order.ASC, Optional.empty()},
+        };
+    }
+
+    @Test(dataProvider = "getFirstItemProvider")
+    public void testGetFirstItem(final MapRangeKey rangeKey,
+                                 final Order order,
+                                 final Optional<Integer> expectedRangeValue) {
+        final MapStorePlugin storePlugin = createRangeStorePlugin(5);
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", rangeKey).build();
+        assertThat(storePlugin.getFirstItem("myTable", storeKey, order).map(item -> item.get("myRangeField")),
+                is(expectedRangeValue));
+    }
+
+    @Test
+    public void testGetItemsPage() {
+        final MapStorePlugin storePlugin = createRangeStorePlugin(3);
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        final MapQueryPage firstPage = storePlugin.getItemsPage("myTable", storeKey,
+                new MapQueryOptions.Builder().setPageSize(2).setOrder(Order.DESC).build());
+        assertThat(firstPage.getItems(), contains(result.apply(3), result.apply(2)));
+        assertThat(firstPage.getContinuationToken(), not(Optional.empty()));
+
+        final MapQueryPage secondPage = storePlugin.getItemsPage("myTable", storeKey,
+                new MapQueryOptions.Builder().setPageSize(2).setOrder(Order.DESC)
+                        .setContinuationToken(firstPage.getContinuationToken().get()).build());
+        assertThat(secondPage.getItems(), contains(result.apply(1)));
+        assertThat(secondPage.getContinuationToken(), is(Optional.empty()));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidContinuationToken() {
+        new InMemoryMapStorePlugin().decodeContinuationToken("invalidToken");
+    }
+
+    @DataProvider
+    Object[][] continuationTokenProvider() {
+        return new Object[][] {
+                {new Object[]{"myHashValue"}},
+                {new Object[]{"myHashValue", 1L}},
+                {new Object[]{1, (short) 2, (byte) 3, 4.0D, 5.0F, true, 'c'}},
+                {new Object[]{UUID.randomUUID(), new Date(1L), new BigDecimal("1.5"), BigInteger.TEN}},
+                {new Object[]{"myHashValue", null}},
+        };
+    }
+
+    @Test(dataProvider = "continuationTokenProvider")
+    public void testContinuationTokenRoundTrip(final Object[] keyArray) {
+        final InMemoryMapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        assertThat(storePlugin.decodeContinuationToken(storePlugin.encodeContinuationToken(keyArray)), is(keyArray));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testSerializedObjectContinuationToken() throws IOException {
+        // Java serialized objects are never read back from a token
+        final ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream keyOutput = new ObjectOutputStream(keyBytes)) {
+            keyOutput.writeObject(new Object[]{"myHashValue"});
+        }
+        new InMemoryMapStorePlugin().decodeContinuationToken(Base64.getUrlEncoder().encodeToString(keyBytes.toByteArray()));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnsupportedContinuationTokenKey() {
+        new InMemoryMapStorePlugin().encodeContinuationToken(new Object[]{new Object()});
+    }
+
+    @Test
+    public void testStreamAllItems() {
+        final MapStorePlugin storePlugin = createRangeStorePlugin(3);
+
+        // Items are streamed in hash value order and then range value order
+        assertThat(storePlugin.streamAllItems("myTable", new MapQueryOptions.Builder().setPageSize(1).build())
+                .map(item -> item.get("myRangeField")).collect(Collectors.toList()), contains(1, 2, 3, 0));
+    }
+
+    @Test
+    public void testBatchItems() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", RANGE_TABLE_KEY);
+
+        storePlugin.batchPutItems("myTable", ImmutableMap.of(keyFunction.apply(1), ImmutableMap.of("key", "value"),
+                keyFunction.apply(2), ImmutableMap.of("key", "value")));
+        assertThat(storePlugin.batchGetItems("myTable", ImmutableList.of(keyFunction.apply(2),
+                keyFunction.apply(3), keyFunction.apply(1))), contains(result.apply(2), result.apply(1)));
+
+        storePlugin.batchDeleteItems("myTable", ImmutableList.of(keyFunction.apply(1)));
+        assertThat(storePlugin.getAllItems("myTable"), contains(result.apply(2)));
+    }
+
+    @Test
+    public void testCoercedKeyTypes() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", Long.class).build());
+
+        storePlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", 1).build(),
+                ImmutableMap.of("key", "value"));
+        assertThat(storePlugin.getItem("myTable", new MapStoreKey.Builder().setHash("myHashField", 1L).build()),
+                is(Optional.of(ImmutableMap.of("myHashField", 1L, "key", "value"))));
+    }
+
+    @DataProvider
+    Object[][] getIndexItemsProvider() {
+        return new Object[][] {
+                {new MapStoreKey.Builder().setHash("status", "even").build(), Order.ASC, ImmutableList.of(2, 4, 6)},
+                {new MapStoreKey.Builder().setHash("status", "even").setRange("score", all()).build(),
+                        Order.DESC, ImmutableList.of(6, 4, 2)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", equalTo(30)).build(),
+                        Order.ASC, ImmutableList.of(3)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", between(20, 50)).build(),
+                        Order.ASC, ImmutableList.of(3, 5)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", greaterThan(30)).build(),
+                        Order.ASC, ImmutableList.of(5)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", greaterThanOrEqualTo(30L)).build(),
+                        Order.ASC, ImmutableList.of(3, 5)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", lessThan(30)).build(),
+                        Order.ASC, ImmutableList.of(1)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", lessThanOrEqualTo(30)).build(),
+                        Order.DESC, ImmutableList.of(3, 1)},
+                {new MapStoreKey.Builder().setHash("status", "even").setRange("score", in(60, 20)).build(),
+                        Order.ASC, ImmutableList.of(2, 6)},
+                {new MapStoreKey.Builder().setHash("status", "none").build(), Order.ASC, ImmutableList.of()},
+        };
+    }
+
+    @Test(dataProvider = "getIndexItemsProvider")
+    public void testGetIndexItems(final MapStoreKey indexKey,
+                                  final Order order,
+                                  final List<Integer> expectedRangeValues) {
+        final Function<Integer, Map<String, Object>> payload = i -> ImmutableMap.of(
+                "status", i % 2 == 0 ? "even" : "odd", "score", i * 10);
+
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", RANGE_TABLE_KEY);
+        IntStream.rangeClosed(1, 3).forEach(i -> storePlugin.putItem("myTable", keyFunction.apply(i), payload.apply(i)));
+        storePlugin.createIndex("myTable", "myIndex", new MapStoreTableKey.Builder().setHash("status", String.class)
+                .setRange("score", Integer.class).build());
+        IntStream.rangeClosed(4, 6).forEach(i -> storePlugin.putItem("myTable", keyFunction.apply(i), payload.apply(i)));
+        // Items without the indexed fields are not indexed
+        storePlugin.putItem("myTable", keyFunction.apply(7), ImmutableMap.of("status", "odd"));
+
+        final MapQueryOptions options = new MapQueryOptions.Builder().setOrder(order).build();
+        assertThat(storePlugin.getIndexItems("myTable", "myIndex", indexKey, options).stream()
+                .map(item -> item.get("myRangeField")).collect(Collectors.toList()), is(expectedRangeValues));
+    }
+
+    @Test
+    public void testIndexFollowsWrites() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", RANGE_TABLE_KEY);
+        storePlugin.createIndex("myTable", "myIndex", new MapStoreTableKey.Builder()
+                .setHash("status", String.class).build());
+        IntStream.rangeClosed(1, 3).forEach(i ->
+                storePlugin.putItem("myTable", keyFunction.apply(i), ImmutableMap.of("status", "active")));
+
+        storePlugin.putItem("myTable", keyFunction.apply(1), ImmutableMap.of("status", "inactive"));
+        storePlugin.updateItem("myTable", keyFunction.apply(2), ImmutableMap.of("status", "inactive"));
+        storePlugin.deleteItem("myTable", keyFunction.apply(3));
+
+        final Function<String, List<Object>> indexRangeValues = status -> storePlugin.getIndexItems("myTable",
+                "myIndex", new MapStoreKey.Builder().setHash("status", status).build(), defaultOptions()).stream()
+                .map(item -> item.get("myRangeField")).collect(Collectors.toList());
+        assertThat(indexRangeValues.apply("active"), empty());
+        assertThat(indexRangeValues.apply("inactive"), contains(1, 2));
+    }
+
+    @Test
+    public void testStaleIndexEntry() {
+        final InMemoryMapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        storePlugin.createIndex("myTable", "myIndex", new MapStoreTableKey.Builder()
+                .setHash("status", String.class).build());
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("status", "active"));
+
+        // Leave an entry behind, as a concurrent write might
+        final InMemoryIndex index = storePlugin.getTable("myTable").getIndex("myIndex").get();
+        index.getMap().put(new Object[]{"inactive", "myHashValue"}, Boolean.TRUE);
+
+        assertThat(storePlugin.getIndexItems("myTable", "myIndex",
+                new MapStoreKey.Builder().setHash("status", "inactive").build(), defaultOptions()), empty());
+        assertThat(index.getMap().size(), is(1));
+        assertThat(index.getMap().containsKey(new Object[]{"active", "myHashValue"}), is(true));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testDropIndex() {
+        final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+        storePlugin.createIndex("myTable", "myIndex", new MapStoreTableKey.Builder()
+                .setHash("status", String.class).build());
+        storePlugin.dropIndex("myTable", "myIndex");
+
+        storePlugin.getIndexItems("myTable", "myIndex", new MapStoreKey.Builder().setHash("status", "active").build(),
+                defaultOptions());
+    }
+
+    @Test
+    public void testExpiry() {
+        final InMemoryMapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setTimeToLive(Duration.ofHours(1L)).build());
+        storePlugin.createIndex("myTable", "myIndex", new MapStoreTableKey.Builder()
+                .setHash("status", String.class).build());
+        final InMemoryTable table = storePlugin.getTable("myTable");
+        final InMemoryExpiry expiry = table.getExpiry().get();
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("status", "active"));
+        storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+        // Each write replaces the item's expiry entry
+        assertThat(expiry.getIndexMap().size(), is(1));
+        final long expiresAt = expiry.getExpiresAt(new Object[]{"myHashValue"}).get();
+        assertThat(expiresAt > System.currentTimeMillis(), is(true));
+
+        storePlugin.sweepExpiredItems(table, expiresAt - 1L);
+        assertThat(storePlugin.getItem("myTable", storeKey), not(Optional.empty()));
+
+        storePlugin.sweepExpiredItems(table, expiresAt);
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.empty()));
+        assertThat(storePlugin.getIndexItems("myTable", "myIndex",
+                new MapStoreKey.Builder().setHash("status", "active").build(), defaultOptions()), empty());
+        assertThat(expiry.getIndexMap().isEmpty(), is(true));
+        assertThat(expiry.getExpiresAt(new Object[]{"myHashValue"}), is(Optional.empty()));
+    }
+
+    @Test
+    public void testExpiryOfRewrittenItem() {
+        final InMemoryMapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setTimeToLive(Duration.ofHours(1L)).build());
+        final InMemoryTable table = storePlugin.getTable("myTable");
+        final InMemoryExpiry expiry = table.getExpiry().get();
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+
+        // Leave an expired entry behind, as a write racing a refresh might
+        final long staleExpiresAt = System.currentTimeMillis() - 1L;
+        expiry.getIndexMap().put(expiry.toEntryKeyArray(staleExpiresAt, new Object[]{"myHashValue"}), Boolean.TRUE);
+
+        storePlugin.sweepExpiredItems(table, staleExpiresAt);
+        assertThat(storePlugin.getItem("myTable", storeKey), not(Optional.empty()));
+        assertThat(expiry.getIndexMap().size(), is(1));
+    }
+
+    @Test
+    public void testExpiryOfDeletedItem() {
+        final InMemoryMapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setTimeToLive(Duration.ofHours(1L)).build());
+        final InMemoryTable table = storePlugin.getTable("myTable");
+        final InMemoryExpiry expiry = table.getExpiry().get();
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+        storePlugin.deleteItem("myTable", storeKey);
+        final long expiresAt = expiry.getExpiresAt(new Object[]{"myHashValue"}).get();
+
+        // A deleted item's expiry is dropped by the sweep
+        storePlugin.sweepExpiredItems(table, expiresAt);
+        assertThat(expiry.getIndexMap().isEmpty(), is(true));
+        assertThat(expiry.getExpiresAt(new Object[]{"myHashValue"}), is(Optional.empty()));
+    }
+
+    @Test
+    public void testNoExpiry() {
+        final InMemoryMapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+        storePlugin.createTable("myTable", HASH_TABLE_KEY);
+
+        assertThat(storePlugin.getTable("myTable").getExpiry(), is(Optional.empty()));
+    }
+
+    @Test
+    public void testProjection() {
+        final MapStorePlugin storePlugin = createRangeStorePlugin(2);
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        assertThat(storePlugin.getItems("myTable", storeKey,
+                new MapQueryOptions.Builder().addProjection("myRangeField").build()),
+                contains(ImmutableMap.of("myRangeField", 1), ImmutableMap.of("myRangeField", 2)));
+        assertThat(storePlugin.getItem("myTable", keyFunction.apply(1), ImmutableSet.of("key")),
+                is(Optional.of(ImmutableMap.of("key", "value"))));
+    }
+}
@@ -0,0 +1,98 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Unit tests for {@link BinaryMapDBValueCodec}
+ *
+ * @author tkral
+ */
+public class BinaryMapDBValueCodecTest {
+
+    @DataProvider
+    Object[][] roundTripProvider() {
+        return new Object[][] {
+                {ImmutableMap.of()},
+                {ImmutableMap.of("key", "value")},
+                {ImmutableMap.of("false", false, "true", true)},
+                {ImmutableMap.of("int", 1, "negativeInt", Integer.MIN_VALUE)},
+                {ImmutableMap.of("long", Long.MAX_VALUE, "negativeLong", -1L)},
+                {ImmutableMap.of("float", 1.5f, "double", -2.25d)},
+                {ImmutableMap.of("bigInteger", new BigInteger("123456789012345678901234567890"),
+                        "bigDecimal", new BigDecimal("-1234.5678"))},
+                {ImmutableMap.of("unicode", "ünïcödé")},
+                {ImmutableMap.of("list", ImmutableList.of(1, "two", 3L))},
+                {ImmutableMap.of("map", ImmutableMap.of("nested", ImmutableMap.of("key", "value")))},
+        };
+    }
+
+    @Test(dataProvider = "roundTripProvider")
+    public void testRoundTrip(final Map<String, Object> value) {
+        final BinaryMapDBValueCodec valueCodec = new BinaryMapDBValueCodec(DBMaker.memoryDB().make());
+        assertThat(valueCodec.decode(valueCodec.encode(value)), is(value));
+    }
+
+    @Test
+    public void testRoundTripBytes() {
+        final BinaryMapDBValueCodec valueCodec = new BinaryMapDBValueCodec(DBMaker.memoryDB().make());
+        final byte[] bytes = new byte[] {1, 2, 3};
+
+        final Object decodedBytes = valueCodec.decode(valueCodec.encode(ImmutableMap.of("bytes", bytes))).get("bytes");
+        assertThat(Arrays.equals((byte[]) decodedBytes, bytes), is(true));
+    }
+
+    @Test
+    public void testDecodeFields() {
+        final BinaryMapDBValueCodec valueCodec = new BinaryMapDBValueCodec(DBMaker.memoryDB().make());
+        final byte[] value = valueCodec.encode(ImmutableMap.of("key1", ImmutableList.of(1, ImmutableMap.of("a", "b")),
+                "key2", 2L, "key3", "value3", "key4", new BigDecimal("1.5")));
+
+        assertThat(valueCodec.decodeFields(value, ImmutableSet.of("key3")), is(ImmutableMap.of("key3", "value3")));
+        assertThat(valueCodec.decodeFields(value, ImmutableSet.of("key2", "key5")), is(ImmutableMap.of("key2", 2L)));
+    }
+
+    @Test
+    public void testDecodeJson() {
+        final BinaryMapDBValueCodec valueCodec = new BinaryMapDBValueCodec(DBMaker.memoryDB().make());
+        final byte[] jsonValue = new JsonMapDBValueCodec().encode(ImmutableMap.of("key1", 1, "key2", "value2"));
+
+        assertThat(valueCodec.decode(jsonValue), is(ImmutableMap.of("key1", 1, "key2", "value2")));
+        assertThat(valueCodec.decodeFields(jsonValue, ImmutableSet.of("key2")), is(ImmutableMap.of("key2", "value2")));
+    }
+
+    @Test
+    public void testFieldNamesShared() {
+        final DB mapDB = DBMaker.memoryDB().make();
+        final byte[] value = new BinaryMapDBValueCodec(mapDB).encode(ImmutableMap.of("key1", 1, "key2", 2));
+
+        // A new codec over the same store can read the interned field names
+        final BinaryMapDBValueCodec valueCodec = new BinaryMapDBValueCodec(mapDB);
+        assertThat(valueCodec.decode(value), is(ImmutableMap.of("key1", 1, "key2", 2)));
+        assertThat(valueCodec.fieldId("key1"), is(0));
+        assertThat(valueCodec.fieldId("key3"), is(2));
+    }
+
+    @Test
+    public void testCompactEncoding() {
+        final BinaryMapDBValueCodec valueCodec = new BinaryMapDBValueCodec(DBMaker.memoryDB().make());
+        final Map<String, Object> value = ImmutableMap.of("myHashField", "myHashValue", "myRangeField", 1,
+                "myCountField", 100L);
+
+        assertThat(valueCodec.encode(value).length, lessThan(new JsonMapDBValueCodec().encode(value).length));
+    }
+}
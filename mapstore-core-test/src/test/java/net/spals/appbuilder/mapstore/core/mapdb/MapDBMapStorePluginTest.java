@@ -2,9 +2,16 @@ package net.spals.appbuilder.mapstore.core.mapdb;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
 import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapQueryPage;
+import net.spals.appbuilder.mapstore.core.model.MapRangeKey;
 import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
 import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreWriteCondition;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.testng.annotations.DataProvider;
@@ -13,22 +20,31 @@ import org.testng.annotations.Test;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions;
+import static net.spals.appbuilder.mapstore.core.model.MultiValueMapRangeKey.in;
 import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
 import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.greaterThan;
 import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.greaterThanOrEqualTo;
 import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.lessThan;
 import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.lessThanOrEqualTo;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.startsWith;
 import static net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.between;
 import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 /**
  * Unit tests for {@link MapDBMapStorePlugin}
@@ -37,6 +53,17 @@ import static org.hamcrest.Matchers.*;
  */
 public class MapDBMapStorePluginTest {
 
+    private MapStorePlugin createStorePlugin(final DB mapDB) {
+        return new MapDBMapStorePlugin(mapDB, new BinaryMapDBValueCodec(mapDB), createExecutorServiceFactory());
+    }
+
+    // Expiry sweeps are driven by the tests themselves rather than a background loop
+    private ExecutorServiceFactory createExecutorServiceFactory() {
+        final ExecutorServiceFactory executorServiceFactory = mock(ExecutorServiceFactory.class);
+        when(executorServiceFactory.createSingleThreadExecutor(any(), any())).thenReturn(mock(ExecutorService.class));
+        return executorServiceFactory;
+    }
+
     @DataProvider
     Object[][] emptyGetProvider() {
         return new Object[][] {
@@ -54,7 +81,7 @@ public class MapDBMapStorePluginTest {
     @Test(dataProvider = "emptyGetProvider")
     public void testEmptyGetItem(final MapStoreTableKey tableKey,
                                  final MapStoreKey storeKey) throws IOException {
-        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
         storePlugin.createTable("myTable", tableKey);
 
         assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.empty()));
@@ -63,7 +90,7 @@ public class MapDBMapStorePluginTest {
     @Test(dataProvider = "emptyGetProvider")
     public void testEmptyGetItems(final MapStoreTableKey tableKey,
                                   final MapStoreKey storeKey) throws IOException {
-        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
         storePlugin.createTable("myTable", tableKey);
 
         assertThat(storePlugin.getItems("myTable", storeKey, defaultOptions()), empty());
@@ -91,7 +118,7 @@ public class MapDBMapStorePluginTest {
                             final MapStoreKey storeKey,
                             final Map<String, Object> payload,
                             final Map<String, Object> expectedResult) {
-        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
         storePlugin.createTable("myTable", tableKey);
 
         assertThat(storePlugin.putItem("myTable", storeKey, payload), is(expectedResult));
@@ -116,7 +143,7 @@ public class MapDBMapStorePluginTest {
         final String dbFilePath = dbDir.resolve(UUID.randomUUID() + ".db").toString();
 
         final DB fileDB = DBMaker.fileDB(dbFilePath).make();
-        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(fileDB);
+        final MapStorePlugin storePlugin = createStorePlugin(fileDB);
 
         final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
                 .setRange("myRangeField", String.class).build();
@@ -129,6 +156,148 @@ public class MapDBMapStorePluginTest {
         assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(expectedResult)));
     }
 
+    @Test
+    public void testUpsertItem() {
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        final Map<String, Object> expectedResult = ImmutableMap.of("myHashField", "myHashValue", "key", "value");
+        assertThat(storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("key", "value", "key1", "")),
+                is(expectedResult));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(expectedResult)));
+    }
+
+    @DataProvider
+    Object[][] conditionalWriteProvider() {
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        return new Object[][] {
+                {MapStoreWriteCondition.itemAbsent(storeKey), false},
+                {MapStoreWriteCondition.expectedVersion("version", 1L), true},
+                {MapStoreWriteCondition.expectedVersion("version", 2L), false},
+                {new MapStoreWriteCondition.Builder().addAbsentFields("missingField")
+                        .putExpectedValues("key", "value").build(), true},
+                {new MapStoreWriteCondition.Builder().addAbsentFields("key").build(), false},
+        };
+    }
+
+    @Test(dataProvider = "conditionalWriteProvider")
+    public void testConditionalPutItem(final MapStoreWriteCondition condition, final boolean expectedApplied) {
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final Map<String, Object> item = storePlugin.putItem("myTable", storeKey,
+                ImmutableMap.of("key", "value", "version", 1));
+
+        final Map<String, Object> expectedResult = ImmutableMap.of("myHashField", "myHashValue", "version", 2);
+        final Optional<Map<String, Object>> result = storePlugin.putItem("myTable", storeKey,
+                ImmutableMap.of("version", 2), condition);
+        assertThat(result, is(expectedApplied ? Optional.of(expectedResult) : Optional.empty()));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(expectedApplied ? expectedResult : item)));
+    }
+
+    @Test(dataProvider = "conditionalWriteProvider")
+    public void testConditionalUpdateItem(final MapStoreWriteCondition condition, final boolean expectedApplied) {
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final Map<String, Object> item = storePlugin.putItem("myTable", storeKey,
+                ImmutableMap.of("key", "value", "version", 1));
+
+        final Map<String, Object> expectedResult = ImmutableMap.of("myHashField", "myHashValue",
+                "key", "value", "version", 2);
+        final Optional<Map<String, Object>> result = storePlugin.updateItem("myTable", storeKey,
+                ImmutableMap.of("version", 2), condition);
+        assertThat(result, is(expectedApplied ? Optional.of(expectedResult) : Optional.empty()));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(expectedApplied ? expectedResult : item)));
+    }
+
+    @Test
+    public void testConditionalPutMissingItem() {
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        // An expected value can never be met by a missing item
+        assertThat(storePlugin.putItem("myTable", storeKey, ImmutableMap.of("version", 1),
+                MapStoreWriteCondition.expectedVersion("version", 0)), is(Optional.empty()));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.empty()));
+
+        final Map<String, Object> expectedResult = ImmutableMap.of("myHashField", "myHashValue", "version", 1);
+        assertThat(storePlugin.putItem("myTable", storeKey, ImmutableMap.of("version", 1),
+                MapStoreWriteCondition.itemAbsent(storeKey)), is(Optional.of(expectedResult)));
+        assertThat(storePlugin.putItem("myTable", storeKey, ImmutableMap.of("version", 1),
+                MapStoreWriteCondition.itemAbsent(storeKey)), is(Optional.empty()));
+    }
+
+    @DataProvider
+    Object[][] concurrentConditionalUpdateProvider() {
+        return new Object[][] {
+                {false},
+                {true},
+        };
+    }
+
+    @Test(dataProvider = "concurrentConditionalUpdateProvider")
+    public void testConcurrentConditionalUpdate(final boolean indexed) {
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        if (indexed) {
+            storePlugin.createIndex("myTable", "myIndex", new MapStoreTableKey.Builder()
+                    .setHash("version", Long.class).build());
+        }
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("version", 0L));
+
+        // Every increment retries on a stale version, so none of them are lost
+        IntStream.range(0, 100).parallel().forEach(i -> {
+            Optional<Map<String, Object>> updatedItem = Optional.empty();
+            while (!updatedItem.isPresent()) {
+                final long version = (Long) storePlugin.getItem("myTable", storeKey).get().get("version");
+                updatedItem = storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("version", version + 1L),
+                        MapStoreWriteCondition.expectedVersion("version", version));
+            }
+        });
+        assertThat(storePlugin.getItem("myTable", storeKey).get().get("version"), is(100L));
+    }
+
+    @Test
+    public void testIncrementItem() {
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        // A missing item counts up from zero
+        assertThat(storePlugin.incrementItem("myTable", storeKey, ImmutableMap.of("count", 2L)),
+                is(ImmutableMap.of("myHashField", "myHashValue", "count", 2L)));
+        storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("key", "value", "visits", 1));
+
+        assertThat(storePlugin.incrementItem("myTable", storeKey, ImmutableMap.of("count", -1L, "visits", 1L)),
+                is(ImmutableMap.of("myHashField", "myHashValue", "count", 1L, "key", "value", "visits", 2L)));
+    }
+
+    @Test
+    public void testConcurrentIncrementItem() {
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        // Increments which lose a race are retried, so none of them are lost
+        IntStream.range(0, 100).parallel().forEach(i ->
+                storePlugin.incrementItem("myTable", storeKey, ImmutableMap.of("count", 1L)));
+        assertThat(storePlugin.getItem("myTable", storeKey).get().get("count"), is(100L));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testIncrementNonNumericItem() {
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("count", "many"));
+
+        storePlugin.incrementItem("myTable", storeKey, ImmutableMap.of("count", 1L));
+    }
+
     @DataProvider
     Object[][] getItemsProvider() {
         final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
@@ -169,7 +338,7 @@ public class MapDBMapStorePluginTest {
         final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
                 .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
 
-        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
         final Map<String, Object> payload = ImmutableMap.of("key", "value");
 
         final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
@@ -184,4 +353,529 @@ public class MapDBMapStorePluginTest {
         assertThat(storePlugin.getItems("myTable", storeKey, defaultOptions()),
                 contains(expectedResults.stream().toArray()));
     }
+
+    @DataProvider
+    Object[][] extendedGetItemsProvider() {
+        return new Object[][] {
+                {in("b", "d", "z"), Order.ASC, ImmutableList.of("b", "d")},
+                {in("d", "b", "b"), Order.DESC, ImmutableList.of("d", "b")},
+                {startsWith("ab"), Order.ASC, ImmutableList.of("ab", "abc", "abd")},
+                {startsWith("ab"), Order.DESC, ImmutableList.of("abd", "abc", "ab")},
+                {startsWith("e"), Order.ASC, ImmutableList.of()},
+                {startsWith(""), Order.ASC, ImmutableList.of("a", "ab", "abc", "abd", "b", "d")},
+        };
+    }
+
+    @Test(dataProvider = "extendedGetItemsProvider")
+    public void testExtendedGetItems(final MapRangeKey rangeKey,
+                                     final Order order,
+                                     final List<String> expectedRangeValues) {
+        final Function<String, MapStoreKey> keyFunction = s -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(s)).build();
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", String.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        ImmutableList.of("a", "ab", "abc", "abd", "b", "d").forEach(s -> storePlugin.putItem("myTable",
+                keyFunction.apply(s), ImmutableMap.of("key", "value")));
+        // Items under other hash values are never read
+        storePlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", "otherHashValue")
+                .setRange("myRangeField", equalTo("abe")).build(), ImmutableMap.of("key", "value"));
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", rangeKey).build();
+        assertThat(storePlugin.getItems("myTable", storeKey, new MapQueryOptions.Builder().setOrder(order).build())
+                .stream().map(item -> item.get("myRangeField")).collect(Collectors.toList()),
+                is(expectedRangeValues));
+    }
+
+    @DataProvider
+    Object[][] prefixLimitProvider() {
+        return new Object[][] {
+                {"", Optional.empty()},
+                {"ab", Optional.of("ac")},
+                {"a\uFFFF", Optional.of("b")},
+                {"\uFFFF\uFFFF", Optional.empty()},
+        };
+    }
+
+    @Test(dataProvider = "prefixLimitProvider")
+    public void testPrefixLimit(final String prefix, final Optional<String> expectedPrefixLimit) {
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make(),
+                new JsonMapDBValueCodec(), createExecutorServiceFactory());
+        assertThat(storePlugin.getPrefixLimit(prefix), is(expectedPrefixLimit));
+    }
+
+    @Test
+    public void testGetItemsDescendingLimit() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+        final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
+                "myRangeField", i, "key", "value");
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        IntStream.rangeClosed(1, 5).forEach(i -> storePlugin.putItem("myTable", keyFunction.apply(i),
+                ImmutableMap.of("key", "value")));
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", lessThan(5)).build();
+        assertThat(storePlugin.getItems("myTable", storeKey,
+                new MapQueryOptions.Builder().setOrder(Order.DESC).setLimit(2).build()),
+                contains(result.apply(4), result.apply(3)));
+    }
+
+    @DataProvider
+    Object[][] getFirstItemProvider() {
+        return new Object[][] {
+                {all(), Order.ASC, Optional.of(1)},
+                {all(), Order.DESC, Optional.of(5)},
+                {between(2, 4), Order.ASC, Optional.of(2)},
+                {between(2, 4), Order.DESC, Optional.of(4)},
+                {greaterThan(5), Order.ASC, Optional.empty()},
+        };
+    }
+
+    @Test(dataProvider = "getFirstItemProvider")
+    public void testGetFirstItem(final MapRangeKey rangeKey,
+                                 final Order order,
+                                 final Optional<Integer> expectedRangeValue) {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        IntStream.rangeClosed(1, 5).forEach(i -> storePlugin.putItem("myTable", keyFunction.apply(i),
+                ImmutableMap.of("key", "value")));
+        // Items under other hash values are never read
+        storePlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", "otherHashValue")
+                .setRange("myRangeField", equalTo(0)).build(), ImmutableMap.of("key", "value"));
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", rangeKey).build();
+        assertThat(storePlugin.getFirstItem("myTable", storeKey, order).map(item -> item.get("myRangeField")),
+                is(expectedRangeValue));
+    }
+
+    @Test
+    public void testGetItemsPage() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+        final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
+                "myRangeField", i, "key", "value");
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        IntStream.rangeClosed(1, 3).forEach(i -> storePlugin.putItem("myTable", keyFunction.apply(i),
+                ImmutableMap.of("key", "value")));
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        final MapQueryPage firstPage = storePlugin.getItemsPage("myTable", storeKey,
+                new MapQueryOptions.Builder().setPageSize(2).build());
+        assertThat(firstPage.getItems(), contains(result.apply(1), result.apply(2)));
+        assertThat(firstPage.getContinuationToken(), not(Optional.empty()));
+
+        final MapQueryPage secondPage = storePlugin.getItemsPage("myTable", storeKey,
+                new MapQueryOptions.Builder().setPageSize(2)
+                        .setContinuationToken(firstPage.getContinuationToken().get()).build());
+        assertThat(secondPage.getItems(), contains(result.apply(3)));
+        assertThat(secondPage.getContinuationToken(), is(Optional.empty()));
+    }
+
+    @DataProvider
+    Object[][] streamItemsProvider() {
+        final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
+                "myRangeField", i, "key", "value");
+
+        return new Object[][] {
+                {new MapQueryOptions.Builder().setPageSize(1).build(),
+                        ImmutableList.of(result.apply(1), result.apply(2), result.apply(3), result.apply(4))},
+                {new MapQueryOptions.Builder().setPageSize(3).setOrder(Order.DESC).build(),
+                        ImmutableList.of(result.apply(4), result.apply(3), result.apply(2), result.apply(1))},
+                // Case: Limit spans multiple pages
+                {new MapQueryOptions.Builder().setPageSize(2).setLimit(3).build(),
+                        ImmutableList.of(result.apply(1), result.apply(2), result.apply(3))},
+        };
+    }
+
+    @Test(dataProvider = "streamItemsProvider")
+    public void testStreamItems(final MapQueryOptions options, final List<Map<String, Object>> expectedResults) {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        IntStream.rangeClosed(1, 4).forEach(i -> storePlugin.putItem("myTable", keyFunction.apply(i),
+                ImmutableMap.of("key", "value")));
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        assertThat(storePlugin.streamItems("myTable", storeKey, options).collect(Collectors.toList()),
+                contains(expectedResults.stream().toArray()));
+    }
+
+    @Test
+    public void testStreamAllItems() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", i).build();
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        IntStream.rangeClosed(1, 5).forEach(i -> storePlugin.putItem("myTable", keyFunction.apply(i),
+                ImmutableMap.of("key", "value")));
+
+        assertThat(storePlugin.streamAllItems("myTable", new MapQueryOptions.Builder().setPageSize(2).build())
+                        .map(item -> item.get("myHashField")).collect(Collectors.toList()),
+                contains(1, 2, 3, 4, 5));
+    }
+
+    @Test
+    public void testBatchPutItems() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+        final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
+                "myRangeField", i, "key", "value");
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+
+        final Map<MapStoreKey, Map<String, Object>> items = ImmutableMap.of(
+                keyFunction.apply(1), ImmutableMap.of("key", "value"),
+                keyFunction.apply(2), ImmutableMap.of("key", "value"));
+
+        assertThat(storePlugin.batchPutItems("myTable", items), contains(result.apply(1), result.apply(2)));
+        assertThat(storePlugin.getItem("myTable", keyFunction.apply(1)), is(Optional.of(result.apply(1))));
+        assertThat(storePlugin.getItem("myTable", keyFunction.apply(2)), is(Optional.of(result.apply(2))));
+    }
+
+    @Test
+    public void testBatchGetItems() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+        final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
+                "myRangeField", i, "key", "value");
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        storePlugin.putItem("myTable", keyFunction.apply(1), ImmutableMap.of("key", "value"));
+        storePlugin.putItem("myTable", keyFunction.apply(3), ImmutableMap.of("key", "value"));
+
+        // Missing items are omitted from the results
+        assertThat(storePlugin.batchGetItems("myTable",
+                ImmutableList.of(keyFunction.apply(1), keyFunction.apply(2), keyFunction.apply(3))),
+                contains(result.apply(1), result.apply(3)));
+    }
+
+    @Test
+    public void testBatchDeleteItems() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        storePlugin.putItem("myTable", keyFunction.apply(1), ImmutableMap.of("key", "value"));
+        storePlugin.putItem("myTable", keyFunction.apply(2), ImmutableMap.of("key", "value"));
+
+        storePlugin.batchDeleteItems("myTable", ImmutableList.of(keyFunction.apply(1), keyFunction.apply(2),
+                keyFunction.apply(3)));
+        assertThat(storePlugin.getAllItems("myTable"), empty());
+    }
+
+    @Test
+    public void testCoercedKeyTypes() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", i).setRange("myRangeField", equalTo(i)).build();
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", Long.class)
+                .setRange("myRangeField", Long.class).build();
+        storePlugin.createTable("myTable", tableKey);
+
+        // Integer keys are stored as the table's Long key types
+        final Map<String, Object> expectedResult = ImmutableMap.of("myHashField", 1L, "myRangeField", 1L,
+                "key", "value");
+        assertThat(storePlugin.putItem("myTable", keyFunction.apply(1), ImmutableMap.of("key", "value")),
+                is(expectedResult));
+        assertThat(storePlugin.getItem("myTable", keyFunction.apply(1)), is(Optional.of(expectedResult)));
+        assertThat(storePlugin.getItems("myTable", new MapStoreKey.Builder().setHash("myHashField", 1L)
+                .setRange("myRangeField", between(0, 2)).build(), defaultOptions()), contains(expectedResult));
+    }
+
+    @Test
+    public void testPersistedKeyTypes() throws IOException {
+        final Path dbDir = Files.createTempDirectory(MapDBMapStorePluginTest.class.getSimpleName());
+        final String dbFilePath = dbDir.resolve(UUID.randomUUID() + ".db").toString();
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", 1)
+                .setRange("myRangeField", equalTo("myRangeValue")).build();
+
+        final DB fileDB = DBMaker.fileDB(dbFilePath).make();
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", Long.class)
+                .setRange("myRangeField", String.class).build();
+        createStorePlugin(fileDB).createTable("myTable", tableKey);
+        fileDB.close();
+
+        // A reopened store uses the table's key types without the table being created again
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.fileDB(dbFilePath).make());
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(ImmutableMap.of("myHashField", 1L,
+                "myRangeField", "myRangeValue", "key", "value"))));
+    }
+
+    @DataProvider
+    Object[][] getIndexItemsProvider() {
+        return new Object[][] {
+                {new MapStoreKey.Builder().setHash("status", "even").build(), Order.ASC, ImmutableList.of(2, 4, 6)},
+                {new MapStoreKey.Builder().setHash("status", "even").setRange("score", all()).build(),
+                        Order.DESC, ImmutableList.of(6, 4, 2)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", equalTo(30)).build(),
+                        Order.ASC, ImmutableList.of(3)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", between(20, 50)).build(),
+                        Order.ASC, ImmutableList.of(3, 5)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", greaterThan(30)).build(),
+                        Order.ASC, ImmutableList.of(5)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", greaterThanOrEqualTo(30L)).build(),
+                        Order.ASC, ImmutableList.of(3, 5)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", lessThan(30)).build(),
+                        Order.ASC, ImmutableList.of(1)},
+                {new MapStoreKey.Builder().setHash("status", "odd").setRange("score", lessThanOrEqualTo(30)).build(),
+                        Order.DESC, ImmutableList.of(3, 1)},
+                {new MapStoreKey.Builder().setHash("status", "even").setRange("score", in(60, 20)).build(),
+                        Order.ASC, ImmutableList.of(2, 6)},
+                {new MapStoreKey.Builder().setHash("status", "none").build(), Order.ASC, ImmutableList.of()},
+        };
+    }
+
+    @Test(dataProvider = "getIndexItemsProvider")
+    public void testGetIndexItems(final MapStoreKey indexKey,
+                                  final Order order,
+                                  final List<Integer> expectedRangeValues) {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+        final Function<Integer, Map<String, Object>> payload = i -> ImmutableMap.of(
+                "status", i % 2 == 0 ? "even" : "odd", "score", i * 10);
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        // Items written before the index is created are backfilled
+        IntStream.rangeClosed(1, 3).forEach(i -> storePlugin.putItem("myTable", keyFunction.apply(i), payload.apply(i)));
+        storePlugin.createIndex("myTable", "myIndex", new MapStoreTableKey.Builder().setHash("status", String.class)
+                .setRange("score", Integer.class).build());
+        IntStream.rangeClosed(4, 6).forEach(i -> storePlugin.putItem("myTable", keyFunction.apply(i), payload.apply(i)));
+        // Items without the indexed fields are not indexed
+        storePlugin.putItem("myTable", keyFunction.apply(7), ImmutableMap.of("status", "odd"));
+
+        final MapQueryOptions options = new MapQueryOptions.Builder().setOrder(order).build();
+        assertThat(storePlugin.getIndexItems("myTable", "myIndex", indexKey, options).stream()
+                .map(item -> item.get("myRangeField")).collect(Collectors.toList()), is(expectedRangeValues));
+    }
+
+    @Test
+    public void testIndexMaintenance() {
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final MapStoreKey activeKey = new MapStoreKey.Builder().setHash("status", "active").build();
+        final MapStoreKey inactiveKey = new MapStoreKey.Builder().setHash("status", "inactive").build();
+
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make(),
+                new JsonMapDBValueCodec(), createExecutorServiceFactory());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        storePlugin.createIndex("myTable", "myIndex", new MapStoreTableKey.Builder()
+                .setHash("status", String.class).build());
+        final MapDBIndex index = storePlugin.getTable("myTable", storeKey).getIndex("myIndex").get();
+
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("status", "active"));
+        assertThat(storePlugin.getIndexItems("myTable", "myIndex", activeKey, defaultOptions()), hasSize(1));
+
+        // Stale index entries are removed when an item's indexed value changes
+        storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("status", "inactive"));
+        assertThat(storePlugin.getIndexItems("myTable", "myIndex", activeKey, defaultOptions()), empty());
+        assertThat(storePlugin.getIndexItems("myTable", "myIndex", inactiveKey, defaultOptions()), hasSize(1));
+        assertThat(index.getMap().size(), is(1));
+
+        storePlugin.deleteItem("myTable", storeKey);
+        assertThat(storePlugin.getIndexItems("myTable", "myIndex", inactiveKey, defaultOptions()), empty());
+        assertThat(index.getMap().isEmpty(), is(true));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidIndexValue() {
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        storePlugin.createIndex("myTable", "myIndex", new MapStoreTableKey.Builder()
+                .setHash("score", Integer.class).build());
+
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("score", "high"));
+    }
+
+    @Test
+    public void testDropIndex() throws IOException {
+        final Path dbDir = Files.createTempDirectory(MapDBMapStorePluginTest.class.getSimpleName());
+        final String dbFilePath = dbDir.resolve(UUID.randomUUID() + ".db").toString();
+        final Function<String, MapStoreKey> keyFunction = s -> new MapStoreKey.Builder()
+                .setHash("myHashField", s).build();
+        final MapStoreKey indexKey = new MapStoreKey.Builder().setHash("email", "me@spals.net").build();
+
+        final DB fileDB = DBMaker.fileDB(dbFilePath).make();
+        final MapStorePlugin fileStorePlugin = createStorePlugin(fileDB);
+        fileStorePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        fileStorePlugin.createIndex("myTable", "myIndex", new MapStoreTableKey.Builder()
+                .setHash("email", String.class).build());
+        fileStorePlugin.putItem("myTable", keyFunction.apply("a"), ImmutableMap.of("email", "me@spals.net"));
+        fileDB.close();
+
+        // A reopened store maintains the index without it being created again
+        final DB reopenedFileDB = DBMaker.fileDB(dbFilePath).make();
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(reopenedFileDB,
+                new BinaryMapDBValueCodec(reopenedFileDB), createExecutorServiceFactory());
+        storePlugin.putItem("myTable", keyFunction.apply("b"), ImmutableMap.of("email", "me@spals.net"));
+        assertThat(storePlugin.getIndexItems("myTable", "myIndex", indexKey, defaultOptions()).stream()
+                .map(item -> item.get("myHashField")).collect(Collectors.toList()), contains("a", "b"));
+
+        assertThat(storePlugin.dropIndex("myTable", "myIndex"), is(true));
+        assertThat(storePlugin.getTable("myTable", keyFunction.apply("a")).getIndex("myIndex"), is(Optional.empty()));
+    }
+
+    @Test
+    public void testProjection() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+
+        final MapStorePlugin storePlugin = createStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        IntStream.rangeClosed(1, 2).forEach(i -> storePlugin.putItem("myTable", keyFunction.apply(i),
+                ImmutableMap.of("email", "me" + i + "@spals.net", "status", "active", "score", i)));
+
+        assertThat(storePlugin.getItem("myTable", keyFunction.apply(1), ImmutableSet.of("email", "myRangeField")),
+                is(Optional.of(ImmutableMap.of("email", "me1@spals.net", "myRangeField", 1))));
+
+        final MapQueryOptions options = new MapQueryOptions.Builder().addProjection("score", "missingField").build();
+        final MapStoreKey allKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        assertThat(storePlugin.getItems("myTable", allKey, options),
+                contains(ImmutableMap.of("score", 1), ImmutableMap.of("score", 2)));
+        assertThat(storePlugin.getItemsPage("myTable", allKey, options).getItems(),
+                contains(ImmutableMap.of("score", 1), ImmutableMap.of("score", 2)));
+    }
+
+    @Test
+    public void testExpiry() {
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make(),
+                new JsonMapDBValueCodec(), createExecutorServiceFactory());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setTimeToLive(Duration.ofHours(1L)).build());
+        final MapDBExpiry expiry = storePlugin.getTable("myTable", storeKey).getExpiry().get();
+
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+        storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("key", "newValue"));
+        // Each write replaces the item's expiry entry
+        assertThat(expiry.getIndexMap().size(), is(1));
+        final long expiresAt = expiry.getExpiresAt(new Object[]{"myHashValue"}).get();
+        assertThat(expiresAt > System.currentTimeMillis(), is(true));
+
+        assertThat(storePlugin.sweepExpiredItems(expiresAt - 1L), is(false));
+        assertThat(storePlugin.getItem("myTable", storeKey), not(Optional.empty()));
+
+        assertThat(storePlugin.sweepExpiredItems(expiresAt), is(false));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.empty()));
+        assertThat(expiry.getIndexMap().isEmpty(), is(true));
+        assertThat(expiry.getExpiresAtMap().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testExpiryOnDelete() {
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", equalTo(1)).build();
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make(),
+                new JsonMapDBValueCodec(), createExecutorServiceFactory());
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).setTimeToLive(Duration.ofHours(1L)).build());
+        final MapDBExpiry expiry = storePlugin.getTable("myTable", storeKey).getExpiry().get();
+
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+        storePlugin.deleteItem("myTable", storeKey);
+        assertThat(expiry.getIndexMap().isEmpty(), is(true));
+        assertThat(expiry.getExpiresAtMap().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testExpirySweepBatch() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make(),
+                new JsonMapDBValueCodec(), createExecutorServiceFactory());
+        storePlugin.expirySweepBatchSize = 2;
+        storePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).setTimeToLive(Duration.ofHours(1L)).build());
+        storePlugin.batchPutItems("myTable", IntStream.rangeClosed(1, 3).boxed()
+                .collect(Collectors.toMap(keyFunction, i -> ImmutableMap.of("key", i))));
+
+        final long sweepMillis = System.currentTimeMillis() + Duration.ofHours(2L).toMillis();
+        assertThat(storePlugin.sweepExpiredItems(sweepMillis), is(true));
+        assertThat(storePlugin.getAllItems("myTable"), hasSize(1));
+        assertThat(storePlugin.sweepExpiredItems(sweepMillis), is(false));
+        assertThat(storePlugin.getAllItems("myTable"), empty());
+    }
+
+    @Test
+    public void testExpiryOfExistingItems() {
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make(),
+                new JsonMapDBValueCodec(), createExecutorServiceFactory());
+        final MapStoreTableKey.Builder tableKeyBuilder = new MapStoreTableKey.Builder()
+                .setHash("myHashField", String.class);
+        storePlugin.createTable("myTable", tableKeyBuilder.build());
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+
+        // Items written before the table had a time to live expire too
+        storePlugin.createTable("myTable", tableKeyBuilder.setTimeToLive(Duration.ofHours(1L)).build());
+        storePlugin.sweepExpiredItems(System.currentTimeMillis() + Duration.ofHours(2L).toMillis());
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.empty()));
+    }
+
+    @Test
+    public void testExpiryReopened() throws IOException {
+        final Path dbDir = Files.createTempDirectory(MapDBMapStorePluginTest.class.getSimpleName());
+        final String dbFilePath = dbDir.resolve(UUID.randomUUID() + ".db").toString();
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        final DB fileDB = DBMaker.fileDB(dbFilePath).make();
+        final MapStorePlugin fileStorePlugin = createStorePlugin(fileDB);
+        fileStorePlugin.createTable("myTable", new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setTimeToLive(Duration.ofHours(1L)).build());
+        fileStorePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+        fileDB.close();
+
+        // A reopened store sweeps the table without it being created again
+        final DB reopenedFileDB = DBMaker.fileDB(dbFilePath).make();
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(reopenedFileDB,
+                new BinaryMapDBValueCodec(reopenedFileDB), createExecutorServiceFactory());
+        storePlugin.sweepExpiredItems(System.currentTimeMillis() + Duration.ofHours(2L).toMillis());
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.empty()));
+
+        assertThat(storePlugin.dropTable("myTable"), is(true));
+        assertThat(reopenedFileDB.exists(MapDBMapStorePlugin.EXPIRY_INDEX_MAP_PREFIX + "myTable"), is(true));
+        assertThat(storePlugin.sweepExpiredItems(Long.MAX_VALUE), is(false));
+    }
 }
@@ -0,0 +1,91 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.typesafe.config.ConfigException;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Unit tests for {@link MapDBProvider}
+ *
+ * @author tkral
+ */
+public class MapDBProviderTest {
+
+    private String createFilePath() throws IOException {
+        final Path dbDir = Files.createTempDirectory(MapDBProviderTest.class.getSimpleName());
+        return dbDir.resolve(UUID.randomUUID() + ".db").toString();
+    }
+
+    private void assertReadWrite(final DBMaker.Maker dbMaker) {
+        final DB mapDB = dbMaker.make();
+        mapDB.treeMap("myTable", Serializer.STRING, Serializer.STRING).createOrOpen().put("key", "value");
+        assertThat(mapDB.treeMap("myTable", Serializer.STRING, Serializer.STRING).open().get("key"), is("value"));
+        mapDB.close();
+    }
+
+    @Test
+    public void testMemoryDB() {
+        assertReadWrite(new MapDBProvider().createMaker());
+    }
+
+    @Test
+    public void testMemoryDirectDB() {
+        final MapDBProvider mapDBProvider = new MapDBProvider();
+        mapDBProvider.memoryDirect = true;
+        mapDBProvider.concurrencyScale = 4;
+
+        assertReadWrite(mapDBProvider.createMaker());
+    }
+
+    @Test
+    public void testFileDB() throws IOException {
+        final MapDBProvider mapDBProvider = new MapDBProvider();
+        mapDBProvider.storeFilePath = createFilePath();
+
+        assertReadWrite(mapDBProvider.createMaker());
+    }
+
+    @Test
+    public void testFileMmapDB() throws IOException {
+        final MapDBProvider mapDBProvider = new MapDBProvider();
+        mapDBProvider.storeFilePath = createFilePath();
+        mapDBProvider.fileMmapEnable = true;
+        mapDBProvider.fileMmapPreclear = false;
+        mapDBProvider.allocateStartSize = 1024L * 1024L;
+        mapDBProvider.allocateIncrement = 1024L * 1024L;
+
+        assertReadWrite(mapDBProvider.createMaker());
+
+        // The memory-mapped file can be reopened with its contents intact
+        final DB mapDB = mapDBProvider.createMaker().make();
+        assertThat(mapDB.treeMap("myTable", Serializer.STRING, Serializer.STRING).open().get("key"), is("value"));
+        mapDB.close();
+    }
+
+    @Test(expectedExceptions = ConfigException.BadValue.class)
+    public void testFileMemoryDirectDB() throws IOException {
+        final MapDBProvider mapDBProvider = new MapDBProvider();
+        mapDBProvider.storeFilePath = createFilePath();
+        mapDBProvider.memoryDirect = true;
+
+        mapDBProvider.createMaker();
+    }
+
+    @Test(expectedExceptions = ConfigException.BadValue.class)
+    public void testInvalidConcurrencyScale() {
+        final MapDBProvider mapDBProvider = new MapDBProvider();
+        mapDBProvider.concurrencyScale = 0;
+
+        mapDBProvider.createMaker();
+    }
+}
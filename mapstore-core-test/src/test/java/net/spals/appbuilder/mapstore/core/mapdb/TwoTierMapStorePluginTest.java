@@ -0,0 +1,276 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreWriteCondition;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mockito.InOrder;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+
+import static net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.fail;
+
+/**
+ * Unit tests for {@link TwoTierMapStorePlugin}
+ *
+ * @author tkral
+ */
+public class TwoTierMapStorePluginTest {
+
+    private final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+            .setRange("myRangeField", String.class).build();
+    private final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo("myRangeValue")).build();
+
+    private final MapStoreKey otherStoreKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo("otherRangeValue")).build();
+
+    private TwoTierMapStorePlugin createStorePlugin(final MapStorePlugin remotePlugin, final long freshnessMillis) {
+        final DB mapDB = DBMaker.memoryDB().make();
+        return createStorePlugin(remotePlugin,
+                new MapDBMapStorePlugin(mapDB, new BinaryMapDBValueCodec(mapDB), mock(ExecutorServiceFactory.class)),
+                freshnessMillis);
+    }
+
+    private TwoTierMapStorePlugin createStorePlugin(final MapStorePlugin remotePlugin,
+                                                    final MapStorePlugin localPlugin,
+                                                    final long freshnessMillis) {
+        // Flushes are driven by the tests themselves rather than a background loop
+        final ExecutorServiceFactory executorServiceFactory = mock(ExecutorServiceFactory.class);
+        when(executorServiceFactory.createSingleThreadExecutor(any(), any())).thenReturn(mock(ExecutorService.class));
+
+        final Map<String, MapStorePlugin> storePluginMap = ImmutableMap.of(
+                "mapDB", localPlugin,
+                "myRemoteSystem", remotePlugin);
+
+        final TwoTierMapStorePlugin storePlugin =
+                new TwoTierMapStorePlugin(executorServiceFactory, () -> storePluginMap);
+        storePlugin.remoteSystem = "myRemoteSystem";
+        storePlugin.freshnessMillis = freshnessMillis;
+        when(remotePlugin.createTable("myTable", tableKey)).thenReturn(true);
+        storePlugin.createTable("myTable", tableKey);
+        return storePlugin;
+    }
+
+    private Map<String, Object> remoteItem(final String value) {
+        return ImmutableMap.of("myHashField", "myHashValue", "myRangeField", "myRangeValue", "key", value);
+    }
+
+    @Test
+    public void testCreateTableRemoteExists() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        when(remotePlugin.createTable("myTable", tableKey)).thenReturn(false);
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, localPlugin, 60000L);
+
+        // An existing remote table still gets its local table
+        assertThat(storePlugin.createTable("myTable", tableKey), is(false));
+        verify(localPlugin, times(2)).createTable("myTable", tableKey);
+    }
+
+    @Test
+    public void testGetItemFresh() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(remotePlugin.getItem("myTable", storeKey)).thenReturn(Optional.of(remoteItem("value")));
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, 60000L);
+
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(remoteItem("value"))));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(remoteItem("value"))));
+        verify(remotePlugin, times(1)).getItem("myTable", storeKey);
+    }
+
+    @Test
+    public void testGetItemStale() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(remotePlugin.getItem("myTable", storeKey))
+                .thenReturn(Optional.of(remoteItem("value1")), Optional.of(remoteItem("value2")));
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, 0L);
+
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(remoteItem("value1"))));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(remoteItem("value2"))));
+    }
+
+    @Test
+    public void testWriteBehind() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(remotePlugin.getItem("myTable", storeKey)).thenReturn(Optional.of(remoteItem("value")));
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, 0L);
+
+        // An update merges into the remote item and is read back locally before any flush
+        assertThat(storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("key", "value1")),
+                is(remoteItem("value1")));
+        storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("key", "value2"));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(remoteItem("value2"))));
+        verify(remotePlugin, times(1)).getItem("myTable", storeKey);
+        verify(remotePlugin, never()).batchPutItems(any(), anyMap());
+
+        // Both updates are coalesced into a single write of the latest item
+        storePlugin.flushWrites();
+        verify(remotePlugin).batchPutItems("myTable", ImmutableMap.of(storeKey, remoteItem("value2")));
+        storePlugin.flushWrites();
+        verify(remotePlugin, times(1)).batchPutItems(any(), anyMap());
+    }
+
+    @Test
+    public void testDeleteWriteBehind() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, 60000L);
+
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+        storePlugin.deleteItem("myTable", storeKey);
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.empty()));
+
+        storePlugin.flushWrites();
+        verify(remotePlugin, never()).batchPutItems(any(), anyMap());
+        verify(remotePlugin).batchDeleteItems("myTable", ImmutableList.of(storeKey));
+    }
+
+    @Test
+    public void testFlushRetry() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        doThrow(new IllegalStateException()).doReturn(ImmutableList.of())
+                .when(remotePlugin).batchPutItems(eq("myTable"), anyMap());
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, 60000L);
+
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+        storePlugin.flushWrites();
+        storePlugin.flushWrites();
+        verify(remotePlugin, times(2)).batchPutItems(eq("myTable"), anyMap());
+    }
+
+    @Test(expectedExceptions = ConfigException.BadValue.class)
+    public void testMissingRemoteSystem() {
+        final TwoTierMapStorePlugin storePlugin =
+                new TwoTierMapStorePlugin(mock(ExecutorServiceFactory.class), ImmutableMap::of);
+        storePlugin.remoteSystem = "myMissingSystem";
+        storePlugin.createTable("myTable", tableKey);
+    }
+
+    @Test
+    public void testConditionalWriteOnLocalCopy() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(remotePlugin.getItem("myTable", storeKey)).thenReturn(Optional.of(remoteItem("value")));
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, 60000L);
+
+        assertThat(storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value1"),
+                MapStoreWriteCondition.itemAbsent(storeKey)), is(Optional.empty()));
+        assertThat(storePlugin.updateItem("myTable", storeKey, ImmutableMap.of("key", "value1"),
+                MapStoreWriteCondition.expectedVersion("key", "value")), is(Optional.of(remoteItem("value1"))));
+    }
+
+    @Test
+    public void testIncrementWriteBehind() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(remotePlugin.getItem("myTable", storeKey)).thenReturn(Optional.of(remoteItem("value")));
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, 60000L);
+
+        // Increments apply to the remote item, and only the latest item is written behind
+        storePlugin.incrementItem("myTable", storeKey, ImmutableMap.of("count", 1L));
+        final Map<String, Object> expectedItem = ImmutableMap.of("myHashField", "myHashValue",
+                "myRangeField", "myRangeValue", "key", "value", "count", 2L);
+        assertThat(storePlugin.incrementItem("myTable", storeKey, ImmutableMap.of("count", 1L)), is(expectedItem));
+
+        storePlugin.flushWrites();
+        verify(remotePlugin).batchPutItems("myTable", ImmutableMap.of(storeKey, expectedItem));
+        verify(remotePlugin, never()).incrementItem(any(), any(), anyMap());
+    }
+
+    @Test
+    public void testGetItemsFlushesFirst() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, 60000L);
+        final MapStoreKey queryKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value"));
+        storePlugin.getItems("myTable", queryKey, defaultOptions());
+
+        final InOrder remoteOrder = inOrder(remotePlugin);
+        remoteOrder.verify(remotePlugin).batchPutItems(eq("myTable"), anyMap());
+        remoteOrder.verify(remotePlugin).getItems("myTable", queryKey, defaultOptions());
+        verify(remotePlugin, never()).batchDeleteItems(any(), anyList());
+    }
+
+    @Test
+    public void testGetItemsFlushesOnlyQueriedTable() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(remotePlugin.createTable("otherTable", tableKey)).thenReturn(true);
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, 60000L);
+        storePlugin.createTable("otherTable", tableKey);
+        final MapStoreKey queryKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+
+        storePlugin.putItem("otherTable", storeKey, ImmutableMap.of("key", "value"));
+        storePlugin.getItems("myTable", queryKey, defaultOptions());
+        verify(remotePlugin, never()).batchPutItems(any(), anyMap());
+
+        storePlugin.getItems("otherTable", queryKey, defaultOptions());
+        verify(remotePlugin).batchPutItems(eq("otherTable"), anyMap());
+    }
+
+    @Test
+    public void testMaxPendingWrites() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, 60000L);
+        storePlugin.maxPendingWrites = 1L;
+        storePlugin.pendingWriteTimeoutMillis = 0L;
+
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value1"));
+        // Writes of a pending key are coalesced, so they take no more room
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value2"));
+        try {
+            storePlugin.putItem("myTable", otherStoreKey, ImmutableMap.of("key", "value"));
+            fail("Expected a full set of pending writes to reject the write");
+        } catch (IllegalStateException e) {
+            // The rejected write is not applied locally either
+            assertThat(storePlugin.getItem("myTable", otherStoreKey), is(Optional.empty()));
+        }
+
+        storePlugin.flushWrites();
+        storePlugin.putItem("myTable", otherStoreKey, ImmutableMap.of("key", "value"));
+    }
+
+    @Test
+    public void testStaleLocalCopiesRemoved() {
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(remotePlugin.getItem(eq("myTable"), any())).thenReturn(Optional.of(remoteItem("value")));
+        final DB mapDB = DBMaker.memoryDB().make();
+        final MapStorePlugin localPlugin =
+                new MapDBMapStorePlugin(mapDB, new BinaryMapDBValueCodec(mapDB), mock(ExecutorServiceFactory.class));
+        final TwoTierMapStorePlugin storePlugin = createStorePlugin(remotePlugin, localPlugin, 60000L);
+        storePlugin.maxFreshItems = 1L;
+
+        storePlugin.getItem("myTable", storeKey);
+        storePlugin.getItem("myTable", otherStoreKey);
+        assertThat(localPlugin.getAllItems("myTable").size(), is(2));
+
+        // Only one key stays fresh, so only its local copy is kept
+        storePlugin.flushWrites();
+        assertThat(localPlugin.getAllItems("myTable").size(), is(1));
+    }
+}
@@ -0,0 +1,64 @@
+package net.spals.appbuilder.mapstore.core;
+
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A non-blocking version of {@link MapStore}.
+ *
+ * Every operation returns immediately with a
+ * {@link CompletableFuture} which completes when
+ * the underlying store responds. This allows
+ * callers to overlap many operations without
+ * dedicating a thread to each one.
+ *
+ * @author tkral
+ */
+public interface AsyncMapStore {
+
+    /**
+     * Delete an item from the given table
+     * with the give key.
+     *
+     * This should be idempotent if the item
+     * does not exist.
+     */
+    CompletableFuture<Void> deleteItem(String tableName, MapStoreKey key);
+
+    /**
+     * Retrieves an item from the given table
+     * with the given key.
+     *
+     * Completes with {@link Optional#empty()} if no
+     * item exists with the given key.
+     */
+    CompletableFuture<Optional<Map<String, Object>>> getItem(String tableName, MapStoreKey key);
+
+    /**
+     * Queries all items from the given table
+     * which match the given {@link MapStoreKey}
+     * range key operator.
+     */
+    CompletableFuture<List<Map<String, Object>>> getItems(String tableName, MapStoreKey key, MapQueryOptions options);
+
+    /**
+     * Adds an item to the given table
+     * under the given key.
+     */
+    CompletableFuture<Map<String, Object>> putItem(String tableName, MapStoreKey key, Map<String, Object> payload);
+
+    /**
+     * Updates an item in the given table
+     * under the given key.
+     *
+     * If no item exists at the given key,
+     * this will fallback to {@link #putItem(String, MapStoreKey, Map)}
+     * semantics.
+     */
+    CompletableFuture<Map<String, Object>> updateItem(String tableName, MapStoreKey key, Map<String, Object> payload);
+}
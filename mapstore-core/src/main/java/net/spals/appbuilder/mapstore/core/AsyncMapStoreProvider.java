@@ -0,0 +1,221 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterables;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.netflix.governator.annotations.Configuration;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.annotations.config.ServiceConfig;
+import net.spals.appbuilder.annotations.service.AutoBindProvider;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import net.spals.appbuilder.mapstore.core.MapStoreProvider.DelegatingMapStore;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.SyntacticSugar;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * @author tkral
+ */
+@AutoBindProvider
+class AsyncMapStoreProvider implements Provider<AsyncMapStore> {
+
+    @Configuration("mapStore.system")
+    private volatile String storeSystem;
+
+    @Configuration("mapStore.async.numThreads")
+    private volatile Integer numThreads = 10;
+
+    private final ExecutorServiceFactory executorServiceFactory;
+    private final Config serviceConfig;
+    private final Map<String, MapStorePlugin> storePluginMap;
+    private final MapStoreTableCaches tableCaches;
+
+    @Inject
+    AsyncMapStoreProvider(final ExecutorServiceFactory executorServiceFactory,
+                          @ServiceConfig final Config serviceConfig,
+                          final Map<String, MapStorePlugin> storePluginMap,
+                          final MapStoreTableCaches tableCaches) {
+        this.executorServiceFactory = executorServiceFactory;
+        this.serviceConfig = serviceConfig;
+        this.storePluginMap = storePluginMap;
+        this.tableCaches = tableCaches;
+    }
+
+    @Override
+    public AsyncMapStore get() {
+        final MapStorePlugin storePlugin = WriteShardedMapStorePlugin.wrap(
+            Optional.ofNullable(storePluginMap.get(storeSystem))
+                .orElseThrow(() -> new ConfigException.BadValue("mapStore.system",
+                        "No Map Store plugin found for : " + storeSystem)),
+            MapStoreProvider.loadTableShardings(serviceConfig));
+
+        // Plugins without a native asynchronous client are run on a managed executor
+        final AsyncMapStore asyncPlugin = storePlugin.asyncPlugin()
+            .orElseGet(() -> new ExecutorAsyncMapStore(storePlugin,
+                    executorServiceFactory.createFixedThreadPool(numThreads, getClass(), storeSystem)));
+
+        // Writes invalidate the caches of the synchronous store, which are shared with it here
+        return new DelegatingAsyncMapStore(new DelegatingMapStore(storePlugin, tableCaches.getTableCaches()),
+                asyncPlugin);
+    }
+
+    /**
+     * An {@link AsyncMapStore} which applies the same
+     * validations as {@link DelegatingMapStore}.
+     *
+     * Invalid keys or payloads are rejected immediately
+     * rather than through the returned future. Each write
+     * invalidates the key's cached state once it is done.
+     */
+    @VisibleForTesting
+    static class DelegatingAsyncMapStore implements AsyncMapStore {
+
+        private final DelegatingMapStore storeValidator;
+        private final AsyncMapStore pluginDelegate;
+
+        DelegatingAsyncMapStore(final DelegatingMapStore storeValidator,
+                                final AsyncMapStore pluginDelegate) {
+            this.storeValidator = storeValidator;
+            this.pluginDelegate = pluginDelegate;
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteItem(final String tableName,
+                                                  final MapStoreKey key) {
+            storeValidator.checkSingleItemKey(key);
+            return invalidateCache(tableName, key, pluginDelegate.deleteItem(tableName, key));
+        }
+
+        @Override
+        public CompletableFuture<Optional<Map<String, Object>>> getItem(final String tableName,
+                                                                        final MapStoreKey key) {
+            final Optional<SyntacticSugar> sugarOp = SyntacticSugar.fromName(key.getRangeKey().getOperator().toString());
+            if (sugarOp.isPresent()) {
+                switch (sugarOp.get()) {
+                    case MAX: return getFirstItem(tableName, key, Order.DESC);
+                    case MIN: return getFirstItem(tableName, key, Order.ASC);
+                    default:
+                        throw new IllegalArgumentException("AsyncMapStore.getItem does not support the syntactic sugar operator: "+ sugarOp.get().name());
+                }
+            }
+
+            storeValidator.checkSingleItemKey(key);
+            return pluginDelegate.getItem(tableName, key);
+        }
+
+        @Override
+        public CompletableFuture<List<Map<String, Object>>> getItems(final String tableName,
+                                                                     final MapStoreKey key,
+                                                                     final MapQueryOptions options) {
+            final Optional<SyntacticSugar> sugarOp = SyntacticSugar.fromName(key.getRangeKey().getOperator().toString());
+            if (sugarOp.isPresent()) {
+                switch (sugarOp.get()) {
+                    default:
+                        throw new IllegalArgumentException("AsyncMapStore.getItems does not support the syntactic sugar operator: "+ sugarOp.get().name());
+                }
+            }
+
+            return pluginDelegate.getItems(tableName, key, options);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, Object>> putItem(final String tableName,
+                                                              final MapStoreKey key,
+                                                              final Map<String, Object> payload) {
+            storeValidator.checkWriteItem(key, payload);
+            storeValidator.checkPutItem(payload);
+            return invalidateCache(tableName, key, pluginDelegate.putItem(tableName, key, payload));
+        }
+
+        @Override
+        public CompletableFuture<Map<String, Object>> updateItem(final String tableName,
+                                                                 final MapStoreKey key,
+                                                                 final Map<String, Object> payload) {
+            storeValidator.checkWriteItem(key, payload);
+
+            // Plugins upsert natively, so no read is needed to choose between put and update
+            return invalidateCache(tableName, key, pluginDelegate.updateItem(tableName, key, payload));
+        }
+
+        // A failed write may still have been applied, so the cache is invalidated either way
+        private <T> CompletableFuture<T> invalidateCache(final String tableName,
+                                                         final MapStoreKey key,
+                                                         final CompletableFuture<T> write) {
+            return write.whenComplete((result, error) -> storeValidator.invalidateCache(tableName, key));
+        }
+
+        // Run max or min syntactic sugar operation
+        CompletableFuture<Optional<Map<String, Object>>> getFirstItem(final String tableName,
+                                                                      final MapStoreKey key,
+                                                                      final Order order) {
+            // The max (min) operator is equivalent to grabbing all range keys, sorting
+            // them in descending (ascending) order, and grabbing the first one.
+            final MapStoreKey firstKey = new MapStoreKey.Builder()
+                    .setHash(key.getHashField(), key.getHashValue())
+                    .setRange(key.getRangeField().get(), ZeroValueMapRangeKey.all())
+                    .build();
+            return getItems(tableName, firstKey, new MapQueryOptions.Builder().setOrder(order).setLimit(1).build())
+                    .thenApply(firstItems -> Optional.ofNullable(Iterables.getOnlyElement(firstItems, null)));
+        }
+    }
+
+    /**
+     * An {@link AsyncMapStore} which runs the blocking
+     * operations of a {@link MapStorePlugin} on an executor.
+     */
+    @VisibleForTesting
+    static class ExecutorAsyncMapStore implements AsyncMapStore {
+
+        private final ExecutorService executorService;
+        private final MapStorePlugin storePlugin;
+
+        ExecutorAsyncMapStore(final MapStorePlugin storePlugin,
+                              final ExecutorService executorService) {
+            this.executorService = executorService;
+            this.storePlugin = storePlugin;
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteItem(final String tableName,
+                                                  final MapStoreKey key) {
+            return CompletableFuture.runAsync(() -> storePlugin.deleteItem(tableName, key), executorService);
+        }
+
+        @Override
+        public CompletableFuture<Optional<Map<String, Object>>> getItem(final String tableName,
+                                                                        final MapStoreKey key) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.getItem(tableName, key), executorService);
+        }
+
+        @Override
+        public CompletableFuture<List<Map<String, Object>>> getItems(final String tableName,
+                                                                     final MapStoreKey key,
+                                                                     final MapQueryOptions options) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.getItems(tableName, key, options), executorService);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, Object>> putItem(final String tableName,
+                                                              final MapStoreKey key,
+                                                              final Map<String, Object> payload) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.putItem(tableName, key, payload), executorService);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, Object>> updateItem(final String tableName,
+                                                                 final MapStoreKey key,
+                                                                 final Map<String, Object> payload) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.updateItem(tableName, key, payload), executorService);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Utf8;
+import com.google.inject.Inject;
+import net.spals.appbuilder.annotations.service.AutoBindSingleton;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A {@link MapStoreMetrics} which records into a
+ * Dropwizard {@link MetricRegistry}.
+ *
+ * The application's registry is used where one is
+ * bound, such as in Dropwizard applications. Otherwise
+ * metrics are kept in a registry of their own.
+ *
+ * Each operation of a table has a latency timer, which
+ * also counts calls, an error counter and histograms of
+ * the item count and estimated payload bytes per call.
+ *
+ * @author tkral
+ */
+@AutoBindSingleton(baseClass = MapStoreMetrics.class)
+class DefaultMapStoreMetrics implements MapStoreMetrics {
+
+    static final String METRICS_PREFIX = "mapStore";
+
+    static final String BYTES_METRIC = "bytes";
+    static final String ERRORS_METRIC = "errors";
+    static final String ITEMS_METRIC = "items";
+    static final String LATENCY_METRIC = "latency";
+
+    // Sizes assumed for values which have no natural byte length
+    private static final int BOOLEAN_SIZE = 1;
+    private static final int NUMBER_SIZE = 8;
+
+    private volatile MetricRegistry metricRegistry;
+
+    @Inject
+    DefaultMapStoreMetrics() {
+        this(new MetricRegistry());
+    }
+
+    @VisibleForTesting
+    DefaultMapStoreMetrics(final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    @Inject(optional = true)
+    void setMetricRegistry(final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    @VisibleForTesting
+    MetricRegistry getMetricRegistry() {
+        return metricRegistry;
+    }
+
+    @Override
+    public <T> T time(final String storeSystem,
+                      final String tableName,
+                      final String operation,
+                      final Supplier<T> call) {
+        final Timer.Context latencyContext =
+                metricRegistry.timer(metricName(storeSystem, tableName, operation, LATENCY_METRIC)).time();
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            metricRegistry.counter(metricName(storeSystem, tableName, operation, ERRORS_METRIC)).inc();
+            throw e;
+        } finally {
+            latencyContext.stop();
+        }
+    }
+
+    @Override
+    public void recordItems(final String storeSystem,
+                            final String tableName,
+                            final String operation,
+                            final Collection<Map<String, Object>> items) {
+        metricRegistry.histogram(metricName(storeSystem, tableName, operation, ITEMS_METRIC)).update(items.size());
+        metricRegistry.histogram(metricName(storeSystem, tableName, operation, BYTES_METRIC))
+                .update(items.stream().mapToLong(DefaultMapStoreMetrics::estimateSize).sum());
+    }
+
+    @Override
+    public void mark(final String storeSystem,
+                     final String tableName,
+                     final String operation,
+                     final String metricName,
+                     final long count) {
+        metricRegistry.meter(metricName(storeSystem, tableName, operation, metricName)).mark(count);
+    }
+
+    static String metricName(final String storeSystem,
+                             final String tableName,
+                             final String operation,
+                             final String metricName) {
+        return MetricRegistry.name(METRICS_PREFIX, storeSystem, tableName, operation, metricName);
+    }
+
+    // Estimate the stored size of a value without serializing it. Field names
+    // count towards an item's size, as they do in most backends.
+    @VisibleForTesting
+    static long estimateSize(final Object value) {
+        if (value == null) {
+            return 0L;
+        } else if (value instanceof CharSequence) {
+            return estimateStringSize((CharSequence) value);
+        } else if (value instanceof Boolean) {
+            return BOOLEAN_SIZE;
+        } else if (value instanceof Number) {
+            return NUMBER_SIZE;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof ByteBuffer) {
+            return ((ByteBuffer) value).remaining();
+        } else if (value instanceof Map) {
+            return ((Map<?, ?>) value).entrySet().stream()
+                    .mapToLong(entry -> estimateSize(entry.getKey()) + estimateSize(entry.getValue())).sum();
+        } else if (value instanceof Collection) {
+            return ((Collection<?>) value).stream().mapToLong(DefaultMapStoreMetrics::estimateSize).sum();
+        }
+
+        return estimateStringSize(value.toString());
+    }
+
+    private static long estimateStringSize(final CharSequence value) {
+        try {
+            return Utf8.encodedLength(value);
+        } catch (IllegalArgumentException e) {
+            // Malformed strings are measured by their length alone
+            return value.length();
+        }
+    }
+}
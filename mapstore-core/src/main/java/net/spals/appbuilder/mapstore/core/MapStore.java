@@ -1,12 +1,17 @@
 package net.spals.appbuilder.mapstore.core;
 
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryPage;
+import net.spals.appbuilder.mapstore.core.model.MapStoreCacheStats;
 import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
 import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreWriteCondition;
 
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
 
 /**
  * A NoSQL storage service which holds
@@ -20,11 +25,14 @@ public interface MapStore {
      * Creates a secondary index for the given table
      * with the given key.
      *
-     * Note that the table must already exist.
+     * Note that the table must already exist. Items
+     * which are already in the table are added to
+     * the index and all later writes to the table
+     * keep the index up to date.
      *
      * @return true iff the creation was successful
      */
-//    boolean createIndex(String tableName, String indexName, MapStoreTableKey indexKey);
+    boolean createIndex(String tableName, String indexName, MapStoreTableKey indexKey);
 
     /**
      * Creates a table with the given key.
@@ -38,7 +46,7 @@ public interface MapStore {
      *
      * @return true iff the drop was successful
      */
-//    boolean dropIndex(String tableName, String indexName);
+    boolean dropIndex(String tableName, String indexName);
 
     /**
      * Drops a table.
@@ -47,6 +55,31 @@ public interface MapStore {
      */
     boolean dropTable(String tableName);
 
+    /**
+     * Deletes all items from the given table
+     * with the given keys.
+     *
+     * This should be idempotent for any item
+     * which does not exist.
+     */
+    void batchDeleteItems(String tableName, List<MapStoreKey> keys);
+
+    /**
+     * Retrieves all items from the given table
+     * with the given keys.
+     *
+     * Keys which have no item are omitted
+     * from the results. The order of the
+     * results is not guaranteed.
+     */
+    List<Map<String, Object>> batchGetItems(String tableName, List<MapStoreKey> keys);
+
+    /**
+     * Adds all given items to the given table
+     * under their associated keys.
+     */
+    List<Map<String, Object>> batchPutItems(String tableName, Map<MapStoreKey, Map<String, Object>> items);
+
     /**
      * Delete an item from the given table
      * with the give key.
@@ -62,6 +95,36 @@ public interface MapStore {
      */
     List<Map<String, Object>> getAllItems(String tableName);
 
+    /**
+     * Retrieves a single page of items from the
+     * given table with all keys.
+     *
+     * The page begins at the continuation token
+     * within the given {@link MapQueryOptions} (if any).
+     * Item order is determined by the underlying store.
+     */
+    MapQueryPage getAllItemsPage(String tableName, MapQueryOptions options);
+
+    /**
+     * Retrieves the hit and miss statistics for
+     * the given table's read-through cache.
+     *
+     * Returns {@link Optional#empty()} if the
+     * table is not cached.
+     */
+    Optional<MapStoreCacheStats> getCacheStats(String tableName);
+
+    /**
+     * Queries all items from the given table
+     * through the given secondary index.
+     *
+     * The fields of the given {@link MapStoreKey}
+     * must be the index's hash and range fields.
+     * Items which lack any of the index's fields
+     * are not held within the index.
+     */
+    List<Map<String, Object>> getIndexItems(String tableName, String indexName, MapStoreKey indexKey, MapQueryOptions options);
+
     /**
      * Retrieves an item from the given table
      * with the given key.
@@ -71,6 +134,17 @@ public interface MapStore {
      */
     Optional<Map<String, Object>> getItem(String tableName, MapStoreKey key);
 
+    /**
+     * Retrieves only the given fields of an item
+     * from the given table with the given key.
+     *
+     * All fields are retrieved if the given
+     * projection is empty.
+     *
+     * See {@link MapQueryOptions#getProjection()}
+     */
+    Optional<Map<String, Object>> getItem(String tableName, MapStoreKey key, Set<String> projection);
+
     /**
      * Queries all items from the given table
      * which match the given {@link MapStoreKey}
@@ -78,12 +152,74 @@ public interface MapStore {
      */
     List<Map<String, Object>> getItems(String tableName, MapStoreKey key, MapQueryOptions options);
 
+    /**
+     * Queries a single page of items from the
+     * given table which match the given {@link MapStoreKey}
+     * range key operator.
+     *
+     * The page begins at the continuation token
+     * within the given {@link MapQueryOptions} (if any).
+     */
+    MapQueryPage getItemsPage(String tableName, MapStoreKey key, MapQueryOptions options);
+
+    /**
+     * Atomically adds the given amounts to the
+     * numeric fields of an item in the given table
+     * under the given key.
+     *
+     * Missing fields count up from zero and a missing
+     * item is created with only the incremented fields.
+     * Returns the whole item after the increment.
+     */
+    Map<String, Object> incrementItem(String tableName, MapStoreKey key, Map<String, Long> increments);
+
     /**
      * Adds an item to the given table
      * under the given key.
      */
     Map<String, Object> putItem(String tableName, MapStoreKey key, Map<String, Object> payload);
 
+    /**
+     * Adds an item to the given table under the
+     * given key only if the item currently held
+     * at the key meets the given condition.
+     *
+     * The condition is checked and the item written
+     * in a single atomic operation. Returns
+     * {@link Optional#empty()}, without writing,
+     * if the condition is not met.
+     */
+    Optional<Map<String, Object>> putItem(String tableName, MapStoreKey key, Map<String, Object> payload,
+                                          MapStoreWriteCondition condition);
+
+    /**
+     * Lazily streams all items from the given
+     * table with all keys.
+     *
+     * Items are fetched one page at a time so
+     * memory use is bounded by the page size
+     * rather than the size of the table.
+     *
+     * The returned stream must be closed (e.g. with
+     * try-with-resources) unless it is fully consumed,
+     * so that any outstanding table reads are stopped.
+     */
+    Stream<Map<String, Object>> streamAllItems(String tableName, MapQueryOptions options);
+
+    /**
+     * Lazily streams all items from the given table
+     * which match the given {@link MapStoreKey}
+     * range key operator.
+     *
+     * Items are fetched one page at a time so
+     * memory use is bounded by the page size
+     * rather than the number of matching items.
+     *
+     * The returned stream must be closed unless
+     * it is fully consumed.
+     */
+    Stream<Map<String, Object>> streamItems(String tableName, MapStoreKey key, MapQueryOptions options);
+
     /**
      * Updates an item in the given table
      * under the given key.
@@ -93,4 +229,17 @@ public interface MapStore {
      * semantics.
      */
     Map<String, Object> updateItem(String tableName, MapStoreKey key, Map<String, Object> payload);
+
+    /**
+     * Updates an item in the given table under the
+     * given key only if the item currently held
+     * at the key meets the given condition.
+     *
+     * The condition is checked and the item written
+     * in a single atomic operation. Returns
+     * {@link Optional#empty()}, without writing,
+     * if the condition is not met.
+     */
+    Optional<Map<String, Object>> updateItem(String tableName, MapStoreKey key, Map<String, Object> payload,
+                                             MapStoreWriteCondition condition);
 }
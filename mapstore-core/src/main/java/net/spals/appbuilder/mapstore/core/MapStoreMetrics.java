@@ -0,0 +1,34 @@
+package net.spals.appbuilder.mapstore.core;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Instrumentation of {@link MapStore} operations.
+ *
+ * Every metric is named by the store system, the table
+ * and the operation which it measures.
+ *
+ * @author tkral
+ */
+public interface MapStoreMetrics {
+
+    /**
+     * Runs a single call of an operation, recording
+     * its latency and whether it failed.
+     */
+    <T> T time(String storeSystem, String tableName, String operation, Supplier<T> call);
+
+    /**
+     * Records the number and size of the items
+     * read or written by a single call of an operation.
+     */
+    void recordItems(String storeSystem, String tableName, String operation, Collection<Map<String, Object>> items);
+
+    /**
+     * Marks a backend specific count of an operation,
+     * such as the capacity which it consumed.
+     */
+    void mark(String storeSystem, String tableName, String operation, String metricName, long count);
+}
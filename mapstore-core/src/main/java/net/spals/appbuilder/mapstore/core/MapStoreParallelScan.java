@@ -0,0 +1,174 @@
+package net.spals.appbuilder.mapstore.core;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A scan which reads several segments of a table
+ * concurrently and merges their items into a
+ * single stream.
+ *
+ * Items are handed over through a bounded buffer, so
+ * segment reads pause whenever the stream's consumer falls
+ * behind. The scan stops its segment reads once a limit
+ * is reached or once its stream is no longer reachable,
+ * but a stream which is not fully consumed should still
+ * be closed to stop its segment reads promptly.
+ *
+ * @author tkral
+ */
+public class MapStoreParallelScan {
+
+    private static final Object END_OF_SCAN = new Object();
+
+    private final ExecutorService executorService;
+    private final int bufferSize;
+
+    public MapStoreParallelScan(final ExecutorService executorService, final int bufferSize) {
+        checkArgument(bufferSize > 0, "Scan buffer size must be positive: %s", bufferSize);
+        this.executorService = executorService;
+        this.bufferSize = bufferSize;
+    }
+
+    public <T> Stream<T> stream(final List<Supplier<Iterator<T>>> segmentScans) {
+        return stream(segmentScans, Optional.empty());
+    }
+
+    /**
+     * Merges the given segment scans into a single stream of
+     * at most the given number of items. Segment reads are
+     * cancelled as soon as the limit is reached.
+     */
+    public <T> Stream<T> stream(final List<Supplier<Iterator<T>>> segmentScans, final Optional<Long> limit) {
+        checkArgument(limit.map(l -> l >= 0L).orElse(true), "Scan limit must not be negative: %s", limit);
+
+        final BlockingQueue<Object> buffer = new ArrayBlockingQueue<>(bufferSize);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final AtomicInteger remainingSegmentScans = new AtomicInteger(segmentScans.size());
+        // Segment reads only weakly reach the consumer, so that an abandoned scan is noticed
+        final Object consumer = new Object();
+        final WeakReference<Object> consumerRef = new WeakReference<>(consumer);
+
+        final List<Future<?>> scanFutures = segmentScans.stream()
+                .map(segmentScan -> executorService.submit(() -> {
+                    try {
+                        final Iterator<T> segmentIterator = segmentScan.get();
+                        while (!cancelled.get() && segmentIterator.hasNext()) {
+                            enqueue(buffer, cancelled, consumerRef, segmentIterator.next());
+                        }
+                        if (remainingSegmentScans.decrementAndGet() == 0) {
+                            enqueue(buffer, cancelled, consumerRef, END_OF_SCAN);
+                        }
+                    } catch (Throwable t) {
+                        enqueue(buffer, cancelled, consumerRef, new ScanFailure(t));
+                    }
+                }))
+                .collect(Collectors.toList());
+        final Runnable cancel = () -> {
+            cancelled.set(true);
+            scanFutures.forEach(scanFuture -> scanFuture.cancel(false));
+        };
+
+        if (segmentScans.isEmpty()) {
+            buffer.add(END_OF_SCAN);
+        }
+
+        final AtomicLong remainingItems = new AtomicLong(limit.orElse(Long.MAX_VALUE));
+        final Iterator<T> scanIterator = new Iterator<T>() {
+            // Held only to keep the consumer reachable for as long as this iterator is
+            @SuppressWarnings("unused")
+            private final Object scanConsumer = consumer;
+            private Object nextElement;
+
+            @Override
+            public boolean hasNext() {
+                if (remainingItems.get() <= 0L) {
+                    cancel.run();
+                    return false;
+                }
+                if (nextElement == null) {
+                    try {
+                        nextElement = buffer.take();
+                    } catch (InterruptedException e) {
+                        cancel.run();
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted during parallel scan", e);
+                    }
+                }
+
+                if (nextElement instanceof ScanFailure) {
+                    cancel.run();
+                    ((ScanFailure) nextElement).rethrow();
+                }
+                return nextElement != END_OF_SCAN;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final T element = (T) nextElement;
+                nextElement = null;
+                remainingItems.decrementAndGet();
+                return element;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(scanIterator, Spliterator.NONNULL), false)
+                .onClose(cancel);
+    }
+
+    // Give up on the hand over as soon as the scan is cancelled or its consumer is gone
+    private static void enqueue(final BlockingQueue<Object> buffer,
+                                final AtomicBoolean cancelled,
+                                final WeakReference<Object> consumerRef,
+                                final Object element) {
+        try {
+            while (!cancelled.get() && !buffer.offer(element, 100L, TimeUnit.MILLISECONDS)) {
+                if (consumerRef.get() == null) {
+                    cancelled.set(true);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class ScanFailure {
+        private final Throwable cause;
+
+        private ScanFailure(final Throwable cause) {
+            this.cause = cause;
+        }
+
+        private void rethrow() {
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Parallel scan failed", cause);
+        }
+    }
+}
@@ -1,10 +1,27 @@
 package net.spals.appbuilder.mapstore.core;
 
+import com.google.common.collect.Maps;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapQueryPage;
+import net.spals.appbuilder.mapstore.core.model.MapStoreCacheStats;
 import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreWriteCondition;
 
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author tkral
@@ -16,6 +33,157 @@ public interface MapStorePlugin extends MapStore {
                 || "".equals(String.valueOf(entry.getValue()));
     }
 
+    /**
+     * A non-blocking view of this plugin which uses
+     * the store's native asynchronous client.
+     *
+     * Plugins which return {@link Optional#empty()}
+     * will have their blocking operations run on
+     * a managed executor instead.
+     */
+    default Optional<AsyncMapStore> asyncPlugin() {
+        return Optional.empty();
+    }
+
+    /**
+     * Reads the first item, in the given order, within
+     * the range of the given key.
+     *
+     * This backs the MIN and MAX range operators. Plugins
+     * should override this if their stores can read the
+     * first or last entry of a range directly.
+     */
+    default Optional<Map<String, Object>> getFirstItem(final String tableName,
+                                                       final MapStoreKey key,
+                                                       final Order order) {
+        final MapQueryOptions firstOptions = new MapQueryOptions.Builder().setOrder(order).setLimit(1).build();
+        return getItems(tableName, key, firstOptions).stream().findFirst();
+    }
+
+    /**
+     * Reads the whole item and then reduces it to the
+     * projected fields. Plugins should override this if
+     * their stores can read a subset of an item's fields.
+     */
+    @Override
+    default Optional<Map<String, Object>> getItem(final String tableName,
+                                                  final MapStoreKey key,
+                                                  final Set<String> projection) {
+        return getItem(tableName, key).map(item -> projectItem(item, projection));
+    }
+
+    @Override
+    default Optional<MapStoreCacheStats> getCacheStats(final String tableName) {
+        // Caching is applied above the plugin layer
+        return Optional.empty();
+    }
+
+    @Override
+    default Stream<Map<String, Object>> streamAllItems(final String tableName,
+                                                       final MapQueryOptions options) {
+        return streamPages(options, pageOptions -> getAllItemsPage(tableName, pageOptions));
+    }
+
+    @Override
+    default Stream<Map<String, Object>> streamItems(final String tableName,
+                                                    final MapStoreKey key,
+                                                    final MapQueryOptions options) {
+        return streamPages(options, pageOptions -> getItemsPage(tableName, key, pageOptions));
+    }
+
+    /**
+     * Creates a lazy stream of items which loads
+     * the next page only when the previous page
+     * has been consumed.
+     */
+    default Stream<Map<String, Object>> streamPages(final MapQueryOptions options,
+                                                    final Function<MapQueryOptions, MapQueryPage> pageLoader) {
+        // Don't fetch more items per page than the stream will ever consume
+        final MapQueryOptions firstPageOptions = options.getLimit()
+                .filter(limit -> limit < options.getPageSize().orElse(MapQueryOptions.DEFAULT_PAGE_SIZE))
+                .map(limit -> new MapQueryOptions.Builder().mergeFrom(options).setPageSize(limit).build())
+                .orElse(options);
+        final Iterator<MapQueryPage> pageIterator = new Iterator<MapQueryPage>() {
+            private Optional<MapQueryOptions> nextPageOptions = Optional.of(firstPageOptions);
+
+            @Override
+            public boolean hasNext() {
+                return nextPageOptions.isPresent();
+            }
+
+            @Override
+            public MapQueryPage next() {
+                final MapQueryPage page = pageLoader.apply(nextPageOptions.orElseThrow(NoSuchElementException::new));
+                nextPageOptions = page.getContinuationToken()
+                        .map(token -> new MapQueryOptions.Builder().mergeFrom(firstPageOptions)
+                                .setContinuationToken(token).build());
+                return page;
+            }
+        };
+
+        final Stream<Map<String, Object>> itemStream = StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(pageIterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .flatMap(page -> page.getItems().stream());
+        return options.getLimit().map(limit -> itemStream.limit(limit)).orElse(itemStream);
+    }
+
+    /**
+     * Increments an item by reading it and then writing
+     * the incremented fields on the condition that they
+     * still hold the values which were read. The read and
+     * write are retried until no other write intervenes.
+     *
+     * Plugins should override this if their stores
+     * can increment fields directly.
+     */
+    @Override
+    default Map<String, Object> incrementItem(final String tableName,
+                                              final MapStoreKey key,
+                                              final Map<String, Long> increments) {
+        while (true) {
+            final Optional<Map<String, Object>> item = getItem(tableName, key);
+            final MapStoreWriteCondition.Builder condition = new MapStoreWriteCondition.Builder();
+            final Map<String, Object> payload = new LinkedHashMap<>();
+            increments.forEach((field, amount) -> {
+                final Optional<Object> value = item.map(fields -> fields.get(field));
+                value.ifPresent(v -> condition.putExpectedValues(field, v));
+                if (!value.isPresent()) {
+                    condition.addAbsentFields(field);
+                }
+                payload.put(field, incrementValue(field, value, amount));
+            });
+
+            final Optional<Map<String, Object>> incrementedItem = item.isPresent()
+                    ? updateItem(tableName, key, payload, condition.build())
+                    : putItem(tableName, key, payload, MapStoreWriteCondition.itemAbsent(key));
+            if (incrementedItem.isPresent()) {
+                return incrementedItem.get();
+            }
+        }
+    }
+
+    /**
+     * Adds the given amount to a field's value, which
+     * counts as zero if the field is missing.
+     */
+    default Long incrementValue(final String field, final Optional<Object> value, final long amount) {
+        try {
+            return Math.addExact(value.map(v -> new BigDecimal(v.toString()).longValueExact()).orElse(0L), amount);
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Cannot increment field %s of value %s by %s",
+                    field, value.orElse(null), amount), e);
+        }
+    }
+
+    /**
+     * Reduces the given item to the given projected fields.
+     * The item is returned as is if the projection is empty.
+     */
+    default Map<String, Object> projectItem(final Map<String, Object> item,
+                                            final Set<String> projection) {
+        return projection.isEmpty() ? item : new LinkedHashMap<>(Maps.filterKeys(item, projection::contains));
+    }
+
     default void stripKey(final MapStoreKey key, final Map<String, Object> payload) {
         // Strip out the key values from the payload (if they exist)
         payload.remove(key.getHashField());
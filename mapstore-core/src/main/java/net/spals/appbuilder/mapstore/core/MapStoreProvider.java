@@ -1,25 +1,35 @@
 package net.spals.appbuilder.mapstore.core;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Iterables;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.netflix.governator.annotations.Configuration;
+import com.typesafe.config.Config;
 import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.annotations.config.ServiceConfig;
 import net.spals.appbuilder.annotations.service.AutoBindProvider;
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapQueryPage;
 import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.Standard;
 import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.SyntacticSugar;
+import net.spals.appbuilder.mapstore.core.model.MapStoreCacheStats;
 import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
 import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreWriteCondition;
 import net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -29,14 +39,25 @@ import static com.google.common.base.Preconditions.checkArgument;
 @AutoBindProvider
 class MapStoreProvider implements Provider<MapStore> {
 
+    static final String WRITE_SHARDS_CONFIG_KEY = "mapStore.writeShards";
+
     @Configuration("mapStore.system")
     private volatile String storeSystem;
 
+    private final Config serviceConfig;
     private final Map<String, MapStorePlugin> storePluginMap;
+    private final MapStoreMetrics storeMetrics;
+    private final MapStoreTableCaches tableCaches;
 
     @Inject
-    MapStoreProvider(final Map<String, MapStorePlugin> storePluginMap) {
+    MapStoreProvider(@ServiceConfig final Config serviceConfig,
+                     final Map<String, MapStorePlugin> storePluginMap,
+                     final MapStoreMetrics storeMetrics,
+                     final MapStoreTableCaches tableCaches) {
+        this.serviceConfig = serviceConfig;
         this.storePluginMap = storePluginMap;
+        this.storeMetrics = storeMetrics;
+        this.tableCaches = tableCaches;
     }
 
     @Override
@@ -45,56 +66,172 @@ class MapStoreProvider implements Provider<MapStore> {
             .orElseThrow(() -> new ConfigException.BadValue("mapStore.system",
                     "No Map Store plugin found for : " + storeSystem));
 
-        return new DelegatingMapStore(storePlugin);
+        return new DelegatingMapStore(WriteShardedMapStorePlugin.wrap(storePlugin, loadTableShardings(serviceConfig)),
+                tableCaches.getTableCaches(), storeSystem, storeMetrics);
+    }
+
+    // Load the write sharding of each table configured under mapStore.writeShards
+    static Map<String, MapStoreWriteSharding> loadTableShardings(final Config serviceConfig) {
+        if (!serviceConfig.hasPath(WRITE_SHARDS_CONFIG_KEY)) {
+            return Collections.emptyMap();
+        }
+
+        final Config shardsConfig = serviceConfig.getConfig(WRITE_SHARDS_CONFIG_KEY);
+        return shardsConfig.root().keySet().stream()
+                .collect(Collectors.toMap(Function.identity(),
+                        tableName -> MapStoreWriteSharding.fromConfig(shardsConfig.getConfig(tableName))));
     }
 
     @VisibleForTesting
     static class DelegatingMapStore implements MapStore {
 
         private final MapStorePlugin pluginDelegate;
+        private final Map<String, MapStoreTableCache> tableCaches;
+        private final String storeSystem;
+        private final MapStoreMetrics storeMetrics;
 
         DelegatingMapStore(final MapStorePlugin pluginDelegate) {
+            this(pluginDelegate, Collections.emptyMap());
+        }
+
+        DelegatingMapStore(final MapStorePlugin pluginDelegate,
+                           final Map<String, MapStoreTableCache> tableCaches) {
+            this(pluginDelegate, tableCaches, pluginDelegate.getClass().getSimpleName(), new DefaultMapStoreMetrics());
+        }
+
+        DelegatingMapStore(final MapStorePlugin pluginDelegate,
+                           final Map<String, MapStoreTableCache> tableCaches,
+                           final String storeSystem,
+                           final MapStoreMetrics storeMetrics) {
             this.pluginDelegate = pluginDelegate;
+            this.tableCaches = tableCaches;
+            this.storeSystem = storeSystem;
+            this.storeMetrics = storeMetrics;
+        }
+
+        @Override
+        public boolean createIndex(final String tableName,
+                                   final String indexName,
+                                   final MapStoreTableKey indexKey) {
+            return time(tableName, "createIndex", () -> pluginDelegate.createIndex(tableName, indexName, indexKey));
         }
 
         @Override
         public boolean createTable(final String tableName,
                                    final MapStoreTableKey tableKey) {
-            return pluginDelegate.createTable(tableName, tableKey);
+            return time(tableName, "createTable", () -> pluginDelegate.createTable(tableName, tableKey));
+        }
+
+        @Override
+        public boolean dropIndex(final String tableName,
+                                 final String indexName) {
+            return time(tableName, "dropIndex", () -> pluginDelegate.dropIndex(tableName, indexName));
         }
 
         @Override
         public boolean dropTable(final String tableName) {
-            return pluginDelegate.dropTable(tableName);
+            return time(tableName, "dropTable", () -> pluginDelegate.dropTable(tableName));
+        }
+
+        @Override
+        public void batchDeleteItems(final String tableName,
+                                     final List<MapStoreKey> keys) {
+            keys.forEach(key -> checkSingleItemKey(key));
+            time(tableName, "batchDeleteItems", () -> {
+                pluginDelegate.batchDeleteItems(tableName, keys);
+                return null;
+            });
+            keys.forEach(key -> invalidateCache(tableName, key));
+        }
+
+        @Override
+        public List<Map<String, Object>> batchGetItems(final String tableName,
+                                                       final List<MapStoreKey> keys) {
+            keys.forEach(key -> checkSingleItemKey(key));
+            return recordItems(tableName, "batchGetItems",
+                    time(tableName, "batchGetItems", () -> pluginDelegate.batchGetItems(tableName, keys)));
+        }
+
+        @Override
+        public List<Map<String, Object>> batchPutItems(final String tableName,
+                                                       final Map<MapStoreKey, Map<String, Object>> items) {
+            items.forEach((key, payload) -> {
+                checkWriteItem(key, payload);
+                checkPutItem(payload);
+            });
+            recordItems(tableName, "batchPutItems", items.values());
+            final List<Map<String, Object>> putItems =
+                    time(tableName, "batchPutItems", () -> pluginDelegate.batchPutItems(tableName, copyPayloads(items)));
+            items.keySet().forEach(key -> invalidateCache(tableName, key));
+            return putItems;
         }
 
         @Override
         public void deleteItem(final String tableName,
                                final MapStoreKey key) {
             checkSingleItemKey(key);
-            pluginDelegate.deleteItem(tableName, key);
+            time(tableName, "deleteItem", () -> {
+                pluginDelegate.deleteItem(tableName, key);
+                return null;
+            });
+            invalidateCache(tableName, key);
         }
 
         @Override
         public List<Map<String, Object>> getAllItems(final String tableName) {
-            return pluginDelegate.getAllItems(tableName);
+            return recordItems(tableName, "getAllItems",
+                    time(tableName, "getAllItems", () -> pluginDelegate.getAllItems(tableName)));
+        }
+
+        @Override
+        public MapQueryPage getAllItemsPage(final String tableName,
+                                            final MapQueryOptions options) {
+            final MapQueryPage page =
+                    time(tableName, "getAllItemsPage", () -> pluginDelegate.getAllItemsPage(tableName, options));
+            recordItems(tableName, "getAllItemsPage", page.getItems());
+            return page;
+        }
+
+        @Override
+        public Optional<MapStoreCacheStats> getCacheStats(final String tableName) {
+            return Optional.ofNullable(tableCaches.get(tableName)).map(MapStoreTableCache::getStats);
+        }
+
+        @Override
+        public List<Map<String, Object>> getIndexItems(final String tableName,
+                                                       final String indexName,
+                                                       final MapStoreKey indexKey,
+                                                       final MapQueryOptions options) {
+            checkMultiItemKey(indexKey);
+            // Index queries are not cached as the cache can only be invalidated by table key
+            return recordItems(tableName, "getIndexItems", time(tableName, "getIndexItems",
+                    () -> pluginDelegate.getIndexItems(tableName, indexName, indexKey, options)));
         }
 
         @Override
         public Optional<Map<String, Object>> getItem(final String tableName,
                                                      final MapStoreKey key) {
-            final Optional<SyntacticSugar> sugarOp = SyntacticSugar.fromName(key.getRangeKey().getOperator().toString());
-            if (sugarOp.isPresent()) {
-                switch (sugarOp.get()) {
-                    case MAX: return getMaxItem(tableName, key);
-                    case MIN: return getMinItem(tableName, key);
-                    default:
-                        throw new IllegalArgumentException("MapStore.getItem does not support the syntactic sugar operator: "+ sugarOp.get().name());
+            final Optional<Map<String, Object>> item = time(tableName, "getItem", () -> loadItem(tableName, key));
+            recordItems(tableName, "getItem", item.map(Collections::singletonList).orElse(Collections.emptyList()));
+            return item;
+        }
+
+        @Override
+        public Optional<Map<String, Object>> getItem(final String tableName,
+                                                     final MapStoreKey key,
+                                                     final Set<String> projection) {
+            final Optional<Map<String, Object>> item = time(tableName, "getItem", () -> {
+                // Cached and syntactic sugar reads load whole items, so these are projected afterwards
+                if (projection.isEmpty() || tableCaches.containsKey(tableName)
+                        || SyntacticSugar.fromName(key.getRangeKey().getOperator().toString()).isPresent()) {
+                    return loadItem(tableName, key).map(loadedItem -> pluginDelegate.projectItem(loadedItem, projection));
                 }
-            }
 
-            checkSingleItemKey(key);
-            return pluginDelegate.getItem(tableName, key);
+                checkSingleItemKey(key);
+                return pluginDelegate.getItem(tableName, key, projection);
+            });
+            recordItems(tableName, "getItem", item.map(Collections::singletonList).orElse(Collections.emptyList()));
+            return item;
         }
 
         @Override
@@ -109,7 +246,32 @@ class MapStoreProvider implements Provider<MapStore> {
                 }
             }
 
-            return pluginDelegate.getItems(tableName, key, options);
+            final Optional<MapStoreTableCache> tableCache = Optional.ofNullable(tableCaches.get(tableName));
+            return recordItems(tableName, "getItems", time(tableName, "getItems",
+                    () -> tableCache.map(cache -> cache.getItems(key, options, () -> pluginDelegate.getItems(tableName, key, options)))
+                            .orElseGet(() -> pluginDelegate.getItems(tableName, key, options))));
+        }
+
+        @Override
+        public MapQueryPage getItemsPage(final String tableName,
+                                         final MapStoreKey key,
+                                         final MapQueryOptions options) {
+            checkMultiItemKey(key);
+            final MapQueryPage page =
+                    time(tableName, "getItemsPage", () -> pluginDelegate.getItemsPage(tableName, key, options));
+            recordItems(tableName, "getItemsPage", page.getItems());
+            return page;
+        }
+
+        @Override
+        public Map<String, Object> incrementItem(final String tableName,
+                                                 final MapStoreKey key,
+                                                 final Map<String, Long> increments) {
+            checkIncrementItem(key, increments);
+            final Map<String, Object> incrementedItem =
+                    time(tableName, "incrementItem", () -> pluginDelegate.incrementItem(tableName, key, increments));
+            invalidateCache(tableName, key);
+            return incrementedItem;
         }
 
         @Override
@@ -118,7 +280,40 @@ class MapStoreProvider implements Provider<MapStore> {
                                            final Map<String, Object> payload) {
             checkWriteItem(key, payload);
             checkPutItem(payload);
-            return pluginDelegate.putItem(tableName, key, payload);
+            recordItems(tableName, "putItem", Collections.singletonList(payload));
+            final Map<String, Object> putItem =
+                    time(tableName, "putItem", () -> pluginDelegate.putItem(tableName, key, copyPayload(payload)));
+            invalidateCache(tableName, key);
+            return putItem;
+        }
+
+        @Override
+        public Optional<Map<String, Object>> putItem(final String tableName,
+                                                     final MapStoreKey key,
+                                                     final Map<String, Object> payload,
+                                                     final MapStoreWriteCondition condition) {
+            checkWriteItem(key, payload);
+            checkPutItem(payload);
+            recordItems(tableName, "conditionalPutItem", Collections.singletonList(payload));
+            final Optional<Map<String, Object>> putItem = time(tableName, "conditionalPutItem",
+                    () -> pluginDelegate.putItem(tableName, key, copyPayload(payload), condition));
+            putItem.ifPresent(item -> invalidateCache(tableName, key));
+            return putItem;
+        }
+
+        // Streams are read lazily, so only their creation is timed and their items are not recorded
+        @Override
+        public Stream<Map<String, Object>> streamAllItems(final String tableName,
+                                                          final MapQueryOptions options) {
+            return time(tableName, "streamAllItems", () -> pluginDelegate.streamAllItems(tableName, options));
+        }
+
+        @Override
+        public Stream<Map<String, Object>> streamItems(final String tableName,
+                                                       final MapStoreKey key,
+                                                       final MapQueryOptions options) {
+            checkMultiItemKey(key);
+            return time(tableName, "streamItems", () -> pluginDelegate.streamItems(tableName, key, options));
         }
 
         @Override
@@ -126,14 +321,38 @@ class MapStoreProvider implements Provider<MapStore> {
                                               final MapStoreKey key,
                                               final Map<String, Object> payload) {
             checkWriteItem(key, payload);
+            recordItems(tableName, "updateItem", Collections.singletonList(payload));
 
-            final Optional<Map<String, Object>> item = getItem(tableName, key);
-            // If no item is present at the given key, then updateItem takes on putItem semantics
-            if (!item.isPresent()) {
-                return putItem(tableName, key, payload);
-            }
+            // Plugins upsert natively, so no read is needed to choose between put and update
+            final Map<String, Object> updatedItem =
+                    time(tableName, "updateItem", () -> pluginDelegate.updateItem(tableName, key, copyPayload(payload)));
+            invalidateCache(tableName, key);
+            return updatedItem;
+        }
+
+        @Override
+        public Optional<Map<String, Object>> updateItem(final String tableName,
+                                                        final MapStoreKey key,
+                                                        final Map<String, Object> payload,
+                                                        final MapStoreWriteCondition condition) {
+            checkWriteItem(key, payload);
+            recordItems(tableName, "conditionalUpdateItem", Collections.singletonList(payload));
+
+            final Optional<Map<String, Object>> updatedItem = time(tableName, "conditionalUpdateItem",
+                    () -> pluginDelegate.updateItem(tableName, key, copyPayload(payload), condition));
+            updatedItem.ifPresent(item -> invalidateCache(tableName, key));
+            return updatedItem;
+        }
 
-            return pluginDelegate.updateItem(tableName, key, payload);
+        @VisibleForTesting
+        void checkIncrementItem(final MapStoreKey key, final Map<String, Long> increments) {
+            checkArgument(!increments.isEmpty(), "Cannot increment item without increments");
+            // Key fields identify the item, so they can never be incremented
+            checkArgument(!increments.containsKey(key.getHashField())
+                    && !key.getRangeField().filter(increments::containsKey).isPresent(),
+                    "Cannot increment key fields: %s", increments.keySet());
+            checkArgument(!increments.containsValue(null), "Cannot increment by null: %s", increments);
+            checkSingleItemKey(key);
         }
 
         @VisibleForTesting
@@ -143,6 +362,13 @@ class MapStoreProvider implements Provider<MapStore> {
                     keyValue, payload.get(keyField));
         }
 
+        @VisibleForTesting
+        void checkMultiItemKey(final MapStoreKey key) {
+            final Optional<SyntacticSugar> sugarOp = SyntacticSugar.fromName(key.getRangeKey().getOperator().toString());
+            checkArgument(!sugarOp.isPresent(),
+                    "Illegal range operator found (%s). Syntactic sugar operators cannot be paged", key.getRangeKey().getOperator());
+        }
+
         @VisibleForTesting
         void checkPutItem(final Map<String, Object> payload) {
             // Null or empty values have special semantics in updateItem so we'll disallow them here.
@@ -175,34 +401,76 @@ class MapStoreProvider implements Provider<MapStore> {
             checkSingleItemKey(key);
         }
 
+        // Plugins strip the key fields from payloads, so they are given copies of the callers' payloads,
+        // which may be immutable (e.g. cached items)
+        private Map<String, Object> copyPayload(final Map<String, Object> payload) {
+            return new LinkedHashMap<>(payload);
+        }
+
+        private Map<MapStoreKey, Map<String, Object>> copyPayloads(final Map<MapStoreKey, Map<String, Object>> items) {
+            final Map<MapStoreKey, Map<String, Object>> copiedItems = new LinkedHashMap<>();
+            items.forEach((key, payload) -> copiedItems.put(key, copyPayload(payload)));
+            return copiedItems;
+        }
+
+        // Read a single item, through the table's cache if it has one
+        Optional<Map<String, Object>> loadItem(final String tableName, final MapStoreKey key) {
+            final Optional<SyntacticSugar> sugarOp = SyntacticSugar.fromName(key.getRangeKey().getOperator().toString());
+            if (sugarOp.isPresent()) {
+                switch (sugarOp.get()) {
+                    case MAX: return getMaxItem(tableName, key);
+                    case MIN: return getMinItem(tableName, key);
+                    default:
+                        throw new IllegalArgumentException("MapStore.getItem does not support the syntactic sugar operator: "+ sugarOp.get().name());
+                }
+            }
+
+            checkSingleItemKey(key);
+            final Optional<MapStoreTableCache> tableCache = Optional.ofNullable(tableCaches.get(tableName));
+            return tableCache.map(cache -> cache.getItem(key, () -> pluginDelegate.getItem(tableName, key)))
+                    .orElseGet(() -> pluginDelegate.getItem(tableName, key));
+        }
+
+        private <T> T time(final String tableName, final String operation, final Supplier<T> call) {
+            return storeMetrics.time(storeSystem, tableName, operation, call);
+        }
+
+        private <C extends Collection<Map<String, Object>>> C recordItems(final String tableName,
+                                                                          final String operation,
+                                                                          final C items) {
+            storeMetrics.recordItems(storeSystem, tableName, operation, items);
+            return items;
+        }
+
+        // Drop any cached state which may be affected by a write to the given key
+        void invalidateCache(final String tableName, final MapStoreKey key) {
+            Optional.ofNullable(tableCaches.get(tableName)).ifPresent(cache -> cache.invalidate(key));
+        }
+
         // Run max syntactic sugar operation
         Optional<Map<String, Object>> getMaxItem(final String tableName, final MapStoreKey key) {
             checkArgument(key.getRangeKey().getOperator() == SyntacticSugar.MAX);
 
-            // The max operator is equivalent to grabbing all range keys, sorting
-            // them in descending order, and grabbing the first one.
+            // The max operator is equivalent to grabbing the last of all range keys,
+            // which the plugin can read without sorting the whole range.
             final MapStoreKey maxKey = new MapStoreKey.Builder()
                     .setHash(key.getHashField(), key.getHashValue())
                     .setRange(key.getRangeField().get(), ZeroValueMapRangeKey.all())
                     .build();
-            final List<Map<String, Object>> maxItems = getItems(tableName, maxKey,
-                    new MapQueryOptions.Builder().setOrder(Order.DESC).setLimit(1).build());
-            return Optional.ofNullable(Iterables.getOnlyElement(maxItems, null));
+            return pluginDelegate.getFirstItem(tableName, maxKey, Order.DESC);
         }
 
         // Run min syntactic sugar operation
         Optional<Map<String, Object>> getMinItem(final String tableName, final MapStoreKey key) {
             checkArgument(key.getRangeKey().getOperator() == SyntacticSugar.MIN);
 
-            // The min operator is equivalent to grabbing all range keys, sorting
-            // them in ascending order, and grabbing the first one.
-            final MapStoreKey maxKey = new MapStoreKey.Builder()
+            // The min operator is equivalent to grabbing the first of all range keys,
+            // which the plugin can read without sorting the whole range.
+            final MapStoreKey minKey = new MapStoreKey.Builder()
                     .setHash(key.getHashField(), key.getHashValue())
                     .setRange(key.getRangeField().get(), ZeroValueMapRangeKey.all())
                     .build();
-            final List<Map<String, Object>> minItems = getItems(tableName, maxKey,
-                    new MapQueryOptions.Builder().setOrder(Order.ASC).setLimit(1).build());
-            return Optional.ofNullable(Iterables.getOnlyElement(minItems, null));
+            return pluginDelegate.getFirstItem(tableName, minKey, Order.ASC);
         }
     }
 }
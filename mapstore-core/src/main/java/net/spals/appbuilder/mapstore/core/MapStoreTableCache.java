@@ -0,0 +1,215 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.annotations.VisibleForTesting;
+import com.typesafe.config.Config;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapStoreCacheStats;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A bounded, in-process read-through cache for
+ * the items of a single {@link MapStore} table.
+ *
+ * Eviction is frequency-aware (Window TinyLFU) so a
+ * burst of one-off reads will not flush out hot keys.
+ * A write to any key invalidates its cached item and
+ * all cached queries which share its hash value.
+ *
+ * Queries are cached under a generation of their hash
+ * value, which each write moves on. So a query which
+ * was loaded before a write is stored under a generation
+ * which is never read again, even if it is stored after
+ * the write. Hash values share a fixed number of
+ * generations, so a write may also invalidate the queries
+ * of a few other hash values.
+ *
+ * Misses (missing items and empty query results) are
+ * only cached when an expireMissesAfter is configured,
+ * which should be short, as a miss is often followed by
+ * a write of the same key through another process.
+ *
+ * @author tkral
+ */
+class MapStoreTableCache {
+
+    static final String CACHE_QUERIES_KEY = "cacheQueries";
+    static final String EXPIRE_AFTER_WRITE_KEY = "expireAfterWrite";
+    static final String EXPIRE_MISSES_AFTER_KEY = "expireMissesAfter";
+    static final String MAX_SIZE_KEY = "maxSize";
+
+    static final long DEFAULT_MAX_SIZE = 10000L;
+    static final int GENERATION_STRIPES = 1024;
+
+    private final Cache<MapStoreKey, Optional<Map<String, Object>>> itemCache;
+    private final Optional<Cache<QueryKey, List<Map<String, Object>>>> queryCache;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final boolean cacheMisses;
+
+    @VisibleForTesting
+    MapStoreTableCache(final long maxSize,
+                       final Optional<Duration> expireAfterWrite,
+                       final boolean cacheQueries) {
+        this(maxSize, expireAfterWrite, Optional.empty(), cacheQueries);
+    }
+
+    @VisibleForTesting
+    MapStoreTableCache(final long maxSize,
+                       final Optional<Duration> expireAfterWrite,
+                       final Optional<Duration> expireMissesAfter,
+                       final boolean cacheQueries) {
+        this.cacheMisses = expireMissesAfter.isPresent();
+        this.itemCache = buildCache(maxSize, expireAfterWrite, expireMissesAfter, item -> !item.isPresent());
+        this.queryCache = Optional.of(cacheQueries).filter(Boolean::booleanValue)
+                .map(enabled -> buildCache(maxSize, expireAfterWrite, expireMissesAfter, List::isEmpty));
+    }
+
+    private static <K, V> Cache<K, V> buildCache(final long maxSize,
+                                                 final Optional<Duration> expireAfterWrite,
+                                                 final Optional<Duration> expireMissesAfter,
+                                                 final Predicate<V> isMiss) {
+        final Caffeine<Object, Object> caffeine = Caffeine.newBuilder().maximumSize(maxSize).recordStats();
+        // Cached misses expire sooner than hits, which takes an expiry per entry
+        if (expireMissesAfter.isPresent()) {
+            return caffeine.expireAfter(new TableExpiry<K, V>(expireAfterWrite, expireMissesAfter.get(), isMiss)).build();
+        }
+
+        expireAfterWrite.ifPresent(expiry -> caffeine.expireAfterWrite(expiry.toNanos(), TimeUnit.NANOSECONDS));
+        return caffeine.build();
+    }
+
+    /**
+     * Creates a cache from a single table's
+     * configuration under mapStore.cache.
+     */
+    static MapStoreTableCache fromConfig(final Config tableConfig) {
+        final long maxSize = tableConfig.hasPath(MAX_SIZE_KEY) ? tableConfig.getLong(MAX_SIZE_KEY) : DEFAULT_MAX_SIZE;
+        final Optional<Duration> expireAfterWrite = Optional.of(tableConfig)
+                .filter(config -> config.hasPath(EXPIRE_AFTER_WRITE_KEY))
+                .map(config -> config.getDuration(EXPIRE_AFTER_WRITE_KEY));
+        final Optional<Duration> expireMissesAfter = Optional.of(tableConfig)
+                .filter(config -> config.hasPath(EXPIRE_MISSES_AFTER_KEY))
+                .map(config -> config.getDuration(EXPIRE_MISSES_AFTER_KEY));
+        final boolean cacheQueries = tableConfig.hasPath(CACHE_QUERIES_KEY) && tableConfig.getBoolean(CACHE_QUERIES_KEY);
+
+        return new MapStoreTableCache(maxSize, expireAfterWrite, expireMissesAfter, cacheQueries);
+    }
+
+    Optional<Map<String, Object>> getItem(final MapStoreKey key,
+                                          final Supplier<Optional<Map<String, Object>>> itemLoader) {
+        // A loaded null is not cached
+        return Optional.ofNullable(itemCache.get(key, k -> {
+            final Optional<Map<String, Object>> item = itemLoader.get().map(Collections::unmodifiableMap);
+            return item.isPresent() || cacheMisses ? item : null;
+        })).orElse(Optional.empty());
+    }
+
+    List<Map<String, Object>> getItems(final MapStoreKey key,
+                                       final MapQueryOptions options,
+                                       final Supplier<List<Map<String, Object>>> itemsLoader) {
+        final QueryKey queryKey = new QueryKey(generations.get(generationStripe(key)), key, options);
+        return queryCache.map(cache -> Optional.ofNullable(cache.get(queryKey,
+                k -> {
+                    final List<Map<String, Object>> items = Collections.unmodifiableList(itemsLoader.get());
+                    return !items.isEmpty() || cacheMisses ? items : null;
+                })).orElse(Collections.emptyList()))
+            .orElseGet(itemsLoader);
+    }
+
+    MapStoreCacheStats getStats() {
+        final CacheStats cacheStats = queryCache.map(cache -> cache.stats().plus(itemCache.stats()))
+                .orElseGet(itemCache::stats);
+
+        return new MapStoreCacheStats.Builder()
+                .setEvictionCount(cacheStats.evictionCount())
+                .setHitCount(cacheStats.hitCount())
+                .setMissCount(cacheStats.missCount())
+                .build();
+    }
+
+    void invalidate(final MapStoreKey key) {
+        itemCache.invalidate(key);
+        // Queries of the old generation are never read again and are left to be evicted
+        generations.incrementAndGet(generationStripe(key));
+    }
+
+    private static int generationStripe(final MapStoreKey key) {
+        return Math.floorMod(key.getHashValue().hashCode(), GENERATION_STRIPES);
+    }
+
+    // A cached query, under the generation of its hash value at which it was loaded
+    private static class QueryKey {
+
+        private final long generation;
+        private final MapStoreKey key;
+        private final MapQueryOptions options;
+
+        private QueryKey(final long generation, final MapStoreKey key, final MapQueryOptions options) {
+            this.generation = generation;
+            this.key = key;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof QueryKey)) {
+                return false;
+            }
+            final QueryKey that = (QueryKey) o;
+            return generation == that.generation && key.equals(that.key) && options.equals(that.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(generation, key, options);
+        }
+    }
+
+    // Expires hits after the table's expireAfterWrite (if any) and misses after its expireMissesAfter
+    private static class TableExpiry<K, V> implements Expiry<K, V> {
+
+        private final long hitExpiryNanos;
+        private final long missExpiryNanos;
+        private final Predicate<V> isMiss;
+
+        private TableExpiry(final Optional<Duration> expireAfterWrite,
+                            final Duration expireMissesAfter,
+                            final Predicate<V> isMiss) {
+            this.hitExpiryNanos = expireAfterWrite.map(Duration::toNanos).orElse(Long.MAX_VALUE);
+            this.missExpiryNanos = expireMissesAfter.toNanos();
+            this.isMiss = isMiss;
+        }
+
+        @Override
+        public long expireAfterCreate(final K key, final V value, final long currentTime) {
+            return isMiss.test(value) ? missExpiryNanos : hitExpiryNanos;
+        }
+
+        @Override
+        public long expireAfterUpdate(final K key, final V value, final long currentTime, final long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(final K key, final V value, final long currentTime, final long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import net.spals.appbuilder.annotations.config.ServiceConfig;
+import net.spals.appbuilder.annotations.service.AutoBindSingleton;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * The read-through caches of all tables
+ * configured under mapStore.cache.
+ *
+ * The caches are shared by the {@link MapStore} and
+ * the {@link AsyncMapStore}, so that a write through
+ * either store invalidates the cached items of both.
+ *
+ * @author tkral
+ */
+@AutoBindSingleton
+class MapStoreTableCaches {
+
+    static final String CACHE_CONFIG_KEY = "mapStore.cache";
+
+    private final Map<String, MapStoreTableCache> tableCaches;
+
+    @Inject
+    MapStoreTableCaches(@ServiceConfig final Config serviceConfig) {
+        this.tableCaches = loadTableCaches(serviceConfig);
+    }
+
+    Map<String, MapStoreTableCache> getTableCaches() {
+        return tableCaches;
+    }
+
+    // Create a read-through cache for each table configured under mapStore.cache
+    static Map<String, MapStoreTableCache> loadTableCaches(final Config serviceConfig) {
+        if (!serviceConfig.hasPath(CACHE_CONFIG_KEY)) {
+            return Collections.emptyMap();
+        }
+
+        final Config cacheConfig = serviceConfig.getConfig(CACHE_CONFIG_KEY);
+        return cacheConfig.root().keySet().stream()
+                .collect(Collectors.toMap(Function.identity(),
+                        tableName -> MapStoreTableCache.fromConfig(cacheConfig.getConfig(tableName))));
+    }
+}
@@ -0,0 +1,137 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Write sharding of a single {@link MapStore} table.
+ *
+ * The items of one logical hash value are spread over a
+ * fixed number of physical partitions by suffixing the
+ * hash value with a shard number. The shard is chosen
+ * from an item's range value, so an item always lives
+ * in the same shard while a query of a hash value must
+ * read every shard.
+ *
+ * @author tkral
+ */
+class MapStoreWriteSharding {
+
+    static final String HASH_FIELD_KEY = "hashField";
+    static final String SHARDS_KEY = "shards";
+
+    static final String SHARD_SEPARATOR = "#";
+
+    private final String hashField;
+    private final int shards;
+
+    @VisibleForTesting
+    MapStoreWriteSharding(final String hashField, final int shards) {
+        checkArgument(shards > 0, "Write shards must be positive: %s", shards);
+        this.hashField = hashField;
+        this.shards = shards;
+    }
+
+    /**
+     * Creates the sharding of a single table from
+     * its configuration under mapStore.writeShards.
+     */
+    static MapStoreWriteSharding fromConfig(final Config tableConfig) {
+        final int shards = tableConfig.getInt(SHARDS_KEY);
+        if (shards < 1) {
+            throw new ConfigException.BadValue(tableConfig.origin(), SHARDS_KEY,
+                    "Write shards must be positive: " + shards);
+        }
+
+        return new MapStoreWriteSharding(tableConfig.getString(HASH_FIELD_KEY), shards);
+    }
+
+    String getHashField() {
+        return hashField;
+    }
+
+    int getShards() {
+        return shards;
+    }
+
+    /**
+     * The physical key of the single item held
+     * at the given logical key.
+     */
+    MapStoreKey itemKey(final MapStoreKey key) {
+        checkShardedKey(key);
+        checkArgument(key.getRangeField().isPresent(),
+                "Write sharded items need a range key: %s", key.getHashField());
+
+        return shardKey(key, shardOf(key.getRangeKey().getValue()));
+    }
+
+    /**
+     * The physical keys of every shard of the given
+     * logical key, in shard order.
+     */
+    List<MapStoreKey> shardKeys(final MapStoreKey key) {
+        checkShardedKey(key);
+        return IntStream.range(0, shards).mapToObj(shard -> shardKey(key, shard)).collect(Collectors.toList());
+    }
+
+    /**
+     * Restores the logical hash value of an item
+     * which was read from any shard.
+     */
+    Map<String, Object> logicalItem(final Map<String, Object> item) {
+        final Object hashValue = item.get(hashField);
+        if (!(hashValue instanceof String) || !((String) hashValue).contains(SHARD_SEPARATOR)) {
+            return item;
+        }
+
+        final Map<String, Object> logicalItem = new LinkedHashMap<>(item);
+        final String shardedHashValue = (String) hashValue;
+        logicalItem.put(hashField, shardedHashValue.substring(0, shardedHashValue.lastIndexOf(SHARD_SEPARATOR)));
+        return logicalItem;
+    }
+
+    /**
+     * Drops the logical hash value from a payload, as
+     * the physical value is always taken from the key.
+     */
+    Map<String, Object> shardPayload(final Map<String, Object> payload) {
+        if (!payload.containsKey(hashField)) {
+            return payload;
+        }
+
+        final Map<String, Object> shardPayload = new LinkedHashMap<>(payload);
+        shardPayload.remove(hashField);
+        return shardPayload;
+    }
+
+    // Range values are hashed by their string form so that, for example,
+    // an Integer and a Long of the same value land in the same shard
+    @VisibleForTesting
+    int shardOf(final Object rangeValue) {
+        return Math.floorMod(Objects.toString(rangeValue).hashCode(), shards);
+    }
+
+    private void checkShardedKey(final MapStoreKey key) {
+        checkArgument(hashField.equals(key.getHashField()),
+                "Key field (%s) is not the write sharded hash field (%s)", key.getHashField(), hashField);
+    }
+
+    private MapStoreKey shardKey(final MapStoreKey key, final int shard) {
+        final MapStoreKey.Builder shardKeyBuilder = new MapStoreKey.Builder()
+                .setHash(hashField, key.getHashValue() + SHARD_SEPARATOR + shard);
+        key.getRangeField().ifPresent(rangeField -> shardKeyBuilder.setRange(rangeField, key.getRangeKey()));
+        return shardKeyBuilder.build();
+    }
+}
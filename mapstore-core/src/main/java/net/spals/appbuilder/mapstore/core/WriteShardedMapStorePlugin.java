@@ -0,0 +1,552 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterators;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapQueryPage;
+import net.spals.appbuilder.mapstore.core.model.MapStoreCacheStats;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreWriteCondition;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A {@link MapStorePlugin} which spreads the writes
+ * of hot hash values over several physical partitions.
+ *
+ * Tables without a {@link MapStoreWriteSharding} are passed
+ * straight through to the wrapped plugin. Queries of a
+ * sharded table read every shard and merge their items in
+ * range order, so sharding is invisible to callers.
+ *
+ * @author tkral
+ */
+class WriteShardedMapStorePlugin implements MapStorePlugin {
+
+    private final MapStorePlugin pluginDelegate;
+    private final Map<String, MapStoreWriteSharding> tableShardings;
+
+    @VisibleForTesting
+    WriteShardedMapStorePlugin(final MapStorePlugin pluginDelegate,
+                               final Map<String, MapStoreWriteSharding> tableShardings) {
+        this.pluginDelegate = pluginDelegate;
+        this.tableShardings = tableShardings;
+    }
+
+    /**
+     * Wraps the given plugin if any of its tables are
+     * write sharded.
+     */
+    static MapStorePlugin wrap(final MapStorePlugin storePlugin,
+                               final Map<String, MapStoreWriteSharding> tableShardings) {
+        return tableShardings.isEmpty() ? storePlugin : new WriteShardedMapStorePlugin(storePlugin, tableShardings);
+    }
+
+    @Override
+    public Predicate<Map.Entry> isNullOrEmptyEntry() {
+        return pluginDelegate.isNullOrEmptyEntry();
+    }
+
+    @Override
+    public Optional<AsyncMapStore> asyncPlugin() {
+        // A native asynchronous client would bypass the sharding
+        return Optional.empty();
+    }
+
+    @Override
+    public boolean createIndex(final String tableName,
+                               final String indexName,
+                               final MapStoreTableKey indexKey) {
+        return pluginDelegate.createIndex(tableName, indexName, indexKey);
+    }
+
+    @Override
+    public boolean createTable(final String tableName,
+                               final MapStoreTableKey tableKey) {
+        sharding(tableName).ifPresent(sharding -> {
+            checkArgument(sharding.getHashField().equals(tableKey.getHashField()),
+                    "Table hash field (%s) is not the write sharded hash field (%s)",
+                    tableKey.getHashField(), sharding.getHashField());
+            checkArgument(tableKey.getHashFieldType() == String.class && tableKey.getRangeField().isPresent(),
+                    "Write sharded table %s needs a String hash field and a range field", tableName);
+        });
+        return pluginDelegate.createTable(tableName, tableKey);
+    }
+
+    @Override
+    public boolean dropIndex(final String tableName,
+                             final String indexName) {
+        return pluginDelegate.dropIndex(tableName, indexName);
+    }
+
+    @Override
+    public boolean dropTable(final String tableName) {
+        return pluginDelegate.dropTable(tableName);
+    }
+
+    @Override
+    public void batchDeleteItems(final String tableName,
+                                 final List<MapStoreKey> keys) {
+        pluginDelegate.batchDeleteItems(tableName, keys.stream()
+                .map(key -> itemKey(tableName, key)).collect(Collectors.toList()));
+    }
+
+    @Override
+    public List<Map<String, Object>> batchGetItems(final String tableName,
+                                                   final List<MapStoreKey> keys) {
+        return logicalItems(tableName, pluginDelegate.batchGetItems(tableName, keys.stream()
+                .map(key -> itemKey(tableName, key)).collect(Collectors.toList())));
+    }
+
+    @Override
+    public List<Map<String, Object>> batchPutItems(final String tableName,
+                                                   final Map<MapStoreKey, Map<String, Object>> items) {
+        final Map<MapStoreKey, Map<String, Object>> shardItems = new LinkedHashMap<>();
+        items.forEach((key, payload) -> shardItems.put(itemKey(tableName, key), shardPayload(tableName, payload)));
+        return logicalItems(tableName, pluginDelegate.batchPutItems(tableName, shardItems));
+    }
+
+    @Override
+    public void deleteItem(final String tableName,
+                           final MapStoreKey key) {
+        pluginDelegate.deleteItem(tableName, itemKey(tableName, key));
+    }
+
+    @Override
+    public List<Map<String, Object>> getAllItems(final String tableName) {
+        return logicalItems(tableName, pluginDelegate.getAllItems(tableName));
+    }
+
+    @Override
+    public MapQueryPage getAllItemsPage(final String tableName,
+                                        final MapQueryOptions options) {
+        final MapQueryPage page = pluginDelegate.getAllItemsPage(tableName, options);
+        return new MapQueryPage.Builder().mergeFrom(page)
+                .clearItems().addAllItems(logicalItems(tableName, page.getItems()))
+                .build();
+    }
+
+    @Override
+    public Optional<MapStoreCacheStats> getCacheStats(final String tableName) {
+        return pluginDelegate.getCacheStats(tableName);
+    }
+
+    @Override
+    public Optional<Map<String, Object>> getFirstItem(final String tableName,
+                                                      final MapStoreKey key,
+                                                      final Order order) {
+        final Optional<MapStoreWriteSharding> sharding = sharding(tableName);
+        if (!sharding.isPresent()) {
+            return pluginDelegate.getFirstItem(tableName, key, order);
+        }
+
+        // The first item overall is the first of the shards' first items
+        checkRangeQuery(tableName, key);
+        return sharding.get().shardKeys(key).stream()
+                .map(shardKey -> pluginDelegate.getFirstItem(tableName, shardKey, order))
+                .filter(Optional::isPresent).map(Optional::get)
+                .min(rangeOrder(key.getRangeField().get(), order))
+                .map(sharding.get()::logicalItem);
+    }
+
+    @Override
+    public List<Map<String, Object>> getIndexItems(final String tableName,
+                                                   final String indexName,
+                                                   final MapStoreKey indexKey,
+                                                   final MapQueryOptions options) {
+        return logicalItems(tableName, pluginDelegate.getIndexItems(tableName, indexName, indexKey, options));
+    }
+
+    @Override
+    public Optional<Map<String, Object>> getItem(final String tableName,
+                                                 final MapStoreKey key) {
+        return pluginDelegate.getItem(tableName, itemKey(tableName, key)).map(item -> logicalItem(tableName, item));
+    }
+
+    @Override
+    public Optional<Map<String, Object>> getItem(final String tableName,
+                                                 final MapStoreKey key,
+                                                 final Set<String> projection) {
+        return pluginDelegate.getItem(tableName, itemKey(tableName, key), projection)
+                .map(item -> logicalItem(tableName, item));
+    }
+
+    @Override
+    public List<Map<String, Object>> getItems(final String tableName,
+                                              final MapStoreKey key,
+                                              final MapQueryOptions options) {
+        if (!sharding(tableName).isPresent()) {
+            return pluginDelegate.getItems(tableName, key, options);
+        }
+
+        // Each shard may alone satisfy the limit, so each is read up to the limit
+        final List<MapStoreKey> shardKeys = shardKeys(tableName, key);
+        final MapQueryOptions shardOptions = shardOptions(key, options);
+        final List<List<Map<String, Object>>> shardItems = pluginDelegate.asyncPlugin()
+                .map(asyncStore -> getShardItemsConcurrently(asyncStore, tableName, shardKeys, shardOptions))
+                .orElseGet(() -> shardKeys.stream().map(shardKey -> pluginDelegate.getItems(tableName, shardKey, shardOptions))
+                        .collect(Collectors.toList()));
+        final Iterator<Map<String, Object>> mergedItems = mergeItems(tableName, key, options,
+                shardItems.stream().map(List::iterator).collect(Collectors.toList()));
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(mergedItems, Spliterator.ORDERED), false)
+                .limit(options.getLimit().map(Integer::longValue).orElse(Long.MAX_VALUE))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Reads a page of a sharded table by merging the pages
+     * of its shards. The continuation token holds each shard's
+     * own token along with the number of items of that shard's
+     * page which were already returned, so the next page
+     * resumes each shard exactly where the merge left off.
+     */
+    @Override
+    public MapQueryPage getItemsPage(final String tableName,
+                                     final MapStoreKey key,
+                                     final MapQueryOptions options) {
+        if (!sharding(tableName).isPresent()) {
+            return pluginDelegate.getItemsPage(tableName, key, options);
+        }
+
+        final List<MapStoreKey> shardKeys = shardKeys(tableName, key);
+        final List<ShardPosition> shardPositions = options.getContinuationToken()
+                .map(token -> decodeContinuationToken(tableName, token, shardKeys.size()))
+                .orElseGet(() -> shardKeys.stream().map(shardKey -> ShardPosition.START).collect(Collectors.toList()));
+        final List<ShardCursor> shardCursors = IntStream.range(0, shardKeys.size())
+                .mapToObj(i -> new ShardCursor(tableName, shardKeys.get(i), shardOptions(key, options), shardPositions.get(i)))
+                .collect(Collectors.toList());
+
+        final Comparator<Map<String, Object>> rangeOrder = rangeOrder(key.getRangeField().get(), options.getOrder());
+        final int pageSize = options.getPageSize().orElse(MapQueryOptions.DEFAULT_PAGE_SIZE);
+        final MapQueryPage.Builder pageBuilder = new MapQueryPage.Builder();
+        for (int i = 0; i < pageSize; i++) {
+            final Optional<ShardCursor> nextCursor = shardCursors.stream().filter(shardCursor -> shardCursor.peek().isPresent())
+                    .min(Comparator.comparing(shardCursor -> shardCursor.peek().get(), rangeOrder));
+            if (!nextCursor.isPresent()) {
+                break;
+            }
+            pageBuilder.addItems(logicalShardItem(tableName, key, options, nextCursor.get().next()));
+        }
+
+        if (shardCursors.stream().anyMatch(ShardCursor::hasMore)) {
+            pageBuilder.setContinuationToken(encodeContinuationToken(shardCursors.stream()
+                    .map(ShardCursor::position).collect(Collectors.toList())));
+        }
+        return pageBuilder.build();
+    }
+
+    @Override
+    public Map<String, Object> incrementItem(final String tableName,
+                                             final MapStoreKey key,
+                                             final Map<String, Long> increments) {
+        return logicalItem(tableName, pluginDelegate.incrementItem(tableName, itemKey(tableName, key), increments));
+    }
+
+    @Override
+    public Map<String, Object> putItem(final String tableName,
+                                       final MapStoreKey key,
+                                       final Map<String, Object> payload) {
+        return logicalItem(tableName,
+                pluginDelegate.putItem(tableName, itemKey(tableName, key), shardPayload(tableName, payload)));
+    }
+
+    @Override
+    public Optional<Map<String, Object>> putItem(final String tableName,
+                                                 final MapStoreKey key,
+                                                 final Map<String, Object> payload,
+                                                 final MapStoreWriteCondition condition) {
+        return pluginDelegate.putItem(tableName, itemKey(tableName, key), shardPayload(tableName, payload), condition)
+                .map(item -> logicalItem(tableName, item));
+    }
+
+    @Override
+    public Stream<Map<String, Object>> streamAllItems(final String tableName,
+                                                      final MapQueryOptions options) {
+        return pluginDelegate.streamAllItems(tableName, options).map(item -> logicalItem(tableName, item));
+    }
+
+    @Override
+    public Stream<Map<String, Object>> streamItems(final String tableName,
+                                                   final MapStoreKey key,
+                                                   final MapQueryOptions options) {
+        if (!sharding(tableName).isPresent()) {
+            return pluginDelegate.streamItems(tableName, key, options);
+        }
+
+        // Shards are streamed side by side, so the merge reads each shard only as far as it is consumed
+        final List<Stream<Map<String, Object>>> shardStreams = shardKeys(tableName, key).stream()
+                .map(shardKey -> pluginDelegate.streamItems(tableName, shardKey, shardOptions(key, options)))
+                .collect(Collectors.toList());
+        final Iterator<Map<String, Object>> mergedItems = mergeItems(tableName, key, options,
+                shardStreams.stream().map(Stream::iterator).collect(Collectors.toList()));
+
+        final Stream<Map<String, Object>> itemStream = StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(mergedItems, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> shardStreams.forEach(Stream::close));
+        return options.getLimit().map(limit -> itemStream.limit(limit)).orElse(itemStream);
+    }
+
+    @Override
+    public Map<String, Object> updateItem(final String tableName,
+                                          final MapStoreKey key,
+                                          final Map<String, Object> payload) {
+        return logicalItem(tableName,
+                pluginDelegate.updateItem(tableName, itemKey(tableName, key), shardPayload(tableName, payload)));
+    }
+
+    @Override
+    public Optional<Map<String, Object>> updateItem(final String tableName,
+                                                    final MapStoreKey key,
+                                                    final Map<String, Object> payload,
+                                                    final MapStoreWriteCondition condition) {
+        return pluginDelegate.updateItem(tableName, itemKey(tableName, key), shardPayload(tableName, payload), condition)
+                .map(item -> logicalItem(tableName, item));
+    }
+
+    @SuppressWarnings("unchecked")
+    @VisibleForTesting
+    static Comparator<Map<String, Object>> rangeOrder(final String rangeField, final Order order) {
+        final Comparator<Map<String, Object>> ascending =
+                Comparator.comparing(item -> (Comparable<Object>) item.get(rangeField));
+        return order == Order.ASC ? ascending : ascending.reversed();
+    }
+
+    @VisibleForTesting
+    static String encodeContinuationToken(final List<ShardPosition> shardPositions) {
+        final String positions = shardPositions.stream().map(ShardPosition::encode).collect(Collectors.joining(","));
+        return Base64.getUrlEncoder().encodeToString(positions.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @VisibleForTesting
+    static List<ShardPosition> decodeContinuationToken(final String tableName,
+                                                       final String continuationToken,
+                                                       final int shardCount) {
+        try {
+            final String positions = new String(Base64.getUrlDecoder().decode(continuationToken), StandardCharsets.UTF_8);
+            final List<ShardPosition> shardPositions = Arrays.stream(positions.split(",", -1))
+                    .map(ShardPosition::decode).collect(Collectors.toList());
+            checkArgument(shardPositions.size() == shardCount);
+            return shardPositions;
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid continuation token for write sharded table " + tableName
+                    + ": " + continuationToken, e);
+        }
+    }
+
+    // Issue all shard reads through the wrapped plugin's asynchronous view before waiting on any of them
+    private List<List<Map<String, Object>>> getShardItemsConcurrently(final AsyncMapStore asyncStore,
+                                                                      final String tableName,
+                                                                      final List<MapStoreKey> shardKeys,
+                                                                      final MapQueryOptions shardOptions) {
+        final List<CompletableFuture<List<Map<String, Object>>>> shardFutures = shardKeys.stream()
+                .map(shardKey -> asyncStore.getItems(tableName, shardKey, shardOptions))
+                .collect(Collectors.toList());
+        try {
+            return shardFutures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void checkRangeQuery(final String tableName, final MapStoreKey key) {
+        checkArgument(key.getRangeField().isPresent(),
+                "Queries of write sharded table %s need a range field", tableName);
+    }
+
+    private MapStoreKey itemKey(final String tableName, final MapStoreKey key) {
+        return sharding(tableName).map(sharding -> sharding.itemKey(key)).orElse(key);
+    }
+
+    private Map<String, Object> logicalItem(final String tableName, final Map<String, Object> item) {
+        return sharding(tableName).map(sharding -> sharding.logicalItem(item)).orElse(item);
+    }
+
+    private List<Map<String, Object>> logicalItems(final String tableName, final List<Map<String, Object>> items) {
+        return sharding(tableName)
+                .map(sharding -> items.stream().map(sharding::logicalItem).collect(Collectors.toList()))
+                .orElse(items);
+    }
+
+    // Merge shards' items, each in range order, into one logical result
+    private Iterator<Map<String, Object>> mergeItems(final String tableName,
+                                                     final MapStoreKey key,
+                                                     final MapQueryOptions options,
+                                                     final List<Iterator<Map<String, Object>>> shardItems) {
+        final String rangeField = key.getRangeField().get();
+        final Iterator<Map<String, Object>> mergedItems =
+                Iterators.mergeSorted(shardItems, rangeOrder(rangeField, options.getOrder()));
+
+        return Iterators.transform(mergedItems, item -> logicalShardItem(tableName, key, options, item));
+    }
+
+    // The logical item of a shard's item, without the range field if it was read for the merge only
+    private Map<String, Object> logicalShardItem(final String tableName,
+                                                 final MapStoreKey key,
+                                                 final MapQueryOptions options,
+                                                 final Map<String, Object> item) {
+        final Map<String, Object> logicalItem = sharding(tableName).get().logicalItem(item);
+        final boolean projectedRange = options.getProjection().isEmpty()
+                || options.getProjection().contains(key.getRangeField().get());
+        return projectedRange ? logicalItem : projectItem(logicalItem, options.getProjection());
+    }
+
+    private Optional<MapStoreWriteSharding> sharding(final String tableName) {
+        return Optional.ofNullable(tableShardings.get(tableName));
+    }
+
+    private List<MapStoreKey> shardKeys(final String tableName, final MapStoreKey key) {
+        checkRangeQuery(tableName, key);
+        return sharding(tableName).get().shardKeys(key);
+    }
+
+    // Shards' items are merged by their range values, so these must be read even if not projected
+    private MapQueryOptions shardOptions(final MapStoreKey key, final MapQueryOptions options) {
+        final String rangeField = key.getRangeField().get();
+        if (options.getProjection().isEmpty() || options.getProjection().contains(rangeField)) {
+            return options;
+        }
+        return new MapQueryOptions.Builder().mergeFrom(options).addProjection(rangeField).build();
+    }
+
+    private Map<String, Object> shardPayload(final String tableName, final Map<String, Object> payload) {
+        return sharding(tableName).map(sharding -> sharding.shardPayload(payload)).orElse(payload);
+    }
+
+    /**
+     * Where a paged query of a single shard resumes: the
+     * token of the shard's current page and the number of
+     * that page's items which were already returned. A
+     * shard which has no items left is exhausted.
+     */
+    @VisibleForTesting
+    static class ShardPosition {
+        static final ShardPosition START = new ShardPosition(Optional.empty(), 0);
+        static final ShardPosition EXHAUSTED = new ShardPosition(Optional.empty(), -1);
+
+        private final Optional<String> pageToken;
+        private final int skip;
+
+        ShardPosition(final Optional<String> pageToken, final int skip) {
+            this.pageToken = pageToken;
+            this.skip = skip;
+        }
+
+        boolean isExhausted() {
+            return skip < 0;
+        }
+
+        private String encode() {
+            return isExhausted() ? "-" : skip + ":" + pageToken
+                    .map(token -> Base64.getUrlEncoder().encodeToString(token.getBytes(StandardCharsets.UTF_8)))
+                    .orElse("");
+        }
+
+        private static ShardPosition decode(final String encodedPosition) {
+            if ("-".equals(encodedPosition)) {
+                return EXHAUSTED;
+            }
+
+            final int separator = encodedPosition.indexOf(':');
+            checkArgument(separator > 0);
+            final int skip = Integer.parseInt(encodedPosition.substring(0, separator));
+            checkArgument(skip >= 0);
+            final String encodedToken = encodedPosition.substring(separator + 1);
+            return new ShardPosition(Optional.of(encodedToken).filter(token -> !token.isEmpty())
+                    .map(token -> new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)), skip);
+        }
+    }
+
+    // Reads a single shard's items page by page, as far as the merge consumes them
+    private class ShardCursor {
+        private final String tableName;
+        private final MapStoreKey shardKey;
+        private final MapQueryOptions shardOptions;
+
+        private Optional<String> pageToken;
+        private int skip;
+        private List<Map<String, Object>> pageItems;
+        private Optional<String> nextPageToken;
+
+        private ShardCursor(final String tableName,
+                            final MapStoreKey shardKey,
+                            final MapQueryOptions shardOptions,
+                            final ShardPosition shardPosition) {
+            this.tableName = tableName;
+            this.shardKey = shardKey;
+            this.shardOptions = shardOptions;
+            this.pageToken = shardPosition.pageToken;
+            this.skip = Math.max(shardPosition.skip, 0);
+            if (shardPosition.isExhausted()) {
+                this.pageItems = Collections.emptyList();
+                this.nextPageToken = Optional.empty();
+            }
+        }
+
+        private boolean hasMore() {
+            return pageItems == null || skip < pageItems.size() || nextPageToken.isPresent();
+        }
+
+        private Optional<Map<String, Object>> peek() {
+            if (pageItems == null) {
+                loadPage();
+            }
+            // Pages may be empty, so skip ahead until an item or the end of the shard
+            while (skip >= pageItems.size() && nextPageToken.isPresent()) {
+                pageToken = nextPageToken;
+                skip = 0;
+                loadPage();
+            }
+            return skip < pageItems.size() ? Optional.of(pageItems.get(skip)) : Optional.empty();
+        }
+
+        private Map<String, Object> next() {
+            return peek().map(item -> {
+                skip++;
+                return item;
+            }).orElseThrow(NoSuchElementException::new);
+        }
+
+        private ShardPosition position() {
+            return hasMore() ? new ShardPosition(pageToken, skip) : ShardPosition.EXHAUSTED;
+        }
+
+        private void loadPage() {
+            final MapQueryOptions.Builder pageOptions = new MapQueryOptions.Builder().mergeFrom(shardOptions)
+                    .clearContinuationToken();
+            pageToken.ifPresent(pageOptions::setContinuationToken);
+            final MapQueryPage page = pluginDelegate.getItemsPage(tableName, shardKey, pageOptions.build());
+            pageItems = page.getItems();
+            nextPageToken = page.getContinuationToken();
+        }
+    }
+}
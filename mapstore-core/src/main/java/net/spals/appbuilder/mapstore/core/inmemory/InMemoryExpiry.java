@@ -0,0 +1,100 @@
+package net.spals.appbuilder.mapstore.core.inmemory;
+
+import com.google.common.collect.ObjectArrays;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * The expiry index of an in-memory table
+ * which has a time to live.
+ *
+ * Each index entry is keyed by an item's expiry time,
+ * in epoch millis, followed by the item's table key,
+ * so that expired items are found in expiry order
+ * without a scan of the table. The current expiry
+ * time of each item is kept alongside, and an entry
+ * which no longer matches it is stale.
+ *
+ * @author tkral
+ */
+class InMemoryExpiry {
+
+    private final ConcurrentSkipListMap<Object[], Boolean> indexMap =
+            new ConcurrentSkipListMap<>(InMemoryTable.KEY_COMPARATOR);
+    private final ConcurrentSkipListMap<Object[], Long> expiresAtMap =
+            new ConcurrentSkipListMap<>(InMemoryTable.KEY_COMPARATOR);
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final long timeToLiveMillis;
+
+    InMemoryExpiry(final long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    ConcurrentSkipListMap<Object[], Boolean> getIndexMap() {
+        return indexMap;
+    }
+
+    Optional<Long> getExpiresAt(final Object[] keyArray) {
+        return Optional.ofNullable(expiresAtMap.get(keyArray));
+    }
+
+    /**
+     * Returns up to the given number of index entries which
+     * expire at or before the given time, earliest first.
+     */
+    List<Object[]> getExpiredEntryKeyArrays(final long nowMillis, final int limit) {
+        // A null trailing element bounds the range above all entries which expire at the given time
+        return indexMap.headMap(new Object[]{nowMillis, null}).keySet().stream()
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Restarts the given item's time to live from the given time.
+     *
+     * The new entry is indexed before it becomes the item's
+     * expiry time, so that an item's current expiry time is
+     * always indexed.
+     */
+    void refresh(final Object[] keyArray, final long nowMillis) {
+        final long expiresAt = nowMillis + timeToLiveMillis;
+        indexMap.put(toEntryKeyArray(expiresAt, keyArray), Boolean.TRUE);
+        Optional.ofNullable(expiresAtMap.put(keyArray, expiresAt))
+                .filter(oldExpiresAt -> oldExpiresAt != expiresAt)
+                .ifPresent(oldExpiresAt -> indexMap.remove(toEntryKeyArray(oldExpiresAt, keyArray)));
+    }
+
+    /**
+     * Removes the given item's expiry time, unless
+     * it has been refreshed in the meantime.
+     */
+    void remove(final Object[] keyArray, final long expiresAt) {
+        expiresAtMap.remove(keyArray, expiresAt);
+    }
+
+    /**
+     * Claims the sweep of this expiry index.
+     *
+     * @return false if another thread is already sweeping it
+     */
+    boolean startSweep() {
+        return sweeping.compareAndSet(false, true);
+    }
+
+    void endSweep() {
+        sweeping.set(false);
+    }
+
+    Object[] toEntryKeyArray(final long expiresAt, final Object[] keyArray) {
+        return ObjectArrays.concat(expiresAt, keyArray);
+    }
+
+    Object[] toTableKeyArray(final Object[] entryKeyArray) {
+        return Arrays.copyOfRange(entryKeyArray, 1, entryKeyArray.length);
+    }
+}
@@ -0,0 +1,121 @@
+package net.spals.appbuilder.mapstore.core.inmemory;
+
+import com.google.common.collect.ObjectArrays;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static net.spals.appbuilder.mapstore.core.model.MapStoreKeyValues.coerceKeyValue;
+
+/**
+ * A secondary index of an in-memory table.
+ *
+ * Each index entry is keyed by the indexed field
+ * values followed by the key of the item in its
+ * table, so that items which share indexed values
+ * are held in table key order. Items which do not
+ * hold all of the index's fields, or which hold
+ * values of the wrong type, are left out of the index.
+ *
+ * Entries are kept in step with the table's writes
+ * without locks, so an entry may briefly outlive its
+ * item. Readers must check each entry against the item
+ * which the table currently holds (see {@link #isEntryOf}).
+ *
+ * @author tkral
+ */
+class InMemoryIndex {
+
+    private final ConcurrentSkipListMap<Object[], Boolean> map =
+            new ConcurrentSkipListMap<>(InMemoryTable.KEY_COMPARATOR);
+    private final MapStoreTableKey indexKey;
+
+    InMemoryIndex(final MapStoreTableKey indexKey) {
+        this.indexKey = indexKey;
+    }
+
+    ConcurrentSkipListMap<Object[], Boolean> getMap() {
+        return map;
+    }
+
+    MapStoreTableKey getIndexKey() {
+        return indexKey;
+    }
+
+    /**
+     * Creates the index entry key for the given item.
+     * Returns {@link Optional#empty()} if the item is
+     * left out of the index.
+     */
+    Optional<Object[]> toEntryKeyArray(final Object[] tableKeyArray, final Map<String, Object> item) {
+        final Optional<Object> hashValue = toIndexValue(item, indexKey.getHashField(), indexKey.getHashFieldType());
+        if (!indexKey.getRangeField().isPresent()) {
+            return hashValue.map(value -> ObjectArrays.concat(value, tableKeyArray));
+        }
+
+        return hashValue.flatMap(value -> toIndexValue(item, indexKey.getRangeField().get(),
+                indexKey.getRangeFieldType().get())
+                .map(rangeValue -> ObjectArrays.concat(new Object[]{value, rangeValue}, tableKeyArray, Object.class)));
+    }
+
+    Object[] toTableKeyArray(final Object[] entryKeyArray) {
+        return Arrays.copyOfRange(entryKeyArray, indexKey.getRangeField().isPresent() ? 2 : 1, entryKeyArray.length);
+    }
+
+    /**
+     * Whether the given entry belongs to the given item,
+     * which is the item currently held under the entry's
+     * table key (or null if there is none).
+     */
+    boolean isEntryOf(final Object[] entryKeyArray, final Map<String, Object> item) {
+        return item != null && toEntryKeyArray(toTableKeyArray(entryKeyArray), item)
+                .map(itemEntryKeyArray -> Arrays.equals(itemEntryKeyArray, entryKeyArray))
+                .orElse(false);
+    }
+
+    /**
+     * Moves the entry of an item which was atomically
+     * swapped from the old item to the new item (either
+     * of which may be null).
+     *
+     * The old entry is removed before the table's current
+     * item is checked, and is put back if that item still
+     * holds it. So a concurrent write of the same item can
+     * never be left without its entry.
+     */
+    void update(final InMemoryTable table,
+                final Object[] tableKeyArray,
+                final Map<String, Object> oldItem,
+                final Map<String, Object> newItem) {
+        final Optional<Object[]> newEntryKeyArray = Optional.ofNullable(newItem)
+                .flatMap(item -> toEntryKeyArray(tableKeyArray, item));
+        newEntryKeyArray.ifPresent(entryKeyArray -> map.put(entryKeyArray, Boolean.TRUE));
+
+        Optional.ofNullable(oldItem).flatMap(item -> toEntryKeyArray(tableKeyArray, item))
+                .filter(entryKeyArray -> !newEntryKeyArray.filter(newEntry -> Arrays.equals(newEntry, entryKeyArray))
+                        .isPresent())
+                .ifPresent(entryKeyArray -> removeEntry(table, entryKeyArray));
+    }
+
+    /**
+     * Removes an entry which does not belong to the table's
+     * current item, unless that item holds it by now.
+     */
+    void removeEntry(final InMemoryTable table, final Object[] entryKeyArray) {
+        map.remove(entryKeyArray);
+        if (isEntryOf(entryKeyArray, table.getMap().get(toTableKeyArray(entryKeyArray)))) {
+            map.put(entryKeyArray, Boolean.TRUE);
+        }
+    }
+
+    private static Optional<Object> toIndexValue(final Map<String, Object> item,
+                                                 final String field,
+                                                 final Class<?> fieldType) {
+        return Optional.ofNullable(item.get(field))
+                .map(fieldValue -> coerceKeyValue(fieldType, fieldValue))
+                .filter(fieldType::isInstance);
+    }
+}
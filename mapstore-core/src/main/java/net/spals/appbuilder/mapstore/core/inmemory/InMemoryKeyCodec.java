@@ -0,0 +1,119 @@
+package net.spals.appbuilder.mapstore.core.inmemory;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Encodes the composite keys of in-memory tables
+ * into bytes, and back.
+ *
+ * Each key value is written with a tag of its type,
+ * so that keys are decoded without a table's key
+ * schema. Only the value types listed here can be
+ * decoded, so that caller-supplied bytes (such as
+ * continuation tokens) never instantiate other classes.
+ *
+ * @author tkral
+ */
+class InMemoryKeyCodec {
+
+    private static final List<Class<?>> KEY_TYPES = ImmutableList.of(String.class, Long.class, Integer.class,
+            Short.class, Byte.class, Double.class, Float.class, Boolean.class, Character.class, UUID.class,
+            Date.class, BigDecimal.class, BigInteger.class);
+
+    private InMemoryKeyCodec() {  }
+
+    static byte[] encode(final Object[] keyArray) {
+        final ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+        try (final DataOutputStream keyOutput = new DataOutputStream(keyBytes)) {
+            keyOutput.writeInt(keyArray.length);
+            for (final Object keyValue : keyArray) {
+                writeKeyValue(keyOutput, keyValue);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return keyBytes.toByteArray();
+    }
+
+    static Object[] decode(final byte[] keyBytes) {
+        try (final DataInputStream keyInput = new DataInputStream(new ByteArrayInputStream(keyBytes))) {
+            final int length = keyInput.readInt();
+            // A key is never longer than its encoding, which guards against allocating huge arrays
+            if (length < 0 || length > keyBytes.length) {
+                throw new IllegalArgumentException("Invalid in-memory key length: " + length);
+            }
+
+            final Object[] keyArray = new Object[length];
+            for (int i = 0; i < length; i++) {
+                keyArray[i] = readKeyValue(keyInput);
+            }
+            if (keyInput.read() != -1) {
+                throw new IllegalArgumentException("Trailing bytes after in-memory key");
+            }
+            return keyArray;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid in-memory key", e);
+        }
+    }
+
+    private static void writeKeyValue(final DataOutputStream keyOutput, final Object keyValue) throws IOException {
+        final int tag = keyValue == null ? -1 : KEY_TYPES.indexOf(keyValue.getClass());
+        if (keyValue != null && tag < 0) {
+            throw new IllegalArgumentException("Cannot encode in-memory key value of " + keyValue.getClass());
+        }
+
+        keyOutput.writeByte(tag);
+        switch (tag) {
+            case -1: break;
+            case 0: keyOutput.writeUTF((String) keyValue); break;
+            case 1: keyOutput.writeLong((Long) keyValue); break;
+            case 2: keyOutput.writeInt((Integer) keyValue); break;
+            case 3: keyOutput.writeShort((Short) keyValue); break;
+            case 4: keyOutput.writeByte((Byte) keyValue); break;
+            case 5: keyOutput.writeDouble((Double) keyValue); break;
+            case 6: keyOutput.writeFloat((Float) keyValue); break;
+            case 7: keyOutput.writeBoolean((Boolean) keyValue); break;
+            case 8: keyOutput.writeChar((Character) keyValue); break;
+            case 9:
+                keyOutput.writeLong(((UUID) keyValue).getMostSignificantBits());
+                keyOutput.writeLong(((UUID) keyValue).getLeastSignificantBits());
+                break;
+            case 10: keyOutput.writeLong(((Date) keyValue).getTime()); break;
+            // BigDecimal and BigInteger
+            default: keyOutput.writeUTF(keyValue.toString()); break;
+        }
+    }
+
+    private static Object readKeyValue(final DataInputStream keyInput) throws IOException {
+        final int tag = keyInput.readByte();
+        switch (tag) {
+            case -1: return null;
+            case 0: return keyInput.readUTF();
+            case 1: return keyInput.readLong();
+            case 2: return keyInput.readInt();
+            case 3: return keyInput.readShort();
+            case 4: return keyInput.readByte();
+            case 5: return keyInput.readDouble();
+            case 6: return keyInput.readFloat();
+            case 7: return keyInput.readBoolean();
+            case 8: return keyInput.readChar();
+            case 9: return new UUID(keyInput.readLong(), keyInput.readLong());
+            case 10: return new Date(keyInput.readLong());
+            case 11: return new BigDecimal(keyInput.readUTF());
+            case 12: return new BigInteger(keyInput.readUTF());
+            default: throw new IllegalArgumentException("Unknown in-memory key value tag: " + tag);
+        }
+    }
+}
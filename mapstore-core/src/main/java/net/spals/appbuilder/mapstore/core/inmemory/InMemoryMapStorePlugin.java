@@ -0,0 +1,588 @@
+package net.spals.appbuilder.mapstore.core.inmemory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
+import net.spals.appbuilder.annotations.service.AutoBindInMap;
+import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapQueryPage;
+import net.spals.appbuilder.mapstore.core.model.MapRangeKey;
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator;
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.Extended;
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.Standard;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreWriteCondition;
+import net.spals.appbuilder.mapstore.core.model.MultiValueMapRangeKey.ListValueHolder;
+import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.TwoValueHolder;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static net.spals.appbuilder.mapstore.core.model.MapStoreKeyValues.coerceKeyValue;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+
+/**
+ * A {@link MapStorePlugin} which holds every table
+ * in the memory of the current process.
+ *
+ * Each table is a {@link java.util.concurrent.ConcurrentSkipListMap}
+ * of immutable items, so that items are never serialized
+ * and reads are never blocked. Items are returned as
+ * they are held and must not be modified by callers.
+ *
+ * Writes take no locks. Conditional writes and updates
+ * are swapped in with a compare-and-set on the item
+ * they were computed from, which is retried if another
+ * write got there first.
+ *
+ * Secondary indexes are skip lists of index entries, which
+ * each write updates once it has swapped in its item. Index
+ * queries check each entry against the item which the table
+ * holds, so an entry which briefly outlives its item is
+ * never read.
+ *
+ * Items of tables with a time to live are expired by
+ * a sweep of the table's expiry index, which runs as the
+ * table is accessed and removes at most
+ * {@link #EXPIRY_SWEEP_BATCH_SIZE} items at a time. Expired
+ * items may still be read until they have been swept.
+ *
+ * @author tkral
+ */
+@AutoBindInMap(baseClass = MapStorePlugin.class, key = "inMemory")
+class InMemoryMapStorePlugin implements MapStorePlugin {
+
+    // The most items expired from a table at a time, so that a large backlog does not stall a single access
+    static final int EXPIRY_SWEEP_BATCH_SIZE = 1000;
+
+    private final ConcurrentMap<String, InMemoryTable> tables = new ConcurrentHashMap<>();
+
+    @Inject
+    InMemoryMapStorePlugin() {  }
+
+    @Override
+    public boolean createIndex(final String tableName,
+                               final String indexName,
+                               final MapStoreTableKey indexKey) {
+        final InMemoryTable table = findTable(tableName).orElseThrow(() ->
+                new IllegalArgumentException("Cannot create index " + indexName + " on unknown in-memory table " + tableName));
+        table.putIndex(indexName, indexKey);
+        return true;
+    }
+
+    @Override
+    public boolean createTable(final String tableName,
+                               final MapStoreTableKey tableKey) {
+        tables.putIfAbsent(tableName, new InMemoryTable(tableKey));
+        return true;
+    }
+
+    @Override
+    public boolean dropIndex(final String tableName,
+                             final String indexName) {
+        findTable(tableName).ifPresent(table -> table.removeIndex(indexName));
+        return true;
+    }
+
+    @Override
+    public boolean dropTable(final String tableName) {
+        tables.remove(tableName);
+        return true;
+    }
+
+    @Override
+    public void batchDeleteItems(final String tableName,
+                                 final List<MapStoreKey> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        final InMemoryTable table = getTable(tableName);
+        keys.forEach(key -> removeItem(table, table.toKeyArray(key)));
+    }
+
+    @Override
+    public List<Map<String, Object>> batchGetItems(final String tableName,
+                                                   final List<MapStoreKey> keys) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final InMemoryTable table = getTable(tableName);
+        return keys.stream()
+                .map(key -> table.getMap().get(table.toKeyArray(key)))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Map<String, Object>> batchPutItems(final String tableName,
+                                                   final Map<MapStoreKey, Map<String, Object>> items) {
+        if (items.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final InMemoryTable table = getTable(tableName);
+        return items.entrySet().stream()
+                .map(entry -> {
+                    final Object[] keyArray = table.toKeyArray(entry.getKey());
+                    final Map<String, Object> item = createItem(entry.getKey(), keyArray, entry.getValue());
+                    refreshExpiry(table, keyArray);
+                    table.updateIndexes(keyArray, table.getMap().put(keyArray, item), item);
+                    return item;
+                })
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void deleteItem(final String tableName,
+                           final MapStoreKey key) {
+        final InMemoryTable table = getTable(tableName);
+        removeItem(table, table.toKeyArray(key));
+    }
+
+    @Override
+    public List<Map<String, Object>> getAllItems(final String tableName) {
+        return new ArrayList<>(getTable(tableName).getMap().values());
+    }
+
+    @Override
+    public MapQueryPage getAllItemsPage(final String tableName,
+                                        final MapQueryOptions options) {
+        final NavigableMap<Object[], Map<String, Object>> tableMap = getTable(tableName).getMap();
+        return getPage(options.getOrder() == Order.ASC ? tableMap : tableMap.descendingMap(), options);
+    }
+
+    @Override
+    public List<Map<String, Object>> getIndexItems(final String tableName,
+                                                   final String indexName,
+                                                   final MapStoreKey indexKey,
+                                                   final MapQueryOptions options) {
+        final InMemoryTable table = findTable(tableName).orElseThrow(() ->
+                new IllegalArgumentException("Cannot query index " + indexName + " on unknown in-memory table " + tableName));
+        sweepExpiredItems(table, System.currentTimeMillis());
+        final InMemoryIndex inMemoryIndex = table.getIndex(indexName).orElseThrow(() ->
+                new IllegalArgumentException("Unknown index " + indexName + " on in-memory table " + tableName));
+        final MapStoreTableKey index = inMemoryIndex.getIndexKey();
+        checkArgument(index.getHashField().equals(indexKey.getHashField())
+                        && (!indexKey.getRangeField().isPresent() || indexKey.getRangeField().equals(index.getRangeField())),
+                "Key fields (%s, %s) do not match the fields of index %s", indexKey.getHashField(),
+                indexKey.getRangeField().orElse(null), indexName);
+
+        // A key without a range value matches every index entry of its hash value
+        final MapRangeKey<?> rangeKey = indexKey.getRangeKey().getOperator() == Standard.NONE
+                ? all() : indexKey.getRangeKey();
+        final NavigableMap<Object[], Boolean> rangeMap = getRangeMap(inMemoryIndex.getMap(),
+                new Object[]{coerceKeyValue(index.getHashFieldType(), indexKey.getHashValue())},
+                rangeKey, rangeValue -> index.getRangeFieldType()
+                        .map(rangeType -> coerceKeyValue(rangeType, rangeValue))
+                        .orElse(rangeValue));
+
+        final Stream<Map<String, Object>> itemStream =
+                (options.getOrder() == Order.ASC ? rangeMap : rangeMap.descendingMap()).keySet().stream()
+                        .map(entryKeyArray -> getIndexedItem(table, inMemoryIndex, entryKeyArray))
+                        .filter(Optional::isPresent).map(Optional::get);
+        return options.getLimit().map(limit -> itemStream.limit(limit)).orElse(itemStream)
+                .map(item -> projectItem(item, options.getProjection()))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Optional<Map<String, Object>> getItem(final String tableName,
+                                                 final MapStoreKey key) {
+        final InMemoryTable table = getTable(tableName);
+        return Optional.ofNullable(table.getMap().get(table.toKeyArray(key)));
+    }
+
+    @Override
+    public List<Map<String, Object>> getItems(final String tableName,
+                                              final MapStoreKey key,
+                                              final MapQueryOptions options) {
+        return getItems(getRangeMap(getTable(tableName), key), options);
+    }
+
+    @Override
+    public MapQueryPage getItemsPage(final String tableName,
+                                     final MapStoreKey key,
+                                     final MapQueryOptions options) {
+        final NavigableMap<Object[], Map<String, Object>> rangeMap = getRangeMap(getTable(tableName), key);
+        return getPage(options.getOrder() == Order.ASC ? rangeMap : rangeMap.descendingMap(), options);
+    }
+
+    @Override
+    public Optional<Map<String, Object>> getFirstItem(final String tableName,
+                                                      final MapStoreKey key,
+                                                      final Order order) {
+        final NavigableMap<Object[], Map<String, Object>> rangeMap = getRangeMap(getTable(tableName), key);
+        return Optional.ofNullable(order == Order.ASC ? rangeMap.firstEntry() : rangeMap.lastEntry())
+                .map(Map.Entry::getValue);
+    }
+
+    @Override
+    public Map<String, Object> incrementItem(final String tableName,
+                                             final MapStoreKey key,
+                                             final Map<String, Long> increments) {
+        final InMemoryTable table = getTable(tableName);
+        final Object[] keyArray = table.toKeyArray(key);
+
+        return computeItem(table, keyArray, item -> {
+            final Map<String, Object> payload = new HashMap<>();
+            increments.forEach((field, amount) -> payload.put(field,
+                    incrementValue(field, item.map(fields -> fields.get(field)), amount)));
+            return Optional.of(mergeItem(key, keyArray, item, payload));
+        }).get();
+    }
+
+    @Override
+    public Map<String, Object> putItem(final String tableName,
+                                       final MapStoreKey key,
+                                       final Map<String, Object> payload) {
+        final InMemoryTable table = getTable(tableName);
+        final Object[] keyArray = table.toKeyArray(key);
+        final Map<String, Object> item = createItem(key, keyArray, payload);
+
+        refreshExpiry(table, keyArray);
+        table.updateIndexes(keyArray, table.getMap().put(keyArray, item), item);
+        return item;
+    }
+
+    @Override
+    public Optional<Map<String, Object>> putItem(final String tableName,
+                                                 final MapStoreKey key,
+                                                 final Map<String, Object> payload,
+                                                 final MapStoreWriteCondition condition) {
+        final InMemoryTable table = getTable(tableName);
+        final Object[] keyArray = table.toKeyArray(key);
+
+        return computeItem(table, keyArray, item -> Optional.of(item)
+                .filter(condition::isMetBy)
+                .map(metItem -> createItem(key, keyArray, payload)));
+    }
+
+    @Override
+    public Map<String, Object> updateItem(final String tableName,
+                                          final MapStoreKey key,
+                                          final Map<String, Object> payload) {
+        final InMemoryTable table = getTable(tableName);
+        final Object[] keyArray = table.toKeyArray(key);
+
+        // A missing item is created from the payload, as in the other plugins
+        return computeItem(table, keyArray, item -> Optional.of(mergeItem(key, keyArray, item, payload))).get();
+    }
+
+    @Override
+    public Optional<Map<String, Object>> updateItem(final String tableName,
+                                                    final MapStoreKey key,
+                                                    final Map<String, Object> payload,
+                                                    final MapStoreWriteCondition condition) {
+        final InMemoryTable table = getTable(tableName);
+        final Object[] keyArray = table.toKeyArray(key);
+
+        return computeItem(table, keyArray, item -> Optional.of(item)
+                .filter(condition::isMetBy)
+                .map(metItem -> mergeItem(key, keyArray, metItem, payload)));
+    }
+
+    @VisibleForTesting
+    Map<String, Object> createItem(final MapStoreKey key,
+                                   final Object[] keyArray,
+                                   final Map<String, Object> payload) {
+        final Map<String, Object> item = new TreeMap<>(payload);
+
+        // Use the key array's values, which have been coerced to the table's key types
+        item.putIfAbsent(key.getHashField(), keyArray[0]);
+        key.getRangeField().ifPresent(rangeField -> item.putIfAbsent(rangeField, keyArray[1]));
+        return Collections.unmodifiableMap(item);
+    }
+
+    private Map<String, Object> mergeItem(final MapStoreKey key,
+                                          final Object[] keyArray,
+                                          final Optional<Map<String, Object>> item,
+                                          final Map<String, Object> payload) {
+        final Map<String, Object> mergedItem = new TreeMap<>(item.orElseGet(() ->
+                createItem(key, keyArray, Collections.emptyMap())));
+
+        payload.entrySet().forEach(entry -> {
+            if (isNullOrEmptyEntry().test(entry)) {
+                mergedItem.remove(entry.getKey());
+            } else {
+                mergedItem.put(entry.getKey(), entry.getValue());
+            }
+        });
+        return Collections.unmodifiableMap(mergedItem);
+    }
+
+    /**
+     * Atomically replaces a single item in the given table
+     * with the item computed from its current value. Nothing
+     * is written if the computed item is {@link Optional#empty()}.
+     *
+     * The computed item is swapped in only if the item that it
+     * was computed from is still held, and is recomputed if
+     * another write got there first.
+     *
+     * An item's expiry is refreshed before the item is swapped
+     * in, so that a concurrent sweep never removes the new item.
+     */
+    private Optional<Map<String, Object>> computeItem(
+            final InMemoryTable table,
+            final Object[] keyArray,
+            final Function<Optional<Map<String, Object>>, Optional<Map<String, Object>>> itemUpdater) {
+        while (true) {
+            final Optional<Map<String, Object>> oldItem = Optional.ofNullable(table.getMap().get(keyArray));
+            final Optional<Map<String, Object>> newItem = itemUpdater.apply(oldItem);
+            if (!newItem.isPresent()) {
+                return newItem;
+            }
+
+            refreshExpiry(table, keyArray);
+            final boolean swapped = oldItem
+                    .map(item -> table.getMap().replace(keyArray, item, newItem.get()))
+                    .orElseGet(() -> table.getMap().putIfAbsent(keyArray, newItem.get()) == null);
+            if (swapped) {
+                table.updateIndexes(keyArray, oldItem.orElse(null), newItem.get());
+                return newItem;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    Object[] decodeContinuationToken(final String continuationToken) {
+        try {
+            return InMemoryKeyCodec.decode(Base64.getUrlDecoder().decode(continuationToken));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid in-memory continuation token: " + continuationToken, e);
+        }
+    }
+
+    @VisibleForTesting
+    String encodeContinuationToken(final Object[] keyArray) {
+        return Base64.getUrlEncoder().encodeToString(InMemoryKeyCodec.encode(keyArray));
+    }
+
+    /**
+     * Reads a single page of items from the given ordered map view.
+     * The continuation token is the last key read in the page.
+     */
+    @VisibleForTesting
+    MapQueryPage getPage(final NavigableMap<Object[], Map<String, Object>> orderedMap,
+                         final MapQueryOptions options) {
+        final NavigableMap<Object[], Map<String, Object>> pageMap = options.getContinuationToken()
+                .map(token -> orderedMap.tailMap(decodeContinuationToken(token), false))
+                .orElse(orderedMap);
+        final int pageSize = options.getPageSize().orElse(MapQueryOptions.DEFAULT_PAGE_SIZE);
+
+        final MapQueryPage.Builder pageBuilder = new MapQueryPage.Builder();
+        final Iterator<Map.Entry<Object[], Map<String, Object>>> entryIterator = pageMap.entrySet().iterator();
+        Object[] lastKeyArray = null;
+        for (int i = 0; i < pageSize && entryIterator.hasNext(); i++) {
+            final Map.Entry<Object[], Map<String, Object>> entry = entryIterator.next();
+            pageBuilder.addItems(projectItem(entry.getValue(), options.getProjection()));
+            lastKeyArray = entry.getKey();
+        }
+
+        if (entryIterator.hasNext()) {
+            pageBuilder.setContinuationToken(encodeContinuationToken(lastKeyArray));
+        }
+        return pageBuilder.build();
+    }
+
+    private List<Map<String, Object>> getItems(final NavigableMap<Object[], Map<String, Object>> rangeMap,
+                                               final MapQueryOptions options) {
+        final Stream<Map<String, Object>> itemStream =
+                (options.getOrder() == Order.ASC ? rangeMap : rangeMap.descendingMap()).values().stream();
+        return options.getLimit().map(limit -> itemStream.limit(limit)).orElse(itemStream)
+                .map(item -> projectItem(item, options.getProjection()))
+                .collect(Collectors.toList());
+    }
+
+    // The item of an index entry, if the entry still belongs to it. A stale entry is removed.
+    private Optional<Map<String, Object>> getIndexedItem(final InMemoryTable table,
+                                                         final InMemoryIndex index,
+                                                         final Object[] entryKeyArray) {
+        final Map<String, Object> item = table.getMap().get(index.toTableKeyArray(entryKeyArray));
+        if (index.isEntryOf(entryKeyArray, item)) {
+            return Optional.of(item);
+        }
+
+        index.removeEntry(table, entryKeyArray);
+        return Optional.empty();
+    }
+
+    private void refreshExpiry(final InMemoryTable table, final Object[] keyArray) {
+        table.getExpiry().ifPresent(expiry -> expiry.refresh(keyArray, System.currentTimeMillis()));
+    }
+
+    /**
+     * Removes up to {@link #EXPIRY_SWEEP_BATCH_SIZE} items of
+     * the given table which expire at or before the given time.
+     * Nothing is swept if another thread is already sweeping it.
+     *
+     * An item is read before its expiry is checked, and is removed
+     * only if it is still held. An item which is rewritten in the
+     * meantime has had its expiry refreshed, so is kept.
+     */
+    @VisibleForTesting
+    void sweepExpiredItems(final InMemoryTable table, final long nowMillis) {
+        table.getExpiry().filter(InMemoryExpiry::startSweep).ifPresent(expiry -> {
+            try {
+                expiry.getExpiredEntryKeyArrays(nowMillis, EXPIRY_SWEEP_BATCH_SIZE).forEach(entryKeyArray -> {
+                    final long expiresAt = (Long) entryKeyArray[0];
+                    final Object[] keyArray = expiry.toTableKeyArray(entryKeyArray);
+                    expiry.getIndexMap().remove(entryKeyArray);
+
+                    final Map<String, Object> item = table.getMap().get(keyArray);
+                    // Stale entries, whose item has since been refreshed, are only dropped
+                    if (expiry.getExpiresAt(keyArray).filter(itemExpiresAt -> itemExpiresAt == expiresAt).isPresent()) {
+                        if (item != null && table.getMap().remove(keyArray, item)) {
+                            table.updateIndexes(keyArray, item, null);
+                        }
+                        expiry.remove(keyArray, expiresAt);
+                    }
+                });
+            } finally {
+                expiry.endSweep();
+            }
+        });
+    }
+
+    private void removeItem(final InMemoryTable table, final Object[] keyArray) {
+        // A deleted item's expiry is left to be swept, so that it cannot race a concurrent write's refresh
+        Optional.ofNullable(table.getMap().remove(keyArray))
+                .ifPresent(oldItem -> table.updateIndexes(keyArray, oldItem, null));
+    }
+
+    @VisibleForTesting
+    NavigableMap<Object[], Map<String, Object>> getRangeMap(final InMemoryTable table,
+                                                            final MapStoreKey key) {
+        final MapRangeOperator rangeOp = key.getRangeKey().getOperator();
+        // Only EQUAL_TO and NONE read a single key, whose range value (if any) is coerced by the table
+        if (rangeOp == Standard.EQUAL_TO || rangeOp == Standard.NONE) {
+            final Object[] keyArray = table.toKeyArray(key);
+            return table.getMap().subMap(keyArray, true, keyArray, true);
+        }
+
+        return getRangeMap(table.getMap(), table.toHashKeyArray(key.getHashValue()),
+                key.getRangeKey(), table::toRangeValue);
+    }
+
+    /**
+     * Returns the ordered view of the given map which matches
+     * the given range key within a single hash value.
+     *
+     * The given map may be keyed by longer keys than {hash, range},
+     * as index views are, so a range is bounded above all keys of
+     * a given range value with a trailing null element.
+     */
+    @VisibleForTesting
+    <V> NavigableMap<Object[], V> getRangeMap(final NavigableMap<Object[], V> map,
+                                              final Object[] hashKeyArray,
+                                              final MapRangeKey<?> rangeKey,
+                                              final Function<Object, Object> rangeValueMapper) {
+        final Object hashValue = hashKeyArray[0];
+        final Object[] hashLimitArray = new Object[]{hashValue, null};
+        final MapRangeOperator rangeOp = rangeKey.getOperator();
+
+        if (rangeOp == Extended.IN) {
+            final NavigableMap<Object[], V> inRangeMap = new TreeMap<>(InMemoryTable.KEY_COMPARATOR);
+            ((ListValueHolder<?>) rangeKey.getValue()).getValues().forEach(rangeValue -> {
+                final Object mappedValue = rangeValueMapper.apply(rangeValue);
+                inRangeMap.putAll(map.subMap(new Object[]{hashValue, mappedValue}, true,
+                        new Object[]{hashValue, mappedValue, null}, true));
+            });
+            return inRangeMap;
+        } else if (rangeOp == Extended.LIKE) {
+            // Range values are matched anywhere within their string form, as in Cassandra
+            final String pattern = String.valueOf(rangeKey.getValue());
+            final NavigableMap<Object[], V> likeRangeMap = new TreeMap<>(InMemoryTable.KEY_COMPARATOR);
+            map.subMap(hashKeyArray, true, hashLimitArray, true).forEach((keyArray, value) -> {
+                if (keyArray.length > 1 && String.valueOf(keyArray[1]).contains(pattern)) {
+                    likeRangeMap.put(keyArray, value);
+                }
+            });
+            return likeRangeMap;
+        } else if (rangeOp == Extended.STARTS_WITH) {
+            final String prefix = (String) rangeKey.getValue();
+            final Optional<String> prefixLimit = getPrefixLimit(prefix);
+            final Object[] toKeyArray = prefixLimit.map(limit -> new Object[]{hashValue, limit}).orElse(hashLimitArray);
+            return map.subMap(new Object[]{hashValue, prefix}, true, toKeyArray, !prefixLimit.isPresent());
+        }
+
+        final MapRangeOperator.Standard op = Standard.fromName(rangeOp.toString())
+                .orElseThrow(() -> new IllegalArgumentException("In-memory tables cannot support the operator " + rangeOp));
+
+        switch (op) {
+            case ALL:
+                return map.subMap(hashKeyArray, true, hashLimitArray, true);
+            case BETWEEN:
+                final TwoValueHolder<?> betweenValues = (TwoValueHolder<?>) rangeKey.getValue();
+                return map.subMap(new Object[]{hashValue, rangeValueMapper.apply(betweenValues.getValue1())}, true,
+                        new Object[]{hashValue, rangeValueMapper.apply(betweenValues.getValue2()), null}, true);
+            case EQUAL_TO:
+            case NONE:
+                final Object equalToValue = rangeValueMapper.apply(rangeKey.getValue());
+                return map.subMap(new Object[]{hashValue, equalToValue}, true,
+                        new Object[]{hashValue, equalToValue, null}, true);
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQUAL_TO:
+                final Object greaterThanValue = rangeValueMapper.apply(rangeKey.getValue());
+                final Object[] greaterThanFrom = op == Standard.GREATER_THAN
+                        ? new Object[]{hashValue, greaterThanValue, null} : new Object[]{hashValue, greaterThanValue};
+                return map.subMap(greaterThanFrom, op == Standard.GREATER_THAN_OR_EQUAL_TO, hashLimitArray, true);
+            case LESS_THAN:
+            case LESS_THAN_OR_EQUAL_TO:
+            default:
+                final Object lessThanValue = rangeValueMapper.apply(rangeKey.getValue());
+                final Object[] lessThanTo = op == Standard.LESS_THAN_OR_EQUAL_TO
+                        ? new Object[]{hashValue, lessThanValue, null} : new Object[]{hashValue, lessThanValue};
+                return map.subMap(hashKeyArray, true, lessThanTo, op == Standard.LESS_THAN_OR_EQUAL_TO);
+        }
+    }
+
+    @VisibleForTesting
+    Optional<String> getPrefixLimit(final String prefix) {
+        final StringBuilder prefixLimit = new StringBuilder(prefix);
+        // Increment the last character which can be incremented, dropping any trailing max characters
+        while (prefixLimit.length() > 0) {
+            final int lastIndex = prefixLimit.length() - 1;
+            final char lastChar = prefixLimit.charAt(lastIndex);
+            if (lastChar < Character.MAX_VALUE) {
+                prefixLimit.setCharAt(lastIndex, (char) (lastChar + 1));
+                return Optional.of(prefixLimit.toString());
+            }
+            prefixLimit.setLength(lastIndex);
+        }
+
+        // Every string is within an empty (or all max character) prefix
+        return Optional.empty();
+    }
+
+    @VisibleForTesting
+    InMemoryTable getTable(final String tableName) {
+        final InMemoryTable table = findTable(tableName).orElseThrow(() ->
+                new IllegalArgumentException("Unknown in-memory table " + tableName));
+        sweepExpiredItems(table, System.currentTimeMillis());
+        return table;
+    }
+
+    private Optional<InMemoryTable> findTable(final String tableName) {
+        return Optional.ofNullable(tables.get(tableName));
+    }
+}
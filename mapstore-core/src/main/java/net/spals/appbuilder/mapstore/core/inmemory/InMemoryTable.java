@@ -0,0 +1,136 @@
+package net.spals.appbuilder.mapstore.core.inmemory;
+
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static net.spals.appbuilder.mapstore.core.model.MapStoreKeyValues.coerceKeyValue;
+
+/**
+ * A single in-memory table along with the key
+ * schema that it was created with and the
+ * its secondary indexes.
+ *
+ * Items are held as immutable maps, sorted by
+ * a composite key of their hash value followed
+ * by their range value. Each secondary index is
+ * a skip list of its own, which every write to
+ * the table keeps in step. A table with a time to
+ * live also has an {@link InMemoryExpiry}.
+ *
+ * @author tkral
+ */
+class InMemoryTable {
+
+    /**
+     * Orders composite keys element by element.
+     *
+     * A key sorts before all longer keys which share
+     * its elements, and a null element sorts after every
+     * value, so that {hash} and {hash, null} bound all
+     * keys of a given hash value.
+     */
+    @SuppressWarnings("unchecked")
+    static final Comparator<Object[]> KEY_COMPARATOR = (keyArray1, keyArray2) -> {
+        final int length = Math.min(keyArray1.length, keyArray2.length);
+        for (int i = 0; i < length; i++) {
+            final Object keyValue1 = keyArray1[i];
+            final Object keyValue2 = keyArray2[i];
+            if (keyValue1 == null || keyValue2 == null) {
+                if (keyValue1 != keyValue2) {
+                    return keyValue1 == null ? 1 : -1;
+                }
+                continue;
+            }
+
+            final int compare = ((Comparable<Object>) keyValue1).compareTo(keyValue2);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+
+        return Integer.compare(keyArray1.length, keyArray2.length);
+    };
+
+    private final ConcurrentSkipListMap<Object[], Map<String, Object>> map =
+            new ConcurrentSkipListMap<>(KEY_COMPARATOR);
+    private final MapStoreTableKey tableKey;
+    private final ConcurrentMap<String, InMemoryIndex> indexes = new ConcurrentHashMap<>();
+    private final Optional<InMemoryExpiry> expiry;
+
+    InMemoryTable(final MapStoreTableKey tableKey) {
+        this.tableKey = tableKey;
+        this.expiry = tableKey.getTimeToLive().map(timeToLive -> new InMemoryExpiry(timeToLive.toMillis()));
+    }
+
+    ConcurrentSkipListMap<Object[], Map<String, Object>> getMap() {
+        return map;
+    }
+
+    MapStoreTableKey getTableKey() {
+        return tableKey;
+    }
+
+    Optional<InMemoryExpiry> getExpiry() {
+        return expiry;
+    }
+
+    Optional<InMemoryIndex> getIndex(final String indexName) {
+        return Optional.ofNullable(indexes.get(indexName));
+    }
+
+    /**
+     * Creates the given index from the table's items. The
+     * index is registered before the items are read, so that
+     * writes in the meantime already keep it in step.
+     */
+    void putIndex(final String indexName, final MapStoreTableKey indexKey) {
+        final InMemoryIndex index = new InMemoryIndex(indexKey);
+        indexes.put(indexName, index);
+        map.forEach((keyArray, item) -> index.update(this, keyArray, null, item));
+        // An item replaced during the read may have had its entry put back, so drop any which are stale
+        index.getMap().keySet().forEach(entryKeyArray -> {
+            if (!index.isEntryOf(entryKeyArray, map.get(index.toTableKeyArray(entryKeyArray)))) {
+                index.removeEntry(this, entryKeyArray);
+            }
+        });
+    }
+
+    void removeIndex(final String indexName) {
+        indexes.remove(indexName);
+    }
+
+    /**
+     * Keeps every index in step with a write which
+     * atomically swapped the old item for the new item
+     * (either of which may be null).
+     */
+    void updateIndexes(final Object[] keyArray,
+                       final Map<String, Object> oldItem,
+                       final Map<String, Object> newItem) {
+        indexes.values().forEach(index -> index.update(this, keyArray, oldItem, newItem));
+    }
+
+    Object[] toHashKeyArray(final Object hashValue) {
+        return new Object[]{coerceKeyValue(tableKey.getHashFieldType(), hashValue)};
+    }
+
+    Object toRangeValue(final Object rangeValue) {
+        return tableKey.getRangeFieldType()
+                .map(rangeType -> coerceKeyValue(rangeType, rangeValue))
+                .orElse(rangeValue);
+    }
+
+    Object[] toKeyArray(final MapStoreKey key) {
+        return key.getRangeField()
+                .map(rangeField -> new Object[]{toHashKeyArray(key.getHashValue())[0],
+                        toRangeValue(key.getRangeKey().getValue())})
+                .orElseGet(() -> toHashKeyArray(key.getHashValue()));
+    }
+}
@@ -0,0 +1,331 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.mapdb.Atomic;
+import org.mapdb.DB;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact binary {@link MapDBValueCodec}.
+ *
+ * Each value is a format byte followed by its top-level
+ * fields. Field names are interned into a dictionary which
+ * is stored alongside the tables, so each field is written
+ * as a small integer id rather than its full name. Values are
+ * type-tagged and integers are zigzag varint-encoded.
+ *
+ * Values which were written by {@link JsonMapDBValueCodec}
+ * can still be read.
+ *
+ * @author tkral
+ */
+class BinaryMapDBValueCodec implements MapDBValueCodec {
+
+    static final String FIELD_IDS_NAME = "__mapStore.valueCodec.fieldIds";
+    static final String FIELD_NAMES_NAME = "__mapStore.valueCodec.fieldNames";
+    static final String NEXT_FIELD_ID_NAME = "__mapStore.valueCodec.nextFieldId";
+
+    @VisibleForTesting
+    static final byte FORMAT_VERSION = 1;
+
+    private static final byte JSON_START = '{';
+
+    private static final byte NULL_TAG = 0;
+    private static final byte FALSE_TAG = 1;
+    private static final byte TRUE_TAG = 2;
+    private static final byte INT_TAG = 3;
+    private static final byte LONG_TAG = 4;
+    private static final byte FLOAT_TAG = 5;
+    private static final byte DOUBLE_TAG = 6;
+    private static final byte STRING_TAG = 7;
+    private static final byte BYTES_TAG = 8;
+    private static final byte LIST_TAG = 9;
+    private static final byte MAP_TAG = 10;
+    private static final byte BIG_INTEGER_TAG = 11;
+    private static final byte BIG_DECIMAL_TAG = 12;
+
+    private final JsonMapDBValueCodec jsonCodec = new JsonMapDBValueCodec();
+
+    private final HTreeMap<String, Integer> fieldIds;
+    private final HTreeMap<Integer, String> fieldNames;
+    private final Atomic.Integer nextFieldId;
+
+    // Local copies of the dictionary, which also intern the decoded field names
+    private final Map<String, Integer> fieldIdCache = new ConcurrentHashMap<>();
+    private final Map<Integer, String> fieldNameCache = new ConcurrentHashMap<>();
+
+    BinaryMapDBValueCodec(final DB mapDB) {
+        this.fieldIds = mapDB.hashMap(FIELD_IDS_NAME, Serializer.STRING, Serializer.INTEGER).createOrOpen();
+        this.fieldNames = mapDB.hashMap(FIELD_NAMES_NAME, Serializer.INTEGER, Serializer.STRING).createOrOpen();
+        this.nextFieldId = mapDB.atomicInteger(NEXT_FIELD_ID_NAME).createOrOpen();
+    }
+
+    @Override
+    public Map<String, Object> decode(final byte[] value) {
+        if (isJson(value)) {
+            return jsonCodec.decode(value);
+        }
+
+        try {
+            final DataInput2 in = openValue(value);
+            final int fieldCount = in.unpackInt();
+            final Map<String, Object> decodedValue = new LinkedHashMap<>(mapCapacity(fieldCount));
+            for (int i = 0; i < fieldCount; i++) {
+                decodedValue.put(fieldName(in.unpackInt()), readValue(in));
+            }
+            return decodedValue;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Map<String, Object> decodeFields(final byte[] value, final Set<String> fieldNames) {
+        if (isJson(value)) {
+            return jsonCodec.decodeFields(value, fieldNames);
+        }
+
+        try {
+            final DataInput2 in = openValue(value);
+            final int fieldCount = in.unpackInt();
+            final Map<String, Object> decodedValue = new LinkedHashMap<>(mapCapacity(fieldNames.size()));
+            // Skip over unwanted fields and stop as soon as all of the wanted fields are read
+            for (int i = 0; i < fieldCount && decodedValue.size() < fieldNames.size(); i++) {
+                final String fieldName = fieldName(in.unpackInt());
+                if (fieldNames.contains(fieldName)) {
+                    decodedValue.put(fieldName, readValue(in));
+                } else {
+                    skipValue(in);
+                }
+            }
+            return decodedValue;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public byte[] encode(final Map<String, Object> value) {
+        final DataOutput2 out = new DataOutput2();
+        try {
+            out.writeByte(FORMAT_VERSION);
+            out.packInt(value.size());
+            for (final Map.Entry<String, Object> entry : value.entrySet()) {
+                out.packInt(fieldId(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return out.copyBytes();
+    }
+
+    @VisibleForTesting
+    int fieldId(final String fieldName) {
+        return fieldIdCache.computeIfAbsent(fieldName, name -> {
+            final Integer existingId = fieldIds.get(name);
+            if (existingId != null) {
+                return existingId;
+            }
+
+            // Record the name before publishing its id so that
+            // a racing writer can never encode an unreadable id
+            final int newId = nextFieldId.getAndIncrement();
+            fieldNames.put(newId, name);
+            return Optional.ofNullable(fieldIds.putIfAbsent(name, newId)).orElse(newId);
+        });
+    }
+
+    private String fieldName(final int fieldId) {
+        return fieldNameCache.computeIfAbsent(fieldId, id -> Optional.ofNullable(fieldNames.get(id))
+                .orElseThrow(() -> new IllegalStateException("Unknown MapDB field id: " + id)));
+    }
+
+    private boolean isJson(final byte[] value) {
+        return value.length > 0 && value[0] == JSON_START;
+    }
+
+    private int mapCapacity(final int size) {
+        return (int) (size / 0.75f) + 1;
+    }
+
+    private DataInput2 openValue(final byte[] value) throws IOException {
+        final DataInput2 in = new DataInput2.ByteArray(value);
+        final byte formatVersion = in.readByte();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IllegalStateException("Unknown MapDB value format: " + formatVersion);
+        }
+        return in;
+    }
+
+    private byte[] readBytes(final DataInput2 in) throws IOException {
+        final byte[] bytes = new byte[in.unpackInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private Object readValue(final DataInput2 in) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+            case NULL_TAG:
+                return null;
+            case FALSE_TAG:
+                return Boolean.FALSE;
+            case TRUE_TAG:
+                return Boolean.TRUE;
+            case INT_TAG:
+                return (int) zigzagDecode(in.unpackLong());
+            case LONG_TAG:
+                return zigzagDecode(in.unpackLong());
+            case FLOAT_TAG:
+                return in.readFloat();
+            case DOUBLE_TAG:
+                return in.readDouble();
+            case STRING_TAG:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case BYTES_TAG:
+                return readBytes(in);
+            case LIST_TAG:
+                final int listSize = in.unpackInt();
+                final List<Object> list = new ArrayList<>(listSize);
+                for (int i = 0; i < listSize; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            case MAP_TAG:
+                final int mapSize = in.unpackInt();
+                final Map<String, Object> map = new LinkedHashMap<>(mapCapacity(mapSize));
+                for (int i = 0; i < mapSize; i++) {
+                    map.put(new String(readBytes(in), StandardCharsets.UTF_8), readValue(in));
+                }
+                return map;
+            case BIG_INTEGER_TAG:
+                return new BigInteger(readBytes(in));
+            case BIG_DECIMAL_TAG:
+                return new BigDecimal(new BigInteger(readBytes(in)), (int) zigzagDecode(in.unpackLong()));
+            default:
+                throw new IllegalStateException("Unknown MapDB value tag: " + tag);
+        }
+    }
+
+    private void skipValue(final DataInput2 in) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+            case INT_TAG:
+            case LONG_TAG:
+                in.unpackLong();
+                break;
+            case FLOAT_TAG:
+                in.skipBytes(Float.BYTES);
+                break;
+            case DOUBLE_TAG:
+                in.skipBytes(Double.BYTES);
+                break;
+            case STRING_TAG:
+            case BYTES_TAG:
+            case BIG_INTEGER_TAG:
+                in.skipBytes(in.unpackInt());
+                break;
+            case BIG_DECIMAL_TAG:
+                in.skipBytes(in.unpackInt());
+                in.unpackLong();
+                break;
+            case LIST_TAG:
+                final int listSize = in.unpackInt();
+                for (int i = 0; i < listSize; i++) {
+                    skipValue(in);
+                }
+                break;
+            case MAP_TAG:
+                final int mapSize = in.unpackInt();
+                for (int i = 0; i < mapSize; i++) {
+                    in.skipBytes(in.unpackInt());
+                    skipValue(in);
+                }
+                break;
+            default:
+                // Null and boolean values are fully described by their tag
+                break;
+        }
+    }
+
+    private void writeBytes(final DataOutput2 out, final byte[] bytes) throws IOException {
+        out.packInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeValue(final DataOutput2 out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_TAG);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE_TAG : FALSE_TAG);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(INT_TAG);
+            out.packLong(zigzagEncode(((Number) value).intValue()));
+        } else if (value instanceof Long) {
+            out.writeByte(LONG_TAG);
+            out.packLong(zigzagEncode((Long) value));
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT_TAG);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE_TAG);
+            out.writeDouble((Double) value);
+        } else if (value instanceof CharSequence || value instanceof Character) {
+            out.writeByte(STRING_TAG);
+            writeBytes(out, value.toString().getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES_TAG);
+            writeBytes(out, (byte[]) value);
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER_TAG);
+            writeBytes(out, ((BigInteger) value).toByteArray());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(BIG_DECIMAL_TAG);
+            writeBytes(out, ((BigDecimal) value).unscaledValue().toByteArray());
+            out.packLong(zigzagEncode(((BigDecimal) value).scale()));
+        } else if (value instanceof Collection) {
+            out.writeByte(LIST_TAG);
+            out.packInt(((Collection<?>) value).size());
+            for (final Object element : (Collection<?>) value) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof Map) {
+            // Nested field names are free-form, so they are not interned
+            out.writeByte(MAP_TAG);
+            out.packInt(((Map<?, ?>) value).size());
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writeBytes(out, String.valueOf(entry.getKey()).getBytes(StandardCharsets.UTF_8));
+                writeValue(out, entry.getValue());
+            }
+        } else {
+            // Fall back to the JSON representation of any other type
+            writeValue(out, jsonCodec.toJsonTree(value));
+        }
+    }
+
+    private long zigzagDecode(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long zigzagEncode(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
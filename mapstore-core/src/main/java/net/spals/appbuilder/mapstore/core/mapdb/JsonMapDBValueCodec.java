@@ -0,0 +1,59 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link MapDBValueCodec} which stores values as JSON.
+ *
+ * This is the original MapDB value format.
+ *
+ * @author tkral
+ */
+class JsonMapDBValueCodec implements MapDBValueCodec {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final ObjectReader valueReader = OBJECT_MAPPER.readerFor(new TypeReference<Map<String, Object>>(){});
+    private final ObjectWriter valueWriter = OBJECT_MAPPER.writer();
+
+    @Override
+    public Map<String, Object> decode(final byte[] value) {
+        try {
+            return valueReader.readValue(value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Map<String, Object> decodeFields(final byte[] value, final Set<String> fieldNames) {
+        final Map<String, Object> decodedValue = decode(value);
+        decodedValue.keySet().retainAll(fieldNames);
+        return decodedValue;
+    }
+
+    @Override
+    public byte[] encode(final Map<String, Object> value) {
+        try {
+            return valueWriter.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Converts a value of a type which has no
+     * native encoding into JSON primitives,
+     * lists and maps.
+     */
+    Object toJsonTree(final Object value) {
+        return OBJECT_MAPPER.convertValue(value, Object.class);
+    }
+}
@@ -0,0 +1,88 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.common.collect.ObjectArrays;
+import org.mapdb.BTreeMap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * An open handle to the expiry index of a MapDB
+ * table which has a time to live.
+ *
+ * Each index entry is keyed by an item's expiry time,
+ * in epoch millis, followed by the item's table key,
+ * so that expired items are found in expiry order
+ * without a scan of the table. The current expiry
+ * time of each item is kept alongside, so that an
+ * item's stale entry is removed when it is rewritten.
+ *
+ * @author tkral
+ */
+class MapDBExpiry {
+
+    private final BTreeMap<Object[], Boolean> indexMap;
+    private final BTreeMap<Object[], Long> expiresAtMap;
+    private final long timeToLiveMillis;
+
+    MapDBExpiry(final BTreeMap<Object[], Boolean> indexMap,
+                final BTreeMap<Object[], Long> expiresAtMap,
+                final long timeToLiveMillis) {
+        this.indexMap = indexMap;
+        this.expiresAtMap = expiresAtMap;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    BTreeMap<Object[], Boolean> getIndexMap() {
+        return indexMap;
+    }
+
+    BTreeMap<Object[], Long> getExpiresAtMap() {
+        return expiresAtMap;
+    }
+
+    long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    Optional<Long> getExpiresAt(final Object[] keyArray) {
+        return Optional.ofNullable(expiresAtMap.get(keyArray));
+    }
+
+    /**
+     * Returns up to the given number of index entries which
+     * expire at or before the given time, earliest first.
+     */
+    List<Object[]> getExpiredEntryKeyArrays(final long nowMillis, final int limit) {
+        // A null trailing element bounds the range above all entries which expire at the given time
+        return indexMap.headMap(new Object[]{nowMillis, null}).keySet().stream()
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Restarts the given item's time to live from the given time.
+     */
+    void refresh(final Object[] keyArray, final long nowMillis) {
+        final long expiresAt = nowMillis + timeToLiveMillis;
+        indexMap.put(toEntryKeyArray(expiresAt, keyArray), Boolean.TRUE);
+        Optional.ofNullable(expiresAtMap.put(keyArray, expiresAt))
+                .filter(oldExpiresAt -> oldExpiresAt != expiresAt)
+                .ifPresent(oldExpiresAt -> indexMap.remove(toEntryKeyArray(oldExpiresAt, keyArray)));
+    }
+
+    void remove(final Object[] keyArray) {
+        Optional.ofNullable(expiresAtMap.remove(keyArray))
+                .ifPresent(oldExpiresAt -> indexMap.remove(toEntryKeyArray(oldExpiresAt, keyArray)));
+    }
+
+    Object[] toEntryKeyArray(final long expiresAt, final Object[] keyArray) {
+        return ObjectArrays.concat(expiresAt, keyArray);
+    }
+
+    Object[] toTableKeyArray(final Object[] entryKeyArray) {
+        return Arrays.copyOfRange(entryKeyArray, 1, entryKeyArray.length);
+    }
+}
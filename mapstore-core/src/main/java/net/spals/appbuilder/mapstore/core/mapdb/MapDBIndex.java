@@ -0,0 +1,98 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ObjectArrays;
+import org.mapdb.BTreeMap;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static net.spals.appbuilder.mapstore.core.model.MapStoreKeyValues.coerceKeyValue;
+
+/**
+ * An open handle to a MapDB secondary index.
+ *
+ * Each index entry is keyed by the indexed field
+ * values followed by the key of the item in its
+ * table, so that items which share indexed values
+ * are held in table key order.
+ *
+ * @author tkral
+ */
+class MapDBIndex {
+
+    private final BTreeMap<Object[], Boolean> map;
+    private final String hashField;
+    private final Class<?> hashFieldType;
+    private final Optional<String> rangeField;
+    private final Optional<Class<?>> rangeFieldType;
+
+    MapDBIndex(final BTreeMap<Object[], Boolean> map,
+               final String hashField,
+               final Class<?> hashFieldType,
+               final Optional<String> rangeField,
+               final Optional<Class<?>> rangeFieldType) {
+        this.map = map;
+        this.hashField = hashField;
+        this.hashFieldType = hashFieldType;
+        this.rangeField = rangeField;
+        this.rangeFieldType = rangeFieldType;
+    }
+
+    BTreeMap<Object[], Boolean> getMap() {
+        return map;
+    }
+
+    String getHashField() {
+        return hashField;
+    }
+
+    Optional<String> getRangeField() {
+        return rangeField;
+    }
+
+    Set<String> getFields() {
+        return rangeField.map(field -> ImmutableSet.of(hashField, field)).orElseGet(() -> ImmutableSet.of(hashField));
+    }
+
+    /**
+     * Creates the index entry key for the given item.
+     * Returns {@link Optional#empty()} if the item does
+     * not hold all of the index's fields.
+     */
+    Optional<Object[]> toEntryKeyArray(final Map<String, Object> item,
+                                       final Object[] tableKeyArray) {
+        if (!item.containsKey(hashField) || rangeField.map(field -> !item.containsKey(field)).orElse(false)) {
+            return Optional.empty();
+        }
+
+        final Object[] indexKeyArray = rangeField
+                .map(field -> toKeyArray(item.get(hashField), item.get(field)))
+                .orElseGet(() -> toHashKeyArray(item.get(hashField)));
+        return Optional.of(ObjectArrays.concat(indexKeyArray, tableKeyArray, Object.class));
+    }
+
+    Object[] toTableKeyArray(final Object[] entryKeyArray) {
+        return Arrays.copyOfRange(entryKeyArray, rangeField.isPresent() ? 2 : 1, entryKeyArray.length);
+    }
+
+    Object[] toHashKeyArray(final Object hashValue) {
+        return new Object[]{toIndexValue(hashField, hashFieldType, hashValue)};
+    }
+
+    Object[] toKeyArray(final Object hashValue, final Object rangeValue) {
+        checkArgument(rangeField.isPresent(), "Index on %s has no range field", hashField);
+        return new Object[]{toIndexValue(hashField, hashFieldType, hashValue),
+                toIndexValue(rangeField.get(), rangeFieldType.get(), rangeValue)};
+    }
+
+    private static Object toIndexValue(final String field, final Class<?> fieldType, final Object fieldValue) {
+        final Object indexValue = coerceKeyValue(fieldType, fieldValue);
+        checkArgument(fieldType.isInstance(indexValue), "Indexed field %s must have a %s value, but found %s",
+                field, fieldType.getSimpleName(), fieldValue);
+        return indexValue;
+    }
+}
@@ -1,244 +1,1022 @@
 package net.spals.appbuilder.mapstore.core.mapdb;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
 import com.google.inject.Inject;
+import com.netflix.governator.annotations.Configuration;
+import com.typesafe.config.ConfigException;
 import net.spals.appbuilder.annotations.service.AutoBindInMap;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
 import net.spals.appbuilder.mapstore.core.MapStorePlugin;
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapQueryPage;
 import net.spals.appbuilder.mapstore.core.model.MapRangeOperator;
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.Extended;
 import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.Standard;
 import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
 import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreWriteCondition;
+import net.spals.appbuilder.mapstore.core.model.MultiValueMapRangeKey.ListValueHolder;
 import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.TwoValueHolder;
 import org.mapdb.BTreeMap;
 import org.mapdb.DB;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.HTreeMap;
 import org.mapdb.Serializer;
+import org.mapdb.serializer.GroupSerializer;
 import org.mapdb.serializer.SerializerArrayTuple;
 import org.mapdb.serializer.SerializerUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
+ * Items of tables with a time to live are expired by
+ * a background sweep of each table's expiry index, every
+ * mapStore.mapDB.expirySweepIntervalMillis. Expired items
+ * may still be read until they have been swept.
+ *
  * @author tkral
  */
 @AutoBindInMap(baseClass = MapStorePlugin.class, key = "mapDB")
 class MapDBMapStorePlugin implements MapStorePlugin {
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private static final Logger LOGGER = LoggerFactory.getLogger(MapDBMapStorePlugin.class);
+
+    static final String EXPIRES_AT_MAP_PREFIX = "__mapStore.expiresAt.";
+    static final String EXPIRY_INDEX_MAP_PREFIX = "__mapStore.expiryIndex.";
+    static final String INDEX_MAP_PREFIX = "__mapStore.index.";
+    static final String TABLE_INDEXES_NAME = "__mapStore.tableIndexes";
+    static final String TABLE_KEYS_NAME = "__mapStore.tableKeys";
+    static final String TABLE_TIME_TO_LIVES_NAME = "__mapStore.tableTimeToLives";
+
+    @Configuration("mapStore.mapDB.expirySweepIntervalMillis")
+    @VisibleForTesting
+    volatile Long expirySweepIntervalMillis = 1000L;
+
+    // The most items expired from a table at a time, so that a large backlog does not starve its writers
+    @Configuration("mapStore.mapDB.expirySweepBatchSize")
+    @VisibleForTesting
+    volatile Integer expirySweepBatchSize = 1000;
+
     private final DB mapDB;
+    private final MapDBValueCodec valueCodec;
+
+    // The persisted key field types of each table, as a hash type and an optional range type
+    private final HTreeMap<String, Class<?>[]> tableKeys;
+    // The persisted fields of each secondary index, as {hashField, hashType, rangeField, rangeType}
+    private final HTreeMap<String, Object[]> tableIndexes;
+    // The persisted time to live of each expiring table, in millis
+    private final HTreeMap<String, Long> tableTimeToLives;
+    private final ConcurrentMap<String, MapDBTable> tables = new ConcurrentHashMap<>();
+    // Serializes writes to each indexed or expiring item so that its index entries stay in step with it
+    private final Striped<Lock> itemLocks = Striped.lock(64);
+    // The sweep loop is only started by the first expiring table to be opened
+    private final Supplier<ExecutorService> sweepExecutor;
+    private final AtomicBoolean sweepStarted = new AtomicBoolean(false);
 
     @Inject
-    MapDBMapStorePlugin(final DB mapDB) {
+    MapDBMapStorePlugin(final DB mapDB,
+                        final MapDBValueCodec valueCodec,
+                        final ExecutorServiceFactory executorServiceFactory) {
         this.mapDB = mapDB;
+        this.valueCodec = valueCodec;
+        this.sweepExecutor = Suppliers.memoize(() -> {
+            if (expirySweepBatchSize < 1) {
+                throw new ConfigException.BadValue("mapStore.mapDB.expirySweepBatchSize",
+                        "MapDB expiry sweep batch size must be positive: " + expirySweepBatchSize);
+            }
+            final ExecutorService executorService =
+                    executorServiceFactory.createSingleThreadExecutor(getClass(), "expirySweep");
+            executorService.submit(this::runSweepLoop);
+            sweepStarted.set(true);
+            return executorService;
+        })::get;
+        this.tableKeys = mapDB.hashMap(TABLE_KEYS_NAME, Serializer.STRING, MapDBMapStorePlugin.<Class<?>[]>javaSerializer())
+                .createOrOpen();
+        this.tableIndexes = mapDB.hashMap(TABLE_INDEXES_NAME, Serializer.STRING, MapDBMapStorePlugin.<Object[]>javaSerializer())
+                .createOrOpen();
+        this.tableTimeToLives = mapDB.hashMap(TABLE_TIME_TO_LIVES_NAME, Serializer.STRING, Serializer.LONG)
+                .createOrOpen();
+    }
+
+    @PreDestroy
+    void close() {
+        if (sweepStarted.get()) {
+            sweepExecutor.get().shutdownNow();
+        }
+    }
+
+    @Override
+    public boolean createIndex(final String tableName,
+                               final String indexName,
+                               final MapStoreTableKey indexKey) {
+        final MapDBTable table = findTable(tableName).orElseThrow(() ->
+                new IllegalArgumentException("Cannot create index " + indexName + " on unknown MapDB table " + tableName));
+        if (table.getIndex(indexName).isPresent()) {
+            return true;
+        }
+
+        final String indexId = getIndexId(tableName, indexName);
+        final Object[] indexFields = new Object[]{indexKey.getHashField(), indexKey.getHashFieldType(),
+                indexKey.getRangeField().orElse(null), indexKey.getRangeFieldType().orElse(null)};
+        final MapDBIndex index = openIndex(indexId, table, indexFields);
+        tableIndexes.put(indexId, indexFields);
+        // Register the index before backfilling it so that concurrent writes will maintain it too
+        table.putIndex(indexName, index);
+
+        try {
+            table.getMap().navigableKeySet().forEach(keyArray -> withItemLock(tableName, keyArray, () ->
+                    Optional.ofNullable(table.getMap().get(keyArray))
+                            .flatMap(valueArray -> toEntryKeyArray(index, keyArray, valueArray))
+                            .ifPresent(entryKeyArray -> index.getMap().put(entryKeyArray, Boolean.TRUE))));
+        } catch (IllegalArgumentException e) {
+            dropIndex(tableName, indexName);
+            throw e;
+        }
+
+        return true;
     }
 
     @Override
     public boolean createTable(final String tableName,
                                final MapStoreTableKey tableKey) {
-        final SerializerArrayTuple storeKeySerializer = createKeySerializer(tableKey.getHashFieldType(),
-                tableKey.getRangeFieldType());
+        final Class<?>[] keyTypes = tableKey.getRangeFieldType()
+                .map(rangeType -> new Class<?>[]{tableKey.getHashFieldType(), rangeType})
+                .orElseGet(() -> new Class<?>[]{tableKey.getHashFieldType()});
+
+        // Persist the time to live before the key types, which mark the table as created
+        final boolean wasExpiring = tableTimeToLives.containsKey(tableName);
+        if (tableKey.getTimeToLive().isPresent()) {
+            tableTimeToLives.put(tableName, tableKey.getTimeToLive().get().toMillis());
+        } else if (wasExpiring) {
+            dropExpiry(tableName);
+        }
+        tableKeys.put(tableName, keyTypes);
+        final MapDBTable table = openTable(tableName, keyTypes);
+        tables.put(tableName, table);
+
+        // Items which were written before the table had a time to live expire as if they were written now
+        if (!wasExpiring) {
+            table.getExpiry().ifPresent(expiry -> table.getMap().navigableKeySet().forEach(keyArray ->
+                    withItemLock(tableName, keyArray, () -> {
+                        if (table.getMap().containsKey(keyArray) && !expiry.getExpiresAt(keyArray).isPresent()) {
+                            expiry.refresh(keyArray, System.currentTimeMillis());
+                        }
+                    })));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean dropIndex(final String tableName,
+                             final String indexName) {
+        final String indexId = getIndexId(tableName, indexName);
+        // The index's handle shares the store with all other tables, so it is cleared but never closed
+        final Optional<MapDBIndex> index = findTable(tableName).flatMap(table -> table.removeIndex(indexName));
+        if (index.isPresent()) {
+            index.get().getMap().clear();
+        } else if (mapDB.exists(INDEX_MAP_PREFIX + indexId)) {
+            mapDB.treeMap(INDEX_MAP_PREFIX + indexId).open().clear();
+        }
+        tableIndexes.remove(indexId);
 
-        mapDB.treeMap(tableName)
-                .keySerializer(storeKeySerializer)
-                .valueSerializer(Serializer.BYTE_ARRAY)
-                .createOrOpen();
         return true;
     }
 
     @Override
     public boolean dropTable(final String tableName) {
-        final BTreeMap<?, ?> table = mapDB.treeMap(tableName).open();
+        final String indexIdPrefix = getIndexId(tableName, "");
+        tableIndexes.getKeys().stream()
+                .filter(indexId -> indexId.startsWith(indexIdPrefix))
+                .collect(Collectors.toList())
+                .forEach(indexId -> dropIndex(tableName, indexId.substring(indexIdPrefix.length())));
+
+        // The table's handle shares the store with all other tables, so it is cleared but never closed
+        final BTreeMap<?, ?> table = Optional.ofNullable(tables.remove(tableName))
+                .<BTreeMap<?, ?>>map(MapDBTable::getMap)
+                .orElseGet(() -> mapDB.treeMap(tableName).open());
         table.clear();
-        table.close();
+        tableKeys.remove(tableName);
+        dropExpiry(tableName);
 
         return true;
     }
 
+    @Override
+    public void batchDeleteItems(final String tableName,
+                                 final List<MapStoreKey> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        final MapDBTable table = getTable(tableName, keys.get(0));
+        keys.forEach(key -> removeTableEntry(tableName, table, table.toKeyArray(key)));
+    }
+
+    @Override
+    public List<Map<String, Object>> batchGetItems(final String tableName,
+                                                   final List<MapStoreKey> keys) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final MapDBTable table = getTable(tableName, keys.get(0));
+        return keys.stream()
+                .map(key -> table.getMap().get(table.toKeyArray(key)))
+                .filter(Objects::nonNull)
+                .map(valueMapper())
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Map<String, Object>> batchPutItems(final String tableName,
+                                                   final Map<MapStoreKey, Map<String, Object>> items) {
+        if (items.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final MapDBTable table = getTable(tableName, items.keySet().iterator().next());
+        if (table.hasDependentMaps()) {
+            // Indexed and expiring items are written one at a time so that each keeps its index entries in step
+            return items.entrySet().stream()
+                    .map(entry -> putItem(tableName, entry.getKey(), entry.getValue()))
+                    .collect(Collectors.toList());
+        }
+
+        final Map<Object[], byte[]> tableEntries = new LinkedHashMap<>(items.size());
+        final List<Map<String, Object>> returnValues = new ArrayList<>(items.size());
+
+        items.forEach((key, payload) -> {
+            final Object[] keyArray = table.toKeyArray(key);
+            final Map<String, Object> returnValue = createItem(key, keyArray, payload);
+            tableEntries.put(keyArray, writeValue(returnValue));
+            returnValues.add(returnValue);
+        });
+        // Write all entries through a single table handle
+        table.getMap().putAll(tableEntries);
+
+        return returnValues;
+    }
+
     @Override
     public void deleteItem(final String tableName,
                            final MapStoreKey key) {
-        final BTreeMap<Object[], byte[]> table = getTable(tableName, key);
-        final Object[] keyArray = convertSimpleKeyToArray(key);
-
-        table.remove(keyArray);
+        final MapDBTable table = getTable(tableName, key);
+        removeTableEntry(tableName, table, table.toKeyArray(key));
     }
 
     @Override
     public List<Map<String, Object>> getAllItems(final String tableName) {
-        final BTreeMap<?, byte[]> table = mapDB.treeMap(tableName)
-                .valueSerializer(Serializer.BYTE_ARRAY)
-                .open();
+        final BTreeMap<Object[], byte[]> table = getTable(tableName);
         final Stream<Map<String, Object>> valueStream = table.values().stream().map(valueMapper());
         return valueStream.collect(Collectors.toList());
 
     }
 
+    @Override
+    public MapQueryPage getAllItemsPage(final String tableName,
+                                        final MapQueryOptions options) {
+        final BTreeMap<Object[], byte[]> table = getTable(tableName);
+        return getPage(table, table, options);
+    }
+
+    @Override
+    public List<Map<String, Object>> getIndexItems(final String tableName,
+                                                   final String indexName,
+                                                   final MapStoreKey indexKey,
+                                                   final MapQueryOptions options) {
+        final MapDBTable table = findTable(tableName).orElseThrow(() ->
+                new IllegalArgumentException("Cannot query index " + indexName + " on unknown MapDB table " + tableName));
+        final MapDBIndex index = table.getIndex(indexName).orElseThrow(() ->
+                new IllegalArgumentException("Unknown index " + indexName + " on MapDB table " + tableName));
+        checkArgument(index.getHashField().equals(indexKey.getHashField())
+                        && (!indexKey.getRangeField().isPresent() || indexKey.getRangeField().equals(index.getRangeField())),
+                "Key fields (%s, %s) do not match the fields of index %s", indexKey.getHashField(),
+                indexKey.getRangeField().orElse(null), indexName);
+
+        final NavigableMap<Object[], Boolean> rangeMap = getIndexRangeMap(index, indexKey);
+        final Stream<Map<String, Object>> itemStream = (options.getOrder() == Order.ASC ? rangeMap : rangeMap.descendingMap())
+                .keySet().stream()
+                .map(entryKeyArray -> getIndexedItem(table, index, entryKeyArray, options.getProjection()))
+                .filter(Optional::isPresent)
+                .map(Optional::get);
+        return options.getLimit().map(limit -> itemStream.limit(limit)).orElse(itemStream)
+                .collect(Collectors.toList());
+    }
+
     @Override
     public Optional<Map<String, Object>> getItem(final String tableName,
                                                  final MapStoreKey key) {
-        final BTreeMap<Object[], byte[]> table = getTable(tableName, key);
-        final Object[] keyArray = convertSimpleKeyToArray(key);
-
-        final Optional<byte[]> valueArray = Optional.ofNullable(table.get(keyArray));
+        final MapDBTable table = getTable(tableName, key);
+        final Optional<byte[]> valueArray = Optional.ofNullable(table.getMap().get(table.toKeyArray(key)));
         return valueArray.map(valueMapper());
     }
 
+    @Override
+    public Optional<Map<String, Object>> getItem(final String tableName,
+                                                 final MapStoreKey key,
+                                                 final Set<String> projection) {
+        final MapDBTable table = getTable(tableName, key);
+        final Optional<byte[]> valueArray = Optional.ofNullable(table.getMap().get(table.toKeyArray(key)));
+        return valueArray.map(valueMapper(projection));
+    }
+
     @Override
     public List<Map<String, Object>> getItems(final String tableName,
                                               final MapStoreKey key,
                                               final MapQueryOptions options) {
-        final BTreeMap<Object[], byte[]> table = getTable(tableName, key);
-        Collection<byte[]> valueArrays = Collections.emptyList();
-        final MapRangeOperator.Standard op = Standard.fromName(key.getRangeKey().getOperator().toString())
-                .orElseThrow(() -> new IllegalArgumentException("MapDB cannot support the operator " +
-                        key.getRangeKey().getOperator()));
+        final MapDBTable table = getTable(tableName, key);
+        // The range map is already ordered by range value, so only the returned values are decoded
+        final Stream<byte[]> valueArrays = getRangeMap(table, key, options.getOrder()).values().stream();
+        final Stream<Map<String, Object>> valueStream = options.getLimit().map(limit -> valueArrays.limit(limit))
+                .orElse(valueArrays)
+                .map(valueMapper(options.getProjection()));
+        return valueStream.collect(Collectors.toList());
+    }
 
-        switch (op) {
-            case ALL:
-                final Object[] allKeyArray = new Object[]{key.getHashValue()};
-                valueArrays = table.prefixSubMap(allKeyArray).values();
-                break;
-            case BETWEEN:
-                final Object[] fromKeyArray = new Object[]{key.getHashValue(), ((TwoValueHolder)key.getRangeKey().getValue()).getValue1()};
-                final Object[] toKeyArray = new Object[]{key.getHashValue(), ((TwoValueHolder)key.getRangeKey().getValue()).getValue2()};
-                valueArrays = table.subMap(fromKeyArray, true, toKeyArray, true).values();
-                break;
-            case EQUAL_TO:
-                final Object[] equalToKeyArray = convertSimpleKeyToArray(key);
-                valueArrays = Optional.ofNullable(table.get(equalToKeyArray))
-                        .map(value -> Collections.singletonList(value))
-                        .orElseGet(() -> Collections.emptyList());
-                break;
-            case GREATER_THAN:
-            case GREATER_THAN_OR_EQUAL_TO:
-                final Object[] greaterThanKey = convertSimpleKeyToArray(key);
-                valueArrays = table.tailMap(greaterThanKey,
-                        key.getRangeKey().getOperator() == Standard.GREATER_THAN_OR_EQUAL_TO).values();
-                break;
-            case LESS_THAN:
-            case LESS_THAN_OR_EQUAL_TO:
-                final Object[] lessThanKey = convertSimpleKeyToArray(key);
-                valueArrays = table.headMap(lessThanKey,
-                        key.getRangeKey().getOperator() == Standard.LESS_THAN_OR_EQUAL_TO).values();
-                break;
-        }
+    @Override
+    public MapQueryPage getItemsPage(final String tableName,
+                                     final MapStoreKey key,
+                                     final MapQueryOptions options) {
+        final MapDBTable table = getTable(tableName, key);
+        return getPage(table.getMap(), getRangeMap(table, key, options.getOrder()), options);
+    }
 
-        final Stream<Map<String, Object>> valueStream = valueArrays.stream()
-                .map(valueMapper())
-                .sorted(valueComparator(key, options.getOrder()));
-        return options.getLimit().map(limit -> valueStream.limit(limit).collect(Collectors.toList()))
-                .orElseGet(() -> valueStream.collect(Collectors.toList()));
+    @Override
+    public Optional<Map<String, Object>> getFirstItem(final String tableName,
+                                                      final MapStoreKey key,
+                                                      final Order order) {
+        final MapDBTable table = getTable(tableName, key);
+        final NavigableMap<Object[], byte[]> rangeMap = getRangeMap(table, key);
+
+        final Optional<Map.Entry<Object[], byte[]>> firstEntry =
+                Optional.ofNullable(order == Order.ASC ? rangeMap.firstEntry() : rangeMap.lastEntry());
+        return firstEntry.map(entry -> valueMapper().apply(entry.getValue()));
     }
 
     @Override
     public Map<String, Object> putItem(final String tableName,
                                        final MapStoreKey key,
                                        final Map<String, Object> payload) {
-        final BTreeMap<Object[], byte[]> table = getTable(tableName, key);
-        final Object[] keyArray = convertSimpleKeyToArray(key);
-        final Map<String, Object> returnValue = new TreeMap<>(payload);
-
-        returnValue.putIfAbsent(key.getHashField(), key.getHashValue());
-        key.getRangeField().ifPresent(rangeField -> returnValue.putIfAbsent(rangeField, key.getRangeKey().getValue()));
-
-        try {
-            table.put(keyArray, objectMapper.writeValueAsBytes(returnValue));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        final MapDBTable table = getTable(tableName, key);
+        final Object[] keyArray = table.toKeyArray(key);
+        final Map<String, Object> returnValue = createItem(key, keyArray, payload);
 
+        putTableEntry(tableName, table, keyArray, returnValue);
         return returnValue;
     }
 
+    @Override
+    public Optional<Map<String, Object>> putItem(final String tableName,
+                                                 final MapStoreKey key,
+                                                 final Map<String, Object> payload,
+                                                 final MapStoreWriteCondition condition) {
+        final MapDBTable table = getTable(tableName, key);
+        final Object[] keyArray = table.toKeyArray(key);
+
+        return computeTableEntry(tableName, table, keyArray, item -> Optional.of(item)
+                .filter(condition::isMetBy)
+                .map(metItem -> createItem(key, keyArray, payload)));
+    }
+
     @Override
     public Map<String, Object> updateItem(final String tableName,
                                           final MapStoreKey key,
                                           final Map<String, Object> payload) {
-        final BTreeMap<Object[], byte[]> table = getTable(tableName, key);
-        final Object[] keyArray = convertSimpleKeyToArray(key);
-        // As a precondition, the item is guaranteed to be present
-        final Map<String, Object> returnValue = new TreeMap<>(getItem(tableName, key).get());
+        final MapDBTable table = getTable(tableName, key);
+        final Object[] keyArray = table.toKeyArray(key);
+
+        // A missing item is created from the payload, so that updates need no separate read
+        return computeTableEntry(tableName, table, keyArray,
+                item -> Optional.of(mergeItem(key, keyArray, item, payload))).get();
+    }
+
+    @Override
+    public Optional<Map<String, Object>> updateItem(final String tableName,
+                                                    final MapStoreKey key,
+                                                    final Map<String, Object> payload,
+                                                    final MapStoreWriteCondition condition) {
+        final MapDBTable table = getTable(tableName, key);
+        final Object[] keyArray = table.toKeyArray(key);
+
+        return computeTableEntry(tableName, table, keyArray, item -> Optional.of(item)
+                .filter(condition::isMetBy)
+                .map(metItem -> mergeItem(key, keyArray, metItem, payload)));
+    }
+
+    @VisibleForTesting
+    Map<String, Object> createItem(final MapStoreKey key,
+                                   final Object[] keyArray,
+                                   final Map<String, Object> payload) {
+        final Map<String, Object> item = new TreeMap<>(payload);
+
+        // Use the key array's values, which have been coerced to the table's key types
+        item.putIfAbsent(key.getHashField(), keyArray[0]);
+        key.getRangeField().ifPresent(rangeField -> item.putIfAbsent(rangeField, keyArray[1]));
+        return item;
+    }
+
+    private Map<String, Object> mergeItem(final MapStoreKey key,
+                                          final Object[] keyArray,
+                                          final Optional<Map<String, Object>> item,
+                                          final Map<String, Object> payload) {
+        final Map<String, Object> mergedItem = new TreeMap<>(item.orElseGet(() ->
+                createItem(key, keyArray, Collections.emptyMap())));
 
         payload.entrySet().stream().forEach(entry -> {
             if (isNullOrEmptyEntry().test(entry)) {
-                returnValue.remove(entry.getKey());
+                mergedItem.remove(entry.getKey());
             } else {
-                returnValue.put(entry.getKey(), entry.getValue());
+                mergedItem.put(entry.getKey(), entry.getValue());
             }
         });
+        return mergedItem;
+    }
 
+    @VisibleForTesting
+    SerializerArrayTuple createKeySerializer(final Class<?> hashFieldType,
+                                             final Optional<Class<?>> rangeFieldType) {
+        final Serializer<?> hashKeySerializer = SerializerUtils.serializerForClass(hashFieldType);
+        final Optional<Serializer<?>> rangeKeySerializer = rangeFieldType
+                .map(SerializerUtils::serializerForClass);
+        return rangeKeySerializer
+                .map(rangeKeySer -> new SerializerArrayTuple(hashKeySerializer, rangeKeySer))
+                .orElseGet(() -> new SerializerArrayTuple(hashKeySerializer));
+    }
+
+    @VisibleForTesting
+    Object[] decodeContinuationToken(final GroupSerializer<Object[]> keySerializer, final String continuationToken) {
+        try {
+            final byte[] keyBytes = Base64.getUrlDecoder().decode(continuationToken);
+            return keySerializer.deserialize(new DataInput2.ByteArray(keyBytes), -1);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid MapDB continuation token: " + continuationToken, e);
+        }
+    }
+
+    @VisibleForTesting
+    String encodeContinuationToken(final GroupSerializer<Object[]> keySerializer, final Object[] keyArray) {
+        final DataOutput2 keyBytes = new DataOutput2();
         try {
-            table.put(keyArray, objectMapper.writeValueAsBytes(returnValue));
+            keySerializer.serialize(keyBytes, keyArray);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        return returnValue;
+        return Base64.getUrlEncoder().encodeToString(keyBytes.copyBytes());
     }
 
+    /**
+     * Reads a single page of values from the given ordered map view.
+     * Iteration walks the BTreeMap lazily, so only a single page of
+     * values is ever deserialized. The continuation token is the last
+     * key read in the page, serialized with the table's key serializer.
+     */
     @VisibleForTesting
-    Object[] convertSimpleKeyToArray(final MapStoreKey key) {
-        return key.getRangeField().map(rangeField -> new Object[]{key.getHashValue(), key.getRangeKey().getValue()})
-                .orElseGet(() -> new Object[]{key.getHashValue()});
+    MapQueryPage getPage(final BTreeMap<Object[], byte[]> table,
+                         final NavigableMap<Object[], byte[]> orderedMap,
+                         final MapQueryOptions options) {
+        final GroupSerializer<Object[]> keySerializer = table.getKeySerializer();
+        final NavigableMap<Object[], byte[]> pageMap = options.getContinuationToken()
+                .map(token -> orderedMap.tailMap(decodeContinuationToken(keySerializer, token), false))
+                .orElse(orderedMap);
+        final int pageSize = options.getPageSize().orElse(MapQueryOptions.DEFAULT_PAGE_SIZE);
+
+        final MapQueryPage.Builder pageBuilder = new MapQueryPage.Builder();
+        final Iterator<Map.Entry<Object[], byte[]>> entryIterator = pageMap.entrySet().iterator();
+        Object[] lastKeyArray = null;
+        for (int i = 0; i < pageSize && entryIterator.hasNext(); i++) {
+            final Map.Entry<Object[], byte[]> entry = entryIterator.next();
+            pageBuilder.addItems(valueMapper(options.getProjection()).apply(entry.getValue()));
+            lastKeyArray = entry.getKey();
+        }
+
+        if (entryIterator.hasNext()) {
+            pageBuilder.setContinuationToken(encodeContinuationToken(keySerializer, lastKeyArray));
+        }
+        return pageBuilder.build();
     }
 
+    /**
+     * Removes the items of each expiring table which expire
+     * at or before the given time. Each item is removed under
+     * its lock, and only if it has not been rewritten since
+     * its expiry entry was read.
+     *
+     * @return true if any table has more expired items than
+     *         were removed by this sweep
+     */
     @VisibleForTesting
-    SerializerArrayTuple createKeySerializer(final Class<?> hashFieldType,
-                                             final Optional<Class<? extends Comparable>> rangeFieldType) {
-        final Serializer hashKeySerializer = SerializerUtils.serializerForClass(hashFieldType);
-        final Optional<Serializer> rangeKeySerializer = rangeFieldType
-                .map(rangeType -> (Serializer) SerializerUtils.serializerForClass(rangeType));
-        return rangeKeySerializer
-                .map(rangeKeySer -> new SerializerArrayTuple(hashKeySerializer, rangeKeySer))
-                .orElseGet(() -> new SerializerArrayTuple(hashKeySerializer));
+    boolean sweepExpiredItems(final long nowMillis) {
+        boolean hasMoreExpired = false;
+        for (final String tableName : new ArrayList<>(tableTimeToLives.getKeys())) {
+            final Optional<MapDBTable> table = findTable(tableName);
+            final Optional<MapDBExpiry> expiry = table.flatMap(MapDBTable::getExpiry);
+            if (!expiry.isPresent()) {
+                continue;
+            }
+
+            final List<Object[]> expiredEntryKeyArrays =
+                    expiry.get().getExpiredEntryKeyArrays(nowMillis, expirySweepBatchSize);
+            expiredEntryKeyArrays.forEach(entryKeyArray -> {
+                final Object[] keyArray = expiry.get().toTableKeyArray(entryKeyArray);
+                withItemLock(tableName, keyArray, () -> {
+                    if (expiry.get().getExpiresAt(keyArray).filter(expiresAt -> expiresAt <= nowMillis).isPresent()) {
+                        removeTableEntry(tableName, table.get(), keyArray);
+                    }
+                    // Entries left behind by an unclean shutdown do not match their item's expiry
+                    expiry.get().getIndexMap().remove(entryKeyArray);
+                });
+            });
+            hasMoreExpired |= expiredEntryKeyArrays.size() == expirySweepBatchSize;
+        }
+
+        return hasMoreExpired;
+    }
+
+    /**
+     * Returns the ordered view of the given index which
+     * matches the range key operator of the given key.
+     *
+     * Index entries extend the indexed values with their
+     * item's table key, so a null trailing element is used
+     * to bound a range above all entries of a given value.
+     */
+    @VisibleForTesting
+    NavigableMap<Object[], Boolean> getIndexRangeMap(final MapDBIndex index,
+                                                     final MapStoreKey indexKey) {
+        final BTreeMap<Object[], Boolean> indexMap = index.getMap();
+        final Object[] hashKeyArray = index.toHashKeyArray(indexKey.getHashValue());
+        final Object hashValue = hashKeyArray[0];
+        final MapRangeOperator rangeOp = indexKey.getRangeKey().getOperator();
+        if (rangeOp == Extended.IN) {
+            final NavigableMap<Object[], Boolean> inRangeMap = new TreeMap<>(indexMap.comparator());
+            ((ListValueHolder<?>) indexKey.getRangeKey().getValue()).getValues()
+                    .forEach(rangeValue -> inRangeMap.putAll(indexMap.prefixSubMap(index.toKeyArray(hashValue, rangeValue))));
+            return inRangeMap;
+        } else if (rangeOp == Extended.STARTS_WITH) {
+            final String prefix = (String) indexKey.getRangeKey().getValue();
+            final Optional<String> prefixLimit = getPrefixLimit(prefix);
+            final Object[] toKeyArray = prefixLimit.map(limit -> index.toKeyArray(hashValue, limit))
+                    .orElseGet(() -> new Object[]{hashValue, null});
+            return indexMap.subMap(index.toKeyArray(hashValue, prefix), true, toKeyArray, !prefixLimit.isPresent());
+        }
+
+        final MapRangeOperator.Standard op = Standard.fromName(rangeOp.toString())
+                .orElseThrow(() -> new IllegalArgumentException("MapDB cannot support the operator " + rangeOp));
+
+        switch (op) {
+            case ALL:
+            case NONE:
+                return indexMap.prefixSubMap(hashKeyArray);
+            case BETWEEN:
+                final TwoValueHolder<?> betweenValues = (TwoValueHolder<?>) indexKey.getRangeKey().getValue();
+                final Object[] fromKeyArray = index.toKeyArray(hashValue, betweenValues.getValue1());
+                final Object[] toKeyArray = index.toKeyArray(hashValue, betweenValues.getValue2());
+                return indexMap.subMap(fromKeyArray, true, new Object[]{hashValue, toKeyArray[1], null}, true);
+            case EQUAL_TO:
+                return indexMap.prefixSubMap(index.toKeyArray(hashValue, indexKey.getRangeKey().getValue()));
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQUAL_TO:
+                final Object[] greaterThanKey = index.toKeyArray(hashValue, indexKey.getRangeKey().getValue());
+                final Object[] greaterThanFrom = op == Standard.GREATER_THAN
+                        ? new Object[]{hashValue, greaterThanKey[1], null} : greaterThanKey;
+                return indexMap.subMap(greaterThanFrom, true, new Object[]{hashValue, null}, true);
+            case LESS_THAN:
+            case LESS_THAN_OR_EQUAL_TO:
+            default:
+                final Object[] lessThanKey = index.toKeyArray(hashValue, indexKey.getRangeKey().getValue());
+                final Object[] lessThanTo = op == Standard.LESS_THAN_OR_EQUAL_TO
+                        ? new Object[]{hashValue, lessThanKey[1], null} : lessThanKey;
+                return indexMap.subMap(hashKeyArray, true, lessThanTo, false);
+        }
+    }
+
+    @VisibleForTesting
+    NavigableMap<Object[], byte[]> getRangeMap(final MapDBTable table,
+                                               final MapStoreKey key,
+                                               final Order order) {
+        final NavigableMap<Object[], byte[]> rangeMap = getRangeMap(table, key);
+        return order == Order.ASC ? rangeMap : rangeMap.descendingMap();
     }
 
+    /**
+     * Returns the ordered view of the given table which
+     * matches the range key operator of the given key.
+     */
     @VisibleForTesting
-    BTreeMap<Object[], byte[]> getTable(final String tableName,
-                                        final MapStoreKey key) {
-        final SerializerArrayTuple storeKeySerializer = createKeySerializer(key.getHashValue().getClass(),
-                key.getRangeField().flatMap(rangeField -> {
-                    final Optional<Comparable<?>> rangeValue = Optional.ofNullable(key.getRangeKey().getValue());
-                    return rangeValue.map(rValue -> rValue.getClass());
-                }));
+    NavigableMap<Object[], byte[]> getRangeMap(final MapDBTable table,
+                                               final MapStoreKey key) {
+        final MapRangeOperator rangeOp = key.getRangeKey().getOperator();
+        if (rangeOp == Extended.IN) {
+            return getInRangeMap(table, key);
+        } else if (rangeOp == Extended.STARTS_WITH) {
+            return getStartsWithRangeMap(table, key);
+        }
+
+        final MapRangeOperator.Standard op = Standard.fromName(rangeOp.toString())
+                .orElseThrow(() -> new IllegalArgumentException("MapDB cannot support the operator " + rangeOp));
+
+        switch (op) {
+            case ALL:
+                final Object[] allKeyArray = table.toHashKeyArray(key.getHashValue());
+                return table.getMap().prefixSubMap(allKeyArray);
+            case BETWEEN:
+                final TwoValueHolder<?> betweenValues = (TwoValueHolder<?>) key.getRangeKey().getValue();
+                final Object[] fromKeyArray = table.toKeyArray(key.getHashValue(), betweenValues.getValue1());
+                final Object[] toKeyArray = table.toKeyArray(key.getHashValue(), betweenValues.getValue2());
+                return table.getMap().subMap(fromKeyArray, true, toKeyArray, true);
+            case EQUAL_TO:
+            case NONE:
+                final Object[] equalToKeyArray = table.toKeyArray(key);
+                return table.getMap().subMap(equalToKeyArray, true, equalToKeyArray, true);
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQUAL_TO:
+                final Object[] greaterThanKey = table.toKeyArray(key);
+                final Object[] greaterThanLimit = new Object[]{greaterThanKey[0], null};
+                return table.getMap().subMap(greaterThanKey, op == Standard.GREATER_THAN_OR_EQUAL_TO, greaterThanLimit, true);
+            case LESS_THAN:
+            case LESS_THAN_OR_EQUAL_TO:
+            default:
+                final Object[] lessThanKey = table.toKeyArray(key);
+                final Object[] lessThanLimit = table.toHashKeyArray(key.getHashValue());
+                return table.getMap().subMap(lessThanLimit, true, lessThanKey, op == Standard.LESS_THAN_OR_EQUAL_TO);
+        }
+    }
+
+    /**
+     * Seeks each of the given key's IN values, in key order,
+     * and collects the present entries into a sorted view
+     * which holds only the matching (still encoded) values.
+     */
+    private NavigableMap<Object[], byte[]> getInRangeMap(final MapDBTable table,
+                                                         final MapStoreKey key) {
+        final NavigableMap<Object[], byte[]> inRangeMap = new TreeMap<>(table.getMap().comparator());
+        ((ListValueHolder<?>) key.getRangeKey().getValue()).getValues().stream()
+                .map(rangeValue -> table.toKeyArray(key.getHashValue(), rangeValue))
+                .sorted(table.getMap().comparator())
+                .forEach(keyArray -> Optional.ofNullable(table.getMap().get(keyArray))
+                        .ifPresent(valueArray -> inRangeMap.put(keyArray, valueArray)));
+        return inRangeMap;
+    }
+
+    /**
+     * Returns the sub-range of range values which start with the
+     * given key's prefix. This is bounded above by the smallest
+     * string which is greater than all strings with the prefix.
+     */
+    private NavigableMap<Object[], byte[]> getStartsWithRangeMap(final MapDBTable table,
+                                                                 final MapStoreKey key) {
+        final String prefix = (String) key.getRangeKey().getValue();
+        final Object[] fromKeyArray = table.toKeyArray(key.getHashValue(), prefix);
+
+        final Optional<String> prefixLimit = getPrefixLimit(prefix);
+        final Object[] toKeyArray = prefixLimit.map(limit -> table.toKeyArray(key.getHashValue(), limit))
+                .orElseGet(() -> new Object[]{fromKeyArray[0], null});
+        return table.getMap().subMap(fromKeyArray, true, toKeyArray, !prefixLimit.isPresent());
+    }
+
+    @VisibleForTesting
+    Optional<String> getPrefixLimit(final String prefix) {
+        final StringBuilder prefixLimit = new StringBuilder(prefix);
+        // Increment the last character which can be incremented, dropping any trailing max characters
+        while (prefixLimit.length() > 0) {
+            final int lastIndex = prefixLimit.length() - 1;
+            final char lastChar = prefixLimit.charAt(lastIndex);
+            if (lastChar < Character.MAX_VALUE) {
+                prefixLimit.setCharAt(lastIndex, (char) (lastChar + 1));
+                return Optional.of(prefixLimit.toString());
+            }
+            prefixLimit.setLength(lastIndex);
+        }
+
+        // Every string is within an empty (or all max character) prefix
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the open handle for the given table.
+     * Tables which were created before their key schema
+     * was persisted have their key types inferred from
+     * the given key instead.
+     */
+    @VisibleForTesting
+    MapDBTable getTable(final String tableName,
+                        final MapStoreKey key) {
+        return findTable(tableName).orElseGet(() -> {
+            final Class<?> hashFieldType = key.getHashValue().getClass();
+            final Optional<Class<?>> rangeFieldType = key.getRangeField()
+                    .flatMap(rangeField -> Optional.ofNullable(key.getRangeKey().getValue()))
+                    .map(rangeValue -> {
+                        // Multi-valued range keys are typed by their contained values
+                        if (rangeValue instanceof ListValueHolder) {
+                            return ((ListValueHolder<?>) rangeValue).getValues().get(0).getClass();
+                        } else if (rangeValue instanceof TwoValueHolder) {
+                            return ((TwoValueHolder<?>) rangeValue).getValue1().getClass();
+                        }
+                        return rangeValue.getClass();
+                    });
+            return openTable(tableName, rangeFieldType.map(rangeType -> new Class<?>[]{hashFieldType, rangeType})
+                    .orElseGet(() -> new Class<?>[]{hashFieldType}));
+        });
+    }
+
+    // A table is always keyed by an array tuple, so its untyped map is keyed by Object arrays
+    @SuppressWarnings("unchecked")
+    private BTreeMap<Object[], byte[]> getTable(final String tableName) {
+        return findTable(tableName).map(MapDBTable::getMap)
+                .orElseGet(() -> (BTreeMap<Object[], byte[]>) mapDB.treeMap(tableName)
+                        .valueSerializer(Serializer.BYTE_ARRAY)
+                        .open());
+    }
+
+    // Read the item behind an index entry, skipping it if a concurrent write has moved it out of the entry
+    private Optional<Map<String, Object>> getIndexedItem(final MapDBTable table,
+                                                         final MapDBIndex index,
+                                                         final Object[] entryKeyArray,
+                                                         final Set<String> projection) {
+        final Object[] tableKeyArray = index.toTableKeyArray(entryKeyArray);
+        // The indexed fields are always decoded so that the item can be checked against its entry
+        final Set<String> decodedFields = projection.isEmpty() ? projection : Sets.union(projection, index.getFields());
+        return Optional.ofNullable(table.getMap().get(tableKeyArray))
+                .map(valueMapper(decodedFields))
+                .filter(item -> index.toEntryKeyArray(item, tableKeyArray)
+                        .filter(itemEntryKeyArray -> Arrays.equals(itemEntryKeyArray, entryKeyArray))
+                        .isPresent())
+                .map(item -> projectItem(item, projection));
+    }
+
+    // The expiry maps share the store with all other tables, so they are cleared but never closed
+    private void dropExpiry(final String tableName) {
+        Stream.of(EXPIRY_INDEX_MAP_PREFIX + tableName, EXPIRES_AT_MAP_PREFIX + tableName)
+                .filter(mapDB::exists)
+                .forEach(mapName -> mapDB.treeMap(mapName).open().clear());
+        tableTimeToLives.remove(tableName);
+    }
+
+    private String getIndexId(final String tableName, final String indexName) {
+        return tableName + "#" + indexName;
+    }
+
+    // MapDB's Java serializer is untyped, so it is typed here by the values that each catalog map holds
+    @SuppressWarnings("unchecked")
+    private static <V> Serializer<V> javaSerializer() {
+        return (Serializer<V>) Serializer.JAVA;
+    }
+
+    private Optional<MapDBTable> findTable(final String tableName) {
+        final Optional<MapDBTable> table = Optional.ofNullable(tables.get(tableName));
+        return table.isPresent() ? table : Optional.ofNullable(tableKeys.get(tableName))
+                .map(keyTypes -> tables.computeIfAbsent(tableName, name -> openTable(name, keyTypes)));
+    }
+
+    private MapDBTable openTable(final String tableName, final Class<?>[] keyTypes) {
+        final Optional<Class<?>> rangeFieldType = Optional.of(keyTypes)
+                .filter(types -> types.length > 1)
+                .map(types -> types[1]);
+        final SerializerArrayTuple storeKeySerializer = createKeySerializer(keyTypes[0], rangeFieldType);
 
-        return mapDB.treeMap(tableName)
+        final BTreeMap<Object[], byte[]> map = mapDB.treeMap(tableName)
                 .keySerializer(storeKeySerializer)
                 .valueSerializer(Serializer.BYTE_ARRAY)
-                .open();
+                .createOrOpen();
+        final Optional<MapDBExpiry> expiry = Optional.ofNullable(tableTimeToLives.get(tableName))
+                .map(timeToLiveMillis -> openExpiry(tableName, keyTypes, storeKeySerializer, timeToLiveMillis));
+        final MapDBTable table = new MapDBTable(map, keyTypes[0], rangeFieldType, expiry);
+
+        final String indexIdPrefix = getIndexId(tableName, "");
+        tableIndexes.forEach((indexId, indexFields) -> {
+            if (indexId.startsWith(indexIdPrefix)) {
+                table.putIndex(indexId.substring(indexIdPrefix.length()), openIndex(indexId, table, indexFields));
+            }
+        });
+        return table;
     }
 
-    @VisibleForTesting
-    Comparator<Map<String, Object>> valueComparator(final MapStoreKey key, final Order order) {
-        return (m1, m2) -> {
-            // If there's no range key than order doesn't matter
-            if (!key.getRangeField().isPresent()) {
-                return 0;
+    private MapDBExpiry openExpiry(final String tableName,
+                                   final Class<?>[] keyTypes,
+                                   final SerializerArrayTuple storeKeySerializer,
+                                   final long timeToLiveMillis) {
+        // Expiry index entries are keyed by the expiry time followed by the item's table key
+        final Serializer<?>[] entryKeySerializers = Stream.concat(Stream.<Serializer<?>>of(Serializer.LONG),
+                Arrays.stream(keyTypes).map(SerializerUtils::serializerForClass))
+                .toArray(Serializer<?>[]::new);
+
+        final BTreeMap<Object[], Boolean> indexMap = mapDB.treeMap(EXPIRY_INDEX_MAP_PREFIX + tableName)
+                .keySerializer(new SerializerArrayTuple(entryKeySerializers))
+                .valueSerializer(Serializer.BOOLEAN)
+                .createOrOpen();
+        final BTreeMap<Object[], Long> expiresAtMap = mapDB.treeMap(EXPIRES_AT_MAP_PREFIX + tableName)
+                .keySerializer(storeKeySerializer)
+                .valueSerializer(Serializer.LONG)
+                .createOrOpen();
+        sweepExecutor.get();
+        return new MapDBExpiry(indexMap, expiresAtMap, timeToLiveMillis);
+    }
+
+    private MapDBIndex openIndex(final String indexId,
+                                 final MapDBTable table,
+                                 final Object[] indexFields) {
+        final Class<?> hashFieldType = (Class<?>) indexFields[1];
+        final Optional<String> rangeField = Optional.ofNullable((String) indexFields[2]);
+        final Optional<Class<?>> rangeFieldType = Optional.ofNullable((Class<?>) indexFields[3]);
+
+        // Index entries are keyed by the indexed values followed by the item's table key
+        final List<Class<?>> entryKeyTypes = new ArrayList<>(4);
+        entryKeyTypes.add(hashFieldType);
+        rangeFieldType.ifPresent(entryKeyTypes::add);
+        entryKeyTypes.add(table.getHashFieldType());
+        table.getRangeFieldType().ifPresent(entryKeyTypes::add);
+        final Serializer<?>[] entryKeySerializers = entryKeyTypes.stream()
+                .map(SerializerUtils::serializerForClass)
+                .toArray(Serializer<?>[]::new);
+
+        final BTreeMap<Object[], Boolean> map = mapDB.treeMap(INDEX_MAP_PREFIX + indexId)
+                .keySerializer(new SerializerArrayTuple(entryKeySerializers))
+                .valueSerializer(Serializer.BOOLEAN)
+                .createOrOpen();
+        return new MapDBIndex(map, (String) indexFields[0], hashFieldType, rangeField, rangeFieldType);
+    }
+
+    /**
+     * Atomically replaces a single item in the given table with
+     * the item computed from its current value. Nothing is written
+     * if the computed item is {@link Optional#empty()}.
+     *
+     * Items in unindexed tables are swapped in with a compare-and-set
+     * on their stored bytes, which is retried if another write got
+     * there first. Items in indexed or expiring tables are computed
+     * under the item's lock instead, so that their index entries
+     * stay in step.
+     */
+    private Optional<Map<String, Object>> computeTableEntry(
+            final String tableName,
+            final MapDBTable table,
+            final Object[] keyArray,
+            final Function<Optional<Map<String, Object>>, Optional<Map<String, Object>>> itemUpdater) {
+        if (table.hasDependentMaps()) {
+            return withItemLock(tableName, keyArray, () -> {
+                final Optional<Map<String, Object>> newItem = itemUpdater.apply(
+                        Optional.ofNullable(table.getMap().get(keyArray)).map(valueMapper()));
+                newItem.ifPresent(item -> putTableEntry(tableName, table, keyArray, item));
+                return newItem;
+            });
+        }
+
+        while (true) {
+            final Optional<byte[]> oldValueArray = Optional.ofNullable(table.getMap().get(keyArray));
+            final Optional<Map<String, Object>> newItem = itemUpdater.apply(oldValueArray.map(valueMapper()));
+            if (!newItem.isPresent()) {
+                return newItem;
             }
 
-            // Otherwise, sort by the range field values
-            final String rangeField = key.getRangeField().get();
-            return order == Order.ASC ?
-                    ((Comparable) m1.get(rangeField)).compareTo(m2.get(rangeField)) :
-                    ((Comparable) m2.get(rangeField)).compareTo(m1.get(rangeField));
-        };
+            final byte[] newValueArray = writeValue(newItem.get());
+            final boolean swapped = oldValueArray
+                    .map(oldValue -> table.getMap().replace(keyArray, oldValue, newValueArray))
+                    .orElseGet(() -> table.getMap().putIfAbsent(keyArray, newValueArray) == null);
+            if (swapped) {
+                return newItem;
+            }
+        }
+    }
+
+    /**
+     * Writes a single item to the given table. Items in indexed
+     * or expiring tables are written under the item's lock, so
+     * that its new index entries are added and its stale ones
+     * removed before any other write to the same item. Each
+     * write restarts an expiring item's time to live.
+     */
+    private void putTableEntry(final String tableName,
+                               final MapDBTable table,
+                               final Object[] keyArray,
+                               final Map<String, Object> item) {
+        final byte[] valueArray = writeValue(item);
+        if (!table.hasDependentMaps()) {
+            table.getMap().put(keyArray, valueArray);
+            return;
+        }
+
+        withItemLock(tableName, keyArray, () -> {
+            // Resolve all entries up front so that an invalid indexed value leaves the item untouched
+            final Map<MapDBIndex, Optional<Object[]>> entryKeyArrays = table.getIndexes().stream()
+                    .collect(Collectors.toMap(Function.identity(), index -> index.toEntryKeyArray(item, keyArray)));
+            final Optional<byte[]> oldValueArray = Optional.ofNullable(table.getMap().put(keyArray, valueArray));
+
+            entryKeyArrays.forEach((index, entryKeyArray) -> {
+                entryKeyArray.ifPresent(newEntryKeyArray -> index.getMap().put(newEntryKeyArray, Boolean.TRUE));
+                oldValueArray.flatMap(oldValue -> toEntryKeyArray(index, keyArray, oldValue))
+                        .filter(oldEntryKeyArray -> !entryKeyArray
+                                .filter(newEntryKeyArray -> Arrays.equals(newEntryKeyArray, oldEntryKeyArray))
+                                .isPresent())
+                        .ifPresent(oldEntryKeyArray -> index.getMap().remove(oldEntryKeyArray));
+            });
+            table.getExpiry().ifPresent(expiry -> expiry.refresh(keyArray, System.currentTimeMillis()));
+        });
+    }
+
+    private void removeTableEntry(final String tableName,
+                                  final MapDBTable table,
+                                  final Object[] keyArray) {
+        if (!table.hasDependentMaps()) {
+            table.getMap().remove(keyArray);
+            return;
+        }
+
+        withItemLock(tableName, keyArray, () -> {
+            Optional.ofNullable(table.getMap().remove(keyArray))
+                    .ifPresent(oldValueArray -> table.getIndexes().forEach(index ->
+                            toEntryKeyArray(index, keyArray, oldValueArray)
+                                    .ifPresent(oldEntryKeyArray -> index.getMap().remove(oldEntryKeyArray))));
+            table.getExpiry().ifPresent(expiry -> expiry.remove(keyArray));
+        });
+    }
+
+    private void runSweepLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Sleep only once the sweep has caught up with all expired items
+                if (!sweepExpiredItemsQuietly(System.currentTimeMillis())) {
+                    TimeUnit.MILLISECONDS.sleep(expirySweepIntervalMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A failed sweep is retried by the next one, so it must not end the sweep loop
+    private boolean sweepExpiredItemsQuietly(final long nowMillis) {
+        try {
+            return sweepExpiredItems(nowMillis);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not sweep expired MapDB items. These will be retried.", e);
+            return false;
+        }
+    }
+
+    // Decode only the indexed fields of a stored value to find its index entry
+    private Optional<Object[]> toEntryKeyArray(final MapDBIndex index,
+                                               final Object[] keyArray,
+                                               final byte[] valueArray) {
+        return index.toEntryKeyArray(valueCodec.decodeFields(valueArray, index.getFields()), keyArray);
+    }
+
+    private void withItemLock(final String tableName,
+                              final Object[] keyArray,
+                              final Runnable itemWriter) {
+        withItemLock(tableName, keyArray, () -> {
+            itemWriter.run();
+            return null;
+        });
+    }
+
+    // Item locks are reentrant, so a locked write may call other locked writes on the same item
+    private <T> T withItemLock(final String tableName,
+                               final Object[] keyArray,
+                               final Supplier<T> itemWriter) {
+        final Lock itemLock = itemLocks.get(Arrays.asList(tableName, Arrays.asList(keyArray)));
+        itemLock.lock();
+        try {
+            return itemWriter.get();
+        } finally {
+            itemLock.unlock();
+        }
     }
 
     @VisibleForTesting
     Function<byte[], Map<String, Object>> valueMapper() {
-        return value -> {
-            try {
-                return objectMapper.readValue(value, new TypeReference<Map<String, Object>>(){});
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        };
+        return valueCodec::decode;
+    }
+
+    // Decode only the projected fields of each value, or whole values if there is no projection
+    @VisibleForTesting
+    Function<byte[], Map<String, Object>> valueMapper(final Set<String> projection) {
+        return projection.isEmpty() ? valueMapper() : valueArray -> valueCodec.decodeFields(valueArray, projection);
+    }
+
+    @VisibleForTesting
+    byte[] writeValue(final Map<String, Object> value) {
+        return valueCodec.encode(value);
     }
 }
@@ -3,6 +3,7 @@ package net.spals.appbuilder.mapstore.core.mapdb;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.inject.Provider;
 import com.netflix.governator.annotations.Configuration;
+import com.typesafe.config.ConfigException;
 import net.spals.appbuilder.annotations.service.AutoBindProvider;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
@@ -10,6 +11,14 @@ import org.mapdb.DBMaker;
 import java.util.Optional;
 
 /**
+ * A {@link Provider} of the MapDB {@link DB}.
+ *
+ * The store is kept in a file when mapStore.mapDB.file
+ * is set, optionally memory-mapped so that it lives
+ * outside of the Java heap and is paged in lazily.
+ * Otherwise, the store is kept in memory, either as
+ * byte arrays on the heap or in direct (off-heap) memory.
+ *
  * @author tkral
  */
 @AutoBindProvider
@@ -17,11 +26,72 @@ class MapDBProvider implements Provider<DB> {
 
     @Configuration("mapStore.mapDB.file")
     @VisibleForTesting
-    private volatile String storeFilePath;
+    volatile String storeFilePath;
+
+    @Configuration("mapStore.mapDB.fileMmapEnable")
+    @VisibleForTesting
+    volatile Boolean fileMmapEnable = false;
+
+    // Zero out newly mapped file regions. Disabling this speeds
+    // up file growth but is only safe on zero-filling filesystems.
+    @Configuration("mapStore.mapDB.fileMmapPreclear")
+    @VisibleForTesting
+    volatile Boolean fileMmapPreclear = true;
+
+    @Configuration("mapStore.mapDB.memoryDirect")
+    @VisibleForTesting
+    volatile Boolean memoryDirect = false;
+
+    @Configuration("mapStore.mapDB.allocateStartSize")
+    @VisibleForTesting
+    volatile Long allocateStartSize;
+
+    @Configuration("mapStore.mapDB.allocateIncrement")
+    @VisibleForTesting
+    volatile Long allocateIncrement;
+
+    @Configuration("mapStore.mapDB.concurrencyScale")
+    @VisibleForTesting
+    volatile Integer concurrencyScale;
 
     @Override
     public DB get() {
-        return Optional.ofNullable(storeFilePath).map(filePath -> DBMaker.fileDB(filePath).closeOnJvmShutdown().make())
-                .orElseGet(() -> DBMaker.memoryDB().closeOnJvmShutdown().make());
+        return createMaker().closeOnJvmShutdown().make();
+    }
+
+    @VisibleForTesting
+    DBMaker.Maker createMaker() {
+        final DBMaker.Maker dbMaker = Optional.ofNullable(storeFilePath)
+                .map(filePath -> createFileMaker(filePath))
+                .orElseGet(() -> memoryDirect ? DBMaker.memoryDirectDB() : DBMaker.memoryDB());
+
+        Optional.ofNullable(allocateStartSize).ifPresent(startSize -> dbMaker.allocateStartSize(startSize));
+        Optional.ofNullable(allocateIncrement).ifPresent(increment -> dbMaker.allocateIncrement(increment));
+        Optional.ofNullable(concurrencyScale).ifPresent(scale -> {
+            if (scale < 1) {
+                throw new ConfigException.BadValue("mapStore.mapDB.concurrencyScale",
+                        "MapDB concurrency scale must be positive: " + scale);
+            }
+            dbMaker.concurrencyScale(scale);
+        });
+
+        return dbMaker;
+    }
+
+    private DBMaker.Maker createFileMaker(final String filePath) {
+        if (memoryDirect) {
+            throw new ConfigException.BadValue("mapStore.mapDB.memoryDirect",
+                    "A direct memory MapDB cannot be combined with mapStore.mapDB.file: " + filePath);
+        }
+
+        final DBMaker.Maker fileMaker = DBMaker.fileDB(filePath);
+        if (fileMmapEnable) {
+            // Fall back to file channel access on platforms which cannot map large files
+            fileMaker.fileMmapEnableIfSupported();
+            if (!fileMmapPreclear) {
+                fileMaker.fileMmapPreclearDisable();
+            }
+        }
+        return fileMaker;
     }
 }
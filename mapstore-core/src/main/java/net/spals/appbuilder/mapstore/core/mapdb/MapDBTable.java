@@ -0,0 +1,93 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import org.mapdb.BTreeMap;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static net.spals.appbuilder.mapstore.core.model.MapStoreKeyValues.coerceKeyValue;
+
+/**
+ * An open handle to a MapDB table along
+ * with the key schema that it was created with
+ * and the handles of its secondary indexes
+ * and expiry index.
+ *
+ * Key values are coerced to the schema's types so
+ * that, for example, an {@link Integer} may be used
+ * to look up a {@link Long} keyed table.
+ *
+ * @author tkral
+ */
+class MapDBTable {
+
+    private final BTreeMap<Object[], byte[]> map;
+    private final Class<?> hashFieldType;
+    private final Optional<Class<?>> rangeFieldType;
+    private final Optional<MapDBExpiry> expiry;
+    private final ConcurrentMap<String, MapDBIndex> indexes = new ConcurrentHashMap<>();
+
+    MapDBTable(final BTreeMap<Object[], byte[]> map,
+               final Class<?> hashFieldType,
+               final Optional<Class<?>> rangeFieldType,
+               final Optional<MapDBExpiry> expiry) {
+        this.map = map;
+        this.hashFieldType = hashFieldType;
+        this.rangeFieldType = rangeFieldType;
+        this.expiry = expiry;
+    }
+
+    BTreeMap<Object[], byte[]> getMap() {
+        return map;
+    }
+
+    Class<?> getHashFieldType() {
+        return hashFieldType;
+    }
+
+    Optional<Class<?>> getRangeFieldType() {
+        return rangeFieldType;
+    }
+
+    Optional<MapDBExpiry> getExpiry() {
+        return expiry;
+    }
+
+    Optional<MapDBIndex> getIndex(final String indexName) {
+        return Optional.ofNullable(indexes.get(indexName));
+    }
+
+    Collection<MapDBIndex> getIndexes() {
+        return indexes.values();
+    }
+
+    // Writes to indexed or expiring items also write to other maps, so they must be serialized
+    boolean hasDependentMaps() {
+        return !indexes.isEmpty() || expiry.isPresent();
+    }
+
+    void putIndex(final String indexName, final MapDBIndex index) {
+        indexes.put(indexName, index);
+    }
+
+    Optional<MapDBIndex> removeIndex(final String indexName) {
+        return Optional.ofNullable(indexes.remove(indexName));
+    }
+
+    Object[] toHashKeyArray(final Object hashValue) {
+        return new Object[]{coerceKeyValue(hashFieldType, hashValue)};
+    }
+
+    Object[] toKeyArray(final Object hashValue, final Object rangeValue) {
+        return new Object[]{coerceKeyValue(hashFieldType, hashValue),
+                rangeFieldType.map(rangeType -> coerceKeyValue(rangeType, rangeValue)).orElse(rangeValue)};
+    }
+
+    Object[] toKeyArray(final MapStoreKey key) {
+        return key.getRangeField().map(rangeField -> toKeyArray(key.getHashValue(), key.getRangeKey().getValue()))
+                .orElseGet(() -> toHashKeyArray(key.getHashValue()));
+    }
+}
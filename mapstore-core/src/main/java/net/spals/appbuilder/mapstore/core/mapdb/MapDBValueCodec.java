@@ -0,0 +1,24 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts MapDB item values to and from
+ * the bytes which are stored in a table.
+ *
+ * @author tkral
+ */
+interface MapDBValueCodec {
+
+    Map<String, Object> decode(byte[] value);
+
+    /**
+     * Decodes only the given top-level fields of a value.
+     * Fields which are not present in the value are
+     * not present in the returned map.
+     */
+    Map<String, Object> decodeFields(byte[] value, Set<String> fieldNames);
+
+    byte[] encode(Map<String, Object> value);
+}
@@ -0,0 +1,41 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.netflix.governator.annotations.Configuration;
+import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.annotations.service.AutoBindProvider;
+import org.mapdb.DB;
+
+/**
+ * Provides the {@link MapDBValueCodec} which is
+ * configured under mapStore.mapDB.valueCodec.
+ *
+ * @author tkral
+ */
+@AutoBindProvider
+class MapDBValueCodecProvider implements Provider<MapDBValueCodec> {
+
+    @Configuration("mapStore.mapDB.valueCodec")
+    private volatile String valueCodec = "binary";
+
+    private final DB mapDB;
+
+    @Inject
+    MapDBValueCodecProvider(final DB mapDB) {
+        this.mapDB = mapDB;
+    }
+
+    @Override
+    public MapDBValueCodec get() {
+        switch (valueCodec) {
+            case "binary":
+                return new BinaryMapDBValueCodec(mapDB);
+            case "json":
+                return new JsonMapDBValueCodec();
+            default:
+                throw new ConfigException.BadValue("mapStore.mapDB.valueCodec",
+                        "Unknown MapDB value codec: " + valueCodec);
+        }
+    }
+}
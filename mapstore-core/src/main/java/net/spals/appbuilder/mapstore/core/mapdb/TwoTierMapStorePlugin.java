@@ -0,0 +1,537 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.Striped;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.netflix.governator.annotations.Configuration;
+import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.annotations.service.AutoBindInMap;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapQueryPage;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreWriteCondition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@link MapStorePlugin} which keeps a local MapDB
+ * copy of a remote store's items.
+ *
+ * Single items are read from the local tier while
+ * their copy is fresh, and reloaded from the remote store
+ * (mapStore.twoTier.remoteSystem) otherwise. Writes
+ * apply to the local tier at once and are flushed
+ * to the remote store in the background, where all
+ * writes to a key since the last flush are coalesced
+ * into a single batched write of its latest state.
+ *
+ * At most mapStore.twoTier.maxPendingWrites keys may
+ * await a flush. Writes of other keys then block until a
+ * flush makes room, and fail once they have waited for
+ * mapStore.twoTier.pendingWriteTimeoutMillis. Local copies
+ * are removed once their keys are no longer fresh, so the
+ * local tier holds about mapStore.twoTier.maxFreshItems
+ * items along with the pending writes.
+ *
+ * Queries of many items are served by the remote
+ * store after a flush of the queried table's pending
+ * writes. Because conditions are checked against the
+ * local copy, this suits data which is written by a
+ * single process, such as sessions pinned to one worker.
+ *
+ * @author tkral
+ */
+@AutoBindInMap(baseClass = MapStorePlugin.class, key = "twoTier")
+class TwoTierMapStorePlugin implements MapStorePlugin {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TwoTierMapStorePlugin.class);
+
+    static final String LOCAL_SYSTEM = "mapDB";
+
+    @Configuration("mapStore.twoTier.remoteSystem")
+    @VisibleForTesting
+    volatile String remoteSystem;
+
+    // How long a local copy is served without being reloaded
+    @Configuration("mapStore.twoTier.freshnessMillis")
+    @VisibleForTesting
+    volatile Long freshnessMillis = 5000L;
+
+    @Configuration("mapStore.twoTier.maxFreshItems")
+    @VisibleForTesting
+    volatile Long maxFreshItems = 100000L;
+
+    @Configuration("mapStore.twoTier.flushIntervalMillis")
+    @VisibleForTesting
+    volatile Long flushIntervalMillis = 100L;
+
+    @Configuration("mapStore.twoTier.maxPendingWrites")
+    @VisibleForTesting
+    volatile Long maxPendingWrites = 100000L;
+
+    // How long a write waits for room among the pending writes before it fails
+    @Configuration("mapStore.twoTier.pendingWriteTimeoutMillis")
+    @VisibleForTesting
+    volatile Long pendingWriteTimeoutMillis = 5000L;
+
+    private final Supplier<MapStorePlugin> localPlugin;
+    private final Supplier<MapStorePlugin> remotePlugin;
+    // The flush loop is only started by the first write
+    private final Supplier<ExecutorService> flushExecutor;
+    private final AtomicBoolean flushStarted = new AtomicBoolean(false);
+    private final Supplier<Cache<Map.Entry<String, MapStoreKey>, Boolean>> freshKeys;
+    // Keys which are no longer fresh, whose local copies are yet to be removed by the flush loop
+    private final Queue<Map.Entry<String, MapStoreKey>> staleKeys = new ConcurrentLinkedQueue<>();
+
+    // The latest state of each written key of each table which is yet to be flushed. An empty item is a delete.
+    private final ConcurrentMap<String, ConcurrentMap<MapStoreKey, Optional<Map<String, Object>>>> pendingWrites =
+            new ConcurrentHashMap<>();
+    // Notified whenever a flush makes room among the pending writes
+    private final Object pendingWritesFlushed = new Object();
+    // Serializes reloads of and writes to each key so that a reload cannot overwrite a newer write
+    private final Striped<Lock> keyLocks = Striped.lock(64);
+    // Serializes the flushes of each table, so that a table's reads never wait on the flushes of others
+    private final Striped<Lock> tableFlushLocks = Striped.lock(16);
+
+    @Inject
+    TwoTierMapStorePlugin(final ExecutorServiceFactory executorServiceFactory,
+                          final Provider<Map<String, MapStorePlugin>> storePluginMapProvider) {
+        // The plugin map holds this plugin as well, so its tiers can only be looked up once it is built
+        this.localPlugin = Suppliers.memoize(() -> storePluginMapProvider.get().get(LOCAL_SYSTEM));
+        this.remotePlugin = Suppliers.memoize(() -> Optional.ofNullable(storePluginMapProvider.get().get(remoteSystem))
+                .filter(storePlugin -> storePlugin != this)
+                .orElseThrow(() -> new ConfigException.BadValue("mapStore.twoTier.remoteSystem",
+                        "No remote Map Store plugin found for : " + remoteSystem)));
+        this.flushExecutor = Suppliers.memoize(() -> {
+            final ExecutorService executorService = executorServiceFactory.createSingleThreadExecutor(getClass(), "flush");
+            executorService.submit(this::runFlushLoop);
+            flushStarted.set(true);
+            return executorService;
+        });
+        this.freshKeys = Suppliers.memoize(() -> Caffeine.newBuilder()
+                .expireAfterWrite(freshnessMillis, TimeUnit.MILLISECONDS)
+                .maximumSize(maxFreshItems)
+                // Only queue the key here, as the listener may run while a key lock is held
+                .executor(Runnable::run)
+                .removalListener((Map.Entry<String, MapStoreKey> tierKey, Boolean fresh, RemovalCause cause) -> {
+                    if (cause.wasEvicted()) {
+                        staleKeys.add(tierKey);
+                        flushExecutor.get();
+                    }
+                })
+                .build());
+    }
+
+    @PreDestroy
+    void close() {
+        if (flushStarted.get()) {
+            flushExecutor.get().shutdownNow();
+        }
+        flushWrites();
+    }
+
+    @Override
+    public Predicate<Map.Entry> isNullOrEmptyEntry() {
+        return remotePlugin.get().isNullOrEmptyEntry();
+    }
+
+    @Override
+    public boolean createIndex(final String tableName,
+                               final String indexName,
+                               final MapStoreTableKey indexKey) {
+        // Index queries are always served by the remote tier
+        return remotePlugin.get().createIndex(tableName, indexName, indexKey);
+    }
+
+    @Override
+    public boolean createTable(final String tableName,
+                               final MapStoreTableKey tableKey) {
+        // The local table is created even if the remote table already exists, so that it keeps the table's key
+        final boolean remoteCreated = remotePlugin.get().createTable(tableName, tableKey);
+        final boolean localCreated = localPlugin.get().createTable(tableName, tableKey);
+        return remoteCreated && localCreated;
+    }
+
+    @Override
+    public boolean dropIndex(final String tableName,
+                             final String indexName) {
+        return remotePlugin.get().dropIndex(tableName, indexName);
+    }
+
+    @Override
+    public boolean dropTable(final String tableName) {
+        final Predicate<Map.Entry<String, MapStoreKey>> isTableKey = tierKey -> tierKey.getKey().equals(tableName);
+        pendingWrites.remove(tableName);
+        staleKeys.removeIf(isTableKey);
+        freshKeys.get().invalidateAll(freshKeys.get().asMap().keySet().stream().filter(isTableKey)
+                .collect(Collectors.toList()));
+
+        localPlugin.get().dropTable(tableName);
+        return remotePlugin.get().dropTable(tableName);
+    }
+
+    @Override
+    public void batchDeleteItems(final String tableName,
+                                 final List<MapStoreKey> keys) {
+        keys.forEach(key -> deleteItem(tableName, key));
+    }
+
+    @Override
+    public List<Map<String, Object>> batchGetItems(final String tableName,
+                                                   final List<MapStoreKey> keys) {
+        return keys.stream().map(key -> getItem(tableName, key))
+                .filter(Optional::isPresent).map(Optional::get)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Map<String, Object>> batchPutItems(final String tableName,
+                                                   final Map<MapStoreKey, Map<String, Object>> items) {
+        return items.entrySet().stream().map(item -> putItem(tableName, item.getKey(), item.getValue()))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void deleteItem(final String tableName,
+                           final MapStoreKey key) {
+        withKeyLock(tableName, key, () -> {
+            awaitPendingWrite(tableName, key);
+            localPlugin.get().deleteItem(tableName, key);
+            return writeBehind(tableName, key, Optional.empty());
+        });
+    }
+
+    @Override
+    public List<Map<String, Object>> getAllItems(final String tableName) {
+        flushTableWrites(tableName);
+        return remotePlugin.get().getAllItems(tableName);
+    }
+
+    @Override
+    public MapQueryPage getAllItemsPage(final String tableName,
+                                        final MapQueryOptions options) {
+        flushTableWrites(tableName);
+        return remotePlugin.get().getAllItemsPage(tableName, options);
+    }
+
+    @Override
+    public Optional<Map<String, Object>> getFirstItem(final String tableName,
+                                                      final MapStoreKey key,
+                                                      final Order order) {
+        flushTableWrites(tableName);
+        return remotePlugin.get().getFirstItem(tableName, key, order);
+    }
+
+    @Override
+    public List<Map<String, Object>> getIndexItems(final String tableName,
+                                                   final String indexName,
+                                                   final MapStoreKey indexKey,
+                                                   final MapQueryOptions options) {
+        flushTableWrites(tableName);
+        return remotePlugin.get().getIndexItems(tableName, indexName, indexKey, options);
+    }
+
+    @Override
+    public Optional<Map<String, Object>> getItem(final String tableName,
+                                                 final MapStoreKey key) {
+        return withKeyLock(tableName, key, () -> {
+            loadItem(tableName, key);
+            return localPlugin.get().getItem(tableName, key);
+        });
+    }
+
+    @Override
+    public List<Map<String, Object>> getItems(final String tableName,
+                                              final MapStoreKey key,
+                                              final MapQueryOptions options) {
+        flushTableWrites(tableName);
+        return remotePlugin.get().getItems(tableName, key, options);
+    }
+
+    @Override
+    public MapQueryPage getItemsPage(final String tableName,
+                                     final MapStoreKey key,
+                                     final MapQueryOptions options) {
+        flushTableWrites(tableName);
+        return remotePlugin.get().getItemsPage(tableName, key, options);
+    }
+
+    @Override
+    public Map<String, Object> incrementItem(final String tableName,
+                                             final MapStoreKey key,
+                                             final Map<String, Long> increments) {
+        return withKeyLock(tableName, key, () -> {
+            awaitPendingWrite(tableName, key);
+            loadItem(tableName, key);
+            final Map<String, Object> item = localPlugin.get().incrementItem(tableName, key, increments);
+            writeBehind(tableName, key, Optional.of(item));
+            return item;
+        });
+    }
+
+    @Override
+    public Map<String, Object> putItem(final String tableName,
+                                       final MapStoreKey key,
+                                       final Map<String, Object> payload) {
+        return withKeyLock(tableName, key, () -> {
+            awaitPendingWrite(tableName, key);
+            final Map<String, Object> item = localPlugin.get().putItem(tableName, key, payload);
+            writeBehind(tableName, key, Optional.of(item));
+            return item;
+        });
+    }
+
+    @Override
+    public Optional<Map<String, Object>> putItem(final String tableName,
+                                                 final MapStoreKey key,
+                                                 final Map<String, Object> payload,
+                                                 final MapStoreWriteCondition condition) {
+        return withKeyLock(tableName, key, () -> {
+            awaitPendingWrite(tableName, key);
+            loadItem(tableName, key);
+            final Optional<Map<String, Object>> item = localPlugin.get().putItem(tableName, key, payload, condition);
+            item.ifPresent(putItem -> writeBehind(tableName, key, item));
+            return item;
+        });
+    }
+
+    @Override
+    public Stream<Map<String, Object>> streamAllItems(final String tableName,
+                                                      final MapQueryOptions options) {
+        flushTableWrites(tableName);
+        return remotePlugin.get().streamAllItems(tableName, options);
+    }
+
+    @Override
+    public Stream<Map<String, Object>> streamItems(final String tableName,
+                                                   final MapStoreKey key,
+                                                   final MapQueryOptions options) {
+        flushTableWrites(tableName);
+        return remotePlugin.get().streamItems(tableName, key, options);
+    }
+
+    @Override
+    public Map<String, Object> updateItem(final String tableName,
+                                          final MapStoreKey key,
+                                          final Map<String, Object> payload) {
+        return withKeyLock(tableName, key, () -> {
+            awaitPendingWrite(tableName, key);
+            // An update merges into the remote item, so the local copy must be current
+            loadItem(tableName, key);
+            final Map<String, Object> item = localPlugin.get().updateItem(tableName, key, payload);
+            writeBehind(tableName, key, Optional.of(item));
+            return item;
+        });
+    }
+
+    @Override
+    public Optional<Map<String, Object>> updateItem(final String tableName,
+                                                    final MapStoreKey key,
+                                                    final Map<String, Object> payload,
+                                                    final MapStoreWriteCondition condition) {
+        return withKeyLock(tableName, key, () -> {
+            awaitPendingWrite(tableName, key);
+            loadItem(tableName, key);
+            final Optional<Map<String, Object>> item = localPlugin.get().updateItem(tableName, key, payload, condition);
+            item.ifPresent(updatedItem -> writeBehind(tableName, key, item));
+            return item;
+        });
+    }
+
+    /**
+     * Writes all pending writes to the remote tier, and
+     * removes the local copies of keys which are no longer
+     * fresh.
+     *
+     * Writes which fail are kept and retried by the
+     * next flush, unless the key was written again.
+     */
+    @VisibleForTesting
+    void flushWrites() {
+        pendingWrites.keySet().forEach(this::flushTableWrites);
+        removeStaleCopies();
+    }
+
+    // Write a table's pending writes to the remote tier, if it has any
+    private void flushTableWrites(final String tableName) {
+        final Map<MapStoreKey, Optional<Map<String, Object>>> tableWrites =
+                pendingWrites.getOrDefault(tableName, new ConcurrentHashMap<>());
+        if (tableWrites.isEmpty()) {
+            return;
+        }
+
+        final Lock flushLock = tableFlushLocks.get(tableName);
+        flushLock.lock();
+        try {
+            final Map<MapStoreKey, Optional<Map<String, Object>>> writes = new HashMap<>(tableWrites);
+            final Map<MapStoreKey, Map<String, Object>> putItems = new LinkedHashMap<>();
+            final List<MapStoreKey> deleteKeys = new ArrayList<>();
+            writes.forEach((key, item) -> {
+                if (item.isPresent()) {
+                    // Plugins may strip key fields from their payloads, so they are given copies
+                    putItems.put(key, new HashMap<>(item.get()));
+                } else {
+                    deleteKeys.add(key);
+                }
+            });
+
+            if (!putItems.isEmpty()) {
+                remotePlugin.get().batchPutItems(tableName, putItems);
+            }
+            if (!deleteKeys.isEmpty()) {
+                remotePlugin.get().batchDeleteItems(tableName, deleteKeys);
+            }
+            writes.forEach((key, item) -> {
+                if (tableWrites.remove(key, item)) {
+                    freshKeys.get().put(new AbstractMap.SimpleImmutableEntry<>(tableName, key), Boolean.TRUE);
+                }
+            });
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not flush {} writes to table {}. These will be retried.",
+                    tableWrites.size(), tableName, e);
+        } finally {
+            flushLock.unlock();
+        }
+
+        synchronized (pendingWritesFlushed) {
+            pendingWritesFlushed.notifyAll();
+        }
+    }
+
+    // Wait until there is room for a write of the given key among the pending writes
+    private void awaitPendingWrite(final String tableName, final MapStoreKey key) {
+        // A key which already awaits a flush is coalesced, so its write takes no more room
+        if (pendingWrites.getOrDefault(tableName, new ConcurrentHashMap<>()).containsKey(key)) {
+            return;
+        }
+
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pendingWriteTimeoutMillis);
+        synchronized (pendingWritesFlushed) {
+            while (pendingWrites.values().stream().mapToLong(Map::size).sum() >= maxPendingWrites) {
+                final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMillis <= 0L) {
+                    throw new IllegalStateException("Timed out waiting to write to table " + tableName
+                            + ": " + maxPendingWrites + " writes are waiting to be flushed");
+                }
+
+                flushExecutor.get();
+                try {
+                    pendingWritesFlushed.wait(remainingMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting to write to table " + tableName, e);
+                }
+            }
+        }
+    }
+
+    // Reload the local copy of an item from the remote tier, unless the copy is fresh or holds unflushed writes
+    private void loadItem(final String tableName, final MapStoreKey key) {
+        final Map.Entry<String, MapStoreKey> tierKey = new AbstractMap.SimpleImmutableEntry<>(tableName, key);
+        if (isPendingOrFresh(tierKey)) {
+            return;
+        }
+
+        final Optional<Map<String, Object>> remoteItem = remotePlugin.get().getItem(tableName, key);
+        if (remoteItem.isPresent()) {
+            localPlugin.get().putItem(tableName, key, new HashMap<>(remoteItem.get()));
+        } else {
+            localPlugin.get().deleteItem(tableName, key);
+        }
+        freshKeys.get().put(tierKey, Boolean.TRUE);
+    }
+
+    private boolean isPendingOrFresh(final Map.Entry<String, MapStoreKey> tierKey) {
+        return pendingWrites.getOrDefault(tierKey.getKey(), new ConcurrentHashMap<>()).containsKey(tierKey.getValue())
+                || freshKeys.get().getIfPresent(tierKey) != null;
+    }
+
+    // Remove the local copies of keys which are no longer fresh, unless they were written or reloaded since
+    private void removeStaleCopies() {
+        // Expired keys are only noticed by the cache's maintenance
+        freshKeys.get().cleanUp();
+
+        // A key which is in use (perhaps by a write awaiting this flush) is left to the next flush
+        final List<Map.Entry<String, MapStoreKey>> busyKeys = new ArrayList<>();
+        Map.Entry<String, MapStoreKey> staleKey;
+        while ((staleKey = staleKeys.poll()) != null) {
+            final Lock keyLock = keyLocks.get(staleKey);
+            if (!keyLock.tryLock()) {
+                busyKeys.add(staleKey);
+                continue;
+            }
+
+            try {
+                if (!isPendingOrFresh(staleKey)) {
+                    localPlugin.get().deleteItem(staleKey.getKey(), staleKey.getValue());
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Could not remove the local copy of a stale item from table {}", staleKey.getKey(), e);
+            } finally {
+                keyLock.unlock();
+            }
+        }
+        staleKeys.addAll(busyKeys);
+    }
+
+    private void runFlushLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                TimeUnit.MILLISECONDS.sleep(flushIntervalMillis);
+                flushWrites();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> T withKeyLock(final String tableName,
+                              final MapStoreKey key,
+                              final Supplier<T> action) {
+        final Lock keyLock = keyLocks.get(new AbstractMap.SimpleImmutableEntry<>(tableName, key));
+        keyLock.lock();
+        try {
+            return action.get();
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    private Void writeBehind(final String tableName,
+                             final MapStoreKey key,
+                             final Optional<Map<String, Object>> item) {
+        pendingWrites.computeIfAbsent(tableName, name -> new ConcurrentHashMap<>()).put(key, item);
+        flushExecutor.get();
+        return null;
+    }
+}
@@ -89,11 +89,12 @@ class DefaultMapStoreMigrationRunner implements MapStoreMigrationRunner {
     }
 
     int lookupLastMigrationIndex() {
+        // The max operator reads only the last migration, rather than all of them
         final MapStoreKey lastMigrationKey = new MapStoreKey.Builder()
                 .setHash(APPLICATION_NAME_KEY, applicationName)
                 .setRange(MIGRATION_INDEX, max())
                 .build();
         return mapStore.getItem(MIGRATIONS_TABLE_NAME, lastMigrationKey)
-                .map(migration -> (Integer) migration.get(MIGRATION_INDEX)).orElse(-1);
+                .map(migration -> ((Number) migration.get(MIGRATION_INDEX)).intValue()).orElse(-1);
     }
 }
@@ -3,6 +3,7 @@ package net.spals.appbuilder.mapstore.core.model;
 import org.inferred.freebuilder.FreeBuilder;
 
 import java.util.Optional;
+import java.util.Set;
 
 /**
  * @author tkral
@@ -10,14 +11,66 @@ import java.util.Optional;
 @FreeBuilder
 public interface MapQueryOptions {
 
+    int DEFAULT_PAGE_SIZE = 1000;
+
     static MapQueryOptions defaultOptions() {
         return new Builder().build();
     }
 
+    /**
+     * The token at which a paged query
+     * or stream should resume.
+     *
+     * See {@link MapQueryPage#getContinuationToken()}
+     */
+    Optional<String> getContinuationToken();
+
+    /**
+     * The consistency with which items are read
+     * by stores which replicate them. The store's
+     * configured default is used if this is absent.
+     */
+    Optional<Consistency> getConsistency();
+
     Optional<Integer> getLimit();
 
     Order getOrder();
 
+    /**
+     * The number of items fetched from the
+     * store per round trip in a paged query
+     * or stream.
+     */
+    Optional<Integer> getPageSize();
+
+    /**
+     * The fields to read from each item.
+     * All fields are read if this is empty.
+     *
+     * Key fields are only read if they are
+     * included in a non-empty projection.
+     */
+    Set<String> getProjection();
+
+    /**
+     * Read consistency levels, named after their
+     * Cassandra equivalents. Stores which only offer
+     * eventually or strongly consistent reads (e.g. DynamoDB)
+     * read strongly at any level above LOCAL_ONE and ONE.
+     */
+    enum Consistency {
+        LOCAL_ONE,
+        ONE,
+        LOCAL_QUORUM,
+        QUORUM,
+        ALL,
+        ;
+
+        public boolean isStrong() {
+            return this != LOCAL_ONE && this != ONE;
+        }
+    }
+
     enum Order {
         ASC,
         DESC,
@@ -0,0 +1,30 @@
+package net.spals.appbuilder.mapstore.core.model;
+
+import org.inferred.freebuilder.FreeBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A single page of items returned by a
+ * paged map store query.
+ *
+ * @author tkral
+ */
+@FreeBuilder
+public interface MapQueryPage {
+
+    /**
+     * An opaque token which can be set on
+     * {@link MapQueryOptions} to resume the
+     * query after this page.
+     *
+     * This is absent if there are no more pages.
+     */
+    Optional<String> getContinuationToken();
+
+    List<Map<String, Object>> getItems();
+
+    class Builder extends MapQueryPage_Builder {  }
+}
@@ -0,0 +1,30 @@
+package net.spals.appbuilder.mapstore.core.model;
+
+import org.inferred.freebuilder.FreeBuilder;
+
+/**
+ * Hit and miss statistics for a
+ * cached map store table.
+ *
+ * @author tkral
+ */
+@FreeBuilder
+public interface MapStoreCacheStats {
+
+    long getEvictionCount();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    /**
+     * The ratio of cache hits to total cache requests.
+     * This is 1.0 if no requests have been made.
+     */
+    default double getHitRate() {
+        final long requestCount = getHitCount() + getMissCount();
+        return requestCount == 0L ? 1.0 : (double) getHitCount() / requestCount;
+    }
+
+    class Builder extends MapStoreCacheStats_Builder {  }
+}
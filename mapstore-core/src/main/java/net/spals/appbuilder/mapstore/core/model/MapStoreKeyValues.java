@@ -0,0 +1,51 @@
+package net.spals.appbuilder.mapstore.core.model;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Shorts;
+import com.google.common.primitives.SignedBytes;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Utilities for the key values of {@link MapStoreKey}s.
+ *
+ * @author tkral
+ */
+public final class MapStoreKeyValues {
+
+    private MapStoreKeyValues() {  }
+
+    /**
+     * Coerces a numeric key value to the given key
+     * field type so that, for example, an {@link Integer}
+     * may be used to look up a {@link Long} keyed item.
+     * Values of any other type are returned as is.
+     */
+    public static Object coerceKeyValue(final Class<?> keyType, final Object keyValue) {
+        if (!(keyValue instanceof Number) || keyType.isInstance(keyValue)) {
+            return keyValue;
+        }
+
+        final Number numberValue = (Number) keyValue;
+        if (keyType == Long.class) {
+            return numberValue.longValue();
+        } else if (keyType == Integer.class) {
+            return Ints.checkedCast(numberValue.longValue());
+        } else if (keyType == Short.class) {
+            return Shorts.checkedCast(numberValue.longValue());
+        } else if (keyType == Byte.class) {
+            return SignedBytes.checkedCast(numberValue.longValue());
+        } else if (keyType == Double.class) {
+            return numberValue.doubleValue();
+        } else if (keyType == Float.class) {
+            return numberValue.floatValue();
+        } else if (keyType == BigInteger.class) {
+            return BigInteger.valueOf(numberValue.longValue());
+        } else if (keyType == BigDecimal.class) {
+            return new BigDecimal(numberValue.toString());
+        }
+
+        return keyValue;
+    }
+}
@@ -2,6 +2,8 @@ package net.spals.appbuilder.mapstore.core.model;
 
 import org.inferred.freebuilder.FreeBuilder;
 
+import java.time.Duration;
+import java.util.Map;
 import java.util.Optional;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -20,6 +22,32 @@ public interface MapStoreTableKey {
 
     Optional<Class<? extends Comparable>> getRangeFieldType();
 
+    /**
+     * The types of a table's non-key fields.
+     *
+     * Stores which support a fixed schema will hold
+     * each of these fields in its own typed column and
+     * will reject items with any other fields. Schema-less
+     * stores ignore these types.
+     */
+    Map<String, Class<?>> getColumnTypes();
+
+    /**
+     * How long each of a table's items lives after
+     * it was last put or updated.
+     *
+     * Stores expire items at their own granularity
+     * (such as whole seconds), and expired items may
+     * still be read until the store has removed them.
+     * Stores which cannot expire items ignore this.
+     *
+     * Some stores (such as Cassandra) expire each written
+     * field on its own, so an update restarts the time
+     * to live of only the fields which it wrote. The other
+     * fields of the item may then expire before them.
+     */
+    Optional<Duration> getTimeToLive();
+
     class Builder extends MapStoreTableKey_Builder {
 
         public Builder setHash(final String hashField, final Class<?> hashFieldType) {
@@ -32,9 +60,18 @@ public interface MapStoreTableKey {
             return setRangeFieldType(rangeFieldType);
         }
 
+        public Builder addColumn(final String field, final Class<?> fieldType) {
+            return putColumnTypes(field, fieldType);
+        }
+
         @Override
         public MapStoreTableKey build() {
             checkState(getRangeField().isPresent() == getRangeFieldType().isPresent());
+            checkState(!getColumnTypes().containsKey(getHashField())
+                    && !getRangeField().map(getColumnTypes()::containsKey).orElse(false),
+                "Key fields cannot also be columns");
+            checkState(getTimeToLive().map(timeToLive -> !timeToLive.isNegative() && !timeToLive.isZero()).orElse(true),
+                "Time to live must be positive");
             return super.build();
         }
     }
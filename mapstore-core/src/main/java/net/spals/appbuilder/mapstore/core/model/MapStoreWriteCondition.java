@@ -0,0 +1,83 @@
+package net.spals.appbuilder.mapstore.core.model;
+
+import org.inferred.freebuilder.FreeBuilder;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A condition on the item currently held at a key
+ * which must be met for a conditional write to
+ * be applied.
+ *
+ * A missing item holds no fields, so it meets any
+ * condition which has no expected values.
+ *
+ * @author tkral
+ */
+@FreeBuilder
+public interface MapStoreWriteCondition {
+
+    /**
+     * Requires that no item is held at the given key.
+     */
+    static MapStoreWriteCondition itemAbsent(final MapStoreKey key) {
+        return new Builder().addAbsentFields(key.getHashField()).build();
+    }
+
+    /**
+     * Requires that the item's version field holds
+     * the given version. This is the basis for
+     * optimistic concurrency control.
+     */
+    static MapStoreWriteCondition expectedVersion(final String versionField, final Object version) {
+        return new Builder().putExpectedValues(versionField, version).build();
+    }
+
+    /**
+     * Fields which must not be present in the item.
+     */
+    Set<String> getAbsentFields();
+
+    /**
+     * Fields which must be present in the item
+     * with the given values.
+     */
+    Map<String, Object> getExpectedValues();
+
+    /**
+     * Tests this condition against the given item.
+     * Numeric values are compared by value so that,
+     * for example, an expected {@link Integer} matches
+     * a stored {@link Long}.
+     */
+    default boolean isMetBy(final Optional<Map<String, Object>> item) {
+        final Map<String, Object> fields = item.orElse(Collections.emptyMap());
+        return getAbsentFields().stream().noneMatch(fields::containsKey)
+                && getExpectedValues().entrySet().stream()
+                    .allMatch(expected -> valueEquals(expected.getValue(), fields.get(expected.getKey())));
+    }
+
+    static boolean valueEquals(final Object expectedValue, final Object value) {
+        if (expectedValue instanceof Number && value instanceof Number) {
+            return new BigDecimal(expectedValue.toString()).compareTo(new BigDecimal(value.toString())) == 0;
+        }
+        return Objects.equals(expectedValue, value);
+    }
+
+    class Builder extends MapStoreWriteCondition_Builder {
+
+        @Override
+        public MapStoreWriteCondition build() {
+            checkState(getAbsentFields().stream().noneMatch(getExpectedValues()::containsKey),
+                    "A field cannot be both absent and expected");
+            return super.build();
+        }
+    }
+}
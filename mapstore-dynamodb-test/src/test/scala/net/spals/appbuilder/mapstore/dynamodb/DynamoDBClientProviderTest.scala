@@ -0,0 +1,32 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import com.amazonaws.AmazonServiceException
+import com.amazonaws.services.dynamodbv2.model.{GetItemRequest, ProvisionedThroughputExceededException}
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.is
+import org.testng.annotations.Test
+
+/**
+  * Unit tests for [[DynamoDBClientProvider]]
+  *
+  * @author tkral
+  */
+class DynamoDBClientProviderTest {
+
+  @Test def testRetryPolicySkipsThrottles() {
+    val retryCondition = new DynamoDBClientProvider().retryPolicy.getRetryCondition
+    val throttle = new ProvisionedThroughputExceededException("myThrottle")
+    throttle.setErrorCode("ProvisionedThroughputExceededException")
+    throttle.setStatusCode(400)
+
+    assertThat(retryCondition.shouldRetry(new GetItemRequest(), throttle, 0), is(false))
+  }
+
+  @Test def testRetryPolicyRetriesServerErrors() {
+    val retryCondition = new DynamoDBClientProvider().retryPolicy.getRetryCondition
+    val serverError = new AmazonServiceException("myServerError")
+    serverError.setStatusCode(500)
+
+    assertThat(retryCondition.shouldRetry(new GetItemRequest(), serverError, 0), is(true))
+  }
+}
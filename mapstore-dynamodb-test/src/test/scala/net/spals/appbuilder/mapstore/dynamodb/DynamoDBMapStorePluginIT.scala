@@ -1,14 +1,21 @@
 package net.spals.appbuilder.mapstore.dynamodb
 
 import java.util.Optional
+import java.util.concurrent.{ExecutorService, Executors}
+import java.util.stream.Collectors
 
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory
+import net.spals.appbuilder.mapstore.core.MapStoreMetrics
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions
 import net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey._
 import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.between
 import net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all
-import net.spals.appbuilder.mapstore.core.model.{MapStoreKey, MapStoreTableKey}
+import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey, MapStoreTableKey, MapStoreWriteCondition}
 import org.hamcrest.MatcherAssert.assertThat
-import org.hamcrest.Matchers.{contains, empty, is}
+import org.hamcrest.Matchers.{contains, containsInAnyOrder, empty, is}
+import org.mockito.Mockito.mock
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
 import org.slf4j.LoggerFactory
 import org.testng.annotations.{AfterClass, BeforeClass, DataProvider, Test}
 
@@ -32,7 +39,21 @@ class DynamoDBMapStorePluginIT {
     dynamoDBClientProvider.get()
   }
 
-  private lazy val mapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient)
+  private lazy val executorServiceFactory = mock(classOf[ExecutorServiceFactory],
+    new Answer[ExecutorService] {
+      override def answer(invocation: InvocationOnMock): ExecutorService = Executors.newCachedThreadPool()
+    })
+
+  private lazy val dynamoDBAsyncClient = {
+    val dynamoDBAsyncClientProvider = new DynamoDBAsyncClientProvider(executorServiceFactory)
+    dynamoDBAsyncClientProvider.awsAccessKeyId = "DUMMY"
+    dynamoDBAsyncClientProvider.awsSecretKey = "DUMMY"
+    dynamoDBAsyncClientProvider.endpoint = s"http://${System.getenv("DYNAMODB_IP")}:${System.getenv("DYNAMODB_PORT")}"
+    dynamoDBAsyncClientProvider.get()
+  }
+
+  private lazy val mapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient, dynamoDBAsyncClient,
+    executorServiceFactory, mock(classOf[MapStoreMetrics]))
 
   private val hashTableName = "hashTable"
   private val hashTableKey = new MapStoreTableKey.Builder()
@@ -122,6 +143,9 @@ class DynamoDBMapStorePluginIT {
     Array(
       Array(Map("numberKey" -> Long.box(1L)),
         Map("myHashField" -> "myHashValue", "myRangeField" -> "myRangeValue1", "key" -> "value", "numberKey" -> java.math.BigDecimal.valueOf(1L))),
+      // Numbers are replaced, not incremented
+      Array(Map("numberKey" -> Long.box(2L)),
+        Map("myHashField" -> "myHashValue", "myRangeField" -> "myRangeValue1", "key" -> "value", "numberKey" -> java.math.BigDecimal.valueOf(2L))),
       Array(Map("numberKey" -> ""),
         Map("myHashField" -> "myHashValue", "myRangeField" -> "myRangeValue1", "key" -> "value"))
     )
@@ -179,4 +203,138 @@ class DynamoDBMapStorePluginIT {
     assertThat(mapStorePlugin.getItems(rangeTableName, storeKey, defaultOptions()),
       contains[java.util.Map[String, AnyRef]](expectedResults.map(_.asJava): _*))
   }
+
+  @Test(dependsOnMethods = Array("testPutItem", "testUpdateItem"))
+  def testStreamItems() {
+    val result: Int => java.util.Map[String, AnyRef] = i => Map[String, AnyRef]("myHashField" -> "myHashValue",
+      "myRangeField" -> s"myRangeValue$i", "key" -> "value").asJava
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", all()).build
+    val options = new MapQueryOptions.Builder().setPageSize(1).setOrder(MapQueryOptions.Order.DESC).build
+
+    assertThat(mapStorePlugin.streamItems(rangeTableName, storeKey, options).collect(Collectors.toList()),
+      contains[java.util.Map[String, AnyRef]](result(4), result(3), result(2), result(1)))
+  }
+
+  @Test(dependsOnMethods = Array("testPutItem", "testUpdateItem"))
+  def testGetFirstItem() {
+    val result: Int => java.util.Map[String, AnyRef] = i => Map[String, AnyRef]("myHashField" -> "myHashValue",
+      "myRangeField" -> s"myRangeValue$i", "key" -> "value").asJava
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", all()).build
+
+    assertThat(mapStorePlugin.getFirstItem(rangeTableName, storeKey, MapQueryOptions.Order.ASC),
+      is(Optional.of(result(1))))
+    assertThat(mapStorePlugin.getFirstItem(rangeTableName, storeKey, MapQueryOptions.Order.DESC),
+      is(Optional.of(result(4))))
+  }
+
+  @Test def testAsyncItems() {
+    val asyncStore = mapStorePlugin.asyncPlugin().get()
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "asyncHashValue")
+      .setRange("myRangeField", equalTo[String]("asyncRangeValue")).build
+    val expectedResult = Map[String, AnyRef]("myHashField" -> "asyncHashValue",
+      "myRangeField" -> "asyncRangeValue", "key" -> "value").asJava
+
+    assertThat(asyncStore.putItem(rangeTableName, storeKey, Map[String, AnyRef]("key" -> "value").asJava).join(),
+      is(expectedResult))
+    assertThat(asyncStore.getItem(rangeTableName, storeKey).join(), is(Optional.of(expectedResult)))
+    assertThat(asyncStore.getItems(rangeTableName, storeKey, defaultOptions()).join(),
+      contains[java.util.Map[String, AnyRef]](expectedResult))
+
+    asyncStore.deleteItem(rangeTableName, storeKey).join()
+    assertThat(asyncStore.getItem(rangeTableName, storeKey).join(), is(Optional.empty[java.util.Map[String, AnyRef]]))
+  }
+
+  @Test def testBatchItems() {
+    val keys = List("batchHashValue1", "batchHashValue2")
+      .map(hashValue => new MapStoreKey.Builder().setHash("myHashField", hashValue).build)
+    val items = keys.map(key => (key, Map[String, AnyRef]("key" -> "value").asJava)).toMap
+    val expectedResults = keys.map(key => Map("myHashField" -> key.getHashValue, "key" -> "value").asJava)
+
+    assertThat(mapStorePlugin.batchPutItems(hashTableName, items.asJava),
+      containsInAnyOrder[java.util.Map[String, AnyRef]](expectedResults: _*))
+    assertThat(mapStorePlugin.batchGetItems(hashTableName, keys.asJava),
+      containsInAnyOrder[java.util.Map[String, AnyRef]](expectedResults: _*))
+
+    mapStorePlugin.batchDeleteItems(hashTableName, keys.asJava)
+    assertThat(mapStorePlugin.batchGetItems(hashTableName, keys.asJava), empty[java.util.Map[String, AnyRef]])
+  }
+
+  @Test def testIndexItems() {
+    val indexKey = new MapStoreTableKey.Builder().setHash("email", classOf[String]).build
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "indexHashValue").build
+    val expectedResult = Map[String, AnyRef]("myHashField" -> "indexHashValue", "email" -> "me@spals.net").asJava
+
+    mapStorePlugin.putItem(hashTableName, storeKey, Map[String, AnyRef]("email" -> "me@spals.net").asJava)
+    assertThat(mapStorePlugin.createIndex(hashTableName, "emailIndex", indexKey), is(true))
+
+    val emailKey = new MapStoreKey.Builder().setHash("email", "me@spals.net").build
+    assertThat(mapStorePlugin.getIndexItems(hashTableName, "emailIndex", emailKey, defaultOptions()),
+      contains[java.util.Map[String, AnyRef]](expectedResult))
+
+    mapStorePlugin.deleteItem(hashTableName, storeKey)
+    assertThat(mapStorePlugin.dropIndex(hashTableName, "emailIndex"), is(true))
+  }
+
+  @Test def testProjection() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "projectionHashValue").build
+    mapStorePlugin.putItem(hashTableName, storeKey,
+      Map[String, AnyRef]("email" -> "me@spals.net", "status" -> "active").asJava)
+
+    assertThat(mapStorePlugin.getItem(hashTableName, storeKey, Set("myHashField", "email").asJava),
+      is(Optional.of(Map[String, AnyRef]("myHashField" -> "projectionHashValue", "email" -> "me@spals.net").asJava)))
+    assertThat(mapStorePlugin.getItem(hashTableName, storeKey, Set("status").asJava),
+      is(Optional.of(Map[String, AnyRef]("status" -> "active").asJava)))
+
+    mapStorePlugin.deleteItem(hashTableName, storeKey)
+  }
+
+  @Test def testConditionalWrites() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "conditionalHashValue").build
+    val expectedResult: String => java.util.Map[String, AnyRef] = version =>
+      Map[String, AnyRef]("myHashField" -> "conditionalHashValue", "version" -> version).asJava
+
+    assertThat(mapStorePlugin.putItem(hashTableName, storeKey, Map[String, AnyRef]("version" -> "1").asJava,
+      MapStoreWriteCondition.itemAbsent(storeKey)), is(Optional.of(expectedResult("1"))))
+    assertThat(mapStorePlugin.putItem(hashTableName, storeKey, Map[String, AnyRef]("version" -> "1").asJava,
+      MapStoreWriteCondition.itemAbsent(storeKey)), is(Optional.empty[java.util.Map[String, AnyRef]]))
+
+    assertThat(mapStorePlugin.updateItem(hashTableName, storeKey, Map[String, AnyRef]("version" -> "2").asJava,
+      MapStoreWriteCondition.expectedVersion("version", "1")), is(Optional.of(expectedResult("2"))))
+    assertThat(mapStorePlugin.updateItem(hashTableName, storeKey, Map[String, AnyRef]("version" -> "3").asJava,
+      MapStoreWriteCondition.expectedVersion("version", "1")), is(Optional.empty[java.util.Map[String, AnyRef]]))
+    assertThat(mapStorePlugin.getItem(hashTableName, storeKey), is(Optional.of(expectedResult("2"))))
+
+    mapStorePlugin.deleteItem(hashTableName, storeKey)
+  }
+
+  @Test def testIncrementItem() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "incrementHashValue").build
+    val increments = Map[String, java.lang.Long]("count" -> Long.box(2L)).asJava
+
+    // The item is created by the first increment, and DynamoDB returns numbers as BigDecimals
+    assertThat(mapStorePlugin.incrementItem(hashTableName, storeKey, increments),
+      is(Map[String, AnyRef]("myHashField" -> "incrementHashValue", "count" -> new java.math.BigDecimal(2)).asJava))
+    assertThat(mapStorePlugin.incrementItem(hashTableName, storeKey, increments),
+      is(Map[String, AnyRef]("myHashField" -> "incrementHashValue", "count" -> new java.math.BigDecimal(4)).asJava))
+
+    mapStorePlugin.deleteItem(hashTableName, storeKey)
+  }
+
+  @Test def testStreamAllItems() {
+    val keys = (1 to 20).map(i => new MapStoreKey.Builder().setHash("myHashField", s"scanHashValue$i").build).toList
+    val items = keys.map(key => (key, Map[String, AnyRef]("key" -> "value").asJava)).toMap
+    mapStorePlugin.batchPutItems(hashTableName, items.asJava)
+
+    // Segments are scanned in parallel, so items come back in no particular order
+    val expectedResults = keys.map(key => Map[String, AnyRef]("myHashField" -> key.getHashValue, "key" -> "value").asJava)
+    val options = new MapQueryOptions.Builder().setPageSize(5).build
+    val scannedItems = mapStorePlugin.streamAllItems(hashTableName, options)
+      .filter(item => String.valueOf(item.get("myHashField")).startsWith("scanHashValue"))
+    assertThat(scannedItems.collect(Collectors.toList()),
+      containsInAnyOrder[java.util.Map[String, AnyRef]](expectedResults: _*))
+
+    mapStorePlugin.batchDeleteItems(hashTableName, keys.asJava)
+  }
 }
@@ -1,12 +1,25 @@
 package net.spals.appbuilder.mapstore.dynamodb
 
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB
-import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType
+import java.util.concurrent.Executors
+
+import com.amazonaws.services.dynamodbv2.{AmazonDynamoDB, AmazonDynamoDBAsync}
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey
+import com.amazonaws.services.dynamodbv2.model.{AttributeValue, BatchGetItemRequest, BatchGetItemResult, BatchWriteItemRequest, BatchWriteItemResult, BillingMode, ConsumedCapacity, DescribeTableRequest, DescribeTableResult, DescribeTimeToLiveRequest, DescribeTimeToLiveResult, KeysAndAttributes, ListTagsOfResourceRequest, ListTagsOfResourceResult, ProvisionedThroughput, ProvisionedThroughputExceededException, ScalarAttributeType, TableDescription, TableStatus, Tag, TagResourceRequest, TimeToLiveDescription, TimeToLiveStatus, TimeToLiveSpecification, UntagResourceRequest, UpdateTimeToLiveRequest, WriteRequest}
+import com.typesafe.config.ConfigException
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory
+import net.spals.appbuilder.mapstore.core.MapStoreMetrics
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.{Consistency, defaultOptions}
+import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey, MapStoreWriteCondition}
 import org.hamcrest.MatcherAssert.assertThat
-import org.hamcrest.Matchers.is
-import org.mockito.Mockito.mock
+import org.hamcrest.Matchers.{containsInAnyOrder, greaterThanOrEqualTo, hasKey, is, lessThanOrEqualTo, not, nullValue}
+import org.mockito.ArgumentCaptor
+import org.mockito.ArgumentMatchers.{any, anyInt, anyString}
+import org.mockito.Mockito.{mock, never, times, verify, when}
 import org.testng.annotations.{DataProvider, Test}
 
+import scala.collection.JavaConverters._
+import scala.util.Try
+
 /**
   * Unit tests for [[DynamoDBMapStorePlugin]]
   *
@@ -42,7 +55,373 @@ class DynamoDBMapStorePluginTest {
 
   @Test(dataProvider = "createAttributeTypeProvider")
   def testCreateAttributeType(fieldType: Class[_], expectedAttributeType: ScalarAttributeType) {
-    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]))
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
     assertThat(dynamoDBMapStorePlugin.createAttributeType(fieldType), is(expectedAttributeType))
   }
+
+  @Test def testCreateQuerySpecProjection() {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build
+    val options = new MapQueryOptions.Builder().addProjection("email", "status").build
+
+    assertThat(dynamoDBMapStorePlugin.createQuerySpec(storeKey, options).getAttributesToGet,
+      containsInAnyOrder[String]("email", "status"))
+    assertThat(dynamoDBMapStorePlugin.createQuerySpec(storeKey, defaultOptions()).getAttributesToGet, nullValue())
+  }
+
+  @DataProvider def consistentReadProvider(): Array[Array[AnyRef]] = {
+    Array(
+      Array(defaultOptions(), java.lang.Boolean.FALSE),
+      Array(new MapQueryOptions.Builder().setConsistency(Consistency.LOCAL_ONE).build, java.lang.Boolean.FALSE),
+      Array(new MapQueryOptions.Builder().setConsistency(Consistency.LOCAL_QUORUM).build, java.lang.Boolean.TRUE),
+      Array(new MapQueryOptions.Builder().setConsistency(Consistency.ALL).build, java.lang.Boolean.TRUE)
+    )
+  }
+
+  @Test(dataProvider = "consistentReadProvider")
+  def testCreateQuerySpecConsistency(options: MapQueryOptions, expectedConsistentRead: java.lang.Boolean) {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build
+
+    assertThat[java.lang.Boolean](dynamoDBMapStorePlugin.createQuerySpec(storeKey, options).isConsistentRead,
+      is(expectedConsistentRead))
+  }
+
+  @Test def testCreateScanSpec() {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    val scanSpec = dynamoDBMapStorePlugin.createScanSpec(defaultOptions(), 1, 4)
+
+    assertThat[Integer](scanSpec.getRequest.getSegment, is(Int.box(1)))
+    assertThat[Integer](scanSpec.getRequest.getTotalSegments, is(Int.box(4)))
+    assertThat[Integer](scanSpec.getMaxPageSize, is(Int.box(dynamoDBMapStorePlugin.scanPageSize)))
+  }
+
+  @Test def testCreateScanSpecLimit() {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    val options = new MapQueryOptions.Builder().setLimit(10).setPageSize(100).build
+
+    assertThat[Integer](dynamoDBMapStorePlugin.createScanSpec(options, 0, 4).getMaxPageSize, is(Int.box(10)))
+  }
+
+  @Test def testCreateProvisionedThroughput() {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    dynamoDBMapStorePlugin.readCapacityUnits = 5L
+    dynamoDBMapStorePlugin.writeCapacityUnits = 10L
+
+    assertThat(dynamoDBMapStorePlugin.createProvisionedThroughput(), is(Option(new ProvisionedThroughput(5L, 10L))))
+  }
+
+  @Test def testCreateProvisionedThroughputPayPerRequest() {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    dynamoDBMapStorePlugin.billingMode = BillingMode.PAY_PER_REQUEST.toString
+
+    assertThat(dynamoDBMapStorePlugin.createProvisionedThroughput(), is(Option.empty[ProvisionedThroughput]))
+  }
+
+  @Test(expectedExceptions = Array(classOf[ConfigException.BadValue]))
+  def testCreateBillingModeInvalid() {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    dynamoDBMapStorePlugin.billingMode = "myBillingMode"
+
+    dynamoDBMapStorePlugin.createBillingMode()
+  }
+
+  @Test def testRateLimiterDisabled() {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    dynamoDBMapStorePlugin.writeUnitsPerSecond = 10
+
+    assertThat(dynamoDBMapStorePlugin.readLimiter("myTable").isDefined, is(false))
+    assertThat(dynamoDBMapStorePlugin.writeLimiter("myTable").isDefined, is(true))
+  }
+
+  @Test def testWithCapacityMetrics() {
+    val storeMetrics = mock(classOf[MapStoreMetrics])
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), storeMetrics)
+
+    var attempts = 0
+    val result = dynamoDBMapStorePlugin.withCapacity("getItem", "myTable", None)(() => {
+      attempts += 1
+      if (attempts == 1) throw new ProvisionedThroughputExceededException("myThrottle")
+      "myResult"
+    })(_ => List(new ConsumedCapacity().withTableName("myTable").withCapacityUnits(2.5),
+      new ConsumedCapacity().withTableName("otherTable").withCapacityUnits(1.0)))
+
+    assertThat(result, is("myResult"))
+    verify(storeMetrics).mark("dynamoDB", "myTable", "getItem", "throttles", 1L)
+    verify(storeMetrics).mark("dynamoDB", "myTable", "getItem", "consumedMilliCapacityUnits", 2500L)
+  }
+
+  @Test def testWithCapacityRetriesExhausted() {
+    val storeMetrics = mock(classOf[MapStoreMetrics])
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), storeMetrics)
+
+    // The final throttle is still marked before it is rethrown
+    val result = Try(dynamoDBMapStorePlugin.withCapacity("getItem", "myTable", None,
+      retry = dynamoDBMapStorePlugin.maxRetries)(() => throw new ProvisionedThroughputExceededException("myThrottle"))(
+      (_: String) => List.empty[ConsumedCapacity]))
+
+    assertThat(result.failed.get.isInstanceOf[ProvisionedThroughputExceededException], is(true))
+    verify(storeMetrics).mark("dynamoDB", "myTable", "getItem", "throttles", 1L)
+  }
+
+  @Test def testCreateUpdateExpression() {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    val payload = new java.util.HashMap[String, AnyRef]()
+    payload.put("count", Long.box(1L))
+    payload.put("email", "")
+    payload.put("status", "active")
+    payload.put("version", null)
+
+    // Numbers are set rather than added to
+    val updateExpression = dynamoDBMapStorePlugin.createUpdateExpression(payload).get
+    assertThat(updateExpression.expression, is("SET #u0 = :u0, #u2 = :u2 REMOVE #u1, #u3"))
+    assertThat(updateExpression.nameMap,
+      is(Map("#u0" -> "count", "#u1" -> "email", "#u2" -> "status", "#u3" -> "version")))
+    assertThat(updateExpression.valueMap, is(Map[String, AnyRef](":u0" -> Long.box(1L), ":u2" -> "active")))
+  }
+
+  @Test def testCreateUpdateExpressionIncrements() {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    val increments = Map[String, java.lang.Long]("visits" -> Long.box(1L), "count" -> Long.box(-2L)).asJava
+
+    // Increments are added to the stored numbers
+    val updateExpression = dynamoDBMapStorePlugin.createUpdateExpression(
+      Map[String, AnyRef]("status" -> "active").asJava, increments).get
+    assertThat(updateExpression.expression, is("SET #u0 = :u0 ADD #a0 :a0, #a1 :a1"))
+    assertThat(updateExpression.nameMap, is(Map("#u0" -> "status", "#a0" -> "count", "#a1" -> "visits")))
+    assertThat(updateExpression.valueMap,
+      is(Map[String, AnyRef](":u0" -> "active", ":a0" -> Long.box(-2L), ":a1" -> Long.box(1L))))
+  }
+
+  @Test def testCreateUpdateExpressionEmpty() {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+
+    assertThat(dynamoDBMapStorePlugin.createUpdateExpression(new java.util.HashMap[String, AnyRef]()),
+      is(Option.empty[DynamoDBExpression]))
+  }
+
+  @Test def testCreateUpdateItemSpec() {
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(mock(classOf[AmazonDynamoDB]),
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    val updateExpression = dynamoDBMapStorePlugin.createUpdateExpression(Map[String, AnyRef]("version" -> "2").asJava)
+    val conditionExpression = dynamoDBMapStorePlugin.createConditionExpression(
+      MapStoreWriteCondition.expectedVersion("version", "1"))
+    val updateItemSpec = dynamoDBMapStorePlugin.createUpdateItemSpec(new PrimaryKey("myHashField", "myHashValue"),
+      updateExpression, conditionExpression)
+
+    assertThat(updateItemSpec.getUpdateExpression, is("SET #u0 = :u0"))
+    assertThat(updateItemSpec.getConditionExpression, is("#e0 = :e0"))
+    assertThat(updateItemSpec.getNameMap, is(Map("#u0" -> "version", "#e0" -> "version").asJava))
+    assertThat(updateItemSpec.getValueMap, is(Map[String, AnyRef](":u0" -> "2", ":e0" -> "1").asJava))
+  }
+
+  @Test def testBatchGetItemsDistinctKeys() {
+    val dynamoDBClient = mock(classOf[AmazonDynamoDB])
+    when(dynamoDBClient.batchGetItem(any(classOf[BatchGetItemRequest]))).thenReturn(new BatchGetItemResult()
+      .withResponses(Map.empty[String, java.util.List[java.util.Map[String, AttributeValue]]].asJava)
+      .withUnprocessedKeys(Map.empty[String, KeysAndAttributes].asJava))
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient,
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build
+    dynamoDBMapStorePlugin.batchGetItems("myTable", List(storeKey, storeKey).asJava)
+
+    val batchGetItemRequest = ArgumentCaptor.forClass(classOf[BatchGetItemRequest])
+    verify(dynamoDBClient).batchGetItem(batchGetItemRequest.capture())
+    assertThat(batchGetItemRequest.getValue.getRequestItems.get("myTable").getKeys.size, is(1))
+  }
+
+  @Test def testBatchDeleteItemsDistinctKeys() {
+    val dynamoDBClient = mock(classOf[AmazonDynamoDB])
+    when(dynamoDBClient.batchWriteItem(any(classOf[BatchWriteItemRequest]))).thenReturn(new BatchWriteItemResult()
+      .withUnprocessedItems(Map.empty[String, java.util.List[WriteRequest]].asJava))
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient,
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build
+    dynamoDBMapStorePlugin.batchDeleteItems("myTable", List(storeKey, storeKey).asJava)
+
+    val batchWriteItemRequest = ArgumentCaptor.forClass(classOf[BatchWriteItemRequest])
+    verify(dynamoDBClient).batchWriteItem(batchWriteItemRequest.capture())
+    assertThat(batchWriteItemRequest.getValue.getRequestItems.get("myTable").size, is(1))
+  }
+
+  private def mockTableClient(): AmazonDynamoDB = {
+    val dynamoDBClient = mock(classOf[AmazonDynamoDB])
+    when(dynamoDBClient.describeTable(any(classOf[DescribeTableRequest]))).thenReturn(new DescribeTableResult()
+      .withTable(new TableDescription().withTableArn("myTableArn").withTableStatus(TableStatus.ACTIVE)))
+    dynamoDBClient
+  }
+
+  private def mockTimeToLiveClient(): AmazonDynamoDB = {
+    val dynamoDBClient = mockTableClient()
+    when(dynamoDBClient.describeTimeToLive(any(classOf[DescribeTimeToLiveRequest]))).thenReturn(
+      new DescribeTimeToLiveResult().withTimeToLiveDescription(new TimeToLiveDescription()
+        .withAttributeName("expiresAt").withTimeToLiveStatus(TimeToLiveStatus.ENABLED)))
+    dynamoDBClient
+  }
+
+  @Test def testStampExpiry() {
+    val dynamoDBClient = mockTimeToLiveClient()
+    when(dynamoDBClient.listTagsOfResource(any(classOf[ListTagsOfResourceRequest]))).thenReturn(
+      new ListTagsOfResourceResult().withTags(new Tag().withKey("myTag").withValue("myValue")).withNextToken("myToken"),
+      new ListTagsOfResourceResult().withTags(new Tag().withKey("mapStore:timeToLiveSeconds").withValue("3600")))
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient,
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+
+    val nowSeconds = System.currentTimeMillis() / 1000L
+    val payload = new java.util.HashMap[String, AnyRef]()
+    dynamoDBMapStorePlugin.stampExpiry("myTable", payload)
+    dynamoDBMapStorePlugin.stampExpiry("myTable", new java.util.HashMap[String, AnyRef]())
+
+    assertThat[java.lang.Long](payload.get("expiresAt").asInstanceOf[java.lang.Long],
+      greaterThanOrEqualTo[java.lang.Long](Long.box(nowSeconds + 3600L)))
+    assertThat[java.lang.Long](payload.get("expiresAt").asInstanceOf[java.lang.Long],
+      lessThanOrEqualTo[java.lang.Long](Long.box(System.currentTimeMillis() / 1000L + 3601L)))
+    // The time to live is read from the table's tags only once per refresh
+    verify(dynamoDBClient, times(1)).describeTable(any(classOf[DescribeTableRequest]))
+  }
+
+  @Test def testStampExpiryNoTimeToLive() {
+    val dynamoDBClient = mockTableClient()
+    when(dynamoDBClient.describeTimeToLive(any(classOf[DescribeTimeToLiveRequest]))).thenReturn(
+      new DescribeTimeToLiveResult().withTimeToLiveDescription(new TimeToLiveDescription()
+        .withTimeToLiveStatus(TimeToLiveStatus.DISABLED)))
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient,
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+
+    val payload = new java.util.HashMap[String, AnyRef]()
+    dynamoDBMapStorePlugin.stampExpiry("myTable", payload)
+    assertThat(payload, not(hasKey[String]("expiresAt")))
+    // Tables without DynamoDB's expiry never have their tags read
+    verify(dynamoDBClient, never()).describeTable(any(classOf[DescribeTableRequest]))
+    verify(dynamoDBClient, never()).listTagsOfResource(any(classOf[ListTagsOfResourceRequest]))
+  }
+
+  @Test def testStampExpiryLoadFailure() {
+    val dynamoDBClient = mockTimeToLiveClient()
+    when(dynamoDBClient.listTagsOfResource(any(classOf[ListTagsOfResourceRequest])))
+      .thenThrow(new IllegalStateException("myTagFailure"))
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient,
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+
+    // A table whose time to live cannot be read is written without expiry
+    val payload = new java.util.HashMap[String, AnyRef]()
+    dynamoDBMapStorePlugin.stampExpiry("myTable", payload)
+    dynamoDBMapStorePlugin.stampExpiry("myTable", new java.util.HashMap[String, AnyRef]())
+    assertThat(payload, not(hasKey[String]("expiresAt")))
+    // The failed load is not retried until its backoff has passed
+    verify(dynamoDBClient, times(1)).listTagsOfResource(any(classOf[ListTagsOfResourceRequest]))
+  }
+
+  @Test def testStampExpiryRefresh() {
+    val dynamoDBClient = mockTimeToLiveClient()
+    when(dynamoDBClient.listTagsOfResource(any(classOf[ListTagsOfResourceRequest]))).thenReturn(
+      new ListTagsOfResourceResult().withTags(new Tag().withKey("mapStore:timeToLiveSeconds").withValue("3600")),
+      new ListTagsOfResourceResult())
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient,
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    dynamoDBMapStorePlugin.timeToLiveRefreshMillis = 1L
+
+    val firstPayload = new java.util.HashMap[String, AnyRef]()
+    dynamoDBMapStorePlugin.stampExpiry("myTable", firstPayload)
+    Thread.sleep(5L)
+    val secondPayload = new java.util.HashMap[String, AnyRef]()
+    dynamoDBMapStorePlugin.stampExpiry("myTable", secondPayload)
+
+    // A time to live which was dropped by another process is seen after the refresh
+    assertThat(firstPayload, hasKey[String]("expiresAt"))
+    assertThat(secondPayload, not(hasKey[String]("expiresAt")))
+  }
+
+  @Test def testTimeToLiveAsync() {
+    val dynamoDBClient = mockTimeToLiveClient()
+    when(dynamoDBClient.listTagsOfResource(any(classOf[ListTagsOfResourceRequest]))).thenReturn(
+      new ListTagsOfResourceResult().withTags(new Tag().withKey("mapStore:timeToLiveSeconds").withValue("3600")))
+    val executorServiceFactory = mock(classOf[ExecutorServiceFactory])
+    val executorService = Executors.newSingleThreadExecutor()
+    when(executorServiceFactory.createFixedThreadPool(anyInt, any(classOf[java.lang.Class[_]]), anyString))
+      .thenReturn(executorService)
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient,
+      mock(classOf[AmazonDynamoDBAsync]), executorServiceFactory, mock(classOf[MapStoreMetrics]))
+
+    try {
+      // The time to live is loaded on the plugin's executor and is then known without a load
+      assertThat(dynamoDBMapStorePlugin.timeToLiveAsync("myTable").get(),
+        is(Option(java.time.Duration.ofHours(1L))))
+      assertThat(dynamoDBMapStorePlugin.timeToLiveAsync("myTable").isDone, is(true))
+      verify(dynamoDBClient, times(1)).listTagsOfResource(any(classOf[ListTagsOfResourceRequest]))
+    } finally {
+      executorService.shutdown()
+    }
+  }
+
+  @Test def testDisableTimeToLive() {
+    val dynamoDBClient = mockTableClient()
+    when(dynamoDBClient.listTagsOfResource(any(classOf[ListTagsOfResourceRequest]))).thenReturn(
+      new ListTagsOfResourceResult().withTags(new Tag().withKey("mapStore:timeToLiveSeconds").withValue("3600")))
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient,
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+
+    dynamoDBMapStorePlugin.disableTimeToLive("myTable")
+    verify(dynamoDBClient).untagResource(new UntagResourceRequest().withResourceArn("myTableArn")
+      .withTagKeys("mapStore:timeToLiveSeconds"))
+  }
+
+  @Test def testDisableTimeToLiveFailure() {
+    val dynamoDBClient = mockTableClient()
+    when(dynamoDBClient.listTagsOfResource(any(classOf[ListTagsOfResourceRequest])))
+      .thenThrow(new IllegalStateException("myTagFailure"))
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient,
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+
+    // Tables without a time to live are still usable without tagging permissions
+    dynamoDBMapStorePlugin.disableTimeToLive("myTable")
+    verify(dynamoDBClient, never()).untagResource(any(classOf[UntagResourceRequest]))
+  }
+
+  @Test def testEnableTimeToLive() {
+    val dynamoDBClient = mockTableClient()
+    when(dynamoDBClient.describeTimeToLive(any(classOf[DescribeTimeToLiveRequest]))).thenReturn(
+      new DescribeTimeToLiveResult().withTimeToLiveDescription(new TimeToLiveDescription()
+        .withTimeToLiveStatus(TimeToLiveStatus.DISABLED)))
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient,
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+    dynamoDBMapStorePlugin.timeToLiveAttribute = "myExpiryField"
+
+    dynamoDBMapStorePlugin.enableTimeToLive("myTable", java.time.Duration.ofMillis(1500L))
+    verify(dynamoDBClient).updateTimeToLive(new UpdateTimeToLiveRequest().withTableName("myTable")
+      .withTimeToLiveSpecification(new TimeToLiveSpecification().withAttributeName("myExpiryField").withEnabled(true)))
+    // Partial seconds are rounded up
+    verify(dynamoDBClient).tagResource(new TagResourceRequest().withResourceArn("myTableArn")
+      .withTags(new Tag().withKey("mapStore:timeToLiveSeconds").withValue("2")))
+  }
+
+  @Test def testEnableTimeToLiveAlreadyEnabled() {
+    val dynamoDBClient = mockTableClient()
+    when(dynamoDBClient.describeTimeToLive(any(classOf[DescribeTimeToLiveRequest]))).thenReturn(
+      new DescribeTimeToLiveResult().withTimeToLiveDescription(new TimeToLiveDescription()
+        .withAttributeName("expiresAt").withTimeToLiveStatus(TimeToLiveStatus.ENABLED)))
+    val dynamoDBMapStorePlugin = new DynamoDBMapStorePlugin(dynamoDBClient,
+      mock(classOf[AmazonDynamoDBAsync]), mock(classOf[ExecutorServiceFactory]), mock(classOf[MapStoreMetrics]))
+
+    dynamoDBMapStorePlugin.enableTimeToLive("myTable", java.time.Duration.ofHours(1L))
+    verify(dynamoDBClient, never()).updateTimeToLive(any(classOf[UpdateTimeToLiveRequest]))
+    verify(dynamoDBClient).tagResource(new TagResourceRequest().withResourceArn("myTableArn")
+      .withTags(new Tag().withKey("mapStore:timeToLiveSeconds").withValue("3600")))
+  }
 }
@@ -0,0 +1,82 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import java.util.concurrent.TimeUnit
+
+import com.google.common.base.Ticker
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.{closeTo, is}
+import org.testng.annotations.Test
+
+/**
+  * Unit tests for [[DynamoDBRateLimiter]].
+  *
+  * @author tkral
+  */
+class DynamoDBRateLimiterTest {
+
+  private class FakeTicker extends Ticker {
+    @volatile var nanos = 0L
+
+    def advance(seconds: Double): Unit = nanos += (seconds * TimeUnit.SECONDS.toNanos(1L)).toLong
+
+    override def read(): Long = nanos
+  }
+
+  @Test def testConsume() {
+    val ticker = new FakeTicker
+    val rateLimiter = new DynamoDBRateLimiter(10.0, ticker)
+
+    rateLimiter.consume(25.0)
+    assertThat[java.lang.Double](rateLimiter.getTokens, closeTo(-15.0, 0.001))
+    // A debt is paid back at the bucket's rate
+    ticker.advance(2.0)
+    assertThat[java.lang.Double](rateLimiter.getTokens, closeTo(5.0, 0.001))
+  }
+
+  @Test def testRefillCapped() {
+    val ticker = new FakeTicker
+    val rateLimiter = new DynamoDBRateLimiter(10.0, ticker)
+
+    ticker.advance(60.0)
+    assertThat[java.lang.Double](rateLimiter.getTokens, closeTo(10.0, 0.001))
+  }
+
+  @Test def testThrottle() {
+    val ticker = new FakeTicker
+    val rateLimiter = new DynamoDBRateLimiter(10.0, ticker)
+
+    rateLimiter.throttle()
+    assertThat[java.lang.Double](rateLimiter.getUnitsPerSecond, closeTo(5.0, 0.001))
+    assertThat[java.lang.Double](rateLimiter.getTokens, closeTo(0.0, 0.001))
+    // The rate never drops below one unit per second
+    (1 to 10).foreach(_ => rateLimiter.throttle())
+    assertThat[java.lang.Double](rateLimiter.getUnitsPerSecond, closeTo(1.0, 0.001))
+  }
+
+  @Test def testRecovery() {
+    val ticker = new FakeTicker
+    val rateLimiter = new DynamoDBRateLimiter(10.0, ticker)
+
+    rateLimiter.throttle()
+    ticker.advance(2.0)
+    assertThat[java.lang.Double](rateLimiter.getUnitsPerSecond, closeTo(7.0, 0.001))
+    ticker.advance(60.0)
+    assertThat[java.lang.Double](rateLimiter.getUnitsPerSecond, closeTo(10.0, 0.001))
+  }
+
+  @Test def testAcquire() {
+    val rateLimiter = new DynamoDBRateLimiter(1000.0)
+
+    rateLimiter.consume(1100.0)
+    val startNanos = System.nanoTime()
+    rateLimiter.acquire()
+    // The limiter waits out its debt of 100 units at 1000 units per second
+    assertThat(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(90L), is(true))
+    assertThat(rateLimiter.getTokens > 0.0, is(true))
+  }
+
+  @Test(expectedExceptions = Array(classOf[IllegalArgumentException]))
+  def testInvalidRate() {
+    new DynamoDBRateLimiter(0.0)
+  }
+}
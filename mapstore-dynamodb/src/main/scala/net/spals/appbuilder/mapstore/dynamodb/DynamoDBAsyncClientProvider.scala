@@ -0,0 +1,67 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import java.util.concurrent.ExecutorService
+import javax.validation.constraints.{Min, NotNull}
+
+import com.amazonaws.auth.{AWSStaticCredentialsProvider, BasicAWSCredentials}
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration
+import com.amazonaws.client.builder.ExecutorFactory
+import com.amazonaws.regions.Regions
+import com.amazonaws.services.dynamodbv2.{AmazonDynamoDBAsync, AmazonDynamoDBAsyncClientBuilder}
+import com.google.inject.{Inject, Provider}
+import com.netflix.governator.annotations.Configuration
+import com.typesafe.config.ConfigException
+import net.spals.appbuilder.annotations.service.AutoBindProvider
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory
+
+import scala.util.Try
+
+/**
+  * A [[Provider]] of the AWS [[AmazonDynamoDBAsync]]
+  * client. Requests are run on a managed executor.
+  *
+  * @author tkral
+  */
+@AutoBindProvider
+private[dynamodb] class DynamoDBAsyncClientProvider @Inject() (
+  executorServiceFactory: ExecutorServiceFactory
+) extends Provider[AmazonDynamoDBAsync] {
+
+  @NotNull
+  @Configuration("mapStore.dynamoDB.awsAccessKeyId")
+  private[dynamodb] var awsAccessKeyId: String = null
+
+  @NotNull
+  @Configuration("mapStore.dynamoDB.awsSecretKey")
+  private[dynamodb] var awsSecretKey: String = null
+
+  @NotNull
+  @Configuration("mapStore.dynamoDB.endpoint")
+  private[dynamodb] var endpoint: String = null
+
+  @Min(1)
+  @Configuration("mapStore.dynamoDB.numAsyncThreads")
+  private[dynamodb] var numAsyncThreads: Int = 10
+
+  override def get(): AmazonDynamoDBAsync = {
+    val awsCredentials = new BasicAWSCredentials(awsAccessKeyId, awsSecretKey)
+    val dynamoDBAsyncClientBuilder = AmazonDynamoDBAsyncClientBuilder.standard()
+      .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
+      .withExecutorFactory(new ExecutorFactory() {
+        override def newExecutor(): ExecutorService =
+          executorServiceFactory.createFixedThreadPool(numAsyncThreads, getClass)
+      })
+
+    endpoint match {
+      case httpEndpoint if httpEndpoint.startsWith("http://") => {
+        val endpointConfig = new EndpointConfiguration(httpEndpoint, null)
+        dynamoDBAsyncClientBuilder.withEndpointConfiguration(endpointConfig)
+      }
+      case regionEndpoint if Try(Regions.fromName(regionEndpoint)).isSuccess => dynamoDBAsyncClientBuilder.withRegion(regionEndpoint)
+      case _ => throw new ConfigException.BadValue("mapStore.dynamoDB.endpoint",
+        s"Unrecognized DynamoDB endpoint. Value is neither an http endpoint nor a known region: $endpoint")
+    }
+
+    dynamoDBAsyncClientBuilder.build()
+  }
+}
@@ -0,0 +1,140 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import java.util.Optional
+import java.util.concurrent.CompletableFuture
+
+import com.amazonaws.AmazonWebServiceRequest
+import com.amazonaws.handlers.AsyncHandler
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync
+import com.amazonaws.services.dynamodbv2.document.Item
+import com.amazonaws.services.dynamodbv2.document.internal.InternalUtils
+import com.amazonaws.services.dynamodbv2.model._
+import net.spals.appbuilder.mapstore.core.AsyncMapStore
+import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey}
+
+import scala.collection.JavaConverters._
+import scala.compat.java8.OptionConverters._
+
+/**
+  * Implementation of [[AsyncMapStore]] which uses
+  * the AWS [[AmazonDynamoDBAsync]] client.
+  *
+  * This shares its key and condition building
+  * with the given [[DynamoDBMapStorePlugin]]. A table's
+  * time to live is loaded off the caller's thread
+  * when it is not yet known.
+  *
+  * @author tkral
+  */
+private[dynamodb] class DynamoDBAsyncMapStore(
+  dynamoDBAsyncClient: AmazonDynamoDBAsync,
+  storePlugin: DynamoDBMapStorePlugin
+) extends AsyncMapStore {
+
+  override def deleteItem(tableName: String,
+                          key: MapStoreKey): CompletableFuture[Void] = {
+    val deleteItemRequest = new DeleteItemRequest(tableName, createKeyAttributes(key))
+    execute[DeleteItemRequest, DeleteItemResult](dynamoDBAsyncClient.deleteItemAsync(deleteItemRequest, _))
+      .thenApply[Void](_ => null)
+  }
+
+  override def getItem(tableName: String,
+                       key: MapStoreKey): CompletableFuture[Optional[java.util.Map[String, AnyRef]]] = {
+    val getItemRequest = new GetItemRequest(tableName, createKeyAttributes(key))
+    execute[GetItemRequest, GetItemResult](dynamoDBAsyncClient.getItemAsync(getItemRequest, _))
+      .thenApply[Optional[java.util.Map[String, AnyRef]]](getItemResult => Option(getItemResult.getItem).map(toItemMap).asJava)
+  }
+
+  override def getItems(tableName: String,
+                        key: MapStoreKey,
+                        options: MapQueryOptions): CompletableFuture[java.util.List[java.util.Map[String, AnyRef]]] = {
+    val hashKeyCondition = new Condition().withComparisonOperator(ComparisonOperator.EQ)
+      .withAttributeValueList(InternalUtils.toAttributeValue(key.getHashValue))
+    val keyConditions = collection.mutable.Map(key.getHashField -> hashKeyCondition)
+    storePlugin.createRangeKeyCondition(key).foreach(rangeKeyCondition => {
+      val rangeCondition = new Condition()
+        .withComparisonOperator(rangeKeyCondition.getKeyCondition.toComparisonOperator)
+        .withAttributeValueList(InternalUtils.toAttributeValues(rangeKeyCondition.getValues): _*)
+      keyConditions += (rangeKeyCondition.getAttrName -> rangeCondition)
+    })
+
+    val queryRequest = new QueryRequest(tableName).withKeyConditions(keyConditions.asJava)
+      .withScanIndexForward(options.getOrder == MapQueryOptions.Order.ASC)
+      .withConsistentRead(storePlugin.isConsistentRead(options))
+    storePlugin.createAttributesToGet(options.getProjection)
+      .foreach(attributesToGet => queryRequest.withAttributesToGet(attributesToGet.asJava))
+    queryItems(queryRequest, options.getLimit.asScala.map(_.intValue()), Vector.empty)
+      .thenApply[java.util.List[java.util.Map[String, AnyRef]]](_.asJava)
+  }
+
+  override def putItem(tableName: String,
+                       key: MapStoreKey,
+                       payload: java.util.Map[String, AnyRef]): CompletableFuture[java.util.Map[String, AnyRef]] = {
+    storePlugin.stripKey(key, payload)
+    storePlugin.timeToLiveAsync(tableName).thenCompose[java.util.Map[String, AnyRef]](timeToLive => {
+      storePlugin.stampExpiry(payload, timeToLive)
+      val item = Item.fromMap(payload).withPrimaryKey(storePlugin.createPrimaryKey(key))
+
+      val putItemRequest = new PutItemRequest(tableName, InternalUtils.toAttributeValues(item))
+      execute[PutItemRequest, PutItemResult](dynamoDBAsyncClient.putItemAsync(putItemRequest, _))
+        .thenApply[java.util.Map[String, AnyRef]](_ => item.asMap())
+    })
+  }
+
+  override def updateItem(tableName: String,
+                          key: MapStoreKey,
+                          payload: java.util.Map[String, AnyRef]): CompletableFuture[java.util.Map[String, AnyRef]] = {
+    storePlugin.stripKey(key, payload)
+    storePlugin.timeToLiveAsync(tableName).thenCompose[java.util.Map[String, AnyRef]](timeToLive => {
+      storePlugin.stampExpiry(payload, timeToLive)
+      val updateExpression = storePlugin.createUpdateExpression(payload)
+
+      val updateItemRequest = new UpdateItemRequest().withTableName(tableName)
+        .withKey(createKeyAttributes(key))
+        .withReturnValues(ReturnValue.ALL_NEW)
+      updateExpression.foreach(expression => updateItemRequest.withUpdateExpression(expression.expression))
+      DynamoDBExpression.nameMap(updateExpression).foreach(updateItemRequest.withExpressionAttributeNames(_))
+      DynamoDBExpression.valueMap(updateExpression)
+        .foreach(valueMap => updateItemRequest.withExpressionAttributeValues(InternalUtils.fromSimpleMap(valueMap)))
+      execute[UpdateItemRequest, UpdateItemResult](dynamoDBAsyncClient.updateItemAsync(updateItemRequest, _))
+        .thenApply[java.util.Map[String, AnyRef]](updateItemResult => toItemMap(updateItemResult.getAttributes))
+    })
+  }
+
+  private def createKeyAttributes(key: MapStoreKey): java.util.Map[String, AttributeValue] =
+    InternalUtils.toAttributeValueMap(storePlugin.createPrimaryKey(key))
+
+  // Complete a future from the async client's callback rather than blocking on its java.util.concurrent.Future
+  private def execute[Req <: AmazonWebServiceRequest, Res](
+    asyncCall: AsyncHandler[Req, Res] => java.util.concurrent.Future[Res]
+  ): CompletableFuture[Res] = {
+    val completableFuture = new CompletableFuture[Res]()
+    asyncCall(new AsyncHandler[Req, Res] {
+      override def onError(exception: Exception): Unit = completableFuture.completeExceptionally(exception)
+      override def onSuccess(request: Req, result: Res): Unit = completableFuture.complete(result)
+    })
+    completableFuture
+  }
+
+  // Follow LastEvaluatedKey page by page until all items (or the limit) have been read
+  private def queryItems(queryRequest: QueryRequest,
+                         limit: Option[Int],
+                         items: Vector[java.util.Map[String, AnyRef]]): CompletableFuture[List[java.util.Map[String, AnyRef]]] = {
+    limit.foreach(l => queryRequest.withLimit(l - items.size))
+
+    execute[QueryRequest, QueryResult](dynamoDBAsyncClient.queryAsync(queryRequest, _))
+      .thenCompose[List[java.util.Map[String, AnyRef]]](queryResult => {
+        val queriedItems = items ++ queryResult.getItems.asScala.map(toItemMap)
+        val lastEvaluatedKey = Option(queryResult.getLastEvaluatedKey).filterNot(_.isEmpty)
+
+        if (lastEvaluatedKey.isEmpty || limit.exists(_ <= queriedItems.size)) {
+          CompletableFuture.completedFuture(queriedItems.toList)
+        } else {
+          queryItems(queryRequest.withExclusiveStartKey(lastEvaluatedKey.get), limit, queriedItems)
+        }
+      })
+  }
+
+  private def toItemMap(attributes: java.util.Map[String, AttributeValue]): java.util.Map[String, AnyRef] =
+    InternalUtils.toSimpleMapValue[AnyRef](attributes)
+}
@@ -2,9 +2,11 @@ package net.spals.appbuilder.mapstore.dynamodb
 
 import javax.validation.constraints.NotNull
 
+import com.amazonaws.{AmazonClientException, AmazonWebServiceRequest, ClientConfiguration}
 import com.amazonaws.auth.{AWSStaticCredentialsProvider, BasicAWSCredentials}
 import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration
 import com.amazonaws.regions.Regions
+import com.amazonaws.retry.{PredefinedRetryPolicies, RetryPolicy, RetryUtils}
 import com.amazonaws.services.dynamodbv2.document.DynamoDB
 import com.amazonaws.services.dynamodbv2.{AmazonDynamoDB, AmazonDynamoDBClientBuilder}
 import com.google.inject.Provider
@@ -35,10 +37,26 @@ private[dynamodb] class DynamoDBClientProvider extends Provider[AmazonDynamoDB]
   @Configuration("mapStore.dynamoDB.endpoint")
   private[dynamodb] var endpoint: String = null
 
+  // The map store plugin retries throttled requests itself, against its own rate limiters
+  // and retry bound, so the client only retries the remaining transient errors. Otherwise
+  // each of the plugin's retries would be multiplied by the client's own throttle retries.
+  private[dynamodb] val retryPolicy = new RetryPolicy(
+    new RetryPolicy.RetryCondition {
+      override def shouldRetry(originalRequest: AmazonWebServiceRequest,
+                               exception: AmazonClientException,
+                               retriesAttempted: Int): Boolean =
+        !RetryUtils.isThrottlingException(exception) &&
+          PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(originalRequest, exception, retriesAttempted)
+    },
+    PredefinedRetryPolicies.DYNAMODB_DEFAULT_BACKOFF_STRATEGY,
+    PredefinedRetryPolicies.DYNAMODB_DEFAULT_MAX_ERROR_RETRY,
+    true)
+
   override def get(): AmazonDynamoDB = {
     val awsCredentials = new BasicAWSCredentials(awsAccessKeyId, awsSecretKey)
     val dynamoDBClientBuilder = AmazonDynamoDBClientBuilder.standard()
       .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
+      .withClientConfiguration(new ClientConfiguration().withRetryPolicy(retryPolicy))
 
     endpoint match {
       case httpEndpoint if httpEndpoint.startsWith("http://") => {
@@ -0,0 +1,28 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import scala.collection.JavaConverters._
+
+/**
+  * A DynamoDB update or condition expression
+  * along with the attribute names and values
+  * which its placeholders stand for.
+  *
+  * @author tkral
+  */
+private[dynamodb] case class DynamoDBExpression(
+  expression: String,
+  nameMap: Map[String, String] = Map.empty,
+  valueMap: Map[String, AnyRef] = Map.empty
+)
+
+private[dynamodb] object DynamoDBExpression {
+
+  // DynamoDB rejects requests with empty attribute name or value maps
+  def nameMap(expressions: Option[DynamoDBExpression]*): Option[java.util.Map[String, String]] = {
+    Some(expressions.flatten.flatMap(_.nameMap).toMap).filter(_.nonEmpty).map(_.asJava)
+  }
+
+  def valueMap(expressions: Option[DynamoDBExpression]*): Option[java.util.Map[String, AnyRef]] = {
+    Some(expressions.flatten.flatMap(_.valueMap).toMap).filter(_.nonEmpty).map(_.asJava)
+  }
+}
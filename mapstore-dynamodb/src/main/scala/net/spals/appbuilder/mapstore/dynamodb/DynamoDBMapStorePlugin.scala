@@ -1,41 +1,176 @@
 package net.spals.appbuilder.mapstore.dynamodb
 
 import java.io.Closeable
-import java.util.Optional
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap, ThreadLocalRandom}
+import java.util.function.Supplier
+import java.util.stream.Collectors
+import java.util.{Base64, Optional}
 import javax.annotation.PreDestroy
+import javax.validation.constraints.Min
 
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB
+import com.amazonaws.services.dynamodbv2.{AmazonDynamoDB, AmazonDynamoDBAsync}
 import com.amazonaws.services.dynamodbv2.document._
-import com.amazonaws.services.dynamodbv2.document.spec.{QuerySpec, ScanSpec}
+import com.amazonaws.services.dynamodbv2.document.internal.InternalUtils
+import com.amazonaws.services.dynamodbv2.document.spec.{BatchWriteItemSpec, DeleteItemSpec, GetItemSpec, PutItemSpec, QuerySpec, ScanSpec, UpdateItemSpec}
 import com.amazonaws.services.dynamodbv2.model._
 import com.amazonaws.services.dynamodbv2.util.TableUtils
 import com.google.common.annotations.VisibleForTesting
 import com.google.inject.Inject
+import com.netflix.governator.annotations.Configuration
+import com.typesafe.config.ConfigException
 import net.spals.appbuilder.annotations.service.AutoBindInMap
-import net.spals.appbuilder.mapstore.core.MapStorePlugin
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory
+import net.spals.appbuilder.mapstore.core.{AsyncMapStore, MapStoreMetrics, MapStoreParallelScan, MapStorePlugin}
 import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.{Extended, Standard}
 import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.TwoValueHolder
-import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey, MapStoreTableKey}
+import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapQueryPage, MapStoreKey, MapStoreTableKey, MapStoreWriteCondition}
 import org.slf4j.LoggerFactory
 
 import scala.collection.JavaConverters._
 import scala.compat.java8.OptionConverters._
+import scala.util.{Failure, Success, Try}
 
 /**
   * Implementation of [[MapStorePlugin]] which
   * uses AWS DynamoDB.
   *
+  * Each table's reads and writes can be limited on the
+  * client side to a number of capacity units per second,
+  * so that bulk work backs off before DynamoDB throttles
+  * it. Requests of the asynchronous view are never limited,
+  * as they must not block.
+  *
+  * Tables with a time to live use DynamoDB's own expiry.
+  * Each write stamps its item with an expiry time, in
+  * epoch seconds, in the mapStore.dynamoDB.timeToLiveAttribute
+  * field, and DynamoDB deletes expired items in the
+  * background. The table's time to live is kept as a
+  * tag of the table, so that it is known to processes
+  * which did not create the table. The tag is only read
+  * for tables which have DynamoDB's expiry turned on,
+  * and is read again every mapStore.dynamoDB.timeToLiveRefreshMillis.
+  * A table whose time to live cannot be read keeps the
+  * time to live which was last read (if any).
+  *
   * @author tkral
   */
 @AutoBindInMap(baseClass = classOf[MapStorePlugin], key = "dynamoDB")
-private[dynamodb] class DynamoDBMapStorePlugin @Inject() (dynamoDBClient: AmazonDynamoDB)
-  extends MapStorePlugin with Closeable {
+private[dynamodb] class DynamoDBMapStorePlugin @Inject() (
+  dynamoDBClient: AmazonDynamoDB,
+  dynamoDBAsyncClient: AmazonDynamoDBAsync,
+  executorServiceFactory: ExecutorServiceFactory,
+  storeMetrics: MapStoreMetrics
+) extends MapStorePlugin with Closeable {
   private val LOGGER = LoggerFactory.getLogger(classOf[DynamoDBMapStorePlugin])
 
+  // Request size limits imposed by DynamoDB BatchGetItem and BatchWriteItem
+  private[dynamodb] val maxBatchGetSize = 100
+  private[dynamodb] val maxBatchWriteSize = 25
+  // Bounds for retrying throttled requests and unprocessed batch keys and items
+  private[dynamodb] val maxRetries = 8
+  private[dynamodb] val retryBaseBackoffMillis = 50L
+  // Names of the DynamoDB specific metrics of each table operation
+  private[dynamodb] val metricsSystem = "dynamoDB"
+  private[dynamodb] val consumedCapacityMetric = "consumedMilliCapacityUnits"
+  private[dynamodb] val throttlesMetric = "throttles"
+  // The table tag which holds a table's time to live, in seconds
+  private[dynamodb] val timeToLiveTag = "mapStore:timeToLiveSeconds"
+  // How long a table's time to live is not reloaded after it could not be read
+  private[dynamodb] val timeToLiveRetryBackoffMillis = 30000L
+
+  @Configuration("mapStore.dynamoDB.billingMode")
+  @volatile
+  private[dynamodb] var billingMode: String = BillingMode.PROVISIONED.toString
+
+  @Min(1L)
+  @Configuration("mapStore.dynamoDB.readCapacityUnits")
+  @volatile
+  private[dynamodb] var readCapacityUnits: Long = 1L
+
+  @Min(1L)
+  @Configuration("mapStore.dynamoDB.writeCapacityUnits")
+  @volatile
+  private[dynamodb] var writeCapacityUnits: Long = 1L
+
+  // Client-side limits, in capacity units per second, of each table. Zero disables a limit.
+  @Min(0L)
+  @Configuration("mapStore.dynamoDB.readUnitsPerSecond")
+  @volatile
+  private[dynamodb] var readUnitsPerSecond: Int = 0
+
+  @Min(0L)
+  @Configuration("mapStore.dynamoDB.writeUnitsPerSecond")
+  @volatile
+  private[dynamodb] var writeUnitsPerSecond: Int = 0
+
+  @Min(1L)
+  @Configuration("mapStore.dynamoDB.scanSegments")
+  @volatile
+  private[dynamodb] var scanSegments: Int = 4
+
+  @Min(1L)
+  @Configuration("mapStore.dynamoDB.scanPageSize")
+  @volatile
+  private[dynamodb] var scanPageSize: Int = MapQueryOptions.DEFAULT_PAGE_SIZE
+
+  @Min(1L)
+  @Configuration("mapStore.dynamoDB.scanBufferSize")
+  @volatile
+  private[dynamodb] var scanBufferSize: Int = 1000
+
+  @Configuration("mapStore.dynamoDB.timeToLiveAttribute")
+  @volatile
+  private[dynamodb] var timeToLiveAttribute: String = "expiresAt"
+
+  // How often a table's time to live is reloaded, so that changes by other processes are seen
+  @Min(1L)
+  @Configuration("mapStore.dynamoDB.timeToLiveRefreshMillis")
+  @volatile
+  private[dynamodb] var timeToLiveRefreshMillis: Long = 300000L
+
   private val dynamoDB = new DynamoDB(dynamoDBClient)
+  private lazy val asyncStore = new DynamoDBAsyncMapStore(dynamoDBAsyncClient, this)
+  private lazy val parallelScan = new MapStoreParallelScan(
+    executorServiceFactory.createFixedThreadPool(scanSegments, getClass, "scan"), scanBufferSize)
+  private val readLimiters = new ConcurrentHashMap[String, Option[DynamoDBRateLimiter]]()
+  private val writeLimiters = new ConcurrentHashMap[String, Option[DynamoDBRateLimiter]]()
+  private lazy val timeToLiveExecutor = executorServiceFactory.createFixedThreadPool(1, getClass, "timeToLive")
+  private val timeToLives = new ConcurrentHashMap[String, TimeToLiveEntry]()
 
   @PreDestroy
-  override def close() = dynamoDB.shutdown()
+  override def close() = {
+    dynamoDB.shutdown()
+    dynamoDBAsyncClient.shutdown()
+  }
+
+  override def asyncPlugin(): Optional[AsyncMapStore] = Optional.of(asyncStore)
+
+  override def createIndex(tableName: String,
+                           indexName: String,
+                           indexKey: MapStoreTableKey): Boolean = {
+    val table = dynamoDB.getTable(tableName)
+    if (!hasIndex(table, indexName)) {
+      val hashKeyAttrDef = new AttributeDefinition().withAttributeName(indexKey.getHashField)
+        .withAttributeType(createAttributeType(indexKey.getHashFieldType))
+      // Project whole items into the index so that index queries never read back from the table
+      val createIndexAction = new CreateGlobalSecondaryIndexAction().withIndexName(indexName)
+        .withKeySchema(new KeySchemaElement(indexKey.getHashField, KeyType.HASH))
+        .withProjection(new Projection().withProjectionType(ProjectionType.ALL))
+      createProvisionedThroughput().foreach(createIndexAction.withProvisionedThroughput(_))
+
+      val index = indexKey.getRangeField.asScala.map(rangeField => {
+        val rangeKeyAttrDef = new AttributeDefinition().withAttributeName(rangeField)
+          .withAttributeType(createAttributeType(indexKey.getRangeFieldType.get()))
+        createIndexAction.withKeySchema(new KeySchemaElement(rangeField, KeyType.RANGE))
+        table.createGSI(createIndexAction, hashKeyAttrDef, rangeKeyAttrDef)
+      }).getOrElse(table.createGSI(createIndexAction, hashKeyAttrDef))
+      // The index cannot be queried until DynamoDB has backfilled it
+      index.waitForActive()
+    }
+
+    true
+  }
 
   override def createTable(tableName: String,
                            tableKey: MapStoreTableKey): Boolean = {
@@ -58,46 +193,153 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (dynamoDBClient: Amazon
         .withKeySchema(rangeKeySchema)
     })
 
-    // Add minimal provisioned throughput to the table
-    val provisionedThroughput = new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L)
-    createTableRequest.withProvisionedThroughput(provisionedThroughput)
+    // Provisioned billing is the default, so only on-demand billing is requested explicitly
+    createProvisionedThroughput() match {
+      case Some(provisionedThroughput) => createTableRequest.withProvisionedThroughput(provisionedThroughput)
+      case None => createTableRequest.withBillingMode(BillingMode.PAY_PER_REQUEST)
+    }
+
+    val created = TableUtils.createTableIfNotExists(dynamoDBClient, createTableRequest)
+    tableKey.getTimeToLive.asScala match {
+      case Some(timeToLive) => enableTimeToLive(tableName, timeToLive)
+      case None => disableTimeToLive(tableName)
+    }
+    timeToLives.put(tableName,
+      TimeToLiveEntry(tableKey.getTimeToLive.asScala, System.currentTimeMillis() + timeToLiveRefreshMillis))
+    created
+  }
+
+  override def dropIndex(tableName: String,
+                         indexName: String): Boolean = {
+    val table = dynamoDB.getTable(tableName)
+    if (hasIndex(table, indexName)) {
+      val index = table.getIndex(indexName)
+      index.deleteGSI()
+      index.waitForDelete()
+    }
 
-    TableUtils.createTableIfNotExists(dynamoDBClient, createTableRequest)
+    true
   }
 
   override def dropTable(tableName: String): Boolean = {
     val deleteTableRequest = new DeleteTableRequest().withTableName(tableName)
+    timeToLives.remove(tableName)
     TableUtils.deleteTableIfExists(dynamoDBClient, deleteTableRequest)
   }
 
+  override def batchDeleteItems(tableName: String,
+                                keys: java.util.List[MapStoreKey]): Unit = {
+    // DynamoDB rejects batches which name the same key more than once
+    keys.asScala.distinct.grouped(maxBatchWriteSize).foreach(keyGroup => {
+      val tableWriteItems = new TableWriteItems(tableName)
+        .withPrimaryKeysToDelete(keyGroup.map(createPrimaryKey): _*)
+      batchWrite(tableName, tableWriteItems)
+    })
+  }
+
+  override def batchGetItems(tableName: String,
+                             keys: java.util.List[MapStoreKey]): java.util.List[java.util.Map[String, AnyRef]] = {
+    // DynamoDB rejects batches which name the same key more than once
+    keys.asScala.distinct.grouped(maxBatchGetSize).flatMap(keyGroup => {
+      val tableKeysAndAttributes = new TableKeysAndAttributes(tableName)
+        .withPrimaryKeys(keyGroup.map(createPrimaryKey): _*)
+      batchGet(tableName, tableKeysAndAttributes)
+    }).map(_.asMap()).toList.asJava
+  }
+
+  override def batchPutItems(tableName: String,
+                             items: java.util.Map[MapStoreKey, java.util.Map[String, AnyRef]]): java.util.List[java.util.Map[String, AnyRef]] = {
+    val dynamoDBItems = items.asScala.map(keyAndPayload => {
+      val (key, payload) = keyAndPayload
+      stripKey(key, payload)
+      stampExpiry(tableName, payload)
+      Item.fromMap(payload).withPrimaryKey(createPrimaryKey(key))
+    }).toList
+
+    dynamoDBItems.grouped(maxBatchWriteSize).foreach(itemGroup => {
+      val tableWriteItems = new TableWriteItems(tableName).withItemsToPut(itemGroup: _*)
+      batchWrite(tableName, tableWriteItems)
+    })
+    dynamoDBItems.map(_.asMap()).asJava
+  }
+
   override def deleteItem(tableName: String,
                           key: MapStoreKey): Unit = {
     val table = dynamoDB.getTable(tableName)
-    val primaryKey = createPrimaryKey(key)
+    val deleteItemSpec = new DeleteItemSpec().withPrimaryKey(createPrimaryKey(key))
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
 
-    val deleteItemOutcome = table.deleteItem(primaryKey)
-    if (LOGGER.isTraceEnabled) {
-      LOGGER.trace(s"Capacity used for deleteItem on table $tableName: " +
-        s"${deleteItemOutcome.getDeleteItemResult.getConsumedCapacity}")
-    }
+    withCapacity("deleteItem", tableName, writeLimiter(tableName))(() => table.deleteItem(deleteItemSpec))(
+      deleteItemOutcome => Option(deleteItemOutcome.getDeleteItemResult.getConsumedCapacity))
   }
 
   override def getAllItems(tableName: String): java.util.List[java.util.Map[String, AnyRef]] = {
+    streamAllItems(tableName, MapQueryOptions.defaultOptions()).collect(Collectors.toList())
+  }
+
+  override def getAllItemsPage(tableName: String,
+                               options: MapQueryOptions): MapQueryPage = {
     val table = dynamoDB.getTable(tableName)
-    table.scan(new ScanSpec).asScala.map(_.asMap()).toList.asJava
+    val scanSpec = new ScanSpec().withMaxPageSize(options.getPageSize.orElse(MapQueryOptions.DEFAULT_PAGE_SIZE))
+      .withConsistentRead(isConsistentRead(options))
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    createAttributesToGet(options.getProjection).foreach(attributesToGet => scanSpec.withAttributesToGet(attributesToGet: _*))
+    options.getContinuationToken.asScala.foreach(token => scanSpec.withExclusiveStartKey(decodeContinuationToken(token)))
+
+    val scanPage = withCapacity("scan", tableName, readLimiter(tableName))(() => table.scan(scanSpec).firstPage())(
+      page => Option(page.getLowLevelResult.getScanResult.getConsumedCapacity))
+    createPage(scanPage, scanPage.getLowLevelResult.getScanResult.getLastEvaluatedKey)
+  }
+
+  /**
+    * Streams all items of the given table by scanning
+    * its segments in parallel. Items are streamed in
+    * no particular order.
+    *
+    * A stream which resumes from a continuation token is
+    * read one page at a time instead.
+    */
+  override def streamAllItems(tableName: String,
+                              options: MapQueryOptions): java.util.stream.Stream[java.util.Map[String, AnyRef]] = {
+    if (options.getContinuationToken.isPresent) {
+      return streamPages(options, pageOptions => getAllItemsPage(tableName, pageOptions))
+    }
+
+    val segmentScans = (0 until scanSegments).map(segment =>
+      new Supplier[java.util.Iterator[java.util.Map[String, AnyRef]]] {
+        override def get(): java.util.Iterator[java.util.Map[String, AnyRef]] =
+          scanSegment(tableName, createScanSpec(options, segment, scanSegments)).asJava
+      }).toList
+
+    // The scan applies the limit itself so that its segment reads stop once the limit is reached
+    parallelScan.stream(segmentScans.asJava, options.getLimit.asScala.map(limit => Long.box(limit.longValue())).asJava)
+  }
+
+  override def getIndexItems(tableName: String,
+                             indexName: String,
+                             indexKey: MapStoreKey,
+                             options: MapQueryOptions): java.util.List[java.util.Map[String, AnyRef]] = {
+    // Global secondary index queries are always eventually consistent
+    val index = dynamoDB.getTable(tableName).getIndex(indexName)
+    val querySpec = createQuerySpec(indexKey, options).withConsistentRead(false)
+    queryItems("indexQuery", tableName, () => index.query(querySpec)).asJava
   }
 
   override def getItem(tableName: String,
                        key: MapStoreKey): Optional[java.util.Map[String, AnyRef]] = {
-    val table = dynamoDB.getTable(tableName)
-    val primaryKey = createPrimaryKey(key)
+    getItem(tableName, key, java.util.Collections.emptySet[String]())
+  }
 
-    val getItemOutcome = table.getItemOutcome(primaryKey)
-    if (LOGGER.isTraceEnabled) {
-      LOGGER.trace(s"Capacity used for getItem on table $tableName: " +
-        s"${getItemOutcome.getGetItemResult.getConsumedCapacity}")
-    }
+  override def getItem(tableName: String,
+                       key: MapStoreKey,
+                       projection: java.util.Set[String]): Optional[java.util.Map[String, AnyRef]] = {
+    val table = dynamoDB.getTable(tableName)
+    val getItemSpec = new GetItemSpec().withPrimaryKey(createPrimaryKey(key))
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    createAttributesToGet(projection).foreach(attributesToGet => getItemSpec.withAttributesToGet(attributesToGet: _*))
 
+    val getItemOutcome = withCapacity("getItem", tableName, readLimiter(tableName))(() => table.getItemOutcome(getItemSpec))(
+      getItemOutcome => Option(getItemOutcome.getGetItemResult.getConsumedCapacity))
     Option(getItemOutcome.getItem).map(_.asMap()).asJava
   }
 
@@ -105,13 +347,46 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (dynamoDBClient: Amazon
                         key: MapStoreKey,
                         options: MapQueryOptions): java.util.List[java.util.Map[String, AnyRef]] = {
     val table = dynamoDB.getTable(tableName)
+    val querySpec = createQuerySpec(key, options)
+    queryItems("query", tableName, () => table.query(querySpec)).asJava
+  }
+
+  override def getItemsPage(tableName: String,
+                            key: MapStoreKey,
+                            options: MapQueryOptions): MapQueryPage = {
+    val table = dynamoDB.getTable(tableName)
     val querySpec = new QuerySpec().withHashKey(key.getHashField, key.getHashValue)
     createRangeKeyCondition(key).foreach(rangeKeyCondition => querySpec.withRangeKeyCondition(rangeKeyCondition))
 
     querySpec.withScanIndexForward(options.getOrder == MapQueryOptions.Order.ASC)
-    options.getLimit.asScala.foreach(limit => querySpec.withMaxResultSize(limit))
+      .withConsistentRead(isConsistentRead(options))
+      .withMaxPageSize(options.getPageSize.orElse(MapQueryOptions.DEFAULT_PAGE_SIZE))
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    createAttributesToGet(options.getProjection).foreach(attributesToGet => querySpec.withAttributesToGet(attributesToGet: _*))
+    options.getContinuationToken.asScala.foreach(token => querySpec.withExclusiveStartKey(decodeContinuationToken(token)))
+
+    val queryPage = withCapacity("query", tableName, readLimiter(tableName))(() => table.query(querySpec).firstPage())(
+      page => Option(page.getLowLevelResult.getQueryResult.getConsumedCapacity))
+    createPage(queryPage, queryPage.getLowLevelResult.getQueryResult.getLastEvaluatedKey)
+  }
 
-    table.query(querySpec).asScala.map(_.asMap()).toList.asJava
+  override def incrementItem(tableName: String,
+                             key: MapStoreKey,
+                             increments: java.util.Map[String, java.lang.Long]): java.util.Map[String, AnyRef] = {
+    val table = dynamoDB.getTable(tableName)
+    val primaryKey = createPrimaryKey(key)
+    val payload = new java.util.HashMap[String, AnyRef]()
+    stampExpiry(tableName, payload)
+
+    // ADD increments the stored numbers, creating the item if it is missing,
+    // so an increment takes a single round trip without a read or retries
+    val updateItemSpec = createUpdateItemSpec(primaryKey, createUpdateExpression(payload, increments), None)
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    val updateItemOutcome = withCapacity("incrementItem", tableName, writeLimiter(tableName))(
+      () => table.updateItem(updateItemSpec))(
+      updateItemOutcome => Option(updateItemOutcome.getUpdateItemResult.getConsumedCapacity))
+
+    updateItemOutcome.getItem.asMap()
   }
 
   override def putItem(tableName: String,
@@ -121,16 +396,36 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (dynamoDBClient: Amazon
     val primaryKey = createPrimaryKey(key)
 
     stripKey(key, payload)
+    stampExpiry(tableName, payload)
     val item = Item.fromMap(payload).withPrimaryKey(primaryKey)
-    val putItemOutcome = table.putItem(item)
-    if (LOGGER.isTraceEnabled) {
-      LOGGER.trace(s"Capacity used for putItem on table $tableName: " +
-        s"${putItemOutcome.getPutItemResult.getConsumedCapacity}")
-    }
+    val putItemSpec = new PutItemSpec().withItem(item).withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    val putItemOutcome = withCapacity("putItem", tableName, writeLimiter(tableName))(() => table.putItem(putItemSpec))(
+      putItemOutcome => Option(putItemOutcome.getPutItemResult.getConsumedCapacity))
 
     Option(putItemOutcome.getItem).map(_.asMap()).getOrElse(item.asMap())
   }
 
+  override def putItem(tableName: String,
+                       key: MapStoreKey,
+                       payload: java.util.Map[String, AnyRef],
+                       condition: MapStoreWriteCondition): Optional[java.util.Map[String, AnyRef]] = {
+    val table = dynamoDB.getTable(tableName)
+    val primaryKey = createPrimaryKey(key)
+
+    stripKey(key, payload)
+    stampExpiry(tableName, payload)
+    val item = Item.fromMap(payload).withPrimaryKey(primaryKey)
+    val putItemSpec = createConditionalPutItemSpec(item, condition)
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    try {
+      withCapacity("conditionalPutItem", tableName, writeLimiter(tableName))(() => table.putItem(putItemSpec))(
+        putItemOutcome => Option(putItemOutcome.getPutItemResult.getConsumedCapacity))
+      Optional.of(item.asMap())
+    } catch {
+      case _: ConditionalCheckFailedException => Optional.empty()
+    }
+  }
+
   override def updateItem(tableName: String,
                           key: MapStoreKey,
                           payload: java.util.Map[String, AnyRef]): java.util.Map[String, AnyRef] = {
@@ -138,26 +433,313 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (dynamoDBClient: Amazon
     val primaryKey = createPrimaryKey(key)
 
     stripKey(key, payload)
-    val attrUpdates = payload.entrySet().asScala
-      .map(entry => {
-        val attrUpdate = new AttributeUpdate(entry.getKey)
-        entry.getValue match {
-          case null | "" => attrUpdate.delete()
-          case n: java.lang.Number => attrUpdate.addNumeric(n)
-          case value => attrUpdate.put(value)
-        }
-      }).toArray
+    stampExpiry(tableName, payload)
+
+    // DynamoDB creates missing items on update, and ALL_NEW returns the
+    // updated item, so an upsert takes a single round trip
+    val updateItemSpec = createUpdateItemSpec(primaryKey, createUpdateExpression(payload), None)
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    val updateItemOutcome = withCapacity("updateItem", tableName, writeLimiter(tableName))(
+      () => table.updateItem(updateItemSpec))(
+      updateItemOutcome => Option(updateItemOutcome.getUpdateItemResult.getConsumedCapacity))
+
+    updateItemOutcome.getItem.asMap()
+  }
+
+  override def updateItem(tableName: String,
+                          key: MapStoreKey,
+                          payload: java.util.Map[String, AnyRef],
+                          condition: MapStoreWriteCondition): Optional[java.util.Map[String, AnyRef]] = {
+    val table = dynamoDB.getTable(tableName)
+    val primaryKey = createPrimaryKey(key)
+
+    stripKey(key, payload)
+    stampExpiry(tableName, payload)
+
+    val updateItemSpec = createUpdateItemSpec(primaryKey, createUpdateExpression(payload),
+      createConditionExpression(condition))
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    try {
+      val updateItemOutcome = withCapacity("conditionalUpdateItem", tableName, writeLimiter(tableName))(
+        () => table.updateItem(updateItemSpec))(
+        updateItemOutcome => Option(updateItemOutcome.getUpdateItemResult.getConsumedCapacity))
+      Optional.of(updateItemOutcome.getItem.asMap())
+    } catch {
+      case _: ConditionalCheckFailedException => Optional.empty()
+    }
+  }
+
+  // Run a single BatchGetItem request, retrying any unprocessed keys
+  private[dynamodb] def batchGet(tableName: String,
+                                 tableKeysAndAttributes: TableKeysAndAttributes): List[Item] = {
+    val rateLimiter = readLimiter(tableName)
+    val batchGetOutcome = withCapacity("batchGetItem", tableName, rateLimiter)(
+      () => dynamoDB.batchGetItem(ReturnConsumedCapacity.TOTAL, tableKeysAndAttributes))(
+      outcome => batchCapacity(outcome.getBatchGetItemResult.getConsumedCapacity))
+
+    val items = collection.mutable.ListBuffer(tableItems(tableName, batchGetOutcome.getTableItems): _*)
+    var unprocessedKeys = batchGetOutcome.getUnprocessedKeys
+    var retry = 0
+    while (!unprocessedKeys.isEmpty) {
+      retry = retryUnprocessed(tableName, retry, rateLimiter)
+      val retryKeys = unprocessedKeys
+      val retryOutcome = withCapacity("batchGetItem", tableName, rateLimiter)(
+        () => dynamoDB.batchGetItemUnprocessed(ReturnConsumedCapacity.TOTAL, retryKeys))(
+        outcome => batchCapacity(outcome.getBatchGetItemResult.getConsumedCapacity))
+
+      items ++= tableItems(tableName, retryOutcome.getTableItems)
+      unprocessedKeys = retryOutcome.getUnprocessedKeys
+    }
+
+    items.toList
+  }
+
+  // Run a single BatchWriteItem request, retrying any unprocessed items
+  private[dynamodb] def batchWrite(tableName: String,
+                                   tableWriteItems: TableWriteItems): Unit = {
+    val rateLimiter = writeLimiter(tableName)
+    val batchWriteOutcome = withCapacity("batchWriteItem", tableName, rateLimiter)(
+      () => dynamoDB.batchWriteItem(new BatchWriteItemSpec().withTableWriteItems(tableWriteItems)
+        .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)))(
+      outcome => batchCapacity(outcome.getBatchWriteItemResult.getConsumedCapacity))
+
+    var unprocessedItems = batchWriteOutcome.getUnprocessedItems
+    var retry = 0
+    while (!unprocessedItems.isEmpty) {
+      retry = retryUnprocessed(tableName, retry, rateLimiter)
+      val retryItems = unprocessedItems
+      val retryOutcome = withCapacity("batchWriteItem", tableName, rateLimiter)(
+        () => dynamoDB.batchWriteItem(new BatchWriteItemSpec().withUnprocessedItems(retryItems)
+          .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)))(
+        outcome => batchCapacity(outcome.getBatchWriteItemResult.getConsumedCapacity))
+
+      unprocessedItems = retryOutcome.getUnprocessedItems
+    }
+  }
 
-    val updateItemOutcome = table.updateItem(primaryKey, attrUpdates: _*)
-    if (LOGGER.isTraceEnabled) {
-      LOGGER.trace(s"Capacity used for updateItem on table $tableName: " +
-        s"${updateItemOutcome.getUpdateItemResult.getConsumedCapacity}")
+  // Sleep for a random share of an exponential backoff (full jitter), so
+  // that clients which were throttled together do not retry together
+  private def backoff(retry: Int): Unit =
+    Thread.sleep(ThreadLocalRandom.current().nextLong((retryBaseBackoffMillis << retry) + 1L))
+
+  private def batchCapacity(consumedCapacity: java.util.List[ConsumedCapacity]): Iterable[ConsumedCapacity] =
+    Option(consumedCapacity).map(_.asScala).getOrElse(Iterable.empty)
+
+  // DynamoDB leaves batch work unprocessed when the table's capacity is exceeded
+  private def retryUnprocessed(tableName: String,
+                               retry: Int,
+                               rateLimiter: Option[DynamoDBRateLimiter]): Int = {
+    if (retry >= maxRetries) {
+      throw new IllegalStateException(s"Could not process batch request on table $tableName " +
+        s"after $maxRetries retries")
     }
 
-    Option(updateItemOutcome.getItem).map(_.asMap())
-      .getOrElse(table.getItem(primaryKey).asMap())
+    rateLimiter.foreach(_.throttle())
+    backoff(retry)
+    retry + 1
   }
 
+  // Convert a single DynamoDB page into a MapQueryPage, carrying its LastEvaluatedKey as the continuation token
+  private def createPage(page: Page[Item, _],
+                         lastEvaluatedKey: java.util.Map[String, AttributeValue]): MapQueryPage = {
+    val pageBuilder = new MapQueryPage.Builder()
+      .addAllItems(page.asScala.map(_.asMap()).asJava)
+
+    Option(lastEvaluatedKey).filterNot(_.isEmpty)
+      .foreach(lastKey => pageBuilder.setContinuationToken(encodeContinuationToken(lastKey)))
+    pageBuilder.build()
+  }
+
+  private def hasIndex(table: Table, indexName: String): Boolean =
+    Option(table.describe().getGlobalSecondaryIndexes).exists(_.asScala.exists(_.getIndexName == indexName))
+
+  // Turn on DynamoDB's expiry of the table's items and record the table's time to live in its tags
+  private[dynamodb] def enableTimeToLive(tableName: String, timeToLive: java.time.Duration): Unit = {
+    // The time to live of a table cannot be changed until the table is active
+    TableUtils.waitUntilActive(dynamoDBClient, tableName)
+    val enabledStatuses = Set(TimeToLiveStatus.ENABLED.toString, TimeToLiveStatus.ENABLING.toString)
+    val isEnabled = Option(dynamoDBClient.describeTimeToLive(new DescribeTimeToLiveRequest().withTableName(tableName)))
+      .flatMap(result => Option(result.getTimeToLiveDescription))
+      .exists(description => description.getAttributeName == timeToLiveAttribute &&
+        enabledStatuses.contains(description.getTimeToLiveStatus))
+    if (!isEnabled) {
+      val timeToLiveSpecification = new TimeToLiveSpecification().withAttributeName(timeToLiveAttribute)
+        .withEnabled(true)
+      dynamoDBClient.updateTimeToLive(new UpdateTimeToLiveRequest().withTableName(tableName)
+        .withTimeToLiveSpecification(timeToLiveSpecification))
+    }
+
+    // DynamoDB expires items to the second, so partial seconds are rounded up
+    val timeToLiveSeconds = Math.floorDiv(timeToLive.toMillis + 999L, 1000L)
+    val tableArn = dynamoDBClient.describeTable(new DescribeTableRequest().withTableName(tableName))
+      .getTable.getTableArn
+    dynamoDBClient.tagResource(new TagResourceRequest().withResourceArn(tableArn)
+      .withTags(new Tag().withKey(timeToLiveTag).withValue(String.valueOf(timeToLiveSeconds))))
+  }
+
+  // Remove a dropped time to live from the table's tags, so that no process stamps its items any longer.
+  // DynamoDB's expiry is left on, so that items which were already stamped still expire.
+  private[dynamodb] def disableTimeToLive(tableName: String): Unit = {
+    Try {
+      val tableArn = dynamoDBClient.describeTable(new DescribeTableRequest().withTableName(tableName))
+        .getTable.getTableArn
+      if (listTags(tableArn).exists(_.getKey == timeToLiveTag)) {
+        dynamoDBClient.untagResource(new UntagResourceRequest().withResourceArn(tableArn).withTagKeys(timeToLiveTag))
+      }
+    }.failed.foreach(e => LOGGER.warn(s"Could not remove the time to live tag of DynamoDB table $tableName", e))
+  }
+
+  // Read a table's time to live from its tags. Tables without DynamoDB's expiry have no time to live.
+  private def loadTimeToLive(tableName: String): Try[Option[java.time.Duration]] = Try {
+    val enabledStatuses = Set(TimeToLiveStatus.ENABLED.toString, TimeToLiveStatus.ENABLING.toString)
+    val isEnabled = Option(dynamoDBClient.describeTimeToLive(new DescribeTimeToLiveRequest().withTableName(tableName)))
+      .flatMap(result => Option(result.getTimeToLiveDescription))
+      .exists(description => description.getAttributeName == timeToLiveAttribute &&
+        enabledStatuses.contains(description.getTimeToLiveStatus))
+
+    Some(isEnabled).filter(identity)
+      .flatMap(_ => Option(dynamoDBClient.describeTable(new DescribeTableRequest().withTableName(tableName))))
+      .flatMap(result => Option(result.getTable))
+      .flatMap(tableDescription => listTags(tableDescription.getTableArn).find(_.getKey == timeToLiveTag))
+      .map(tag => java.time.Duration.ofSeconds(tag.getValue.toLong))
+  }
+
+  // List a table's tags, which may span many pages
+  private def listTags(tableArn: String): Iterator[Tag] = {
+    val listTagsRequest = new ListTagsOfResourceRequest().withResourceArn(tableArn)
+    Iterator.iterate(Option(dynamoDBClient.listTagsOfResource(listTagsRequest)))(_.flatMap(result =>
+      Option(result.getNextToken).map(nextToken =>
+        dynamoDBClient.listTagsOfResource(listTagsRequest.withNextToken(nextToken)))))
+      .takeWhile(_.isDefined)
+      .flatMap(result => Option(result.get.getTags).map(_.asScala).getOrElse(Iterable.empty))
+  }
+
+  // Stamp an item with the epoch second at which it expires. Each write restarts the item's time to live.
+  private[dynamodb] def stampExpiry(tableName: String, payload: java.util.Map[String, AnyRef]): Unit = {
+    stampExpiry(payload, timeToLive(tableName))
+  }
+
+  private[dynamodb] def stampExpiry(payload: java.util.Map[String, AnyRef],
+                                    timeToLive: Option[java.time.Duration]): Unit = {
+    timeToLive.foreach(timeToLive => payload.put(timeToLiveAttribute,
+      Long.box(Math.floorDiv(System.currentTimeMillis() + timeToLive.toMillis + 999L, 1000L))))
+  }
+
+  // A table's time to live is reloaded once its refresh time has passed. Only the writer which
+  // claims a stale entry reloads it, while the others keep using the stale time to live. A failed
+  // load keeps the time to live which was last read (or none) and is retried after a backoff.
+  private[dynamodb] def timeToLive(tableName: String): Option[java.time.Duration] = {
+    val now = System.currentTimeMillis()
+    val entry = Option(timeToLives.get(tableName))
+    entry.filter(_.refreshAtMillis > now).map(_.timeToLive).getOrElse {
+      if (entry.exists(staleEntry => !timeToLives.replace(tableName, staleEntry,
+        staleEntry.copy(refreshAtMillis = now + timeToLiveRetryBackoffMillis)))) {
+        // Another writer claimed the reload first
+        timeToLive(tableName)
+      } else {
+        val loadedEntry = loadTimeToLive(tableName) match {
+          case Success(timeToLive) => TimeToLiveEntry(timeToLive, now + timeToLiveRefreshMillis)
+          case Failure(e) =>
+            val lastTimeToLive = entry.flatMap(_.timeToLive)
+            LOGGER.warn(s"Could not load the time to live of DynamoDB table $tableName. Writes to the table " +
+              s"use the time to live $lastTimeToLive for the next ${timeToLiveRetryBackoffMillis}ms.", e)
+            TimeToLiveEntry(lastTimeToLive, now + timeToLiveRetryBackoffMillis)
+        }
+        timeToLives.put(tableName, loadedEntry)
+        loadedEntry.timeToLive
+      }
+    }
+  }
+
+  // Resolve a table's time to live without blocking the caller if it has to be loaded
+  private[dynamodb] def timeToLiveAsync(tableName: String): CompletableFuture[Option[java.time.Duration]] = {
+    Option(timeToLives.get(tableName)).filter(_.refreshAtMillis > System.currentTimeMillis())
+      .map(entry => CompletableFuture.completedFuture(entry.timeToLive))
+      .getOrElse(CompletableFuture.supplyAsync(new Supplier[Option[java.time.Duration]] {
+        override def get(): Option[java.time.Duration] = timeToLive(tableName)
+      }, timeToLiveExecutor))
+  }
+
+  // Read all items of a query, which is charged the capacity of all its pages at once
+  private def queryItems(operation: String,
+                         tableName: String,
+                         query: () => ItemCollection[QueryOutcome]): List[java.util.Map[String, AnyRef]] = {
+    withCapacity(operation, tableName, readLimiter(tableName))(() => {
+      val queryItems = query()
+      (queryItems.asScala.map(_.asMap()).toList, queryItems.getAccumulatedConsumedCapacity)
+    })(itemsAndCapacity => Option(itemsAndCapacity._2))._1
+  }
+
+  private[dynamodb] def readLimiter(tableName: String): Option[DynamoDBRateLimiter] =
+    rateLimiter(readLimiters, tableName, readUnitsPerSecond)
+
+  private def rateLimiter(rateLimiters: ConcurrentHashMap[String, Option[DynamoDBRateLimiter]],
+                          tableName: String,
+                          unitsPerSecond: Int): Option[DynamoDBRateLimiter] = {
+    rateLimiters.computeIfAbsent(tableName, new java.util.function.Function[String, Option[DynamoDBRateLimiter]] {
+      override def apply(t: String): Option[DynamoDBRateLimiter] =
+        Some(unitsPerSecond).filter(_ > 0).map(units => new DynamoDBRateLimiter(units.toDouble))
+    })
+  }
+
+  // Scan a single segment one page at a time, so that each page is rate limited
+  private def scanSegment(tableName: String,
+                          scanSpec: ScanSpec): Iterator[java.util.Map[String, AnyRef]] = {
+    val table = dynamoDB.getTable(tableName)
+    val scanPage = () => withCapacity("scan", tableName, readLimiter(tableName))(() => table.scan(scanSpec).firstPage())(
+      page => Option(page.getLowLevelResult.getScanResult.getConsumedCapacity))
+
+    Iterator.iterate(Option(scanPage()))(_.flatMap(page =>
+      Option(page.getLowLevelResult.getScanResult.getLastEvaluatedKey).filterNot(_.isEmpty).map(lastKey => {
+        scanSpec.withExclusiveStartKey(createStartKey(lastKey))
+        scanPage()
+      })))
+      .takeWhile(_.isDefined)
+      .flatMap(_.get.asScala.map(_.asMap()))
+  }
+
+  // Run a single request against a table's capacity. The request first waits for the
+  // table's rate limiter and is then charged the capacity which it consumed. A throttled
+  // request slows the rate limiter down and is retried after a jittered backoff. Consumed
+  // capacity and throttles are marked in the store metrics of the table and operation.
+  private[dynamodb] def withCapacity[T](operation: String,
+                                        tableName: String,
+                                        rateLimiter: Option[DynamoDBRateLimiter],
+                                        retry: Int = 0)
+                                       (request: () => T)
+                                       (consumedCapacity: T => Iterable[ConsumedCapacity]): T = {
+    rateLimiter.foreach(_.acquire())
+    Try(request()) match {
+      case Success(result) =>
+        val consumedUnits = consumedCapacity(result).filter(capacity => tableName == capacity.getTableName)
+          .flatMap(capacity => Option(capacity.getCapacityUnits)).map(_.doubleValue()).sum
+        rateLimiter.foreach(_.consume(consumedUnits))
+        // Capacity is fractional, so it is metered in thousandths of a unit
+        storeMetrics.mark(metricsSystem, tableName, operation, consumedCapacityMetric, Math.round(consumedUnits * 1000.0))
+        if (LOGGER.isTraceEnabled) {
+          LOGGER.trace(s"Capacity used for $operation on table $tableName: $consumedUnits")
+        }
+        result
+      case Failure(_: ProvisionedThroughputExceededException) if retry < maxRetries =>
+        storeMetrics.mark(metricsSystem, tableName, operation, throttlesMetric, 1L)
+        rateLimiter.foreach(_.throttle())
+        backoff(retry)
+        withCapacity(operation, tableName, rateLimiter, retry + 1)(request)(consumedCapacity)
+      case Failure(e: ProvisionedThroughputExceededException) =>
+        storeMetrics.mark(metricsSystem, tableName, operation, throttlesMetric, 1L)
+        rateLimiter.foreach(_.throttle())
+        throw e
+      case Failure(e) => throw e
+    }
+  }
+
+  private[dynamodb] def writeLimiter(tableName: String): Option[DynamoDBRateLimiter] =
+    rateLimiter(writeLimiters, tableName, writeUnitsPerSecond)
+
+  private def tableItems(tableName: String,
+                         tableItems: java.util.Map[String, java.util.List[Item]]): List[Item] =
+    Option(tableItems.get(tableName)).map(_.asScala.toList).getOrElse(List.empty[Item])
+
   @VisibleForTesting
   private[dynamodb] def createAttributeType(fieldType: Class[_]): ScalarAttributeType = {
     fieldType match {
@@ -174,6 +756,108 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (dynamoDBClient: Amazon
     }
   }
 
+  @VisibleForTesting
+  private[dynamodb] def decodeContinuationToken(continuationToken: String): PrimaryKey = {
+    val lastKeyItem = try {
+      Item.fromJSON(new String(Base64.getUrlDecoder.decode(continuationToken), StandardCharsets.UTF_8))
+    } catch {
+      case e: RuntimeException =>
+        throw new IllegalArgumentException(s"Invalid DynamoDB continuation token: $continuationToken", e)
+    }
+
+    new PrimaryKey(lastKeyItem.attributes().asScala
+      .map(attribute => new KeyAttribute(attribute.getKey, attribute.getValue)).toSeq: _*)
+  }
+
+  @VisibleForTesting
+  private[dynamodb] def encodeContinuationToken(lastEvaluatedKey: java.util.Map[String, AttributeValue]): String = {
+    val lastKeyJson = Item.fromMap(InternalUtils.toSimpleMapValue[AnyRef](lastEvaluatedKey)).toJSON
+    Base64.getUrlEncoder.encodeToString(lastKeyJson.getBytes(StandardCharsets.UTF_8))
+  }
+
+  // Fields with values are SET and fields with null or empty values are REMOVEd, just
+  // as in every other map store. Increments are ADDed, which DynamoDB applies to the stored
+  // number (or to zero if there is none) within the update. Fields are aliased so that
+  // reserved words can be used.
+  @VisibleForTesting
+  private[dynamodb] def createUpdateExpression(
+    payload: java.util.Map[String, AnyRef],
+    increments: java.util.Map[String, java.lang.Long] = java.util.Collections.emptyMap[String, java.lang.Long]()
+  ): Option[DynamoDBExpression] = {
+    val fields = payload.asScala.toList.sortBy(_._1).zipWithIndex
+    val setFields = fields.collect { case ((field, value), i) if !isRemoval(value) => (s"#u$i", field, s":u$i", value) }
+    val removeFields = fields.collect { case ((field, value), i) if isRemoval(value) => (s"#u$i", field) }
+    val addFields = increments.asScala.toList.sortBy(_._1).zipWithIndex
+      .map { case ((field, amount), i) => (s"#a$i", field, s":a$i", amount: AnyRef) }
+
+    val clauses = Some(setFields).filter(_.nonEmpty)
+      .map(_.map { case (name, _, valueName, _) => s"$name = $valueName" }.mkString("SET ", ", ", "")) ++
+      Some(removeFields).filter(_.nonEmpty).map(_.map(_._1).mkString("REMOVE ", ", ", "")) ++
+      Some(addFields).filter(_.nonEmpty)
+        .map(_.map { case (name, _, valueName, _) => s"$name $valueName" }.mkString("ADD ", ", ", ""))
+    Some(clauses.mkString(" ")).filter(_.nonEmpty).map(updateExpression => DynamoDBExpression(updateExpression,
+      ((setFields ++ addFields).map { case (name, field, _, _) => (name, field) } ++ removeFields).toMap,
+      (setFields ++ addFields).map { case (_, _, valueName, value) => (valueName, value) }.toMap))
+  }
+
+  private def isRemoval(value: AnyRef): Boolean = value == null || value == ""
+
+  private[dynamodb] def createUpdateItemSpec(primaryKey: PrimaryKey,
+                                             updateExpression: Option[DynamoDBExpression],
+                                             conditionExpression: Option[DynamoDBExpression]): UpdateItemSpec = {
+    val updateItemSpec = new UpdateItemSpec().withPrimaryKey(primaryKey)
+      .withReturnValues(ReturnValue.ALL_NEW)
+    updateExpression.foreach(expression => updateItemSpec.withUpdateExpression(expression.expression))
+    conditionExpression.foreach(expression => updateItemSpec.withConditionExpression(expression.expression))
+    DynamoDBExpression.nameMap(updateExpression, conditionExpression).foreach(updateItemSpec.withNameMap(_))
+    DynamoDBExpression.valueMap(updateExpression, conditionExpression).foreach(updateItemSpec.withValueMap(_))
+    updateItemSpec
+  }
+
+  @VisibleForTesting
+  private[dynamodb] def createBillingMode(): BillingMode = {
+    Try(BillingMode.fromValue(billingMode)).getOrElse(throw new ConfigException.BadValue("mapStore.dynamoDB.billingMode",
+      s"Unrecognized DynamoDB billing mode. Value is neither PROVISIONED nor PAY_PER_REQUEST: $billingMode"))
+  }
+
+  // On-demand tables and their indexes have no provisioned throughput
+  @VisibleForTesting
+  private[dynamodb] def createProvisionedThroughput(): Option[ProvisionedThroughput] = {
+    Some(createBillingMode()).filter(_ == BillingMode.PROVISIONED)
+      .map(_ => new ProvisionedThroughput(readCapacityUnits, writeCapacityUnits))
+  }
+
+  private[dynamodb] def createStartKey(lastEvaluatedKey: java.util.Map[String, AttributeValue]): PrimaryKey = {
+    new PrimaryKey(InternalUtils.toSimpleMapValue[AnyRef](lastEvaluatedKey).asScala
+      .map { case (name, value) => new KeyAttribute(name, value) }.toSeq: _*)
+  }
+
+  private[dynamodb] def createConditionalPutItemSpec(item: Item,
+                                                     condition: MapStoreWriteCondition): PutItemSpec = {
+    val conditionExpression = createConditionExpression(condition)
+
+    val putItemSpec = new PutItemSpec().withItem(item)
+    conditionExpression.foreach(expression => putItemSpec.withConditionExpression(expression.expression))
+    DynamoDBExpression.nameMap(conditionExpression).foreach(putItemSpec.withNameMap(_))
+    DynamoDBExpression.valueMap(conditionExpression).foreach(putItemSpec.withValueMap(_))
+    putItemSpec
+  }
+
+  // Field names and values are always aliased so that reserved words can be used as fields
+  @VisibleForTesting
+  private[dynamodb] def createConditionExpression(condition: MapStoreWriteCondition): Option[DynamoDBExpression] = {
+    val absentFields = condition.getAbsentFields.asScala.toList.zipWithIndex
+      .map { case (field, i) => (s"#a$i", field) }
+    val expectedValues = condition.getExpectedValues.asScala.toList.zipWithIndex
+      .map { case ((field, value), i) => (s"#e$i", field, s":e$i", value) }
+
+    val conditionExpression = (absentFields.map { case (name, _) => s"attribute_not_exists($name)" } ++
+      expectedValues.map { case (name, _, valueName, _) => s"$name = $valueName" }).mkString(" AND ")
+    Some(conditionExpression).filter(_.nonEmpty).map(expression => DynamoDBExpression(expression,
+      absentFields.toMap ++ expectedValues.map { case (name, field, _, _) => (name, field) },
+      expectedValues.map { case (_, _, valueName, value) => (valueName, value) }.toMap))
+  }
+
   @VisibleForTesting
   private[dynamodb] def createPrimaryKey(key: MapStoreKey): PrimaryKey = {
     key.getRangeField.asScala
@@ -181,6 +865,45 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (dynamoDBClient: Amazon
       .getOrElse(new PrimaryKey(key.getHashField, key.getHashValue))
   }
 
+  // Key conditions are sent as legacy (non-expression) parameters, so projections
+  // must use AttributesToGet rather than a ProjectionExpression
+  private[dynamodb] def createAttributesToGet(projection: java.util.Set[String]): Option[Seq[String]] =
+    Option(projection).filterNot(_.isEmpty).map(_.asScala.toSeq)
+
+  @VisibleForTesting
+  private[dynamodb] def createQuerySpec(key: MapStoreKey,
+                                        options: MapQueryOptions): QuerySpec = {
+    val querySpec = new QuerySpec().withHashKey(key.getHashField, key.getHashValue)
+    createRangeKeyCondition(key).foreach(rangeKeyCondition => querySpec.withRangeKeyCondition(rangeKeyCondition))
+
+    querySpec.withScanIndexForward(options.getOrder == MapQueryOptions.Order.ASC)
+      .withConsistentRead(isConsistentRead(options))
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    // Cap the request's page size too, so that DynamoDB stops reading at the limit
+    options.getLimit.asScala.foreach(limit => querySpec.withMaxResultSize(limit).withMaxPageSize(limit))
+    createAttributesToGet(options.getProjection).foreach(attributesToGet => querySpec.withAttributesToGet(attributesToGet: _*))
+    querySpec
+  }
+
+  // Scan a single segment of a parallel scan. Pages are never larger than the
+  // scan's limit, as each segment may alone satisfy it.
+  private[dynamodb] def createScanSpec(options: MapQueryOptions,
+                                       segment: Int,
+                                       totalSegments: Int): ScanSpec = {
+    val pageSize: Int = options.getPageSize.asScala.map(_.intValue()).getOrElse(scanPageSize)
+    val limitedPageSize: Int = options.getLimit.asScala.map(limit => Math.min(limit.intValue(), pageSize)).getOrElse(pageSize)
+    val scanSpec = new ScanSpec().withSegment(segment).withTotalSegments(totalSegments)
+      .withMaxPageSize(limitedPageSize)
+      .withConsistentRead(isConsistentRead(options))
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    createAttributesToGet(options.getProjection).foreach(attributesToGet => scanSpec.withAttributesToGet(attributesToGet: _*))
+    scanSpec
+  }
+
+  // DynamoDB reads are either eventually or strongly consistent
+  private[dynamodb] def isConsistentRead(options: MapQueryOptions): Boolean =
+    options.getConsistency.asScala.exists(_.isStrong)
+
   @VisibleForTesting
   private[dynamodb] def createRangeKeyCondition(key: MapStoreKey): Option[RangeKeyCondition] = {
     key.getRangeField.asScala.flatMap(rangeField => {
@@ -202,4 +925,6 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (dynamoDBClient: Amazon
       }
     })
   }
+
+  private[dynamodb] case class TimeToLiveEntry(timeToLive: Option[java.time.Duration], refreshAtMillis: Long)
 }
@@ -0,0 +1,89 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import java.util.concurrent.TimeUnit
+
+import com.google.common.base.Ticker
+
+/**
+  * A client-side token bucket of DynamoDB capacity
+  * units for a single table and operation type.
+  *
+  * A request may start whenever the bucket holds any
+  * tokens, and is then charged the capacity it actually
+  * consumed, so that the bucket can run into debt which
+  * later requests must wait out.
+  *
+  * The bucket's rate adapts to the table's real capacity.
+  * It is halved each time DynamoDB throttles a request and
+  * then recovers by a tenth of its maximum every second.
+  *
+  * @author tkral
+  */
+private[dynamodb] class DynamoDBRateLimiter(
+  maxUnitsPerSecond: Double,
+  ticker: Ticker = Ticker.systemTicker()
+) {
+  require(maxUnitsPerSecond > 0.0, s"DynamoDB rate limit must be positive: $maxUnitsPerSecond")
+
+  private val minUnitsPerSecond = Math.min(1.0, maxUnitsPerSecond)
+  private val recoveryUnitsPerSecond = maxUnitsPerSecond / 10.0
+
+  private var unitsPerSecond = maxUnitsPerSecond
+  // The bucket holds at most one second of capacity
+  private var tokens = maxUnitsPerSecond
+  private var lastRefillNanos = ticker.read()
+
+  /**
+    * Blocks until the bucket holds tokens.
+    */
+  def acquire(): Unit = {
+    var waitNanos = reserve()
+    while (waitNanos > 0L) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos)
+      waitNanos = reserve()
+    }
+  }
+
+  /**
+    * Charges the bucket for capacity units which
+    * a request has consumed.
+    */
+  def consume(units: Double): Unit = synchronized {
+    refill()
+    tokens -= units
+  }
+
+  /**
+    * Backs off after DynamoDB has throttled a request.
+    */
+  def throttle(): Unit = synchronized {
+    refill()
+    unitsPerSecond = Math.max(minUnitsPerSecond, unitsPerSecond / 2.0)
+    tokens = Math.min(tokens, 0.0)
+  }
+
+  private[dynamodb] def getTokens: Double = synchronized {
+    refill()
+    tokens
+  }
+
+  private[dynamodb] def getUnitsPerSecond: Double = synchronized {
+    refill()
+    unitsPerSecond
+  }
+
+  // Returns the time to wait before the bucket holds tokens again
+  private def reserve(): Long = synchronized {
+    refill()
+    if (tokens > 0.0) 0L else Math.max(1L, ((1.0 - tokens) / unitsPerSecond * TimeUnit.SECONDS.toNanos(1L)).toLong)
+  }
+
+  private def refill(): Unit = {
+    val nowNanos = ticker.read()
+    val elapsedSeconds = (nowNanos - lastRefillNanos).toDouble / TimeUnit.SECONDS.toNanos(1L)
+    lastRefillNanos = nowNanos
+
+    tokens = Math.min(unitsPerSecond, tokens + elapsedSeconds * unitsPerSecond)
+    unitsPerSecond = Math.min(maxUnitsPerSecond, unitsPerSecond + elapsedSeconds * recoveryUnitsPerSecond)
+  }
+}